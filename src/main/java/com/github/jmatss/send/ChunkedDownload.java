@@ -0,0 +1,142 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.WantPacket;
+import com.github.jmatss.send.protocol.ChunkList;
+import com.github.jmatss.send.storage.ChunkStore;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.util.Bitmap;
+import com.github.jmatss.send.util.SocketWrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads a file as content-defined chunks and only receives the chunks that doesn't already exist on this host.
+ * A chunk is taken from the chunk store if any downloaded file contains it, or from an earlier chunk of the same
+ * file if it repeats, otherwise it is requested from the publisher. A chunk of the store that turns out to be
+ * unreadable is skipped and the pieces that it overlaps are requested afterwards.
+ */
+class ChunkedDownload {
+    // The maximum amount of bytes of repeating chunks kept in memory until their last repetition.
+    public static final long MAX_RETAINED = 64L << 20;
+    private static final Logger LOGGER = Logger.getLogger(ChunkedDownload.class.getName());
+
+    // How every chunk is received.
+    private static final byte RECEIVE = 0;
+    private static final byte STORE = 1;
+    private static final byte REPEAT = 2;
+
+    private final PartialFile partialFile;
+    private final FileInfoPacket fileInfo;
+    private final ChunkStore chunkStore;
+
+    ChunkedDownload(PartialFile partialFile, FileInfoPacket fileInfo, ChunkStore chunkStore) {
+        this.partialFile = partialFile;
+        this.fileInfo = fileInfo;
+        this.chunkStore = chunkStore;
+    }
+
+    /**
+     * Requests the chunk list of the file and receives the chunks that are missing. The file isn't ended, so the
+     * caller can request pieces that are still missing before it sends the NO.
+     *
+     * @param socketWrapper the connection that the FILE_INFO was received on.
+     * @return the chunk list of the file, or null if the publisher doesn't chunk its files.
+     * @throws IOException                   if the chunks are incorrect or if the connection fails.
+     * @throws IncorrectMessageTypeException if a packet other than the expected is received.
+     */
+    ChunkList run(SocketWrapper socketWrapper) throws IOException, IncorrectMessageTypeException {
+        socketWrapper.sendChunks();
+        ChunkList chunkList = socketWrapper.receiveChunkList().getChunkList();
+        if (chunkList.getCount() == 0 && this.fileInfo.getFileLength() > 0)
+            return null;
+        if (chunkList.getTotalLength() != this.fileInfo.getFileLength())
+            throw new IOException("Chunks of " + this.fileInfo.getName() + " has incorrect length. Expected: " +
+                    this.fileInfo.getFileLength() + " bytes, got: " + chunkList.getTotalLength() + " bytes");
+
+        // Decides where every chunk is taken from. A repeating chunk is kept in memory from its first to its last
+        // occurrence if the memory limit allows it.
+        int count = chunkList.getCount();
+        byte[] actions = new byte[count];
+        int[] firstIndex = new int[count];
+        int[] lastIndex = new int[count];
+        Map<ByteBuffer, Integer> first = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Integer previous = first.putIfAbsent(ByteBuffer.wrap(chunkList.getDigest(i)), i);
+            firstIndex[i] = previous == null ? i : previous;
+            lastIndex[firstIndex[i]] = i;
+        }
+
+        Bitmap wanted = new Bitmap(count);
+        boolean[] retain = new boolean[count];
+        long retained = 0;
+        for (int i = 0; i < count; i++) {
+            if (this.chunkStore.contains(chunkList.getDigest(i))) {
+                actions[i] = STORE;
+            } else if (firstIndex[i] != i && retain[firstIndex[i]]) {
+                actions[i] = REPEAT;
+            } else {
+                actions[i] = RECEIVE;
+                wanted.set(i);
+                if (firstIndex[i] == i && lastIndex[i] != i && retained + chunkList.getLength(i) <= MAX_RETAINED) {
+                    retain[i] = true;
+                    retained += chunkList.getLength(i);
+                }
+            }
+        }
+        socketWrapper.sendPacket(new WantPacket(wanted));
+
+        PieceWriter writer = new PieceWriter(this.partialFile, this.fileInfo);
+        Map<Integer, byte[]> kept = new HashMap<>();
+        long storedBytes = 0;
+        long receivedBytes = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] data;
+            switch (actions[i]) {
+                case STORE:
+                    data = this.chunkStore.read(chunkList.getDigest(i));
+                    if (data != null)
+                        storedBytes += data.length;
+                    break;
+                case REPEAT:
+                    data = i == lastIndex[firstIndex[i]] ? kept.remove(firstIndex[i]) : kept.get(firstIndex[i]);
+                    storedBytes += data.length;
+                    break;
+                default:
+                    data = socketWrapper.receiveChunk(i).getData();
+                    verify(chunkList, i, data);
+                    if (retain[i])
+                        kept.put(i, data);
+                    receivedBytes += data.length;
+            }
+
+            if (data != null)
+                writer.append(data, 0, data.length);
+            else
+                writer.skip(chunkList.getLength(i));
+        }
+        if (!socketWrapper.isDone())
+            throw new IOException("Expected a DONE after the chunks of " + this.fileInfo.getName());
+        writer.finish();
+
+        LOGGER.log(Level.INFO, "Received " + this.fileInfo.getName() + " as " + count + " chunks, " +
+                storedBytes + " bytes reused and " + receivedBytes + " bytes received.");
+        return chunkList;
+    }
+
+    private void verify(ChunkList chunkList, int index, byte[] data) throws IOException {
+        MessageDigest md = ChunkList.HASH_TYPE.getPooledMessageDigest();
+        md.update(data);
+        if (data.length != chunkList.getLength(index) || !Arrays.equals(md.digest(), chunkList.getDigest(index)))
+            throw new IOException("Received chunk " + index + " of " + this.fileInfo.getName() +
+                    " doesn't match its digest");
+    }
+}
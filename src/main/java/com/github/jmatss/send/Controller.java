@@ -2,14 +2,26 @@ package com.github.jmatss.send;
 
 import com.github.jmatss.send.exception.IncorrectMessageTypeException;
 import com.github.jmatss.send.protocol.*;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.FecType;
 import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.storage.ChunkStore;
+import com.github.jmatss.send.storage.SyncPolicy;
+import com.github.jmatss.send.util.BandwidthLimiter;
 import com.github.jmatss.send.util.ClosableWrapper;
+import com.github.jmatss.send.util.DigestCache;
+import com.github.jmatss.send.util.ExecutorMetrics;
+import com.github.jmatss.send.util.ExecutorRegistry;
 import com.github.jmatss.send.util.LockableHashMap;
 import com.github.jmatss.send.util.LockableHashSet;
-import com.github.jmatss.send.util.ScheduledExecutorServiceSingleton;
+import com.github.jmatss.send.util.MulticastSocketFactory;
+import com.github.jmatss.send.util.VirtualThreads;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -21,17 +33,45 @@ public class Controller {
     public static final String ENCODING = "UTF-8";
     public static final long DEFAULT_PUBLISH_TIMEOUT = 0; // (0 = infinite)
     public static final long DEFAULT_PUBLISH_INTERVAL = 5; // Seconds
+    public static final Path DEFAULT_DIGEST_CACHE_PATH =
+            Paths.get(System.getProperty("user.home"), ".send", "digest.cache");
+    public static final Path DEFAULT_CHUNK_STORE_PATH =
+            Paths.get(System.getProperty("user.home"), ".send", "chunk.store");
+    public static final Path DEFAULT_PUBLISH_INDEX_PATH =
+            Paths.get(System.getProperty("user.home"), ".send", "index");
 
     private static final Logger LOGGER = Logger.getLogger(Controller.class.getName());
-    private final ScheduledExecutorService executor;
+    // The pools of the announcements, accept loops, uploads and downloads of this controller.
+    private final ExecutorRegistry executors;
     private final MulticastSocket socket;
     private final InetAddress ip;
     private final int port;
 
     private final Sender sender;
+    // Runs the listeners of published topics, null if they run on the ACCEPT pool.
+    private volatile ExecutorService listenerExecutor;
+    // Null until virtual threads are enabled the first time.
+    private ExecutorService threadPerTaskExecutor;
+    // Null until the selector sender is enabled the first time.
+    private SelectorSender selectorSender;
+    private volatile boolean selectorSend;
     private final LockableHashMap<String, ClosableWrapper> publishedTopics;
     private final Receiver receiver;
     private final LockableHashSet<String> subscribedTopics;
+    private final DigestCache digestCache;
+    // Null until chunked downloads are enabled.
+    private volatile ChunkStore chunkStore;
+    private volatile boolean multicastPublish;
+    private volatile long multicastRate;
+    private volatile FecType multicastFecType;
+    private volatile double multicastRedundancy;
+    private volatile MulticastSocketFactory multicastSocketFactory;
+    // Files smaller than this are packed into segments when published, 0 if packing is disabled.
+    private volatile int packThreshold;
+    // Null until the first files are packed, removed when the controller is shut down.
+    private Path packPath;
+    // The directory of the publish indices of the published files, null if they aren't indexed.
+    private volatile Path publishIndexPath;
 
     Controller(String downloadPath, MulticastSocket socket, String ip, int port) throws IOException {
         if (port > (1 << 16) - 1 || port < 0)
@@ -39,18 +79,35 @@ public class Controller {
         else if (!InetAddress.getByName(ip).isMulticastAddress())
             throw new IllegalArgumentException("Specified ip isn't a multicast address: " + ip);
 
-        this.executor = ScheduledExecutorServiceSingleton.getInstance();
+        this.executors = new ExecutorRegistry();
         this.ip = InetAddress.getByName(ip);
         this.port = port;
         this.socket = socket;
         this.socket.joinGroup(this.ip);
 
+        this.digestCache = new DigestCache(DEFAULT_DIGEST_CACHE_PATH);
+        try {
+            this.digestCache.load();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to load digest cache, starting with an empty cache: " + e.getMessage());
+        }
+
+        this.multicastPublish = false;
+        this.multicastRate = MulticastDataSender.DEFAULT_RATE;
+        this.multicastFecType = FecType.NONE;
+        this.multicastRedundancy = 0;
+        this.multicastSocketFactory = MulticastSocket::new;
+        this.packThreshold = 0;
+        this.publishIndexPath = DEFAULT_PUBLISH_INDEX_PATH;
+
         this.publishedTopics = new LockableHashMap<>();
-        this.sender = new Sender(this.publishedTopics);
+        this.sender = new Sender(this.publishedTopics, this.executors);
 
         this.subscribedTopics = new LockableHashSet<>();
-        this.receiver = new Receiver(Paths.get(downloadPath), this.socket, this.subscribedTopics);
-        this.executor.submit(receiver::start);
+        this.receiver = new Receiver(Paths.get(downloadPath), this.socket, this.subscribedTopics, this.executors);
+        // The announcement listener never returns, so it runs on the pool of the accept loops where every loop has
+        // a thread of its own.
+        this.executors.get(ExecutorRegistry.Role.ACCEPT).submit(receiver::start);
     }
 
     Controller(String downloadPath, MulticastSocket socket, int port, boolean ipv6) throws IOException {
@@ -72,7 +129,16 @@ public class Controller {
             this.socket.leaveGroup(this.ip);
             this.socket.close();
             this.publishedTopics.values().forEach(ClosableWrapper::close);
-            return this.executor.shutdownNow();
+            synchronized (this) {
+                if (this.selectorSender != null)
+                    this.selectorSender.close();
+                if (this.threadPerTaskExecutor != null)
+                    this.threadPerTaskExecutor.shutdownNow();
+            }
+            saveDigestCache();
+            saveChunkStore();
+            deletePackPath();
+            return this.executors.shutdownNow();
         }
     }
 
@@ -94,6 +160,322 @@ public class Controller {
         this.receiver.setPath(Paths.get(downloadPath));
     }
 
+    /**
+     * @return a snapshot of the queue depth, queue latency and rejections of the pool of every kind of work. The
+     * queue latency of the DISCOVERY pool is the jitter of the announcements.
+     */
+    public Map<ExecutorRegistry.Role, ExecutorMetrics> getExecutorMetrics() {
+        return this.executors.getMetrics();
+    }
+
+    /**
+     * @return the cache containing the whole file digests of published files. Can be used to inspect the amount of
+     * cache hits and misses.
+     */
+    public DigestCache getDigestCache() {
+        return this.digestCache;
+    }
+
+    private void saveDigestCache() {
+        try {
+            this.digestCache.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save digest cache: " + e.getMessage());
+        }
+    }
+
+    private void saveChunkStore() {
+        if (this.chunkStore == null)
+            return;
+        try {
+            this.chunkStore.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save chunk store: " + e.getMessage());
+        }
+    }
+
+    public void setZeroCopy(boolean zeroCopy) {
+        this.sender.setZeroCopy(zeroCopy);
+    }
+
+    /**
+     * Sets if topics published from now on should be served by the event loops of a SelectorSender instead of one
+     * executor thread per connected subscriber. Topics that already are published keep their current sender.
+     *
+     * @param selectorSend true to use non-blocking event loops.
+     * @throws IOException if it is unable to start the event loops.
+     */
+    public synchronized void setSelectorSend(boolean selectorSend) throws IOException {
+        if (selectorSend && this.selectorSender == null)
+            this.selectorSender = new SelectorSender(this.sender, SelectorSender.DEFAULT_EVENT_LOOPS);
+        this.selectorSend = selectorSend;
+    }
+
+    /**
+     * Sets if every subscriber session, topic listener and download should run on a thread of its own instead of on
+     * the UPLOAD, ACCEPT and DOWNLOAD pools, which have a limited amount of threads and queued tasks. Virtual threads
+     * are used if the runtime has them, otherwise platform threads, see VirtualThreads. The announcement timers
+     * always stay on the DISCOVERY pool. Applies to connections and topics started after this call.
+     *
+     * @param virtualThreads true to run every blocking conversation on a thread of its own.
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && this.threadPerTaskExecutor == null)
+            this.threadPerTaskExecutor = VirtualThreads.newThreadPerTaskExecutor("send-connection");
+        ExecutorService executor = virtualThreads ? this.threadPerTaskExecutor : null;
+        this.sender.setExecutor(executor);
+        this.receiver.setExecutor(executor);
+        this.listenerExecutor = executor;
+    }
+
+    public void setMultiSource(boolean multiSource) {
+        this.receiver.setMultiSource(multiSource);
+    }
+
+    /**
+     * Sets if the pieces of files published from now on also should be sent to a multicast group per topic. The
+     * subscribers then receive the pieces over multicast and only request the lost pieces over TCP, so the
+     * publisher sends every piece about once instead of once per subscriber.
+     *
+     * @param multicastPublish true to multicast the pieces of published files.
+     */
+    public void setMulticastPublish(boolean multicastPublish) {
+        this.multicastPublish = multicastPublish;
+    }
+
+    /**
+     * @param multicastRate the maximum amount of bytes per second sent to the multicast group of a topic published
+     *                      from now on.
+     */
+    public void setMulticastRate(long multicastRate) {
+        if (multicastRate <= 0)
+            throw new IllegalArgumentException("Incorrect multicast rate: " + multicastRate);
+        this.multicastRate = multicastRate;
+    }
+
+    /**
+     * Sets the forward error correction of the pieces multicast for topics published from now on. Every piece is
+     * sent with ceil(n * redundancy) parity fragments, where n is its amount of fragments, so subscribers can
+     * rebuild pieces with lost fragments instead of requesting them in another round.
+     *
+     * @param fecType    the forward error correction, NONE to disable it.
+     * @param redundancy the amount of parity fragments per data fragment, ex. 0.1 for 10% overhead.
+     */
+    public void setMulticastFec(FecType fecType, double redundancy) {
+        if (redundancy < 0 || Double.isNaN(redundancy))
+            throw new IllegalArgumentException("Incorrect redundancy: " + redundancy);
+        this.multicastFecType = fecType;
+        this.multicastRedundancy = redundancy;
+    }
+
+    /**
+     * @param multicastReceive true if pieces should be received over multicast when the publisher multicasts them.
+     */
+    public void setMulticastReceive(boolean multicastReceive) {
+        this.receiver.setMulticastData(multicastReceive);
+    }
+
+    /**
+     * @param multicastSocketFactory creates the sockets used to send and receive pieces over multicast.
+     */
+    public void setMulticastSocketFactory(MulticastSocketFactory multicastSocketFactory) {
+        this.multicastSocketFactory = multicastSocketFactory;
+        this.receiver.setMulticastSocketFactory(multicastSocketFactory);
+    }
+
+    public void setStripes(int stripes) {
+        this.receiver.setStripes(stripes);
+    }
+
+    public void setMaxStripes(int maxStripes) {
+        this.sender.setMaxStripes(maxStripes);
+    }
+
+    public void setCompression(CompressionType compression) {
+        this.sender.setCompression(compression);
+    }
+
+    /**
+     * @param chunking true if published files should be split into content-defined chunks that subscribers can
+     *                 deduplicate against the files they already have.
+     */
+    public void setChunking(boolean chunking) {
+        this.sender.setChunking(chunking);
+    }
+
+    /**
+     * Sets if the small files of directories published from now on should be packed into segments, see FilePack.
+     * A tree of many small files is then sent as a few large files and unpacked by the subscribers. The segments are
+     * written to a temporary directory when the files are published and removed when the controller is shut down.
+     *
+     * @param packThreshold the files smaller than this amount of bytes are packed (ex. FilePack.DEFAULT_THRESHOLD),
+     *                      0 disables packing.
+     */
+    public void setPackThreshold(int packThreshold) {
+        if (packThreshold < 0)
+            throw new IllegalArgumentException("Incorrect pack threshold: " + packThreshold);
+        this.packThreshold = packThreshold;
+    }
+
+    /**
+     * Sets the directory that the digests of files published from now on are saved in, one PublishIndex per topic
+     * and path. When the same path is published on the same topic again, ex. after a restart, the digests of the
+     * files that hasn't been modified are restored from the index instead of being calculated again.
+     *
+     * @param publishIndexPath the directory of the indices (ex. DEFAULT_PUBLISH_INDEX_PATH), or null to not index
+     *                         the published files.
+     */
+    public void setPublishIndexPath(Path publishIndexPath) {
+        this.publishIndexPath = publishIndexPath;
+    }
+
+    private PublishIndex loadPublishIndex(Path indexPath) {
+        if (indexPath == null)
+            return null;
+        try {
+            long start = System.nanoTime();
+            PublishIndex publishIndex = PublishIndex.load(indexPath);
+            if (publishIndex != null)
+                LOGGER.log(Level.FINE, "Loaded publish index of " + publishIndex.size() + " file(s) in " +
+                        (System.nanoTime() - start) / 1000000 + " ms from " + indexPath);
+            return publishIndex;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to load publish index, hashing the files again: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Saves the index unless all files were restored from the index that was loaded.
+    private void savePublishIndex(Path indexPath, FileProtocol fileProtocol) {
+        PublishIndex publishIndex = fileProtocol.getPublishIndex();
+        int fileCount = fileProtocol.getFileList().size();
+        if (indexPath == null || (publishIndex != null && publishIndex.size() == fileCount &&
+                publishIndex.getRestoredCount() == fileCount))
+            return;
+        try {
+            PublishIndex.write(indexPath, fileProtocol);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save publish index: " + e.getMessage());
+        }
+    }
+
+    private synchronized Path getPackPath() throws IOException {
+        if (this.packPath == null)
+            this.packPath = Files.createTempDirectory("send-pack");
+        return this.packPath;
+    }
+
+    private synchronized void deletePackPath() {
+        if (this.packPath == null)
+            return;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(this.packPath)) {
+            for (Path segment : segments)
+                Files.deleteIfExists(segment);
+            Files.deleteIfExists(this.packPath);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to remove packed files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Enables or disables chunked downloads. The chunk store is loaded from DEFAULT_CHUNK_STORE_PATH the first time
+     * it is enabled and saved when the controller is shut down.
+     *
+     * @param chunkedDownload true if files should be downloaded as chunks when the publisher chunks its files.
+     */
+    public synchronized void setChunkedDownload(boolean chunkedDownload) {
+        if (chunkedDownload && this.chunkStore == null) {
+            this.chunkStore = new ChunkStore(DEFAULT_CHUNK_STORE_PATH);
+            try {
+                this.chunkStore.load();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to load chunk store, starting with an empty store: " +
+                        e.getMessage());
+            }
+        }
+        this.receiver.setChunkStore(chunkedDownload ? this.chunkStore : null);
+    }
+
+    /**
+     * @param deltaSync true if files that already exists should be updated by only downloading the changed parts.
+     */
+    public void setDeltaSync(boolean deltaSync) {
+        this.receiver.setDeltaSync(deltaSync);
+    }
+
+    /**
+     * @param syncPolicy when downloaded files should be forced to disk.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.receiver.setSyncPolicy(syncPolicy);
+    }
+
+    /**
+     * @param rate the maximum amount of bytes per second uploaded to all subscribers together,
+     *             TokenBucket.UNLIMITED to remove the limit.
+     */
+    public void setUploadRate(long rate) {
+        this.sender.getLimiter().setRate(rate);
+    }
+
+    /**
+     * @param topic a published topic.
+     * @param rate  the maximum amount of bytes per second uploaded to all subscribers of the topic together,
+     *              TokenBucket.UNLIMITED to remove the limit.
+     */
+    public void setUploadTopicRate(String topic, long rate) {
+        this.sender.getLimiter().setTopicRate(topic, rate);
+    }
+
+    /**
+     * @param rate the maximum amount of bytes per second uploaded to every subscriber of a topic,
+     *             TokenBucket.UNLIMITED to remove the limit.
+     */
+    public void setUploadPeerRate(long rate) {
+        this.sender.getLimiter().setPeerRate(rate);
+    }
+
+    /**
+     * @return the limiter of the upload rate, which reports the achieved rate in total, per topic and per
+     * subscriber.
+     */
+    public BandwidthLimiter getUploadLimiter() {
+        return this.sender.getLimiter();
+    }
+
+    /**
+     * @param rate the maximum amount of bytes per second downloaded from all publishers together,
+     *             TokenBucket.UNLIMITED to remove the limit.
+     */
+    public void setDownloadRate(long rate) {
+        this.receiver.getLimiter().setRate(rate);
+    }
+
+    /**
+     * @param topic a subscribed topic.
+     * @param rate  the maximum amount of bytes per second downloaded from all publishers of the topic together,
+     *              TokenBucket.UNLIMITED to remove the limit.
+     */
+    public void setDownloadTopicRate(String topic, long rate) {
+        this.receiver.getLimiter().setTopicRate(topic, rate);
+    }
+
+    /**
+     * @param rate the maximum amount of bytes per second downloaded from every publisher of a topic,
+     *             TokenBucket.UNLIMITED to remove the limit.
+     */
+    public void setDownloadPeerRate(long rate) {
+        this.receiver.getLimiter().setPeerRate(rate);
+    }
+
+    /**
+     * @return the limiter of the download rate, which reports the achieved rate in total, per topic and per
+     * publisher.
+     */
+    public BandwidthLimiter getDownloadLimiter() {
+        return this.receiver.getLimiter();
+    }
+
     /**
      * Adds and sends publishing messages via the executor.
      *
@@ -105,7 +487,8 @@ public class Controller {
      * @return the topic that can be used to access the created ScheduledFuture if one want's to cancel the
      * publishing before the timeout.
      * @throws IncorrectMessageTypeException thrown if a protocol containing a disallowed MessageType is given.
-     * @throws IOException                   thrown if it is unable to create a ServerSocket.
+     * @throws IOException                   thrown if it is unable to create a ServerSocket or if the pools that
+     *                                       runs the listener and announcements of the topic are full.
      */
     public String publish(Protocol protocol, String topic, long timeout, long interval)
     throws IncorrectMessageTypeException, IOException {
@@ -119,46 +502,90 @@ public class Controller {
             if (this.publishedTopics.containsKey(topic))
                 throw new IllegalArgumentException("Already publishing on this topic.");
 
-            ServerSocket serverSocket = new ServerSocket(0);
-            Future<?> listener = this.executor.submit(
-                    () -> {
-                        try {
-                            this.sender.listen(serverSocket, protocol);
-                        } catch (IOException e) {
-                            LOGGER.log(Level.SEVERE, "Exception while listening on server socket: " + e.getMessage());
-                        }
-                    }
-            );
+            // The server socket is created from a channel so that the accepted sockets also have channels,
+            // which lets the sender transfer file pieces with zero-copy.
+            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress(0));
+            ServerSocket serverSocket = serverSocketChannel.socket();
+
+            // The pieces of the files are sent to a multicast group of the topic at the port after the publish port.
+            MulticastDataSender multicastSender = null;
+            if (this.multicastPublish && protocol instanceof FileProtocol) {
+                InetAddress group = MulticastDataSender.groupOf(topic, this.ip instanceof Inet6Address);
+                multicastSender = new MulticastDataSender(group, this.port + 1, this.multicastSocketFactory.create(0));
+                multicastSender.setRate(this.multicastRate);
+                multicastSender.setFec(this.multicastFecType, this.multicastRedundancy);
+            }
+            MulticastDataSender finalMulticastSender = multicastSender;
+
+            // The selector sender accepts on its event loops, closing the server socket stops it from accepting.
+            Future<?> listener;
+            if (this.selectorSend) {
+                synchronized (this) {
+                    this.selectorSender.listen(serverSocketChannel, protocol, finalMulticastSender);
+                }
+                listener = CompletableFuture.completedFuture(null);
+            } else {
+                ExecutorService listenerExecutor = this.listenerExecutor;
+                try {
+                    listener = (listenerExecutor != null
+                            ? listenerExecutor
+                            : this.executors.get(ExecutorRegistry.Role.ACCEPT)).submit(
+                            () -> {
+                                try {
+                                    this.sender.listen(serverSocket, protocol, finalMulticastSender);
+                                } catch (IOException e) {
+                                    LOGGER.log(Level.SEVERE, "Exception while listening on server socket: " +
+                                            e.getMessage());
+                                }
+                            }
+                    );
+                } catch (RejectedExecutionException e) {
+                    new ClosableWrapper(serverSocket, finalMulticastSender).close();
+                    throw new IOException("Unable to start listener: " + e.getMessage());
+                }
+            }
 
             byte[] packet = protocol.getPublishPacket(topic, serverSocket.getLocalPort());
             DatagramPacket datagramPacket = new DatagramPacket(packet, packet.length, this.ip, this.port);
-            Future<?> publisher = this.executor.scheduleAtFixedRate(
-                    () -> {
-                        try {
-                            this.socket.send(datagramPacket);
-                        } catch (IOException e) {
-                            LOGGER.log(Level.SEVERE, "Unable to send publish packet: " + e.getMessage());
-                        }
-                    },
-                    0,
-                    interval,
-                    TimeUnit.SECONDS
-            );
+            Future<?> publisher;
+            try {
+                publisher = this.executors.getScheduler().scheduleAtFixedRate(
+                        () -> {
+                            try {
+                                this.socket.send(datagramPacket);
+                            } catch (IOException e) {
+                                LOGGER.log(Level.SEVERE, "Unable to send publish packet: " + e.getMessage());
+                            }
+                        },
+                        0,
+                        interval,
+                        TimeUnit.SECONDS
+                );
+            } catch (RejectedExecutionException e) {
+                new ClosableWrapper(serverSocket, finalMulticastSender, listener).close();
+                throw new IOException("Unable to schedule announcements: " + e.getMessage());
+            }
 
-            ClosableWrapper closeWrapper = new ClosableWrapper(serverSocket, listener, publisher);
+            ClosableWrapper closeWrapper = new ClosableWrapper(serverSocket, multicastSender, listener, publisher);
             this.publishedTopics.put(topic, closeWrapper);
         }
 
         // Automatically cancel and remove task from this.publishedTasks map after timeout.
         // (but only if timeout is set and no one else has already done it).
         if (timeout != 0) {
-            this.executor.schedule(
-                    () -> {
-                        cancelPublish(topic);
-                    },
-                    timeout,
-                    TimeUnit.SECONDS
-            );
+            try {
+                this.executors.getScheduler().schedule(
+                        () -> {
+                            cancelPublish(topic);
+                        },
+                        timeout,
+                        TimeUnit.SECONDS
+                );
+            } catch (RejectedExecutionException e) {
+                cancelPublish(topic);
+                throw new IOException("Unable to schedule timeout: " + e.getMessage());
+            }
         }
 
         return topic;
@@ -183,6 +610,19 @@ public class Controller {
         publish(protocol, topic, timeout, interval);
     }
 
+    /**
+     * Publishes a file or a directory. A directory is walked in parallel while it is published and its files are
+     * sent to the subscribers as they are found, unless its small files are packed (see setPackThreshold) which
+     * needs all files before the topic is published. The digests of the files are restored from the publish index
+     * of the topic if there is one, see setPublishIndexPath.
+     *
+     * @param topic    the topic to publish the files on.
+     * @param path     the path of the file or directory.
+     * @param timeout  the time in milliseconds until the topic is canceled, or 0 to publish it until it is canceled.
+     * @param interval the time in milliseconds between the announcements of the topic.
+     * @throws IOException                   if the path doesn't exist or if it is unable to publish the topic.
+     * @throws IncorrectMessageTypeException if the protocol of the topic is incorrect.
+     */
     public void publishFile(String topic, String path, long timeout, long interval)
     throws IOException, IncorrectMessageTypeException {
         File f = new File(path);
@@ -191,23 +631,50 @@ public class Controller {
         else if (!f.isFile() && !f.isDirectory())
             throw new IOException("The path \"" + path + "\" is neither a file nor a directory.");
 
-        List<String> names = new ArrayList<>();
-        List<String> paths = new ArrayList<>();
-        Path basePath = f.getParentFile().toPath();
-        getFilesRecursively(f, basePath, names, paths);
-
-        publish(new FileProtocol(names, paths), topic, timeout, interval);
-    }
-
-    private void getFilesRecursively(File f, Path basePath, List<String> names, List<String> paths) {
-        if (f.isFile()) {
-            names.add(basePath.relativize(f.toPath()).toString());
-            paths.add(f.getPath());
-        } else if (f.isDirectory()) {
-            for (File newF : Objects.requireNonNull(f.listFiles())) {
-                if (newF != null)
-                    getFilesRecursively(newF, basePath, names, paths);
+        // The common pool on purpose instead of a pool of the ExecutorRegistry, see its documentation.
+        FileList fileList = FileList.walk(f.toPath(), ForkJoinPool.commonPool());
+        int packThreshold = this.packThreshold;
+        if (packThreshold > 0) {
+            List<String> names = new ArrayList<>();
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; fileList.await(i); i++) {
+                names.add(fileList.getName(i));
+                paths.add(fileList.getPath(i));
             }
+            int packed = FilePack.pack(names, paths, packThreshold, getPackPath());
+            LOGGER.log(Level.FINE, "Packed " + packed + " small file(s) of \"" + path + "\"");
+            fileList = FileList.of(names, paths);
+        }
+
+        Path publishIndexPath = this.publishIndexPath;
+        Path indexPath = publishIndexPath != null ? PublishIndex.pathOf(publishIndexPath, topic, f.toPath()) : null;
+        FileProtocol fileProtocol = new FileProtocol(fileList, this.digestCache, loadPublishIndex(indexPath));
+        publish(fileProtocol, topic, timeout, interval);
+
+        // Fill the digest cache and the piece manifests in the background so that the first subscribers doesn't
+        // have to wait for the files to be hashed. The cache and the publish index are saved to disk when all files
+        // have been hashed. If the pool is full, the digests are calculated when the first subscriber connects
+        // instead.
+        try {
+            this.executors.get(ExecutorRegistry.Role.BACKGROUND).submit(() -> {
+                try {
+                    for (int i = 0; fileProtocol.awaitFile(i); i++) {
+                        try {
+                            PFile pfile = fileProtocol.getFile(i);
+                            pfile.getFileDigest();
+                            pfile.getPieceManifest();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Unable to calculate digest in background: " + e.getMessage());
+                        }
+                    }
+                } catch (InterruptedIOException e) {
+                    return;
+                }
+                saveDigestCache();
+                savePublishIndex(indexPath, fileProtocol);
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.WARNING, "Unable to calculate digests in background: " + e.getMessage());
         }
     }
 
@@ -0,0 +1,98 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.CopyPacket;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.SignaturesPacket;
+import com.github.jmatss.send.protocol.BlockSignatures;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.util.SocketWrapper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads a new version of a file that already exists on this host by only receiving the parts that has changed.
+ * The signatures of the blocks of the old version are sent to the publisher, which answers with a delta of COPY
+ * packets for blocks that the old version already contains and LITERAL packets for everything else. The new
+ * version is rebuilt piece by piece into the partial file, so the digest of the whole file is verified before the
+ * old version is replaced.
+ */
+class DeltaDownload {
+    private static final Logger LOGGER = Logger.getLogger(DeltaDownload.class.getName());
+
+    private final Path oldPath;
+    private final FileInfoPacket fileInfo;
+    private final PieceWriter writer;
+    private long copiedBytes;
+    private long literalBytes;
+
+    DeltaDownload(Path oldPath, PartialFile partialFile, FileInfoPacket fileInfo) {
+        this.oldPath = oldPath;
+        this.fileInfo = fileInfo;
+        this.writer = new PieceWriter(partialFile, fileInfo);
+    }
+
+    /**
+     * Sends the signatures of the old version and rebuilds the new version from the delta. The file isn't ended,
+     * so the caller can request pieces that are still missing before it sends the NO.
+     *
+     * @param socketWrapper the connection that the FILE_INFO was received on.
+     * @throws IOException                   if the delta is incorrect or if it is unable to read the old version.
+     * @throws IncorrectMessageTypeException if a packet other than COPY, LITERAL or DONE is received.
+     */
+    void run(SocketWrapper socketWrapper) throws IOException, IncorrectMessageTypeException {
+        try (FileChannel oldChannel = FileChannel.open(this.oldPath, StandardOpenOption.READ)) {
+            BlockSignatures signatures = BlockSignatures.calculate(oldChannel,
+                    BlockSignatures.blockSize(oldChannel.size()));
+            socketWrapper.sendPacket(new SignaturesPacket(signatures));
+
+            while (!socketWrapper.isDone()) {
+                MessageType messageType = socketWrapper.peekMessageType();
+                switch (messageType) {
+                    case COPY:
+                        copy(oldChannel, signatures, socketWrapper.receiveCopy());
+                        break;
+                    case LITERAL:
+                        byte[] data = socketWrapper.receiveLiteral().getData();
+                        this.writer.append(data, 0, data.length);
+                        this.literalBytes += data.length;
+                        break;
+                    default:
+                        throw new IncorrectMessageTypeException("Received incorrect reply to SIGNATURES: " +
+                                messageType);
+                }
+            }
+        }
+
+        this.writer.finish();
+        LOGGER.log(Level.INFO, "Received delta of " + this.fileInfo.getName() + ", " + this.copiedBytes +
+                " bytes copied from the old version and " + this.literalBytes + " bytes received.");
+    }
+
+    private void copy(FileChannel oldChannel, BlockSignatures signatures, CopyPacket copyPacket) throws IOException {
+        if ((long) copyPacket.getBlock() + copyPacket.getCount() > signatures.getCount())
+            throw new IOException("Received copy of " + copyPacket.getCount() + " blocks from block " +
+                    copyPacket.getBlock() + " for an old version with " + signatures.getCount() + " blocks");
+
+        int blockSize = signatures.getBlockSize();
+        ByteBuffer buf = ByteBuffer.allocate(blockSize);
+        for (int i = 0; i < copyPacket.getCount(); i++) {
+            buf.clear();
+            long position = (long) (copyPacket.getBlock() + i) * blockSize;
+            while (buf.hasRemaining()) {
+                if (oldChannel.read(buf, position + buf.position()) == -1)
+                    throw new EOFException("End of file reached while copying block " + (copyPacket.getBlock() + i));
+            }
+            this.writer.append(buf.array(), 0, blockSize);
+            this.copiedBytes += blockSize;
+        }
+    }
+}
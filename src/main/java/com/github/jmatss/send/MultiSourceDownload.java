@@ -0,0 +1,293 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.RangePacket;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.util.SocketWrapper;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the pieces of one file from several publishers at once. The missing pieces are split into chunks that
+ * are put in a shared queue. Every source pulls one chunk at a time and requests it with a RANGE packet, so fast
+ * sources come back for new chunks more often than slow ones and most of the file is fetched from the fastest
+ * sources. A source that is a lot slower than the fastest one only gets a part of a chunk. When the queue is empty,
+ * idle sources also request the missing pieces of the chunks that are still in flight on the slowest sources and
+ * whichever source delivers a piece first wins. A chunk held by a source that fails is put back in the queue.
+ */
+class MultiSourceDownload {
+    // The amount of pieces in every chunk.
+    public static final int CHUNK_PIECES = 16;
+    // A source is slow if its throughput is less than the throughput of the fastest source divided by this factor.
+    public static final int SLOW_SOURCE_FACTOR = 4;
+    // A chunk is requested from an idle source if the idle source is expected to receive its missing pieces at least
+    // this many times faster than the source that holds it.
+    public static final int DUPLICATE_FACTOR = 2;
+    private static final long IDLE_WAIT = 100; // ms
+    private static final Logger LOGGER = Logger.getLogger(MultiSourceDownload.class.getName());
+
+    private final PartialFile partialFile;
+    private final FileInfoPacket fileInfo;
+    private final ReceivePipeline pipeline;
+    private final Deque<Chunk> queue;
+    private final List<Chunk> inFlight;
+    private final List<Worker> workers;
+
+    MultiSourceDownload(PartialFile partialFile, FileInfoPacket fileInfo, ReceivePipeline pipeline) {
+        this.partialFile = partialFile;
+        this.fileInfo = fileInfo;
+        this.pipeline = pipeline;
+        this.queue = new ArrayDeque<>();
+        this.inFlight = new ArrayList<>();
+        this.workers = new ArrayList<>();
+
+        int start = partialFile.nextMissing(0);
+        while (start != -1) {
+            int end = partialFile.nextReceived(start);
+            if (end == -1)
+                end = partialFile.getPieceCount();
+            for (int i = start; i < end; i += CHUNK_PIECES)
+                this.queue.add(new Chunk(i, Math.min(i + CHUNK_PIECES, end)));
+            start = partialFile.nextMissing(end);
+        }
+    }
+
+    private static class Chunk {
+        private final int start;
+        private final int end;
+        private Worker owner;
+        // Set if the missing pieces of this chunk has been requested by another source at the end of the download.
+        private boolean duplicated;
+        private long startTime; // ns
+
+        Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.owner = null;
+            this.duplicated = false;
+        }
+
+        int size() {
+            return this.end - this.start;
+        }
+    }
+
+    private static class Worker {
+        private final String name;
+        private final SocketWrapper socketWrapper;
+        private long bytes;
+        private double rate; // Bytes per second, 0 until the first chunk is received.
+
+        Worker(String name, SocketWrapper socketWrapper) {
+            this.name = name;
+            this.socketWrapper = socketWrapper;
+            this.bytes = 0;
+            this.rate = 0;
+        }
+    }
+
+    /**
+     * Downloads all missing pieces of the file. The connection that the FILE_INFO was received on is used from the
+     * current thread and every session is used from its own task on the executor. All connections ends the file with
+     * a NO, so they can continue with the next file when this returns.
+     *
+     * @param primary     the connection that the FILE_INFO was received on.
+     * @param primaryName the name of the publisher of the primary connection, used when logging.
+     * @param sessions    connections to the other publishers of the topic.
+     * @param executor    the executor that runs the sessions.
+     * @throws IOException                   if the primary connection fails.
+     * @throws IncorrectHashTypeException    if the primary connection receives an incorrect hash type.
+     * @throws IncorrectMessageTypeException if the primary connection receives an unexpected packet.
+     */
+    void run(SocketWrapper primary, String primaryName, List<SourceSession> sessions, ExecutorService executor)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        Map<SourceSession, Future<?>> futures = new LinkedHashMap<>();
+        for (SourceSession session : sessions) {
+            Future<?> future;
+            try {
+                future = executor.submit(() -> {
+                    if (session.skipTo(this.fileInfo))
+                        work(new Worker(session.getSource().toString(), session.getSocketWrapper()));
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                // The source isn't used, the other sources receives its pieces.
+                future = CompletableFuture.failedFuture(e);
+            }
+            futures.put(session, future);
+        }
+
+        try {
+            work(new Worker(primaryName, primary));
+        } finally {
+            for (Map.Entry<SourceSession, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    entry.getKey().fail();
+                    LOGGER.log(Level.WARNING, "Source " + entry.getKey().getSource() + " failed while downloading " +
+                            this.fileInfo.getName() + ": " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the sources of " + this.fileInfo.getName());
+                }
+            }
+            logSummary();
+        }
+    }
+
+    private void work(Worker worker) throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        synchronized (this) {
+            this.workers.add(worker);
+        }
+
+        Chunk chunk = null;
+        try {
+            while ((chunk = next(worker)) != null) {
+                long start = System.nanoTime();
+                worker.socketWrapper.sendPacket(new RangePacket(chunk.start, chunk.size()));
+                long bytes = this.pipeline.receiveRange(worker.socketWrapper, this.partialFile, chunk.start, chunk.end);
+                finish(worker, chunk, bytes, System.nanoTime() - start);
+            }
+            worker.socketWrapper.sendNo();
+        } catch (IOException | IncorrectHashTypeException | IncorrectMessageTypeException e) {
+            if (chunk != null)
+                release(worker, chunk);
+            throw e;
+        }
+    }
+
+    private synchronized Chunk next(Worker worker) throws IOException {
+        while (!this.partialFile.isFull()) {
+            Chunk chunk = this.queue.pollFirst();
+            if (chunk != null) {
+                // The chunk might have been received by another source at the end of the download.
+                if (isReceived(chunk))
+                    continue;
+
+                if (isSlow(worker) && chunk.size() > 1) {
+                    int split = chunk.start + Math.max(1, chunk.size() / SLOW_SOURCE_FACTOR);
+                    this.queue.addFirst(new Chunk(split, chunk.end));
+                    chunk = new Chunk(chunk.start, split);
+                }
+                return take(worker, chunk);
+            }
+
+            chunk = slowestInFlight(worker);
+            if (chunk != null) {
+                int missing = firstMissing(chunk);
+                // The owner might have received the rest of the chunk since it was found.
+                if (missing == -1)
+                    continue;
+                chunk.duplicated = true;
+                Chunk duplicate = new Chunk(missing, chunk.end);
+                duplicate.duplicated = true;
+                return take(worker, duplicate);
+            }
+            if (this.inFlight.isEmpty())
+                break;
+
+            try {
+                wait(IDLE_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a chunk of " + this.fileInfo.getName());
+            }
+        }
+        return null;
+    }
+
+    private Chunk take(Worker worker, Chunk chunk) {
+        chunk.owner = worker;
+        chunk.startTime = System.nanoTime();
+        this.inFlight.add(chunk);
+        return chunk;
+    }
+
+    // Finds the in flight chunk of the slowest source that "worker" is expected to receive a lot faster.
+    private Chunk slowestInFlight(Worker worker) {
+        if (worker.rate == 0)
+            return null;
+
+        Chunk slowest = null;
+        for (Chunk chunk : this.inFlight) {
+            if (chunk.owner == worker || chunk.duplicated || isReceived(chunk) || !isLate(worker, chunk))
+                continue;
+            if (slowest == null || chunk.owner.rate < slowest.owner.rate)
+                slowest = chunk;
+        }
+        return slowest;
+    }
+
+    private boolean isLate(Worker worker, Chunk chunk) {
+        int pieceSize = this.fileInfo.getPieceSize();
+        int missing = firstMissing(chunk);
+        if (missing == -1)
+            return false;
+        double elapsed = (System.nanoTime() - chunk.startTime) / 1e9;
+        double time = (chunk.end - missing) * (double) pieceSize / worker.rate;
+        // The time that the owner needs to finish the chunk. If the rate of the owner isn't known yet, the time
+        // that it has spent on the chunk so far is used.
+        double ownerTime = chunk.owner.rate > 0
+                ? chunk.size() * (double) pieceSize / chunk.owner.rate - elapsed
+                : elapsed;
+        return ownerTime > time * DUPLICATE_FACTOR;
+    }
+
+    private boolean isReceived(Chunk chunk) {
+        return firstMissing(chunk) == -1;
+    }
+
+    // Returns the first piece of the chunk that hasn't been received, or -1 if all of them have been received. The
+    // other sources keep writing pieces while this runs, so the result has to be read once and used for both the
+    // check and the new chunk.
+    private int firstMissing(Chunk chunk) {
+        int missing = this.partialFile.nextMissing(chunk.start);
+        return missing != -1 && missing < chunk.end ? missing : -1;
+    }
+
+    private boolean isSlow(Worker worker) {
+        if (worker.rate == 0)
+            return false;
+        for (Worker other : this.workers) {
+            if (other.rate > worker.rate * SLOW_SOURCE_FACTOR)
+                return true;
+        }
+        return false;
+    }
+
+    private synchronized void finish(Worker worker, Chunk chunk, long bytes, long nanos) {
+        double rate = bytes * 1e9 / Math.max(nanos, 1);
+        worker.rate = worker.rate == 0 ? rate : (worker.rate + rate) / 2;
+        worker.bytes += bytes;
+        release(worker, chunk);
+    }
+
+    // Removes the chunk from the in flight chunks. Pieces that weren't received are put back in the queue.
+    private synchronized void release(Worker worker, Chunk chunk) {
+        this.inFlight.remove(chunk);
+        int missing = firstMissing(chunk);
+        if (missing != -1)
+            this.queue.addFirst(new Chunk(missing, chunk.end));
+        notifyAll();
+    }
+
+    private synchronized void logSummary() {
+        StringBuilder sb = new StringBuilder("Downloaded " + this.fileInfo.getName() + " from " +
+                this.workers.size() + " source(s):");
+        for (Worker worker : this.workers)
+            sb.append(String.format("%n  %s: %d bytes, %.1f MiB/s", worker.name, worker.bytes,
+                    worker.rate / (1 << 20)));
+        LOGGER.log(Level.INFO, sb.toString());
+    }
+}
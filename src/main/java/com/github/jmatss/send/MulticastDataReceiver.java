@@ -0,0 +1,242 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.FragmentPacket;
+import com.github.jmatss.send.packet.MulticastPacket;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.util.Bitmap;
+import com.github.jmatss.send.util.FecCodec;
+import com.github.jmatss.send.util.SocketWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.MulticastSocket;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the pieces that a publisher sends to a multicast group, see MulticastDataSender. The fragments of a
+ * piece are collected until the whole piece has been received, after which the piece is verified against its
+ * digest and written to the partial file of the file that is currently expected. Fragments of other files and
+ * of other publishers are ignored. Pieces that are lost are requested again by the caller. If the publisher uses
+ * forward error correction, a piece that lost some fragments is rebuilt as soon as the amount of data and parity
+ * fragments received equals the amount of data fragments.
+ */
+class MulticastDataReceiver implements Closeable {
+    // The maximum amount of incomplete pieces kept in memory, the oldest piece is dropped when it is exceeded.
+    public static final int MAX_PENDING_PIECES = 256;
+    private static final int MAX_DATAGRAM_SIZE = 1 << 16;
+    private static final Logger LOGGER = Logger.getLogger(MulticastDataReceiver.class.getName());
+
+    private final MulticastPacket multicastPacket;
+    private final MulticastSocket socket;
+    private final Thread thread;
+    private final Map<Integer, PendingPiece> pendingPieces;
+    private int fileIndex;
+    private PartialFile partialFile;
+    private FileInfoPacket fileInfo;
+    private long receivedPieces;
+    private long rebuiltPieces;
+    private volatile boolean closed;
+
+    private static class PendingPiece {
+        private final byte[] data;
+        private final int dataCount;
+        private final Bitmap fragments;
+        // The parity shards received, indexed by shard index - dataCount. Allocated when the first one is received.
+        private byte[][] parity;
+        private int parityReceived;
+
+        PendingPiece(int length) {
+            this.data = new byte[length];
+            this.dataCount = (length + FragmentPacket.MAX_DATA_SIZE - 1) / FragmentPacket.MAX_DATA_SIZE;
+            this.fragments = new Bitmap(this.dataCount);
+            this.parity = null;
+            this.parityReceived = 0;
+        }
+
+        // Rebuilds the lost data fragments from the parity fragments, returns false if too few are received.
+        boolean rebuild(FecCodec codec) {
+            if (this.parity == null || this.fragments.cardinality() + this.parityReceived < this.dataCount)
+                return false;
+
+            int shardSize = Math.min(this.data.length, FragmentPacket.MAX_DATA_SIZE);
+            byte[][] shards = new byte[this.dataCount + this.parity.length][];
+            for (int j = 0; j < this.dataCount; j++) {
+                if (this.fragments.get(j))
+                    shards[j] = Arrays.copyOfRange(this.data, j * shardSize, j * shardSize + shardSize);
+            }
+            System.arraycopy(this.parity, 0, shards, this.dataCount, this.parity.length);
+            if (!codec.decode(shards, this.dataCount))
+                return false;
+
+            for (int j = this.fragments.nextClear(0); j != -1; j = this.fragments.nextClear(j + 1)) {
+                int offset = j * shardSize;
+                System.arraycopy(shards[j], 0, this.data, offset, Math.min(shardSize, this.data.length - offset));
+                this.fragments.set(j);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Joins the multicast group and starts receiving fragments in a new thread.
+     *
+     * @param multicastPacket the MULTICAST packet received from the publisher.
+     * @param socket          a socket bound to the port of the multicast group.
+     * @throws IOException if it is unable to join the group.
+     */
+    MulticastDataReceiver(MulticastPacket multicastPacket, MulticastSocket socket) throws IOException {
+        this.multicastPacket = multicastPacket;
+        this.socket = socket;
+        this.socket.joinGroup(multicastPacket.getGroup());
+        this.pendingPieces = new LinkedHashMap<>();
+        this.fileIndex = -1;
+        this.closed = false;
+
+        this.thread = new Thread(this::run, "send-multicast-receiver");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Starts writing the pieces of the given file that are received over multicast to "partialFile".
+     *
+     * @param fileIndex   the index of the file in the order that the FILE_INFO packets are received.
+     * @param partialFile the file to write the pieces to.
+     * @param fileInfo    the FILE_INFO of the file.
+     */
+    synchronized void expect(int fileIndex, PartialFile partialFile, FileInfoPacket fileInfo) {
+        this.fileIndex = fileIndex;
+        this.partialFile = partialFile;
+        this.fileInfo = fileInfo;
+        this.pendingPieces.clear();
+        this.receivedPieces = 0;
+        this.rebuiltPieces = 0;
+    }
+
+    /**
+     * Stops writing pieces to the currently expected file.
+     *
+     * @return the amount of pieces that were received over multicast and written to the file.
+     */
+    synchronized long release() {
+        this.fileIndex = -1;
+        this.partialFile = null;
+        this.fileInfo = null;
+        this.pendingPieces.clear();
+        return this.receivedPieces;
+    }
+
+    private void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!this.closed) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                this.socket.receive(packet);
+                if (packet.getLength() == 0)
+                    continue;
+
+                SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(packet.getData(),
+                        packet.getOffset(), packet.getLength()));
+                handle(socketWrapper.receiveFragment());
+            } catch (IOException | IncorrectMessageTypeException | IncorrectHashTypeException e) {
+                if (!this.closed && !this.socket.isClosed())
+                    LOGGER.log(Level.FINE, "Dropped incorrect fragment: " + e.getMessage());
+            }
+            if (this.socket.isClosed())
+                return;
+        }
+    }
+
+    private synchronized void handle(FragmentPacket fragment) throws IOException {
+        if (fragment.getSessionId() != this.multicastPacket.getSessionId() ||
+                fragment.getFileIndex() != this.fileIndex)
+            return;
+
+        int index = fragment.getPieceIndex();
+        if (index < 0 || index >= this.partialFile.getPieceCount() || this.partialFile.isReceived(index))
+            return;
+
+        long position = (long) index * this.fileInfo.getPieceSize();
+        int length = (int) Math.min(this.fileInfo.getFileLength() - position, this.fileInfo.getPieceSize());
+        int dataCount = (length + FragmentPacket.MAX_DATA_SIZE - 1) / FragmentPacket.MAX_DATA_SIZE;
+        int shard = fragment.getOffset() / FragmentPacket.MAX_DATA_SIZE;
+        FecCodec codec = fragment.getFecType().getCodec();
+        if (fragment.getOffset() % FragmentPacket.MAX_DATA_SIZE != 0)
+            throw new IOException("Received fragment of piece " + index + " with incorrect offset " +
+                    fragment.getOffset());
+        else if (shard < dataCount && fragment.getOffset() + fragment.getData().length > length)
+            throw new IOException("Received fragment of piece " + index + " with incorrect offset " +
+                    fragment.getOffset() + " and length " + fragment.getData().length);
+        else if (shard >= dataCount && (codec == null || shard >= codec.getMaxShards() ||
+                fragment.getData().length != Math.min(length, FragmentPacket.MAX_DATA_SIZE)))
+            throw new IOException("Received incorrect parity fragment " + (shard - dataCount) + " of piece " +
+                    index + " with length " + fragment.getData().length);
+
+        PendingPiece piece = this.pendingPieces.get(index);
+        if (piece == null) {
+            if (this.pendingPieces.size() >= MAX_PENDING_PIECES) {
+                Iterator<Integer> oldest = this.pendingPieces.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            piece = new PendingPiece(length);
+            this.pendingPieces.put(index, piece);
+        }
+
+        if (shard < dataCount) {
+            System.arraycopy(fragment.getData(), 0, piece.data, fragment.getOffset(), fragment.getData().length);
+            piece.fragments.set(shard);
+        } else {
+            if (piece.parity == null)
+                piece.parity = new byte[codec.getMaxShards() - dataCount][];
+            if (piece.parity[shard - dataCount] == null)
+                piece.parityReceived++;
+            piece.parity[shard - dataCount] = fragment.getData();
+        }
+
+        if (!piece.fragments.isFull()) {
+            if (codec == null || !piece.rebuild(codec))
+                return;
+            this.rebuiltPieces++;
+        }
+
+        this.pendingPieces.remove(index);
+        if (fragment.getHashType() != HashType.NONE &&
+                !Arrays.equals(fragment.getHashType().digest(piece.data), fragment.getDigest())) {
+            LOGGER.log(Level.FINE, "Dropped piece " + index + " with incorrect digest");
+            return;
+        }
+        this.partialFile.write(index, piece.data);
+        this.receivedPieces++;
+    }
+
+    /**
+     * @return the amount of pieces of the currently expected file that were rebuilt with forward error correction.
+     */
+    synchronized long getRebuiltPieces() {
+        return this.rebuiltPieces;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            this.socket.leaveGroup(this.multicastPacket.getGroup());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to leave multicast group: " + e.getMessage());
+        }
+        this.socket.close();
+        this.thread.interrupt();
+    }
+}
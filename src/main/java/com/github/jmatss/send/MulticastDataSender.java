@@ -0,0 +1,271 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.packet.FragmentPacket;
+import com.github.jmatss.send.packet.MulticastPacket;
+import com.github.jmatss.send.protocol.PFile;
+import com.github.jmatss.send.protocol.PieceManifest;
+import com.github.jmatss.send.type.FecType;
+import com.github.jmatss.send.util.Bitmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the pieces of the files of one published topic to a multicast group. The subscribers request pieces over
+ * their TCP connection with JOIN packets containing a bitmap of the wanted pieces. The requests for the same file
+ * that arrives within ROUND_DELAY are merged into one round where the union of the wanted pieces is multicast
+ * once, so the publisher sends every piece once per round instead of once per subscriber. A JOIN that arrives
+ * while a round is running is served by the next round of the file.
+ * <p>
+ * With forward error correction every piece is a block of data fragments followed by parity fragments, so a
+ * subscriber can rebuild a piece that lost some of its fragments without waiting for the next round.
+ */
+class MulticastDataSender implements Closeable {
+    public static final long DEFAULT_RATE = 32L << 20; // bytes per second
+    // The time to wait for more subscribers before a round is started.
+    public static final long ROUND_DELAY = 500; // ms
+    private static final Logger LOGGER = Logger.getLogger(MulticastDataSender.class.getName());
+
+    private final int sessionId;
+    private final InetAddress group;
+    private final int port;
+    private final MulticastSocket socket;
+    // Runs one round at a time so that the rounds doesn't compete for bandwidth.
+    private final ScheduledExecutorService roundExecutor;
+    private final Map<Integer, Round> pendingRounds;
+    private volatile long rate;
+    private volatile FecType fecType;
+    private volatile double redundancy;
+    // The pacing state of the current round, only used by the round executor.
+    private long start;
+    private long sentBytes;
+
+    private static class Round {
+        private final Bitmap wanted;
+        private final CompletableFuture<Void> done;
+
+        Round(int pieceCount) {
+            this.wanted = new Bitmap(pieceCount);
+            this.done = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * @param group  the multicast group to send the pieces to.
+     * @param port   the port of the multicast group.
+     * @param socket the socket to send the datagrams with.
+     */
+    MulticastDataSender(InetAddress group, int port, MulticastSocket socket) {
+        this.sessionId = new Random().nextInt();
+        this.group = group;
+        this.port = port;
+        this.socket = socket;
+        this.roundExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "send-multicast-rounds");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pendingRounds = new HashMap<>();
+        this.rate = DEFAULT_RATE;
+        this.fecType = FecType.NONE;
+        this.redundancy = 0;
+    }
+
+    /**
+     * Derives the multicast group of a topic, so that subscribers of different topics doesn't receive each
+     * others pieces. IPv4 groups are in the organization-local scope 239.192.0.0/14 and IPv6 groups in the
+     * link-local scope ff12::/16, the same scope as the default publish group.
+     *
+     * @param topic the published topic.
+     * @param ipv6  true if an IPv6 group should be created.
+     * @return the multicast group of the topic.
+     */
+    static InetAddress groupOf(String topic, boolean ipv6) {
+        int hash = 0;
+        for (byte b : topic.getBytes(StandardCharsets.UTF_8))
+            hash = 31 * hash + b;
+
+        byte[] address;
+        if (ipv6) {
+            address = new byte[16];
+            address[0] = (byte) 0xff;
+            address[1] = 0x12;
+            ByteBuffer.wrap(address, 12, 4).putInt(hash);
+        } else {
+            address = new byte[]{(byte) 239, (byte) (192 | (hash >>> 16) & 0x03), (byte) (hash >>> 8), (byte) hash};
+        }
+
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // Shouldn't happen, the address has a correct length.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the packet that tells a subscriber where the pieces are sent.
+     */
+    MulticastPacket getMulticastPacket() {
+        return new MulticastPacket(this.sessionId, this.group, this.port);
+    }
+
+    /**
+     * @param rate the maximum amount of bytes sent per second.
+     */
+    void setRate(long rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("Incorrect multicast rate: " + rate);
+        this.rate = rate;
+    }
+
+    /**
+     * Sets the forward error correction of the pieces sent from now on. With n fragments in a piece,
+     * ceil(n * redundancy) parity fragments are sent after them and the piece can be rebuilt from any n of them.
+     *
+     * @param fecType    the forward error correction to use, NONE to only send the data fragments.
+     * @param redundancy the amount of parity fragments per data fragment.
+     */
+    void setFec(FecType fecType, double redundancy) {
+        if (redundancy < 0 || Double.isNaN(redundancy))
+            throw new IllegalArgumentException("Incorrect redundancy: " + redundancy);
+        this.fecType = fecType;
+        this.redundancy = redundancy;
+    }
+
+    /**
+     * Adds the wanted pieces of a file to the next round of the file and waits until the round has ended.
+     *
+     * @param pfile     the file.
+     * @param fileIndex the index of the file in the order that the FILE_INFO packets are sent.
+     * @param wanted    the pieces of the file that the subscriber wants.
+     * @throws IOException if the round fails or if the wanted bitmap has an incorrect size.
+     */
+    void transmit(PFile pfile, int fileIndex, Bitmap wanted) throws IOException {
+        if (wanted.size() != pfile.getPieceCount())
+            throw new IOException("Received incorrect amount of wanted pieces. Expected: " + pfile.getPieceCount() +
+                    ", got: " + wanted.size());
+
+        Round round;
+        synchronized (this.pendingRounds) {
+            round = this.pendingRounds.get(fileIndex);
+            if (round == null) {
+                Round newRound = new Round(pfile.getPieceCount());
+                this.pendingRounds.put(fileIndex, newRound);
+                this.roundExecutor.schedule(() -> runRound(pfile, fileIndex, newRound), ROUND_DELAY,
+                        TimeUnit.MILLISECONDS);
+                round = newRound;
+            }
+            round.wanted.or(wanted);
+        }
+
+        try {
+            round.done.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Multicast of " + pfile.getName() + " failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the multicast of " + pfile.getName());
+        }
+    }
+
+    private void runRound(PFile pfile, int fileIndex, Round round) {
+        // Subscribers that joins from now on are served by the next round.
+        synchronized (this.pendingRounds) {
+            this.pendingRounds.remove(fileIndex);
+        }
+
+        try {
+            int pieces = sendPieces(pfile, fileIndex, round.wanted);
+            LOGGER.log(Level.INFO, "Multicast " + pieces + " of " + pfile.getPieceCount() + " pieces of " +
+                    pfile.getName() + " to " + this.group.getHostAddress() + ":" + this.port);
+            round.done.complete(null);
+        } catch (IOException | RuntimeException e) {
+            round.done.completeExceptionally(e);
+        }
+    }
+
+    private int sendPieces(PFile pfile, int fileIndex, Bitmap wanted) throws IOException {
+        PieceManifest manifest = pfile.getPieceManifest();
+        long fileLength = pfile.getFileLength();
+        FecType fecType = this.fecType;
+        double redundancy = this.redundancy;
+        ByteBuffer buf = ByteBuffer.allocate(pfile.getPieceSize());
+        this.sentBytes = 0;
+        this.start = System.nanoTime();
+        int pieces = 0;
+
+        try (FileChannel channel = pfile.openChannel()) {
+            for (int i = wanted.nextSet(0); i != -1; i = wanted.nextSet(i + 1)) {
+                int length = pfile.getPieceLength(i, fileLength);
+                buf.clear().limit(length);
+                long position = pfile.getPiecePosition(i);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, position + buf.position()) == -1)
+                        throw new IOException("End of file reached while reading piece " + i);
+                }
+
+                int dataCount = (length + FragmentPacket.MAX_DATA_SIZE - 1) / FragmentPacket.MAX_DATA_SIZE;
+                int shardSize = Math.min(length, FragmentPacket.MAX_DATA_SIZE);
+                byte[][] shards = new byte[dataCount][];
+                for (int j = 0; j < dataCount; j++) {
+                    int offset = j * FragmentPacket.MAX_DATA_SIZE;
+                    byte[] data = new byte[Math.min(FragmentPacket.MAX_DATA_SIZE, length - offset)];
+                    System.arraycopy(buf.array(), offset, data, 0, data.length);
+                    send(new FragmentPacket(this.sessionId, fileIndex, i, fecType, offset, data,
+                            manifest.getHashType(), manifest.getDigest(i)));
+                    // The last data shard is padded to the size of the other shards when it is encoded.
+                    shards[j] = data.length == shardSize ? data : Arrays.copyOf(data, shardSize);
+                }
+
+                int parityCount = fecType.parityCount(dataCount, redundancy);
+                if (parityCount > 0) {
+                    byte[][] parity = fecType.getCodec().encode(shards, parityCount);
+                    for (int j = 0; j < parityCount; j++)
+                        send(new FragmentPacket(this.sessionId, fileIndex, i, fecType,
+                                (dataCount + j) * FragmentPacket.MAX_DATA_SIZE, parity[j], manifest.getHashType(),
+                                manifest.getDigest(i)));
+                }
+                pieces++;
+            }
+        }
+        return pieces;
+    }
+
+    private void send(FragmentPacket fragment) throws IOException {
+        byte[] packet = fragment.getBytes();
+        this.socket.send(new DatagramPacket(packet, packet.length, this.group, this.port));
+
+        // Paces the datagrams so that the receivers and the network doesn't drop them.
+        this.sentBytes += packet.length;
+        long ahead = this.sentBytes * 1_000_000_000L / this.rate - (System.nanoTime() - this.start);
+        if (ahead > 1_000_000)
+            LockSupport.parkNanos(ahead);
+    }
+
+    @Override
+    public void close() {
+        this.roundExecutor.shutdownNow();
+        synchronized (this.pendingRounds) {
+            for (Round round : this.pendingRounds.values())
+                round.done.completeExceptionally(new IOException("Multicast sender closed"));
+            this.pendingRounds.clear();
+        }
+        this.socket.close();
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.storage.PartialFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes a file that is received as a stream of variable sized parts, ex. the blocks of a delta or the chunks of a
+ * chunked download, to a partial file piece by piece. Bytes that are unavailable can be skipped, the pieces that
+ * they are in aren't written and can be requested afterwards.
+ */
+class PieceWriter {
+    private final PartialFile partialFile;
+    private final FileInfoPacket fileInfo;
+    // The piece currently being filled.
+    private final byte[] piece;
+    private int pieceIndex;
+    private int pieceLength;
+    // True if some bytes of the current piece were skipped.
+    private boolean pieceSkipped;
+    private long position;
+
+    PieceWriter(PartialFile partialFile, FileInfoPacket fileInfo) {
+        this.partialFile = partialFile;
+        this.fileInfo = fileInfo;
+        this.piece = new byte[fileInfo.getPieceSize()];
+        this.pieceIndex = 0;
+        this.pieceLength = 0;
+        this.pieceSkipped = false;
+        this.position = 0;
+    }
+
+    /**
+     * @return the amount of bytes appended or skipped.
+     */
+    long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Appends data and writes every piece that becomes full.
+     *
+     * @throws IOException if the data goes past the end of the file or if it is unable to write a piece.
+     */
+    void append(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, remainingOfPiece());
+            if (!this.pieceSkipped)
+                System.arraycopy(data, offset, this.piece, this.pieceLength, n);
+            advance(n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Skips bytes that are unavailable, the pieces that they are in are left missing in the partial file.
+     *
+     * @throws IOException if the skipped bytes goes past the end of the file or if it is unable to write a piece.
+     */
+    void skip(long length) throws IOException {
+        while (length > 0) {
+            int n = (int) Math.min(length, remainingOfPiece());
+            this.pieceSkipped = true;
+            advance(n);
+            length -= n;
+        }
+    }
+
+    /**
+     * Verifies that the whole file has been appended or skipped.
+     *
+     * @throws IOException if the file isn't complete.
+     */
+    void finish() throws IOException {
+        if (this.position != this.fileInfo.getFileLength())
+            throw new IOException(this.fileInfo.getName() + " has incorrect length. Expected: " +
+                    this.fileInfo.getFileLength() + " bytes, got: " + this.position + " bytes");
+    }
+
+    private int remainingOfPiece() throws IOException {
+        if (this.pieceIndex >= this.partialFile.getPieceCount())
+            throw new IOException(this.fileInfo.getName() + " is longer than the file length " +
+                    this.fileInfo.getFileLength());
+        long piecePosition = (long) this.pieceIndex * this.fileInfo.getPieceSize();
+        int pieceLength = (int) Math.min(this.fileInfo.getFileLength() - piecePosition, this.fileInfo.getPieceSize());
+        return pieceLength - this.pieceLength;
+    }
+
+    private void advance(int n) throws IOException {
+        this.pieceLength += n;
+        this.position += n;
+        if (remainingOfPiece() > 0)
+            return;
+
+        if (!this.pieceSkipped)
+            this.partialFile.write(this.pieceIndex, this.pieceLength == this.piece.length
+                    ? this.piece
+                    : Arrays.copyOf(this.piece, this.pieceLength));
+        this.pieceIndex++;
+        this.pieceLength = 0;
+        this.pieceSkipped = false;
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.util.BufferPool;
+import com.github.jmatss.send.util.ExecutorRegistry;
+import com.github.jmatss.send.util.PieceBuffer;
+import com.github.jmatss.send.util.SocketWrapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Receives the FILE_PIECEs of a request in three stages on separate threads: the calling thread reads the pieces
+ * from the network into pooled buffers, the pieces are decompressed and verified on the VERIFY pool and written to
+ * the partial file on the WRITE pool. Reading the next piece therefore doesn't wait for the previous piece to be
+ * hashed and written to disk.
+ * <p>
+ * Every transfer has its own pool of at most BUFFERS_PER_TRANSFER buffers. The reader blocks when all of them are in
+ * use, so a slow disk or slow hashing applies backpressure to the connection instead of buffering without bounds.
+ */
+class ReceivePipeline {
+    // The maximum amount of pieces of one transfer that are read but not yet written.
+    public static final int BUFFERS_PER_TRANSFER = 16;
+    // Large pieces gets fewer buffers so that a transfer holds at most about this many bytes per pool.
+    public static final int BYTES_PER_TRANSFER = 16 << 20;
+
+    private final Executor verifyExecutor;
+    private final Executor writeExecutor;
+
+    /**
+     * @param executors the registry whose VERIFY and WRITE pools verifies and writes the received pieces.
+     */
+    ReceivePipeline(ExecutorRegistry executors) {
+        this.verifyExecutor = callerRunsWhenFull(executors.get(ExecutorRegistry.Role.VERIFY));
+        this.writeExecutor = callerRunsWhenFull(executors.get(ExecutorRegistry.Role.WRITE));
+    }
+
+    // A stage whose pool is full runs on the thread of the previous stage, which slows down the reader of the
+    // transfer instead of failing it.
+    private static Executor callerRunsWhenFull(ExecutorService executor) {
+        return task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                if (executor.isShutdown())
+                    throw e;
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Receives the pieces [start, end) that has been requested from a publisher and writes them to the file.
+     *
+     * @param socketWrapper the connection to the publisher.
+     * @param partialFile   the file to write the pieces to.
+     * @param start         the index of the first requested piece.
+     * @param end           the index after the last requested piece.
+     * @return the amount of bytes received.
+     * @throws IOException                   if the publisher doesn't send exactly the requested pieces.
+     * @throws IncorrectHashTypeException    if a piece has an incorrect hash type.
+     * @throws IncorrectMessageTypeException if a packet other than FILE_PIECE or DONE is received.
+     */
+    long receiveRange(SocketWrapper socketWrapper, PartialFile partialFile, int start, int end)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        return receive(socketWrapper, partialFile, end - start, i -> start + i, "[" + start + ", " + end + ")");
+    }
+
+    /**
+     * Receives pieces until a DONE is received and writes them to the partial file. Returns when every received
+     * piece has been written.
+     *
+     * @param socketWrapper the connection that the pieces were requested on.
+     * @param partialFile   the file to write the pieces to.
+     * @param count         the amount of pieces requested.
+     * @param indexOf       maps the order of a piece in the request to its index in the file.
+     * @param name          a description of the request used in error messages.
+     * @return the amount of bytes received.
+     * @throws IOException                   if a piece is incorrect, if the publisher doesn't send exactly the
+     *                                       requested pieces or if it is unable to write to the file.
+     * @throws IncorrectHashTypeException    if a piece has an incorrect hash type.
+     * @throws IncorrectMessageTypeException if a packet other than FILE_PIECE or DONE is received.
+     */
+    long receive(SocketWrapper socketWrapper, PartialFile partialFile, int count, IntUnaryOperator indexOf,
+                 String name)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        // One extra byte so that a piece that is too large is detected instead of filling the buffer exactly.
+        int bufferSize = partialFile.getPieceSize() + 1;
+        int buffers = Math.max(2, Math.min(BUFFERS_PER_TRANSFER, BYTES_PER_TRANSFER / bufferSize));
+        BufferPool readPool = new BufferPool(bufferSize, buffers);
+        BufferPool decompressPool = new BufferPool(bufferSize, buffers);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong bytes = new AtomicLong();
+        // The reader is registered as one party and every piece in flight as another.
+        Phaser inFlight = new Phaser(1);
+
+        int i = 0;
+        try {
+            while (failure.get() == null && !socketWrapper.isDone()) {
+                if (i >= count)
+                    throw new IOException("Received more pieces than requested for " + name + ". Requested: " +
+                            count + " pieces");
+                int index = indexOf.applyAsInt(i++);
+                PieceBuffer piece = socketWrapper.receiveFilePiece(index, readPool);
+
+                CompletableFuture<Void> verified;
+                try {
+                    verified = CompletableFuture.runAsync(() -> verify(piece, decompressPool), this.verifyExecutor);
+                } catch (RejectedExecutionException e) {
+                    piece.release();
+                    throw new IOException("Unable to verify the pieces of " + name + ": " + e.getMessage());
+                }
+                inFlight.register();
+                verified.thenRunAsync(() -> write(partialFile, piece), this.writeExecutor)
+                        .whenComplete((v, e) -> {
+                            if (e == null)
+                                bytes.addAndGet(piece.getLength());
+                            else
+                                failure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+                            piece.release();
+                            inFlight.arriveAndDeregister();
+                        });
+            }
+        } finally {
+            inFlight.arriveAndAwaitAdvance();
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof UncheckedIOException)
+            throw ((UncheckedIOException) e).getCause();
+        else if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        else if (e != null)
+            throw new IOException(e);
+
+        if (i != count)
+            throw new IOException("Unable to receive all requested pieces for " + name + ". Requested: " + count +
+                    " pieces, got: " + i + " pieces");
+        return bytes.get();
+    }
+
+    private static void verify(PieceBuffer piece, BufferPool decompressPool) {
+        try {
+            piece.verify(decompressPool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(PartialFile partialFile, PieceBuffer piece) {
+        try {
+            partialFile.write(piece.getIndex(), piece.getBuffer(), piece.getLength());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -3,46 +3,228 @@ package com.github.jmatss.send;
 import com.github.jmatss.send.exception.IncorrectHashTypeException;
 import com.github.jmatss.send.exception.IncorrectMessageTypeException;
 import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.JoinPacket;
+import com.github.jmatss.send.packet.MulticastPacket;
 import com.github.jmatss.send.packet.PublishPacket;
 import com.github.jmatss.send.packet.RequestPacket;
+import com.github.jmatss.send.packet.RangePacket;
+import com.github.jmatss.send.packet.StripesPacket;
+import com.github.jmatss.send.packet.WantedFilesPacket;
+import com.github.jmatss.send.protocol.ChunkList;
+import com.github.jmatss.send.protocol.FilePack;
+import com.github.jmatss.send.protocol.PieceSize;
 import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.storage.ChunkStore;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.storage.SyncPolicy;
+import com.github.jmatss.send.util.BandwidthLimiter;
+import com.github.jmatss.send.util.Bitmap;
 import com.github.jmatss.send.util.SocketWrapper;
+import com.github.jmatss.send.util.ExecutorRegistry;
+import com.github.jmatss.send.util.IdCache;
+import com.github.jmatss.send.type.CompressionType;
 import com.github.jmatss.send.type.MessageType;
 import com.github.jmatss.send.util.LockableHashSet;
-import com.github.jmatss.send.util.ScheduledExecutorServiceSingleton;
+import com.github.jmatss.send.util.MulticastSocketFactory;
 
 import java.io.*;
 import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Receiver {
     public static final int SOCKET_TIMEOUT = 5000; // ms
+    // The amount of ids of downloaded announcements that are remembered, see IdCache.
     public static final int MAX_ID_CACHE_SIZE = 1 << 20;
+    public static final boolean DEFAULT_MULTI_SOURCE = false;
+    // Publishers that hasn't announced a topic within this time aren't used as extra sources of the topic.
+    public static final long SOURCE_TIMEOUT = 3 * Controller.DEFAULT_PUBLISH_INTERVAL * 1000; // ms
+    // The time to wait for announcements from other publishers before starting a multi-source download.
+    public static final long SOURCE_GATHER_TIME = 2000; // ms
+    public static final int MAX_SOURCES = 8;
+    // Files with fewer missing pieces than this are downloaded from a single publisher.
+    public static final int MIN_MULTI_SOURCE_PIECES = 2 * MultiSourceDownload.CHUNK_PIECES;
+    public static final int DEFAULT_STRIPES = 1;
+    // Files with fewer missing pieces than this are downloaded over a single connection.
+    public static final int MIN_STRIPED_PIECES = 32;
+    public static final boolean DEFAULT_MULTICAST_DATA = true;
+    // The maximum amount of multicast rounds per file before the rest of the pieces are requested over TCP.
+    public static final int MAX_MULTICAST_ROUNDS = 3;
+    // If at most 1 / UNICAST_REPAIR_DIVISOR of the pieces are missing after a multicast round, they are requested
+    // over TCP instead of in another multicast round.
+    public static final int UNICAST_REPAIR_DIVISOR = 16;
+    // The time to keep on receiving datagrams after a multicast round has ended.
+    public static final long MULTICAST_LINGER = 200; // ms
+    public static final boolean DEFAULT_DELTA_SYNC = false;
+    // Files with fewer bytes to download than this are too short to measure the throughput from the publisher with.
+    public static final long MIN_THROUGHPUT_SAMPLE = 1 << 20;
     private static final Logger LOGGER = Logger.getLogger(Receiver.class.getName());
 
-    private final ScheduledExecutorService executor;
+    // Runs one download per received announcement.
+    private volatile ExecutorService executor;
+    // The DOWNLOAD pool, runs the downloads unless another executor is set.
+    private final ExecutorService downloadExecutor;
+    // The SOURCE pool, runs the connections to the extra sources of multi-source and striped downloads. They block
+    // while waiting for pieces, so they don't run on the pool of the downloads.
+    private final ExecutorService sourceExecutor;
+    // Verifies and writes the received pieces on the VERIFY and WRITE pools.
+    private final ReceivePipeline pipeline;
     private final MulticastSocket multicastSocket;
     private final LockableHashSet<String> subscribedTopics;
-    private final Set<ByteBuffer> idCache;  // Caches downloaded ID's so they dont get downloaded again
+    // Limits the download rate per publisher, per topic and in total.
+    private final BandwidthLimiter limiter;
+    private final IdCache idCache;  // Caches downloaded ID's so they dont get downloaded again
+    // The publishers that has announced every subscribed topic.
+    private final Map<String, Set<Source>> sources;
+    // Topics that are currently being downloaded. Announcements of these topics are only used as extra sources.
+    private final Set<String> activeTopics;
+    // The measured throughput (bytes per second) from every publisher address, used to choose the piece size.
+    private final Map<InetAddress, Long> throughputs;
+    // The piece size asked for in the unfinished download of every topic. A download that is retried after a dropped
+    // connection asks for the same size (whichever publisher it connects to), so its partial files are resumed.
+    private final Map<String, Integer> unfinishedPieceSizes;
+    private volatile boolean multiSource;
+    private volatile int stripes;
+    private volatile boolean multicastData;
+    private volatile MulticastSocketFactory multicastSocketFactory;
+    private volatile boolean deltaSync;
+    private volatile SyncPolicy syncPolicy;
+    // Null if chunked downloads are disabled.
+    private volatile ChunkStore chunkStore;
     private Path downloadPath;
 
     public Receiver(Path downloadPath, MulticastSocket multicastSocket, LockableHashSet<String> subscribedTopics) {
+        this(downloadPath, multicastSocket, subscribedTopics, ExecutorRegistry.getShared());
+    }
+
+    /**
+     * @param downloadPath     the directory to download files into.
+     * @param multicastSocket  the socket that announcements are received on.
+     * @param subscribedTopics the topics to download, announcements of other topics are ignored.
+     * @param executors        the registry whose DOWNLOAD pool runs the download of every received announcement,
+     *                         and whose SOURCE, VERIFY and WRITE pools runs the rest of the downloads.
+     */
+    public Receiver(Path downloadPath, MulticastSocket multicastSocket, LockableHashSet<String> subscribedTopics,
+                    ExecutorRegistry executors) {
         this.downloadPath = downloadPath;
-        this.executor = ScheduledExecutorServiceSingleton.getInstance();
+        this.downloadExecutor = executors.get(ExecutorRegistry.Role.DOWNLOAD);
+        this.executor = this.downloadExecutor;
         this.multicastSocket = multicastSocket;
         this.subscribedTopics = subscribedTopics;
-        this.idCache = Collections.synchronizedSet(new HashSet<>());
+        this.limiter = new BandwidthLimiter();
+        this.idCache = new IdCache(MAX_ID_CACHE_SIZE);
+        this.sources = new ConcurrentHashMap<>();
+        this.activeTopics = ConcurrentHashMap.newKeySet();
+        this.throughputs = new ConcurrentHashMap<>();
+        this.unfinishedPieceSizes = new ConcurrentHashMap<>();
+        this.multiSource = DEFAULT_MULTI_SOURCE;
+        this.stripes = DEFAULT_STRIPES;
+        this.multicastData = DEFAULT_MULTICAST_DATA;
+        this.deltaSync = DEFAULT_DELTA_SYNC;
+        this.syncPolicy = PartialFile.DEFAULT_SYNC_POLICY;
+        this.chunkStore = null;
+        this.multicastSocketFactory = MulticastSocket::new;
+        this.sourceExecutor = executors.get(ExecutorRegistry.Role.SOURCE);
+        this.pipeline = new ReceivePipeline(executors);
+    }
+
+    /**
+     * @return the limiter of the download rate of the TCP connections to the publishers. Its rates can be changed
+     * at any time and it reports the achieved download rates.
+     */
+    public BandwidthLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * Sets the executor that runs the download of every received announcement, ex. an executor with a thread per
+     * task so that the amount of concurrent downloads isn't limited by the size of the DOWNLOAD pool.
+     *
+     * @param executor the executor of the downloads, or null to use the DOWNLOAD pool.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor != null ? executor : this.downloadExecutor;
+    }
+
+    /**
+     * Enables or disables multi-source downloads. If enabled, files of a topic that is published by several
+     * publishers are downloaded from all of them at once, see MultiSourceDownload.
+     *
+     * @param multiSource true to download from all publishers of a topic.
+     */
+    public void setMultiSource(boolean multiSource) {
+        this.multiSource = multiSource;
+    }
+
+    /**
+     * Sets if the pieces should be received over multicast when the publisher multicasts the topic. If disabled,
+     * the pieces are received over TCP.
+     *
+     * @param multicastData true to receive over multicast.
+     */
+    public void setMulticastData(boolean multicastData) {
+        this.multicastData = multicastData;
+    }
+
+    public void setMulticastSocketFactory(MulticastSocketFactory multicastSocketFactory) {
+        this.multicastSocketFactory = multicastSocketFactory;
+    }
+
+    /**
+     * Sets the amount of connections ("stripes") to propose to the publisher when downloading a file. The publisher
+     * answers with the amount that it accepts and the pieces of the file are interleaved between that many
+     * connections, see StripedDownload.
+     *
+     * @param stripes the amount of stripes to propose, 1 disables striped downloads.
+     */
+    public void setStripes(int stripes) {
+        if (stripes < 1 || stripes > StripesPacket.MAX_COUNT)
+            throw new IllegalArgumentException("Incorrect stripe count: " + stripes);
+        this.stripes = stripes;
+    }
+
+    /**
+     * Enables or disables delta sync of files that already exists. If enabled, a file that already exists is
+     * updated to the version of the publisher by only receiving the parts that differ, see DeltaDownload. If
+     * disabled, files that already exists are skipped.
+     *
+     * @param deltaSync true to update existing files.
+     */
+    public void setDeltaSync(boolean deltaSync) {
+        this.deltaSync = deltaSync;
+    }
+
+    /**
+     * Sets when downloaded files are forced to disk, see SyncPolicy.
+     *
+     * @param syncPolicy the sync policy of files downloaded after this call.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = Objects.requireNonNull(syncPolicy);
+    }
+
+    /**
+     * Sets the chunk store used for chunked downloads. If set, files are requested as content-defined chunks and
+     * only the chunks that doesn't exist in the store are received, see ChunkedDownload. Every file downloaded as
+     * chunks is added to the store.
+     *
+     * @param chunkStore the chunk store, or null to disable chunked downloads.
+     */
+    public void setChunkStore(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
     }
 
     public void setPath(Path downloadPath) {
@@ -50,9 +232,11 @@ public class Receiver {
     }
 
     public void start() {
-        byte[] buffer = new byte[Protocol.MAX_PUBLISH_PACKET_SIZE];
         while (true) {
             try {
+                // Every packet gets a buffer of its own since it can wait in the queue of the executor while the
+                // next packet is received.
+                byte[] buffer = new byte[Protocol.MAX_PUBLISH_PACKET_SIZE];
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 this.multicastSocket.receive(packet);
 
@@ -68,6 +252,11 @@ public class Receiver {
                 this.executor.submit(() -> receive(packet));
             } catch (IOException | IncorrectMessageTypeException e) {
                 LOGGER.log(Level.SEVERE, "Exception when receiving packet in Receiver: " + e.getMessage());
+            } catch (RejectedExecutionException e) {
+                if (this.executor.isShutdown())
+                    return;
+                // The announcement is received again after the publish interval.
+                LOGGER.log(Level.WARNING, "Dropped announcement: " + e.getMessage());
             }
             // TODO: Fix a better way to exit the receiver
             if (this.multicastSocket.isClosed())
@@ -84,31 +273,63 @@ public class Receiver {
         );
 
         SocketWrapper socketWrapper = null;
+        String activeTopic = null;
+        boolean limited = false;
         try {
             PublishPacket pp = new SocketWrapper(new ByteArrayInputStream(content)).receivePublish();
 
             try (LockableHashSet l = this.subscribedTopics.lock()) {
-                if (!this.subscribedTopics.contains(pp.getTopic()) || this.idCache.contains(ByteBuffer.wrap(pp.getId())))
+                if (!this.subscribedTopics.contains(pp.getTopic()))
                     return;
             }
 
-            socketWrapper = new SocketWrapper(new Socket(packet.getAddress(), pp.getPort()));
+            Source source = addSource(new Source(packet.getAddress(), pp.getPort(), pp.getTopic(), pp.getId()));
+            if (this.idCache.contains(ByteBuffer.wrap(pp.getId()).getInt()))
+                return;
+
+            // Only download a topic once at a time, other announcements are used as extra sources.
+            if (!this.activeTopics.add(pp.getTopic()))
+                return;
+            activeTopic = pp.getTopic();
+
+            // The connect takes one round trip, which is used together with the throughput measured during
+            // earlier downloads from the same publisher to choose the piece size. A retried download keeps the
+            // piece size of its earlier attempt since partial files with another piece size are discarded.
+            Socket socket = new Socket();
+            long rtt;
+            try {
+                long connectStart = System.nanoTime();
+                socket.connect(new InetSocketAddress(packet.getAddress(), pp.getPort()));
+                rtt = System.nanoTime() - connectStart;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            int linkPieceSize = PieceSize.forLink(rtt, this.throughputs.getOrDefault(packet.getAddress(), 0L));
+            int maxPieceSize = this.unfinishedPieceSizes.computeIfAbsent(activeTopic, k -> linkPieceSize);
+
+            socketWrapper = new SocketWrapper(socket);
             socketWrapper.getSocket().setSoTimeout(SOCKET_TIMEOUT);
+            socketWrapper.setReceiveBucket(this.limiter.open(activeTopic, packet.getAddress()));
+            socketWrapper.setMaxPieceSize(maxPieceSize);
+            limited = true;
 
-            // Construct the request packet out of data received from the publish packet.
-            RequestPacket rp = new RequestPacket(pp.getTopic(), pp.getId());
+            // Construct the request packet out of data received from the publish packet. Files are announced in a
+            // manifest so that the files that need no replies are streamed without a round trip per file.
+            int flags = pp.getSubMessageType() == MessageType.FILE_PIECE ? RequestPacket.FLAG_MANIFEST : 0;
+            RequestPacket rp = new RequestPacket(pp.getTopic(), pp.getId(), CompressionType.supportedMask(),
+                    maxPieceSize, flags);
             socketWrapper.sendPacket(rp);
             if (pp.getSubMessageType() == MessageType.FILE_PIECE)
-                receiveFile(socketWrapper);
+                receiveFile(socketWrapper, source, maxPieceSize);
             else if (pp.getSubMessageType() == MessageType.TEXT)
                 receiveText(socketWrapper);
             else
                 throw new RuntimeException("Incorrect subMessageType received: " + pp.getSubMessageType());
 
-            // TODO: Better way to to make sure the idCache doesn't overflow (?)
-            if (this.idCache.size() > MAX_ID_CACHE_SIZE)
-                this.idCache.clear();
-            this.idCache.add(ByteBuffer.wrap(pp.getId()));
+            // The least recently used ids are evicted when the cache is full.
+            this.idCache.add(ByteBuffer.wrap(pp.getId()).getInt());
+            this.unfinishedPieceSizes.remove(activeTopic);
 
         } catch (IOException | RuntimeException | IncorrectHashTypeException | IncorrectMessageTypeException e) {
             e.printStackTrace();
@@ -116,6 +337,10 @@ public class Receiver {
             throw new RuntimeException(e);
 
         } finally {
+            if (limited)
+                this.limiter.close(activeTopic, packet.getAddress());
+            if (activeTopic != null)
+                this.activeTopics.remove(activeTopic);
             try {
                 if (socketWrapper != null)
                     socketWrapper.close();
@@ -125,34 +350,154 @@ public class Receiver {
         }
     }
 
-    private void receiveFile(SocketWrapper socketWrapper)
+    // Adds or refreshes a publisher of a topic and returns the stored source.
+    private Source addSource(Source source) {
+        Set<Source> topicSources = this.sources.computeIfAbsent(source.getTopic(), k -> ConcurrentHashMap.newKeySet());
+        long now = System.currentTimeMillis();
+        topicSources.removeIf(s -> now - s.getLastSeen() > SOURCE_TIMEOUT);
+        for (Source s : topicSources) {
+            if (s.equals(source)) {
+                s.setLastSeen(now);
+                return s;
+            }
+        }
+        topicSources.add(source);
+        return source;
+    }
+
+    // Opens sessions to the recently seen publishers of the topic of "primary" that doesn't have a session yet. The
+    // sessions asks for the same piece size as the primary so that every publisher sends the same FILE_INFO.
+    private void updateSessions(List<SourceSession> sessions, Source primary, int maxPieceSize) {
+        long now = System.currentTimeMillis();
+        for (Source source : this.sources.getOrDefault(primary.getTopic(), Collections.emptySet())) {
+            if (sessions.size() + 1 >= MAX_SOURCES)
+                return;
+            if (now - source.getLastSeen() > SOURCE_TIMEOUT || source.isSamePublisher(primary) ||
+                    sessions.stream().anyMatch(session -> session.getSource().isSamePublisher(source)))
+                continue;
+            sessions.add(new SourceSession(source, this.limiter, maxPieceSize));
+        }
+    }
+
+    // The state of the download of one topic from one publisher.
+    private static class TopicDownload {
+        private final SocketWrapper socketWrapper;
+        private final Source source;
+        // The largest piece size that was asked for in the REQUEST.
+        private final int maxPieceSize;
+        // Connections to the other publishers of the topic, see MultiSourceDownload.
+        private final List<SourceSession> sessions;
+        // The other connections to the same publisher, see StripedDownload.
+        private final List<SourceSession> stripeSessions;
+        private MulticastDataReceiver multicast;
+        // The index of the current file in the order of the files of the topic.
+        private int fileIndex;
+
+        TopicDownload(SocketWrapper socketWrapper, Source source, int maxPieceSize) {
+            this.socketWrapper = socketWrapper;
+            this.source = source;
+            this.maxPieceSize = maxPieceSize;
+            this.sessions = new ArrayList<>();
+            this.stripeSessions = new ArrayList<>();
+            this.multicast = null;
+            this.fileIndex = 0;
+        }
+    }
+
+    private void receiveFile(SocketWrapper socketWrapper, Source source, int maxPieceSize)
     throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
-        while (true) {
+        TopicDownload download = new TopicDownload(socketWrapper, source, maxPieceSize);
+        try {
+            if (this.multiSource)
+                Thread.sleep(SOURCE_GATHER_TIME);
+
+            // The publisher tells where the pieces are multicast before the first FILE_INFO.
+            if (socketWrapper.peekMessageType() == MessageType.MULTICAST) {
+                MulticastPacket multicastPacket = socketWrapper.receiveMulticast();
+                if (this.multicastData)
+                    download.multicast = joinMulticast(multicastPacket);
+            }
+
+            receiveFiles(download);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for other sources of " + source.getTopic());
+        } finally {
+            if (download.multicast != null)
+                download.multicast.close();
+            // Lets the other publishers finish their requests in the background.
+            for (SourceSession session : download.sessions)
+                closeInBackground(session);
+            for (SourceSession session : download.stripeSessions)
+                closeInBackground(session);
+        }
+    }
+
+    // Lets the publisher finish its request, or closes the connection at once if the SOURCE pool is full.
+    private void closeInBackground(SourceSession session) {
+        try {
+            this.sourceExecutor.submit(session::close);
+        } catch (RejectedExecutionException e) {
+            session.fail();
+            session.close();
+        }
+    }
+
+    // Returns null if it is unable to join the group, the pieces are then received over TCP.
+    private MulticastDataReceiver joinMulticast(MulticastPacket multicastPacket) {
+        try {
+            return new MulticastDataReceiver(multicastPacket,
+                    this.multicastSocketFactory.create(multicastPacket.getPort()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to join multicast group " + multicastPacket.getGroup() + ":" +
+                    multicastPacket.getPort() + ", receiving over TCP: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void receiveFiles(TopicDownload download)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        SocketWrapper socketWrapper = download.socketWrapper;
+        // The index of the file of every FILE_INFO, null if the publisher sends the FILE_INFO of every file.
+        List<Integer> exchanged = null;
+        if (socketWrapper.peekMessageType() == MessageType.MANIFEST)
+            exchanged = receiveManifest(download);
+
+        for (int i = 0; ; i++) {
             if (socketWrapper.isDone() || socketWrapper.isClosed())
                 break;
+            if (exchanged != null && i >= exchanged.size())
+                throw new IOException("Received more FILE_INFO packets than the " + exchanged.size() + " wanted");
+            download.fileIndex = exchanged != null ? exchanged.get(i) : i;
 
-            // If the file already exists on this local host, don't download it again.
-            // TODO: More checking, ex see if hash is the same; if not, download with another name.
+            // If the file already exists on this local host, it is only updated if delta sync is enabled.
             FileInfoPacket fileInfoPacket = socketWrapper.receiveFileInfo();
             File file = Paths.get(this.downloadPath.toString(), fileInfoPacket.getName()).toFile();
-            if (!file.exists()) {
+            if (unpackExistingPack(file.toPath(), fileInfoPacket)) {
+                socketWrapper.sendNo();
+            } else if (!file.exists()) {
                 if (!file.getParentFile().mkdirs() && !file.getParentFile().exists())
                     throw new IOException("Unable to create folders " + file.getParentFile().toString());
 
-                socketWrapper.sendYes();
-                try (OutputStream fileWriter = new FileOutputStream(file)) {
-                    int index = 0;
-                    while (!socketWrapper.isDone()) {
-                        fileWriter.write(socketWrapper.receiveFilePiece(index).getBytes());
-                        index++;
-                    }
-
-                    if (file.length() != fileInfoPacket.getFileLength()) {
-                        // TODO: return custom error(?)
-                        LOGGER.log(Level.SEVERE, "Unable to download whole file " + fileInfoPacket.getName() +
-                                ". Expected: " + fileInfoPacket.getFileLength() + " bytes, " +
-                                "got: " + file.length() + " bytes");
-                    }
+                // The state of the partial file is saved when it is closed, so if the connection is dropped, only
+                // the missing pieces are requested the next time the file is downloaded.
+                try (PartialFile partialFile = PartialFile.open(file.toPath(), fileInfoPacket, this.syncPolicy)) {
+                    long missingBytes = Math.min(fileInfoPacket.getFileLength(),
+                            (long) (partialFile.getPieceCount() - partialFile.getReceivedCount()) *
+                                    fileInfoPacket.getPieceSize());
+                    long start = System.nanoTime();
+                    ChunkList chunkList = download(download, partialFile, fileInfoPacket);
+                    measureThroughput(download.source, missingBytes, System.nanoTime() - start);
+                    partialFile.complete();
+                    if (chunkList != null && this.chunkStore != null && !FilePack.isPack(fileInfoPacket.getName()))
+                        this.chunkStore.add(file.toPath(), chunkList);
+                }
+                unpackIfPack(file.toPath(), fileInfoPacket);
+            } else if (this.deltaSync && file.isFile()) {
+                try (PartialFile partialFile = PartialFile.open(file.toPath(), fileInfoPacket, this.syncPolicy)) {
+                    new DeltaDownload(file.toPath(), partialFile, fileInfoPacket).run(socketWrapper);
+                    requestMissing(socketWrapper, partialFile);
+                    partialFile.complete();
                 }
             } else {
                 socketWrapper.sendNo();
@@ -161,6 +506,234 @@ public class Receiver {
         LOGGER.log(Level.INFO, "Downloaded file(s) successfully.");
     }
 
+    // Receives the MANIFEST and answers it with the new files that are streamed, which are then received back to
+    // back, and the files whose FILE_INFO is answered like without a manifest. Files that already exists are skipped
+    // unless delta sync is enabled. Returns the indices of the exchanged files in the order of their FILE_INFO.
+    private List<Integer> receiveManifest(TopicDownload download)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        SocketWrapper socketWrapper = download.socketWrapper;
+        List<FileInfoPacket> files = socketWrapper.receiveManifest().getFiles();
+        Bitmap stream = new Bitmap(files.size());
+        Bitmap exchange = new Bitmap(files.size());
+        List<Integer> exchanged = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            File file = Paths.get(this.downloadPath.toString(), files.get(i).getName()).toFile();
+            if (unpackExistingPack(file.toPath(), files.get(i)))
+                continue;
+            if (!file.exists() && isStreamable(download, file.toPath(), files.get(i))) {
+                stream.set(i);
+            } else if (!file.exists() || (this.deltaSync && file.isFile())) {
+                exchange.set(i);
+                exchanged.add(i);
+            }
+        }
+        socketWrapper.sendPacket(new WantedFilesPacket(stream, exchange));
+
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = stream.nextSet(0); i != -1; i = stream.nextSet(i + 1)) {
+            FileInfoPacket fileInfoPacket = files.get(i);
+            File file = Paths.get(this.downloadPath.toString(), fileInfoPacket.getName()).toFile();
+            if (!file.getParentFile().mkdirs() && !file.getParentFile().exists())
+                throw new IOException("Unable to create folders " + file.getParentFile().toString());
+
+            try (PartialFile partialFile = PartialFile.open(file.toPath(), fileInfoPacket, this.syncPolicy)) {
+                this.pipeline.receiveRange(socketWrapper, partialFile, 0, partialFile.getPieceCount());
+                partialFile.complete();
+            }
+            unpackIfPack(file.toPath(), fileInfoPacket);
+            bytes += fileInfoPacket.getFileLength();
+        }
+        measureThroughput(download.source, bytes, System.nanoTime() - start);
+        LOGGER.log(Level.FINE, "Received manifest of " + files.size() + " file(s), " + stream.cardinality() +
+                " streamed and " + exchanged.size() + " exchanged.");
+        return exchanged;
+    }
+
+    // Unpacks the files of a downloaded segment of packed files and removes the segment, see FilePack. Files that
+    // already exists are only replaced if delta sync is enabled, like files that are sent on their own.
+    private void unpackIfPack(Path path, FileInfoPacket fileInfoPacket) throws IOException {
+        if (!FilePack.isPack(fileInfoPacket.getName()))
+            return;
+        try {
+            int count = FilePack.unpack(path, this.downloadPath, this.deltaSync);
+            LOGGER.log(Level.INFO, "Unpacked " + count + " file(s) from " + fileInfoPacket.getName());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // A segment is removed when it has been unpacked, so a segment that already exists is a verified download that
+    // was interrupted before it was unpacked. Its name is derived from its content, so it is unpacked instead of
+    // downloaded again. Returns true if the file was such a segment.
+    private boolean unpackExistingPack(Path path, FileInfoPacket fileInfoPacket) throws IOException {
+        if (!FilePack.isPack(fileInfoPacket.getName()) || !Files.isRegularFile(path))
+            return false;
+        unpackIfPack(path, fileInfoPacket);
+        return true;
+    }
+
+    // A new file is streamed if it would have been downloaded with a YES over this connection anyway, i.e. if there
+    // is no partial download of it to resume and it isn't downloaded over multicast, as chunks, from several
+    // publishers or over several connections.
+    private boolean isStreamable(TopicDownload download, Path path, FileInfoPacket fileInfoPacket) {
+        int pieceCount = fileInfoPacket.getPieceCount();
+        return !PartialFile.exists(path) && download.multicast == null && this.chunkStore == null &&
+                (!this.multiSource || pieceCount < MIN_MULTI_SOURCE_PIECES) &&
+                (this.stripes <= 1 || pieceCount < MIN_STRIPED_PIECES);
+    }
+
+    // Downloads the file over multicast if the publisher multicasts the topic, as chunks if there is a chunk store
+    // and the publisher chunks its files, from all publishers of the topic if multi-source is enabled and there are
+    // other publishers, over several connections to the publisher if striping is enabled, and otherwise over the
+    // current connection. Returns the chunk list of the file if it was downloaded as chunks.
+    private ChunkList download(TopicDownload download, PartialFile partialFile, FileInfoPacket fileInfoPacket)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        SocketWrapper socketWrapper = download.socketWrapper;
+        int missing = partialFile.getPieceCount() - partialFile.getReceivedCount();
+
+        if (download.multicast != null && missing > 0) {
+            receiveMulticast(download, partialFile, fileInfoPacket);
+            return null;
+        }
+
+        ChunkStore chunkStore = this.chunkStore;
+        if (chunkStore != null && missing > 0) {
+            ChunkList chunkList = new ChunkedDownload(partialFile, fileInfoPacket, chunkStore).run(socketWrapper);
+            if (chunkList != null) {
+                requestMissing(socketWrapper, partialFile);
+                return chunkList;
+            }
+        }
+
+        if (this.multiSource && missing >= MIN_MULTI_SOURCE_PIECES) {
+            updateSessions(download.sessions, download.source, download.maxPieceSize);
+            List<SourceSession> available = available(download.sessions, MAX_SOURCES - 1);
+            if (!available.isEmpty()) {
+                new MultiSourceDownload(partialFile, fileInfoPacket, this.pipeline)
+                        .run(socketWrapper, download.source.toString(), available, this.sourceExecutor);
+                return null;
+            }
+        }
+
+        if (this.stripes > 1 && missing >= MIN_STRIPED_PIECES) {
+            socketWrapper.sendPacket(new StripesPacket(this.stripes));
+            int stripeCount = Math.min(socketWrapper.receiveStripes().getCount(), this.stripes);
+            while (available(download.stripeSessions, stripeCount - 1).size() < stripeCount - 1)
+                download.stripeSessions.add(new SourceSession(download.source, this.limiter,
+                        download.maxPieceSize));
+
+            List<SourceSession> available = available(download.stripeSessions, stripeCount - 1);
+            if (!available.isEmpty()) {
+                new StripedDownload(partialFile, fileInfoPacket, this.pipeline)
+                        .run(socketWrapper, available, this.sourceExecutor);
+                return null;
+            }
+        }
+
+        receivePieces(socketWrapper, partialFile, fileInfoPacket);
+        return null;
+    }
+
+    // Requests the missing pieces over multicast with a JOIN (a NACK of the missing pieces) and waits for the round
+    // to end. Another round is requested as long as many pieces are missing, the last few are requested over TCP.
+    private void receiveMulticast(TopicDownload download, PartialFile partialFile, FileInfoPacket fileInfoPacket)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        SocketWrapper socketWrapper = download.socketWrapper;
+        int rounds = 0;
+        long received;
+        long rebuilt;
+
+        download.multicast.expect(download.fileIndex, partialFile, fileInfoPacket);
+        try {
+            while (!partialFile.isFull() && rounds < MAX_MULTICAST_ROUNDS) {
+                int missing = partialFile.getPieceCount() - partialFile.getReceivedCount();
+                if (rounds > 0 && (long) missing * UNICAST_REPAIR_DIVISOR <= partialFile.getPieceCount())
+                    break;
+
+                socketWrapper.sendPacket(new JoinPacket(partialFile.getMissing()));
+                waitForRound(socketWrapper);
+                rounds++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving " + fileInfoPacket.getName() + " over multicast");
+        } finally {
+            rebuilt = download.multicast.getRebuiltPieces();
+            received = download.multicast.release();
+        }
+
+        LOGGER.log(Level.INFO, "Received " + received + " of " + partialFile.getPieceCount() + " pieces of " +
+                fileInfoPacket.getName() + " over multicast in " + rounds + " round(s) (" + rebuilt +
+                " rebuilt with fec), requesting " +
+                (partialFile.getPieceCount() - partialFile.getReceivedCount()) + " over TCP.");
+        requestMissing(socketWrapper, partialFile);
+    }
+
+    // Waits for the DONE that ends a multicast round, the round can take longer than the socket timeout.
+    private void waitForRound(SocketWrapper socketWrapper) throws IOException, InterruptedException {
+        int timeout = socketWrapper.getSocket().getSoTimeout();
+        socketWrapper.getSocket().setSoTimeout(0);
+        try {
+            if (!socketWrapper.isDone())
+                throw new IOException("Expected a DONE at the end of the multicast round");
+        } finally {
+            socketWrapper.getSocket().setSoTimeout(timeout);
+        }
+        // The last datagrams of the round might still be on their way.
+        Thread.sleep(MULTICAST_LINGER);
+    }
+
+    // Updates the throughput from the publisher with a download of "bytes" bytes that took "nanos" ns. Short
+    // downloads are mostly latency and are ignored.
+    private void measureThroughput(Source source, long bytes, long nanos) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE || nanos <= 0)
+            return;
+        long throughput = (long) (bytes * 1e9 / nanos);
+        this.throughputs.merge(source.getAddress(), throughput, (old, sample) -> (old + sample) / 2);
+    }
+
+    // Returns at most "max" of the sessions that can still be used.
+    private List<SourceSession> available(List<SourceSession> sessions, int max) {
+        List<SourceSession> available = new ArrayList<>();
+        for (SourceSession session : sessions) {
+            if (available.size() >= max)
+                break;
+            if (!session.isDone())
+                available.add(session);
+        }
+        return available;
+    }
+
+    private void receivePieces(SocketWrapper socketWrapper, PartialFile partialFile, FileInfoPacket fileInfoPacket)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        if (partialFile.getReceivedCount() == 0) {
+            socketWrapper.sendYes();
+            this.pipeline.receiveRange(socketWrapper, partialFile, 0, partialFile.getPieceCount());
+            return;
+        }
+
+        LOGGER.log(Level.INFO, "Resuming download of " + fileInfoPacket.getName() + ", " +
+                partialFile.getReceivedCount() + " of " + partialFile.getPieceCount() + " pieces already received.");
+        requestMissing(socketWrapper, partialFile);
+    }
+
+    // Requests every run of missing pieces with a RANGE and ends the file with a NO.
+    private void requestMissing(SocketWrapper socketWrapper, PartialFile partialFile)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        int start = partialFile.nextMissing(0);
+        while (start != -1) {
+            int end = partialFile.nextReceived(start);
+            if (end == -1)
+                end = partialFile.getPieceCount();
+
+            socketWrapper.sendPacket(new RangePacket(start, end - start));
+            this.pipeline.receiveRange(socketWrapper, partialFile, start, end);
+            start = partialFile.nextMissing(end);
+        }
+        socketWrapper.sendNo();
+    }
+
     // TODO: Make a local "out" where the received text is to be written.
     private void receiveText(SocketWrapper socketWrapper) throws IOException, IncorrectMessageTypeException {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,959 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.FilePiecePacket;
+import com.github.jmatss.send.packet.ManifestPacket;
+import com.github.jmatss.send.packet.StripesPacket;
+import com.github.jmatss.send.packet.TextPacket;
+import com.github.jmatss.send.protocol.FileProtocol;
+import com.github.jmatss.send.protocol.PFile;
+import com.github.jmatss.send.protocol.PieceManifest;
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.protocol.TextProtocol;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.util.Bitmap;
+import com.github.jmatss.send.util.SocketWrapper;
+import com.github.jmatss.send.util.TokenBucket;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking alternative to the sessions of the Sender, which occupies one executor thread per connected
+ * subscriber. The connections of all published topics are served by a few event loop threads that each own a
+ * Selector, and every connection is a state machine that is advanced when its channel is readable or writable.
+ * Pieces are only read a few pieces ahead of the piece that the socket is draining, so a slow subscriber doesn't
+ * buffer more than a few pieces in memory.
+ * <p>
+ * The REQUEST, MANIFEST, WANTED_FILES, FILE_INFO, YES, NO, RANGE, STRIPES, STRIPE and DONE exchange is handled by
+ * the event loops with the settings of the Sender (zero-copy, compression and max stripes). The replies that need
+ * blocking work (SIGNATURES, CHUNKS, WANT and JOIN) hands the connection over to a blocking session of the Sender for
+ * the rest of the connection, the blocking sessions run on the executor of the sessions of the Sender (the UPLOAD
+ * pool). The event loops never read or hash files themselves: the same executor creates the MANIFEST and the
+ * FILE_INFOs, calculates the piece manifests and reads the pieces that aren't compressed, while the COMPRESS pool
+ * reads and compresses the compressed pieces. The connection waits without interest ops and is resumed when the work
+ * is done. The written bytes are taken from the bucket of the peer in the BandwidthLimiter of the Sender, without
+ * waiting. A connection whose buckets are in debt stops writing and is resumed by a timer of its event loop when the
+ * debt has been paid, so rates that are set during a transfer apply to it.
+ */
+class SelectorSender implements Closeable {
+    public static final int DEFAULT_EVENT_LOOPS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final Logger LOGGER = Logger.getLogger(SelectorSender.class.getName());
+    // Large enough for the largest packet received from a subscriber that is handled by the event loops (REQUEST),
+    // except for WANTED_FILES whose size depends on the amount of files and that grows the buffer of its connection.
+    private static final int IN_BUFFER_SIZE = 512;
+
+    private final Sender sender;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop;
+
+    /**
+     * @param sender     the sender whose settings are used and that handles the connections that are handed over.
+     * @param eventLoops the amount of event loop threads.
+     * @throws IOException if it is unable to open the selectors.
+     */
+    SelectorSender(Sender sender, int eventLoops) throws IOException {
+        if (eventLoops < 1)
+            throw new IllegalArgumentException("Incorrect amount of event loops: " + eventLoops);
+        this.sender = sender;
+        this.loops = new EventLoop[eventLoops];
+        this.nextLoop = new AtomicInteger();
+        for (int i = 0; i < eventLoops; i++)
+            this.loops[i] = new EventLoop(i);
+    }
+
+    /**
+     * Accepts subscribers on the server socket channel until it is closed.
+     *
+     * @param serverChannel   the channel to accept subscribers on.
+     * @param protocol        the published protocol.
+     * @param multicastSender sends the file pieces to the multicast group of the topic, or null.
+     * @throws IOException if it is unable to make the channel non-blocking.
+     */
+    void listen(ServerSocketChannel serverChannel, Protocol<?> protocol, MulticastDataSender multicastSender)
+    throws IOException {
+        serverChannel.configureBlocking(false);
+        EventLoop loop = nextLoop();
+        loop.execute(() -> loop.register(serverChannel, SelectionKey.OP_ACCEPT,
+                new Listener(protocol, multicastSender)));
+    }
+
+    /**
+     * Stops the event loops and closes all connections and server channels registered to them. The connections that
+     * have been handed over are closed when the executor of the Sender is shut down.
+     */
+    @Override
+    public void close() {
+        for (EventLoop loop : this.loops)
+            loop.close();
+    }
+
+    // Runs the blocking sessions of the connections that are handed over to the Sender, and the work of the event
+    // loops that reads or hashes files.
+    private ExecutorService handOffExecutor() {
+        return this.sender.getExecutor();
+    }
+
+    private EventLoop nextLoop() {
+        return this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+    }
+
+    private static class Listener {
+        private final Protocol<?> protocol;
+        private final MulticastDataSender multicastSender;
+
+        Listener(Protocol<?> protocol, MulticastDataSender multicastSender) {
+            this.protocol = protocol;
+            this.multicastSender = multicastSender;
+        }
+    }
+
+    // A task that is run by an event loop at the given System.nanoTime().
+    private static class Timer {
+        private final long time;
+        private final Runnable task;
+
+        Timer(long time, Runnable task) {
+            this.time = time;
+            this.task = task;
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        // Only used by the event loop thread, ordered by time.
+        private final PriorityQueue<Timer> timers;
+        // Connections whose keys have been cancelled and that are handed over after the next selectNow().
+        private final List<Connection> handOffs;
+        private volatile boolean closed;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.timers = new PriorityQueue<>(Comparator.comparingLong((Timer timer) -> timer.time));
+            this.handOffs = new ArrayList<>();
+            this.closed = false;
+
+            Thread thread = new Thread(this, "send-event-loop-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Runs the task on the event loop thread.
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        // Runs the task on the event loop thread after the delay, must be called from the event loop thread.
+        void schedule(long delayNanos, Runnable task) {
+            this.timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        void close() {
+            this.closed = true;
+            this.selector.wakeup();
+        }
+
+        void register(ServerSocketChannel serverChannel, int ops, Listener listener) {
+            try {
+                serverChannel.register(this.selector, ops, listener);
+            } catch (ClosedChannelException e) {
+                LOGGER.log(Level.INFO, "Listener closed.");
+            }
+        }
+
+        void open(SocketChannel channel, Listener listener) {
+            Connection connection = new Connection(this, channel, listener);
+            try {
+                connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                connection.close();
+            }
+        }
+
+        void handOff(Connection connection) {
+            connection.key.cancel();
+            this.handOffs.add(connection);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!this.closed) {
+                    // The selectNow() of the hand-offs may have selected keys and it clears the wakeup of the tasks
+                    // added since the last selection, those are handled without waiting for new events.
+                    if (this.selector.selectedKeys().isEmpty() && this.tasks.isEmpty())
+                        select();
+
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null)
+                        run(task);
+                    long now = System.nanoTime();
+                    while (!this.timers.isEmpty() && this.timers.peek().time - now <= 0)
+                        run(this.timers.poll().task);
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.attachment() instanceof Listener)
+                            accept(key);
+                        else
+                            ((Connection) key.attachment()).handle();
+                    }
+
+                    // The cancelled keys are deregistered by the next selection operation, after which the channels
+                    // can be made blocking.
+                    if (!this.handOffs.isEmpty()) {
+                        this.selector.selectNow();
+                        for (Connection connection : this.handOffs)
+                            connection.handOff();
+                        this.handOffs.clear();
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Event loop failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : this.selector.keys()) {
+                    if (key.attachment() instanceof Connection)
+                        ((Connection) key.attachment()).close();
+                    else
+                        closeQuietly(key.channel());
+                }
+                closeQuietly(this.selector);
+            }
+        }
+
+        // Waits for events, or until the next timer is due.
+        private void select() throws IOException {
+            if (this.timers.isEmpty()) {
+                this.selector.select();
+                return;
+            }
+            long delayNanos = this.timers.peek().time - System.nanoTime();
+            if (delayNanos > 0)
+                this.selector.select(TimeUnit.NANOSECONDS.toMillis(delayNanos + 999_999));
+        }
+
+        private void run(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Event loop task failed: " + e.getMessage());
+            }
+        }
+
+        private void accept(SelectionKey key) {
+            Listener listener = (Listener) key.attachment();
+            try {
+                SocketChannel channel;
+                while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+                    try {
+                        channel.configureBlocking(false);
+                    } catch (IOException e) {
+                        closeQuietly(channel);
+                        throw e;
+                    }
+                    EventLoop loop = nextLoop();
+                    SocketChannel acceptedChannel = channel;
+                    loop.execute(() -> loop.open(acceptedChannel, listener));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.INFO, "Listener closed.");
+                key.cancel();
+            }
+        }
+    }
+
+    private enum State {
+        REQUEST,
+        // Waiting for the WANTED_FILES that answers the MANIFEST.
+        MANIFEST,
+        REPLY,
+        HAND_OFF,
+        CLOSING
+    }
+
+    // A part of the output of a connection.
+    private interface Outgoing {
+        // Writes at most "max" bytes, or less if the channel doesn't accept more, and returns the amount written.
+        long writeTo(SocketChannel channel, long max) throws IOException;
+
+        // Returns true when all of it has been written.
+        boolean isDone();
+    }
+
+    private static class BufferOutgoing implements Outgoing {
+        private final ByteBuffer buf;
+
+        BufferOutgoing(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel, long max) throws IOException {
+            int limit = this.buf.limit();
+            this.buf.limit((int) Math.min(limit, this.buf.position() + max));
+            try {
+                return channel.write(this.buf);
+            } finally {
+                this.buf.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            return !this.buf.hasRemaining();
+        }
+    }
+
+    // A region of a file that is transferred to the socket with zero-copy.
+    private static class FileOutgoing implements Outgoing {
+        private final FileChannel fileChannel;
+        private long position;
+        private final long end;
+
+        FileOutgoing(FileChannel fileChannel, long position, int length) {
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel, long max) throws IOException {
+            long n = this.fileChannel.transferTo(this.position, Math.min(this.end - this.position, max), channel);
+            if (n == 0 && this.position >= this.fileChannel.size())
+                throw new EOFException("End of file reached while transferring piece, missing " +
+                        (this.end - this.position) + " bytes");
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.position == this.end;
+        }
+    }
+
+    // The pieces that are left to send for a YES, RANGE or STRIPE.
+    private static class Pieces {
+        private final int stride;
+        private final boolean endsFile;
+        // False if the pieces are read into FilePiecePackets instead of being sent with zero-copy.
+        private final boolean zeroCopy;
+        // The digests and the length of the file, read once for all pieces.
+        private final PieceManifest manifest;
+        private final long fileLength;
+        private int next;
+        private int remaining;
+
+        Pieces(int start, int count, int stride, boolean endsFile, boolean zeroCopy, PieceManifest manifest,
+               long fileLength) {
+            this.next = start;
+            this.remaining = count;
+            this.stride = stride;
+            this.endsFile = endsFile;
+            this.zeroCopy = zeroCopy;
+            this.manifest = manifest;
+            this.fileLength = fileLength;
+        }
+    }
+
+    // Work that reads or hashes files, run on an executor since it would block the other connections of the event loop.
+    private interface Preparation {
+        // Returns the step that continues the connection on the event loop with the result of the work.
+        Step prepare() throws IOException;
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Listener listener;
+        private ByteBuffer in;
+        private final Deque<Outgoing> out;
+        // Pieces being read, and compressed, on the executors in the order that they are sent.
+        private final Deque<CompletableFuture<FilePiecePacket>> reading;
+        // The work that the connection waits for before it continues, null if it doesn't wait for any work.
+        private CompletableFuture<Step> preparing;
+        private SelectionKey key;
+        private State state;
+        private CompressionType compression;
+        private int maxPieceSize;
+        // The files of the topic split with the piece size negotiated with the subscriber.
+        private List<PFile> files;
+        private int fileIndex;
+        // The files that are streamed without a FILE_INFO, null when all of them have been sent or if the
+        // subscriber didn't ask for a manifest.
+        private Bitmap stream;
+        // The files whose FILE_INFO the subscriber wants, null if it wants every FILE_INFO.
+        private Bitmap exchange;
+        // The pieces currently being sent, null if no pieces are being sent.
+        private Pieces pieces;
+        // The channel of the current file used for zero-copy, opened when the first piece is sent.
+        private FileChannel fileChannel;
+        // The topic of the connection and the bucket of its peer in the limiter of the Sender, null until the
+        // REQUEST has been answered.
+        private String topic;
+        private TokenBucket bucket;
+        // True while the connection waits for the debt of its buckets to be paid.
+        private boolean pacing;
+
+        Connection(EventLoop loop, SocketChannel channel, Listener listener) {
+            this.loop = loop;
+            this.channel = channel;
+            this.listener = listener;
+            this.in = ByteBuffer.allocate(IN_BUFFER_SIZE);
+            this.out = new ArrayDeque<>();
+            this.reading = new ArrayDeque<>();
+            this.state = State.REQUEST;
+            this.compression = CompressionType.NONE;
+            this.maxPieceSize = Protocol.DEFAULT_PIECE_SIZE;
+            this.fileIndex = -1;
+        }
+
+        // Called by the event loop when the channel is ready.
+        void handle() {
+            try {
+                if (this.key.isReadable() && this.channel.read(this.in) == -1)
+                    throw new EOFException("End of file reached while reading from subscriber " +
+                            this.channel.getRemoteAddress());
+                advance();
+            } catch (IOException | IncorrectMessageTypeException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage());
+                close();
+            }
+        }
+
+        // Called by the event loop when the work or the piece that the connection waits for is done.
+        void resume() {
+            if (!this.channel.isOpen() || this.state == State.HAND_OFF)
+                return;
+            handle();
+        }
+
+        // Writes as much as possible and handles the received packets until the connection has to wait for the
+        // socket, the subscriber or the executors.
+        private void advance() throws IOException, IncorrectMessageTypeException {
+            while (true) {
+                if (this.pacing || !flush()) {
+                    this.key.interestOps(this.pacing ? 0 : SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                if (this.pieces != null) {
+                    if (!nextPiece()) {
+                        this.key.interestOps(0);
+                        return;
+                    }
+                } else if (this.preparing != null) {
+                    if (!this.preparing.isDone()) {
+                        this.key.interestOps(0);
+                        return;
+                    }
+                    runPrepared();
+                } else if (this.state == State.CLOSING) {
+                    close();
+                    return;
+                } else if (this.state == State.HAND_OFF || !receive()) {
+                    if (this.state != State.HAND_OFF)
+                        this.key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        }
+
+        // Returns false if the socket doesn't accept more bytes or if the connection has to wait for its buckets.
+        // A limited connection writes at most TokenBucket.MAX_TAKE bytes at a time so that its bytes are spread out
+        // over time, the same as the blocking sessions.
+        private boolean flush() throws IOException {
+            long max = this.bucket != null && this.bucket.isLimited() ? TokenBucket.MAX_TAKE : Long.MAX_VALUE;
+            while (!this.out.isEmpty()) {
+                Outgoing outgoing = this.out.peek();
+                long n = outgoing.writeTo(this.channel, max);
+                boolean done = outgoing.isDone();
+                if (done)
+                    this.out.poll();
+                if (n > 0 && pace(n))
+                    return false;
+                if (!done && n < max)
+                    return false;
+            }
+            return true;
+        }
+
+        // Takes the written bytes from the buckets, which also counts them in the achieved rates of the limiter.
+        // Returns true if the connection has to wait for the debt of the buckets to be paid, it is then resumed by a
+        // timer of the event loop.
+        private boolean pace(long bytes) {
+            if (this.bucket == null)
+                return false;
+            long waitNanos = this.bucket.consume(bytes);
+            if (waitNanos <= 0)
+                return false;
+            this.pacing = true;
+            this.loop.schedule(waitNanos, () -> {
+                this.pacing = false;
+                resume();
+            });
+            return true;
+        }
+
+        private void send(byte[] bytes) {
+            this.out.add(new BufferOutgoing(ByteBuffer.wrap(bytes)));
+        }
+
+        private void sendByte(MessageType messageType) {
+            send(new byte[]{(byte) messageType.getValue()});
+        }
+
+        // Handles one received packet. Returns false if a whole packet hasn't been received yet.
+        private boolean receive() throws IOException, IncorrectMessageTypeException {
+            this.in.flip();
+            try {
+                if (!this.in.hasRemaining())
+                    return false;
+                boolean received;
+                if (this.state == State.REQUEST)
+                    received = receiveRequest();
+                else if (this.state == State.MANIFEST)
+                    received = receiveWantedFiles();
+                else
+                    received = receiveReply();
+                // A packet that is handed over is read by the blocking session, it may be larger than the buffer.
+                if (this.state == State.HAND_OFF)
+                    return false;
+                if (!received && this.in.limit() == this.in.capacity())
+                    throw new IOException("Received packet larger than " + IN_BUFFER_SIZE + " bytes");
+                return received;
+            } finally {
+                this.in.compact();
+            }
+        }
+
+        private boolean receiveRequest() throws IOException, IncorrectMessageTypeException {
+            int start = this.in.position();
+            if (this.in.get(start) != MessageType.REQUEST.getValue())
+                throw new IncorrectMessageTypeException("Received incorrect message type");
+            if (this.in.remaining() < 2)
+                return false;
+            int topicLength = this.in.get(start + 1) & 0xff;
+            if (this.in.remaining() < 2 + topicLength + 4 + 1 + 4 + 1)
+                return false;
+
+            byte[] topic = new byte[topicLength];
+            this.in.position(start + 2);
+            this.in.get(topic);
+            this.in.position(this.in.position() + 4); // id
+            int compressionTypes = this.in.get() & 0xff;
+            int maxPieceSize = this.in.getInt();
+            if (maxPieceSize < Protocol.MIN_PIECE_SIZE)
+                throw new IOException("Received incorrect max piece size: " + maxPieceSize);
+            int flags = this.in.get() & 0xff;
+
+            String topicName = new String(topic, Controller.ENCODING);
+            SelectorSender.this.sender.checkPublished(topicName);
+            // The REQUEST is left in the input buffer and handled by the blocking session if the published directory
+            // is still walked, since the event loop can't wait for its files.
+            Protocol<?> protocol = this.listener.protocol;
+            if (protocol instanceof FileProtocol && !((FileProtocol) protocol).isComplete()) {
+                this.in.position(start);
+                this.state = State.HAND_OFF;
+                this.loop.handOff(this);
+                return false;
+            }
+            this.bucket = SelectorSender.this.sender.getLimiter().open(topicName, getAddress());
+            this.topic = topicName;
+            this.compression = SelectorSender.this.sender.negotiateCompression(compressionTypes);
+            this.maxPieceSize = Sender.negotiatePieceSize(maxPieceSize, this.listener.multicastSender);
+
+            if (protocol instanceof FileProtocol) {
+                this.files = Sender.negotiateFiles((FileProtocol) protocol, this.maxPieceSize);
+                if (this.listener.multicastSender != null)
+                    send(this.listener.multicastSender.getMulticastPacket().getBytes());
+                CompressionType manifestCompression = Sender.negotiateManifest(flags, compressionTypes);
+                if (manifestCompression != null) {
+                    // The digests of the files might not have been calculated yet. The FILE_INFO of the first file is
+                    // sent instead of the MANIFEST if the files don't fit in a manifest.
+                    List<PFile> files = this.files;
+                    this.state = State.MANIFEST;
+                    prepare(() -> {
+                        ManifestPacket manifest = SelectorSender.this.sender.createManifest(files, manifestCompression);
+                        byte[] bytes = manifest != null ? manifest.getBytes() : null;
+                        return () -> {
+                            if (bytes != null) {
+                                send(bytes);
+                            } else {
+                                this.state = State.REPLY;
+                                nextFile();
+                            }
+                        };
+                    });
+                } else {
+                    this.state = State.REPLY;
+                    nextFile();
+                }
+            } else if (protocol instanceof TextProtocol) {
+                for (TextPacket textPacket : ((TextProtocol) protocol).iter())
+                    send(textPacket.compress(this.compression).getBytes());
+                sendByte(MessageType.DONE);
+                this.state = State.CLOSING;
+            } else {
+                throw new RuntimeException("Incorrect protocol class");
+            }
+            return true;
+        }
+
+        // Runs the work on the hand-off executor, the connection waits for it and is resumed when it is done.
+        private void prepare(Preparation preparation) {
+            this.preparing = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return preparation.prepare();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, handOffExecutor());
+            this.preparing.whenComplete((step, e) -> this.loop.execute(this::resume));
+        }
+
+        // Continues the connection with the result of the work that it waited for.
+        private void runPrepared() throws IOException {
+            Step step;
+            try {
+                step = this.preparing.join();
+            } catch (CompletionException e) {
+                throw new IOException("Unable to read files: " + e.getCause().getMessage());
+            } finally {
+                this.preparing = null;
+            }
+            step.run();
+        }
+
+        private boolean receiveWantedFiles() throws IOException, IncorrectMessageTypeException {
+            int start = this.in.position();
+            if (this.in.get(start) != MessageType.WANTED_FILES.getValue())
+                throw new IncorrectMessageTypeException("Received incorrect reply to MANIFEST");
+            if (this.in.remaining() < 1 + 4)
+                return false;
+            int count = this.in.getInt(start + 1);
+            if (count != this.files.size())
+                throw new IOException("Received WANTED_FILES of " + count + " files for a manifest of " +
+                        this.files.size() + " files");
+            int bitmapSize = Bitmap.byteSize(count);
+            if (1 + 4 + 2 * bitmapSize > this.in.capacity()) {
+                // The size is bounded by the amount of files of the topic.
+                ByteBuffer in = ByteBuffer.allocate(1 + 4 + 2 * bitmapSize);
+                in.put(this.in).flip();
+                this.in = in;
+                return false;
+            }
+            if (this.in.remaining() < 1 + 4 + 2 * bitmapSize)
+                return false;
+
+            byte[] stream = new byte[bitmapSize];
+            byte[] exchange = new byte[bitmapSize];
+            this.in.position(start + 1 + 4);
+            this.in.get(stream).get(exchange);
+            this.stream = Bitmap.fromByteArray(count, stream);
+            this.exchange = Bitmap.fromByteArray(count, exchange);
+            SocketWrapper.checkWantedFiles(this.stream, this.exchange);
+            this.state = State.REPLY;
+            nextFile();
+            return true;
+        }
+
+        private boolean receiveReply() throws IOException, IncorrectMessageTypeException {
+            PFile pfile = this.files.get(this.fileIndex);
+            MessageType reply = MessageType.valueOf(this.in.get(this.in.position()));
+            switch (reply) {
+                case YES:
+                    this.in.get();
+                    startPieces(pfile, 0, pfile.getPieceCount(), 1, true);
+                    return true;
+                case NO:
+                    this.in.get();
+                    nextFile();
+                    return true;
+                case RANGE:
+                    if (this.in.remaining() < 1 + 4 + 4)
+                        return false;
+                    this.in.get();
+                    int rangeStart = this.in.getInt();
+                    int rangeCount = this.in.getInt();
+                    Sender.checkRange(pfile, rangeStart, rangeCount);
+                    startPieces(pfile, rangeStart, rangeCount, 1, false);
+                    return true;
+                case STRIPES:
+                    if (this.in.remaining() < 1 + 1)
+                        return false;
+                    this.in.get();
+                    int stripeCount = this.in.get() & 0xff;
+                    if (stripeCount == 0)
+                        throw new IOException("Received incorrect stripe count: " + stripeCount);
+                    send(new StripesPacket(Math.min(stripeCount, SelectorSender.this.sender.getMaxStripes()))
+                            .getBytes());
+                    return true;
+                case STRIPE:
+                    if (this.in.remaining() < 1 + 4 + 4 + 4)
+                        return false;
+                    this.in.get();
+                    int stripeStart = this.in.getInt();
+                    int count = this.in.getInt();
+                    int stride = this.in.getInt();
+                    if (stride <= 0)
+                        throw new IOException("Received incorrect stripe stride: " + stride);
+                    Sender.checkStripe(pfile, stripeStart, count, stride);
+                    startPieces(pfile, stripeStart, count, stride, false);
+                    return true;
+                case SIGNATURES:
+                case CHUNKS:
+                case WANT:
+                case JOIN:
+                    // The reply is left in the input buffer and handled by the blocking session.
+                    this.state = State.HAND_OFF;
+                    this.loop.handOff(this);
+                    return false;
+                default:
+                    throw new IncorrectMessageTypeException("Received incorrect reply to FILE_INFO: " + reply);
+            }
+        }
+
+        // Starts the pieces of the next streamed file, or sends the FILE_INFO of the next wanted file, or the DONE
+        // that ends the session after the last file.
+        private void nextFile() throws IOException {
+            closeFileChannel();
+            if (this.stream != null) {
+                int next = this.stream.nextSet(this.fileIndex + 1);
+                if (next != -1) {
+                    this.fileIndex = next;
+                    PFile pfile = this.files.get(next);
+                    startPieces(pfile, 0, pfile.getPieceCount(), 1, true);
+                    return;
+                }
+                // The exchanged files are sent from the first file after the streamed files.
+                this.stream = null;
+                this.fileIndex = -1;
+            }
+
+            this.fileIndex = this.exchange != null ? this.exchange.nextSet(this.fileIndex + 1) : this.fileIndex + 1;
+            if (this.fileIndex != -1 && this.fileIndex < this.files.size()) {
+                // The digest of the file might not have been calculated yet.
+                PFile pfile = this.files.get(this.fileIndex);
+                prepare(() -> {
+                    byte[] fileInfo = pfile.getFileInfoPacket().getBytes();
+                    return () -> send(fileInfo);
+                });
+            } else {
+                sendByte(MessageType.DONE);
+                this.state = State.CLOSING;
+            }
+        }
+
+        // The pieces are started when the piece manifest of the file has been calculated, which might not have
+        // happened yet.
+        private void startPieces(PFile pfile, int start, int count, int stride, boolean endsFile) {
+            boolean zeroCopy = this.compression == CompressionType.NONE && SelectorSender.this.sender.isZeroCopy();
+            prepare(() -> {
+                PieceManifest manifest = pfile.getPieceManifest();
+                long fileLength = pfile.getFileLength();
+                return () -> this.pieces = new Pieces(start, count, stride, endsFile, zeroCopy, manifest, fileLength);
+            });
+        }
+
+        // Queues the next piece, or the DONE after the last piece. Returns false if the next piece is still being
+        // read, the connection is resumed when it is done.
+        private boolean nextPiece() throws IOException {
+            Pieces pieces = this.pieces;
+            PFile pfile = this.files.get(this.fileIndex);
+            if (pieces.zeroCopy) {
+                if (pieces.remaining > 0) {
+                    sendZeroCopy(pfile, pieces, pieces.next);
+                    pieces.next += pieces.stride;
+                    pieces.remaining--;
+                    return true;
+                }
+            } else {
+                while (pieces.remaining > 0 && this.reading.size() < Sender.COMPRESSION_WINDOW) {
+                    this.reading.add(readPiece(pfile, pieces, pieces.next));
+                    pieces.next += pieces.stride;
+                    pieces.remaining--;
+                }
+                CompletableFuture<FilePiecePacket> head = this.reading.peek();
+                if (head != null) {
+                    if (!head.isDone()) {
+                        head.whenComplete((p, e) -> this.loop.execute(this::resume));
+                        return false;
+                    }
+                    this.reading.poll();
+                    try {
+                        send(head.join().getBytes());
+                    } catch (CompletionException e) {
+                        throw new IOException("Unable to read piece: " + e.getCause().getMessage());
+                    }
+                    return true;
+                }
+            }
+
+            this.pieces = null;
+            sendByte(MessageType.DONE);
+            if (pieces.endsFile)
+                nextFile();
+            return true;
+        }
+
+        // Reads and compresses the piece on the compression executor, or reads it on the hand-off executor if it
+        // isn't compressed. A piece that doesn't fit in the queue of the compression executor is sent uncompressed,
+        // the same as the blocking sessions.
+        private CompletableFuture<FilePiecePacket> readPiece(PFile pfile, Pieces pieces, int index)
+        throws IOException {
+            if (this.fileChannel == null)
+                this.fileChannel = pfile.openChannel();
+            FileChannel channel = this.fileChannel;
+            CompressionType compression = this.compression;
+            if (compression != CompressionType.NONE) {
+                try {
+                    return CompletableFuture.supplyAsync(
+                            () -> SelectorSender.readPiece(pfile, channel, pieces, index).compress(compression),
+                            SelectorSender.this.sender.getCompressionExecutor());
+                } catch (RejectedExecutionException e) {
+                    LOGGER.log(Level.FINE, "Sending piece " + index + " of " + pfile.getName() + " uncompressed");
+                }
+            }
+            return CompletableFuture.supplyAsync(() -> SelectorSender.readPiece(pfile, channel, pieces, index),
+                    handOffExecutor());
+        }
+
+        // Queues a FILE_PIECE whose content is transferred from the file to the socket, the bytes are the same as
+        // the bytes of the corresponding FilePiecePacket.
+        private void sendZeroCopy(PFile pfile, Pieces pieces, int index) throws IOException {
+            if (this.fileChannel == null)
+                this.fileChannel = pfile.openChannel();
+            PieceManifest manifest = pieces.manifest;
+            HashType hashType = manifest.getHashType();
+            int length = pfile.getPieceLength(index, pieces.fileLength);
+
+            ByteBuffer header = ByteBuffer.allocate(1 + 4 + 1 + 4)
+                    .put((byte) MessageType.FILE_PIECE.getValue())
+                    .putInt(index)
+                    .put((byte) CompressionType.NONE.getValue())
+                    .putInt(length);
+            ByteBuffer trailer = ByteBuffer.allocate(1 + hashType.getSize()).put((byte) hashType.getValue());
+            if (hashType != HashType.NONE)
+                trailer.put(manifest.getDigest(index));
+
+            this.out.add(new BufferOutgoing(header.flip()));
+            this.out.add(new FileOutgoing(this.fileChannel, pfile.getPiecePosition(index), length));
+            this.out.add(new BufferOutgoing(trailer.flip()));
+        }
+
+        // Called by the event loop after the key has been deregistered.
+        void handOff() {
+            try {
+                closeFileChannel();
+                this.channel.configureBlocking(true);
+                this.in.flip();
+                byte[] buffered = new byte[this.in.remaining()];
+                this.in.get(buffered);
+                SocketWrapper socketWrapper = new SocketWrapper(this.channel.socket(), buffered);
+                Listener listener = this.listener;
+                if (this.files == null) {
+                    // Handed over before the REQUEST was answered, the blocking session starts from the REQUEST.
+                    handOffExecutor().execute(() -> SelectorSender.this.sender.send(socketWrapper, listener.protocol,
+                            listener.multicastSender));
+                } else {
+                    // The blocking session takes its bytes from the same bucket and closes it when it ends.
+                    FileProtocol fileProtocol = (FileProtocol) listener.protocol;
+                    String topic = this.topic;
+                    socketWrapper.setSendBucket(this.bucket);
+                    handOffExecutor().execute(() -> SelectorSender.this.sender.resume(
+                            socketWrapper, fileProtocol, topic, this.fileIndex, this.exchange,
+                            listener.multicastSender, this.compression, this.maxPieceSize));
+                    this.topic = null;
+                }
+            } catch (IOException | RejectedExecutionException e) {
+                LOGGER.log(Level.SEVERE, "Unable to hand over connection: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void closeFileChannel() {
+            if (this.fileChannel != null) {
+                closeQuietly(this.fileChannel);
+                this.fileChannel = null;
+            }
+        }
+
+        void close() {
+            for (CompletableFuture<FilePiecePacket> future : this.reading)
+                future.cancel(false);
+            this.reading.clear();
+            if (this.preparing != null)
+                this.preparing.cancel(false);
+            this.pieces = null;
+            closeFileChannel();
+            if (this.topic != null) {
+                SelectorSender.this.sender.getLimiter().close(this.topic, getAddress());
+                this.topic = null;
+            }
+            if (this.key != null)
+                this.key.cancel();
+            closeQuietly(this.channel);
+        }
+
+        private InetAddress getAddress() {
+            return this.channel.socket().getInetAddress();
+        }
+    }
+
+    private static FilePiecePacket readPiece(PFile pfile, FileChannel channel, Pieces pieces, int index) {
+        try {
+            return pfile.readPiece(channel, index, pieces.fileLength, pieces.manifest);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to close: " + e.getMessage());
+        }
+    }
+}
@@ -1,67 +1,373 @@
 package com.github.jmatss.send;
 
 import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.ChunkListPacket;
+import com.github.jmatss.send.packet.ChunkPacket;
+import com.github.jmatss.send.packet.CopyPacket;
 import com.github.jmatss.send.packet.FilePiecePacket;
+import com.github.jmatss.send.packet.JoinPacket;
+import com.github.jmatss.send.packet.LiteralPacket;
+import com.github.jmatss.send.packet.ManifestPacket;
+import com.github.jmatss.send.packet.RangePacket;
 import com.github.jmatss.send.packet.RequestPacket;
+import com.github.jmatss.send.packet.SignaturesPacket;
+import com.github.jmatss.send.packet.StripePacket;
+import com.github.jmatss.send.packet.StripesPacket;
 import com.github.jmatss.send.packet.TextPacket;
+import com.github.jmatss.send.packet.WantPacket;
+import com.github.jmatss.send.packet.WantedFilesPacket;
 import com.github.jmatss.send.protocol.*;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.util.BandwidthLimiter;
+import com.github.jmatss.send.util.Bitmap;
 import com.github.jmatss.send.util.ClosableWrapper;
+import com.github.jmatss.send.util.ExecutorRegistry;
 import com.github.jmatss.send.util.LockableHashMap;
-import com.github.jmatss.send.util.ScheduledExecutorServiceSingleton;
 import com.github.jmatss.send.util.SocketWrapper;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Sender {
+    public static final boolean DEFAULT_ZERO_COPY = true;
+    // The maximum amount of connections that a subscriber is allowed to download a file over.
+    public static final int DEFAULT_MAX_STRIPES = 8;
+    // The amount of pieces that are compressed ahead of the piece that is written to the socket.
+    public static final int COMPRESSION_WINDOW = 8;
+    public static final boolean DEFAULT_CHUNKING = false;
     private static final Logger LOGGER = Logger.getLogger(Sender.class.getName());
 
-    private final ScheduledExecutorService executor;
+    // Runs one blocking session per connected subscriber.
+    private volatile ExecutorService executor;
+    // The UPLOAD pool, runs the sessions unless another executor is set.
+    private final ExecutorService uploadExecutor;
+    // The COMPRESS pool, compresses the pieces of all subscribers while the session threads write the previous pieces.
+    private final ExecutorService compressionExecutor;
     private final LockableHashMap<String, ClosableWrapper> publishedTopics;
+    // Limits the upload rate of the sessions per subscriber, per topic and in total.
+    private final BandwidthLimiter limiter;
+    private volatile boolean zeroCopy;
+    private volatile int maxStripes;
+    private volatile CompressionType compression;
+    private volatile boolean chunking;
+    // The limits of the manifests sent by the sessions, at most the limits of the subscribers.
+    private volatile int maxManifestCount;
+    private volatile long maxManifestSize;
 
     public Sender(LockableHashMap<String, ClosableWrapper> publishedTopics) {
-        this.executor = ScheduledExecutorServiceSingleton.getInstance();
+        this(publishedTopics, ExecutorRegistry.getShared());
+    }
+
+    /**
+     * @param publishedTopics the topics that are published, subscribers requesting other topics are disconnected.
+     * @param executors       the registry whose UPLOAD pool runs the session of every connected subscriber and
+     *                        whose COMPRESS pool compresses their pieces.
+     */
+    public Sender(LockableHashMap<String, ClosableWrapper> publishedTopics, ExecutorRegistry executors) {
+        this.uploadExecutor = executors.get(ExecutorRegistry.Role.UPLOAD);
+        this.executor = this.uploadExecutor;
+        this.compressionExecutor = executors.get(ExecutorRegistry.Role.COMPRESS);
         this.publishedTopics = publishedTopics;
+        this.limiter = new BandwidthLimiter();
+        this.zeroCopy = DEFAULT_ZERO_COPY;
+        this.maxStripes = DEFAULT_MAX_STRIPES;
+        this.compression = CompressionType.NONE;
+        this.chunking = DEFAULT_CHUNKING;
+        this.maxManifestCount = ManifestPacket.MAX_COUNT;
+        this.maxManifestSize = ManifestPacket.MAX_SIZE;
+    }
+
+    /**
+     * Sets if file pieces should be sent with zero-copy (FileChannel.transferTo) or by reading every piece into
+     * a FilePiecePacket. The bytes sent over the socket are the same in both modes.
+     *
+     * @param zeroCopy true if zero-copy should be used.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * @return the limiter of the upload rate of the blocking sessions and of the connections of the SelectorSender.
+     * Its rates can be changed at any time and it reports the achieved upload rates.
+     */
+    public BandwidthLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * Sets the executor that runs the session of every connected subscriber, ex. an executor with a thread per task
+     * so that the amount of concurrent subscribers isn't limited by the size of the UPLOAD pool.
+     *
+     * @param executor the executor of the sessions, or null to use the UPLOAD pool.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor != null ? executor : this.uploadExecutor;
+    }
+
+    /**
+     * Sets the maximum amount of connections ("stripes") that a subscriber is allowed to download a file over. A
+     * subscriber proposing more stripes is answered with this amount.
+     *
+     * @param maxStripes the maximum amount of stripes, 1 disables striped downloads.
+     */
+    public void setMaxStripes(int maxStripes) {
+        if (maxStripes < 1 || maxStripes > StripesPacket.MAX_COUNT)
+            throw new IllegalArgumentException("Incorrect max stripes: " + maxStripes);
+        this.maxStripes = maxStripes;
+    }
+
+    /**
+     * Sets the compression of the pieces and texts sent to subscribers that are able to decompress it. Pieces that
+     * doesn't look compressible are still sent uncompressed. Compressed pieces are read into the heap, so
+     * zero-copy is only used for subscribers that doesn't support the compression.
+     *
+     * @param compression the compression to use, NONE to disable compression.
+     */
+    public void setCompression(CompressionType compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Enables or disables content-defined chunking of the published files. If enabled, a subscriber can request the
+     * chunks of a file and only receive the chunks that it doesn't already have. If disabled, requests for chunks
+     * are answered with an empty chunk list.
+     *
+     * @param chunking true to split files into content-defined chunks.
+     */
+    public void setChunking(boolean chunking) {
+        this.chunking = chunking;
+    }
+
+    /**
+     * Lowers the limits of the manifests below the limits of the subscribers, the files of larger topics are sent
+     * as FILE_INFOs. Lets the tests reach the limits with a few small files.
+     *
+     * @param maxCount the maximum amount of files in a manifest, at most ManifestPacket.MAX_COUNT.
+     * @param maxSize  the maximum length of the entries of a manifest, at most ManifestPacket.MAX_SIZE.
+     */
+    void setManifestLimits(int maxCount, long maxSize) {
+        if (maxCount > ManifestPacket.MAX_COUNT || maxSize > ManifestPacket.MAX_SIZE)
+            throw new IllegalArgumentException("The manifest limits are larger than the limits of the subscribers");
+        this.maxManifestCount = maxCount;
+        this.maxManifestSize = maxSize;
+    }
+
+    boolean isZeroCopy() {
+        return this.zeroCopy;
+    }
+
+    int getMaxStripes() {
+        return this.maxStripes;
+    }
+
+    ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    ExecutorService getCompressionExecutor() {
+        return this.compressionExecutor;
+    }
+
+    /**
+     * @param topic the topic of a received REQUEST.
+     * @throws IOException if the topic isn't published.
+     */
+    void checkPublished(String topic) throws IOException {
+        try (LockableHashMap l = this.publishedTopics.lock()) {
+            if (!this.publishedTopics.containsKey(topic))
+                throw new IOException("Received a request with a non published topic specified: " + topic);
+        }
+    }
+
+    /**
+     * The compression is negotiated per subscriber, it is only used if the subscriber supports it.
+     *
+     * @param compressionTypes the bitmask of compression types received in the REQUEST of the subscriber.
+     * @return the compression to use for the subscriber.
+     */
+    CompressionType negotiateCompression(int compressionTypes) {
+        CompressionType compression = this.compression;
+        return compression.isIn(compressionTypes) ? compression : CompressionType.NONE;
+    }
+
+    /**
+     * The piece size is negotiated per subscriber, every file is split into pieces of at most the size that the
+     * subscriber asked for, see PFile.negotiate(). The pieces of a multicast topic are shared by all of its
+     * subscribers, so they are never larger than Protocol.DEFAULT_PIECE_SIZE which every subscriber accepts.
+     *
+     * @param maxPieceSize    the largest piece size received in the REQUEST of the subscriber.
+     * @param multicastSender the multicast sender of the topic, or null.
+     * @return the largest piece size to use for the subscriber.
+     */
+    static int negotiatePieceSize(int maxPieceSize, MulticastDataSender multicastSender) {
+        int pieceSize = Math.min(maxPieceSize, Protocol.MAX_PIECE_SIZE);
+        return multicastSender != null ? Math.min(pieceSize, Protocol.DEFAULT_PIECE_SIZE) : pieceSize;
+    }
+
+    /**
+     * A subscriber that sets RequestPacket.FLAG_MANIFEST gets a MANIFEST of all files instead of the first FILE_INFO.
+     * The manifest is compressed with DEFLATE if the subscriber supports it regardless of the compression of the
+     * pieces, it is mostly names and is only sent once per session.
+     *
+     * @param flags            the flags received in the REQUEST of the subscriber.
+     * @param compressionTypes the bitmask of compression types received in the REQUEST of the subscriber.
+     * @return the compression of the manifest, or null if the subscriber doesn't want a manifest.
+     */
+    static CompressionType negotiateManifest(int flags, int compressionTypes) {
+        if ((flags & RequestPacket.FLAG_MANIFEST) == 0)
+            return null;
+        return CompressionType.DEFLATE.isIn(compressionTypes) ? CompressionType.DEFLATE : CompressionType.NONE;
+    }
+
+    /**
+     * Waits for all files of the protocol if the published directory is still walked.
+     *
+     * @param fileProtocol the published protocol.
+     * @param maxPieceSize the largest piece size negotiated with the subscriber.
+     * @return the files of the protocol split with the negotiated piece size.
+     * @throws IOException if a file doesn't exist.
+     */
+    static List<PFile> negotiateFiles(FileProtocol fileProtocol, int maxPieceSize) throws IOException {
+        List<PFile> files = new ArrayList<>();
+        for (int i = 0; fileProtocol.awaitFile(i); i++)
+            files.add(fileProtocol.getFile(i).negotiate(maxPieceSize));
+        return files;
+    }
+
+    /**
+     * Creates the manifest of the files. The length of the manifest doesn't depend on the digests, so the files are
+     * only hashed if they fit in a manifest. The digests of the files that aren't in the digest cache yet are
+     * calculated in parallel.
+     *
+     * @param files       the files of the topic split with the piece size negotiated with the subscriber.
+     * @param compression the compression of the manifest.
+     * @return the manifest, or null if the files don't fit in a manifest (see setManifestLimits()), the FILE_INFO of
+     * every file is sent instead.
+     * @throws IOException if it is unable to read a file.
+     */
+    ManifestPacket createManifest(List<PFile> files, CompressionType compression) throws IOException {
+        if (files.size() > this.maxManifestCount)
+            return null;
+        long length = ManifestPacket.COUNT_LENGTH;
+        for (PFile pfile : files)
+            length += ManifestPacket.getEntryLength(pfile.getName(), pfile.getFileHashType());
+        if (length > this.maxManifestSize)
+            return null;
+
+        try {
+            return new ManifestPacket(files.parallelStream().map((pfile) -> {
+                try {
+                    return pfile.getFileInfoPacket();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList()), compression);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     // TODO: fix so that the "send" function sends all packets before exiting if the task gets a cancel.
     public void listen(ServerSocket serverSocket, Protocol protocol) throws IOException {
+        listen(serverSocket, protocol, null);
+    }
+
+    /**
+     * @param serverSocket     the socket to accept subscribers on.
+     * @param protocol         the published protocol.
+     * @param multicastSender  sends the file pieces to the multicast group of the topic, or null if the pieces are
+     *                         only sent over TCP.
+     * @throws IOException if it is unable to accept connections.
+     */
+    void listen(ServerSocket serverSocket, Protocol<?> protocol, MulticastDataSender multicastSender)
+    throws IOException {
         try {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 SocketWrapper socketWrapper = new SocketWrapper(clientSocket);
-                this.executor.submit(() -> send(socketWrapper, protocol));
+                try {
+                    this.executor.submit(() -> send(socketWrapper, protocol, multicastSender));
+                } catch (RejectedExecutionException e) {
+                    // Disconnects the subscriber instead of blocking the accept loop, it can request the topic
+                    // again at its next announcement.
+                    LOGGER.log(Level.WARNING, "Unable to start session, disconnecting subscriber: " + e.getMessage());
+                    try {
+                        socketWrapper.close();
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.SEVERE, "Unable to close socket: " + ex.getMessage());
+                    }
+                }
             }
-        } catch (SocketException e) {
+        } catch (SocketException | ClosedChannelException e) {
+            // ClosedChannelException is thrown instead of SocketException when the server socket is backed by a
+            // channel and it gets closed or the listener is interrupted.
             LOGGER.log(Level.INFO, "Listener closed.");
         }
     }
 
     public void send(SocketWrapper socketWrapper, Protocol protocol) {
+        send(socketWrapper, protocol, null);
+    }
+
+    /**
+     * Runs a blocking session with a connected subscriber, from its REQUEST until the DONE. The connection is
+     * closed when the session ends.
+     *
+     * @param socketWrapper   a blocking connection to the subscriber.
+     * @param protocol        the published protocol.
+     * @param multicastSender the multicast sender of the topic, or null.
+     */
+    void send(SocketWrapper socketWrapper, Protocol<?> protocol, MulticastDataSender multicastSender) {
+        String topic = null;
+        InetAddress address = socketWrapper.getSocket() != null ? socketWrapper.getSocket().getInetAddress() : null;
         try {
             RequestPacket rp = socketWrapper.receiveRequest();
-            try (LockableHashMap l = this.publishedTopics.lock()) {
-                if (!this.publishedTopics.containsKey(rp.getTopic()))
-                    throw new IllegalArgumentException("Received a request with a non published topic specified: " +
-                            rp.getTopic());
+            checkPublished(rp.getTopic());
+            CompressionType compression = negotiateCompression(rp.getCompressionTypes());
+            int maxPieceSize = negotiatePieceSize(rp.getMaxPieceSize(), multicastSender);
+            CompressionType manifestCompression = negotiateManifest(rp.getFlags(), rp.getCompressionTypes());
+            if (address != null) {
+                topic = rp.getTopic();
+                socketWrapper.setSendBucket(this.limiter.open(topic, address));
             }
 
             if (protocol instanceof FileProtocol)
-                sendFile(socketWrapper, (FileProtocol) protocol);
+                sendFile(socketWrapper, (FileProtocol) protocol, multicastSender, compression, maxPieceSize,
+                        manifestCompression);
             else if (protocol instanceof TextProtocol)
-                sendText(socketWrapper, (TextProtocol) protocol);
+                sendText(socketWrapper, (TextProtocol) protocol, compression);
             else
                 throw new RuntimeException("Incorrect protocol class");
 
         } catch (IOException | IncorrectMessageTypeException e) {
             LOGGER.log(Level.SEVERE, e.getMessage());
         } finally {
+            if (topic != null)
+                this.limiter.close(topic, address);
             try {
                 socketWrapper.close();
             } catch (IOException e) {
@@ -70,22 +376,292 @@ public class Sender {
         }
     }
 
-    private void sendFile(SocketWrapper socketWrapper, FileProtocol fileProtocol) throws IOException {
-        for (PFile pfile : fileProtocol.iter()) {
-            socketWrapper.sendPacket(pfile.getFileInfoPacket());
+    private void sendFile(SocketWrapper socketWrapper, FileProtocol fileProtocol, MulticastDataSender multicastSender,
+                          CompressionType compression, int maxPieceSize, CompressionType manifestCompression)
+    throws IOException, IncorrectMessageTypeException {
+        if (multicastSender != null)
+            socketWrapper.sendPacket(multicastSender.getMulticastPacket());
+        List<PFile> files = manifestCompression != null ? negotiateFiles(fileProtocol, maxPieceSize) : null;
+        ManifestPacket manifest = files != null ? createManifest(files, manifestCompression) : null;
+        if (manifest == null) {
+            // The subscriber didn't ask for a manifest or the files don't fit in one.
+            sendFiles(socketWrapper, fileProtocol, 0, false, null, multicastSender, compression, maxPieceSize);
+            return;
+        }
+
+        socketWrapper.sendPacket(manifest);
+        WantedFilesPacket wanted = socketWrapper.receiveWantedFiles(files.size());
+        Bitmap stream = wanted.getStream();
+        for (int i = stream.nextSet(0); i != -1; i = stream.nextSet(i + 1)) {
+            PFile pfile = files.get(i);
+            sendFilePieces(socketWrapper, pfile, 0, pfile.getPieceCount(), 1, compression);
+            socketWrapper.sendDone();
+        }
+        sendFiles(socketWrapper, fileProtocol, 0, false, wanted.getExchange(), multicastSender, compression,
+                maxPieceSize);
+    }
 
-            if (socketWrapper.isYes()) {
-                for (FilePiecePacket filePiece : pfile.packetIterator())
-                    socketWrapper.sendPacket(filePiece);
-                socketWrapper.sendDone();
+    // Sends the files from "firstIndex" that are set in "wanted" (all files if null) and the DONE after the last
+    // file. If "infoSent" is true, the FILE_INFO of the first file has already been sent and only its replies are
+    // handled. If the published directory is still walked, the files are sent as they are found.
+    private void sendFiles(SocketWrapper socketWrapper, FileProtocol fileProtocol, int firstIndex, boolean infoSent,
+                           Bitmap wanted, MulticastDataSender multicastSender, CompressionType compression,
+                           int maxPieceSize)
+    throws IOException, IncorrectMessageTypeException {
+        for (int fileIndex = firstIndex; fileProtocol.awaitFile(fileIndex); fileIndex++) {
+            if (wanted == null || wanted.get(fileIndex)) {
+                PFile pfile = fileProtocol.getFile(fileIndex).negotiate(maxPieceSize);
+                if (fileIndex != firstIndex || !infoSent)
+                    socketWrapper.sendPacket(pfile.getFileInfoPacket());
+                handleFileReplies(socketWrapper, pfile, fileIndex, multicastSender, compression);
             }
         }
         socketWrapper.sendDone();
     }
 
-    private void sendText(SocketWrapper socketWrapper, TextProtocol textProtocol) throws IOException {
+    /**
+     * Continues a session, that was started by the SelectorSender, as a blocking session on the calling thread.
+     * Used for the replies that the SelectorSender doesn't handle itself. The connection is closed when the session
+     * ends.
+     *
+     * @param socketWrapper   a blocking connection to the subscriber.
+     * @param fileProtocol    the published protocol.
+     * @param topic           the topic of the connection, the send bucket of the socket wrapper was opened for it
+     *                        in the limiter and is closed when the session ends.
+     * @param fileIndex       the index of the file whose FILE_INFO was the last packet sent.
+     * @param wanted          the files of the manifest whose FILE_INFO the subscriber wants, or null if all files
+     *                        are sent.
+     * @param multicastSender the multicast sender of the topic, or null.
+     * @param compression     the compression negotiated with the subscriber.
+     * @param maxPieceSize    the largest piece size negotiated with the subscriber.
+     */
+    void resume(SocketWrapper socketWrapper, FileProtocol fileProtocol, String topic, int fileIndex, Bitmap wanted,
+                MulticastDataSender multicastSender, CompressionType compression, int maxPieceSize) {
+        try {
+            sendFiles(socketWrapper, fileProtocol, fileIndex, true, wanted, multicastSender, compression,
+                    maxPieceSize);
+        } catch (IOException | IncorrectMessageTypeException e) {
+            LOGGER.log(Level.SEVERE, e.getMessage());
+        } finally {
+            this.limiter.close(topic, socketWrapper.getSocket().getInetAddress());
+            try {
+                socketWrapper.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to close socket: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the range isn't within the pieces of the file.
+     */
+    static void checkRange(PFile pfile, int start, int count) throws IOException {
+        if (start < 0 || count < 0 || (long) start + count > pfile.getPieceCount())
+            throw new IOException("Received incorrect range [" + start + ", " + ((long) start + count) +
+                    ") for a file with " + pfile.getPieceCount() + " pieces");
+    }
+
+    /**
+     * @throws IOException if the stripe isn't within the pieces of the file.
+     */
+    static void checkStripe(PFile pfile, int start, int count, int stride) throws IOException {
+        if (start < 0 || count < 0 || (count > 0 &&
+                (long) start + (long) (count - 1) * stride >= pfile.getPieceCount()))
+            throw new IOException("Received incorrect stripe of " + count + " pieces from " + start +
+                    " with stride " + stride + " for a file with " + pfile.getPieceCount() + " pieces");
+    }
+
+    /**
+     * Handles the replies from the subscriber to a FILE_INFO packet. A YES is answered with all pieces of the file
+     * and a NO skips the file. A RANGE or STRIPE is answered with the requested pieces, after which the subscriber
+     * can send more requests until it ends the file with a NO (ex. when resuming a download). A STRIPES proposal is
+     * answered with the amount of stripes that the subscriber is allowed to use. A JOIN adds the wanted pieces
+     * to the next multicast round of the file and is answered with a DONE when the round has ended. SIGNATURES of
+     * an old version of the file is answered with a delta of COPY and LITERAL packets ended with a DONE. CHUNKS is
+     * answered with the CHUNK_LIST of the file and a WANT with the wanted chunks ended with a DONE.
+     */
+    private void handleFileReplies(SocketWrapper socketWrapper, PFile pfile, int fileIndex,
+                                   MulticastDataSender multicastSender, CompressionType compression)
+    throws IOException, IncorrectMessageTypeException {
+        while (true) {
+            MessageType reply = socketWrapper.peekMessageType();
+            switch (reply) {
+                case YES:
+                    socketWrapper.isYes();
+                    sendFilePieces(socketWrapper, pfile, 0, pfile.getPieceCount(), 1, compression);
+                    socketWrapper.sendDone();
+                    return;
+                case NO:
+                    socketWrapper.isNo();
+                    return;
+                case RANGE:
+                    RangePacket rangePacket = socketWrapper.receiveRange();
+                    checkRange(pfile, rangePacket.getStart(), rangePacket.getCount());
+                    sendFilePieces(socketWrapper, pfile, rangePacket.getStart(), rangePacket.getCount(), 1,
+                            compression);
+                    socketWrapper.sendDone();
+                    break;
+                case STRIPES:
+                    StripesPacket stripesPacket = socketWrapper.receiveStripes();
+                    socketWrapper.sendPacket(new StripesPacket(Math.min(stripesPacket.getCount(), this.maxStripes)));
+                    break;
+                case STRIPE:
+                    StripePacket stripePacket = socketWrapper.receiveStripe();
+                    checkStripe(pfile, stripePacket.getStart(), stripePacket.getCount(), stripePacket.getStride());
+                    sendFilePieces(socketWrapper, pfile, stripePacket.getStart(), stripePacket.getCount(),
+                            stripePacket.getStride(), compression);
+                    socketWrapper.sendDone();
+                    break;
+                case SIGNATURES:
+                    SignaturesPacket signaturesPacket = socketWrapper.receiveSignatures();
+                    sendDelta(socketWrapper, pfile, signaturesPacket.getSignatures());
+                    socketWrapper.sendDone();
+                    break;
+                case CHUNKS:
+                    socketWrapper.isChunks();
+                    socketWrapper.sendPacket(new ChunkListPacket(this.chunking
+                            ? pfile.getChunkList()
+                            : new ChunkList(new int[0], new byte[0])));
+                    break;
+                case WANT:
+                    WantPacket wantPacket = socketWrapper.receiveWant();
+                    if (!this.chunking)
+                        throw new IncorrectMessageTypeException("Received WANT when chunking is disabled");
+                    sendChunks(socketWrapper, pfile, wantPacket.getWanted());
+                    socketWrapper.sendDone();
+                    break;
+                case JOIN:
+                    JoinPacket joinPacket = socketWrapper.receiveJoin();
+                    if (multicastSender == null)
+                        throw new IncorrectMessageTypeException("Received JOIN for a topic that isn't multicast");
+                    multicastSender.transmit(pfile, fileIndex, joinPacket.getWanted());
+                    socketWrapper.sendDone();
+                    break;
+                default:
+                    throw new IncorrectMessageTypeException("Received incorrect reply to FILE_INFO: " + reply);
+            }
+        }
+    }
+
+    // Sends the file as references to the blocks of the old version that the subscriber already has and the data
+    // in between them.
+    private void sendDelta(SocketWrapper socketWrapper, PFile pfile, BlockSignatures signatures)
+    throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(signatures);
+        try (FileChannel channel = pfile.openChannel()) {
+            encoder.encode(channel, new DeltaEncoder.Output() {
+                @Override
+                public void copy(int block, int count) throws IOException {
+                    socketWrapper.sendPacket(new CopyPacket(block, count));
+                }
+
+                @Override
+                public void literal(byte[] data) throws IOException {
+                    socketWrapper.sendPacket(new LiteralPacket(data));
+                }
+            });
+        }
+        LOGGER.log(Level.FINE, "Sent delta of " + pfile.getName() + ": " + encoder.getCopiedBytes() +
+                " bytes copied, " + encoder.getLiteralBytes() + " bytes literal");
+    }
+
+    // Sends the chunks that are set in "wanted" in order.
+    private void sendChunks(SocketWrapper socketWrapper, PFile pfile, Bitmap wanted) throws IOException {
+        ChunkList chunkList = pfile.getChunkList();
+        if (wanted.size() != chunkList.getCount())
+            throw new IOException("Received WANT of " + wanted.size() + " chunks for a file with " +
+                    chunkList.getCount() + " chunks");
+
+        try (FileChannel channel = pfile.openChannel()) {
+            for (int i = wanted.nextSet(0); i != -1; i = wanted.nextSet(i + 1)) {
+                ByteBuffer buf = ByteBuffer.allocate(chunkList.getLength(i));
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, chunkList.getOffset(i) + buf.position()) == -1)
+                        throw new EOFException("End of file reached while reading chunk " + i + " of " +
+                                pfile.getName());
+                }
+                socketWrapper.sendPacket(new ChunkPacket(i, buf.array()));
+            }
+        }
+    }
+
+    // Sends "count" pieces starting at "start" with "stride" pieces between every piece.
+    private void sendFilePieces(SocketWrapper socketWrapper, PFile pfile, int start, int count, int stride,
+                                CompressionType compression)
+    throws IOException {
+        int end = count == 0 ? start : start + (count - 1) * stride + 1;
+        if (compression != CompressionType.NONE) {
+            sendFilePiecesCompressed(socketWrapper, pfile, start, end, stride, compression);
+        } else if (this.zeroCopy) {
+            sendFilePiecesZeroCopy(socketWrapper, pfile, start, count, stride);
+        } else {
+            Iterator<FilePiecePacket> pieces = pfile.packetIterator(start, end, stride).iterator();
+            while (pieces.hasNext())
+                socketWrapper.sendPacket(nextPiece(pieces, pfile));
+        }
+    }
+
+    /**
+     * @param pieces an iterator from PFile.packetIterator(), which returns null if it is unable to read a piece.
+     * @param pfile  the file of the pieces.
+     * @return the next piece.
+     * @throws IOException if it is unable to read the piece.
+     */
+    static FilePiecePacket nextPiece(Iterator<FilePiecePacket> pieces, PFile pfile) throws IOException {
+        FilePiecePacket piece = pieces.next();
+        if (piece == null)
+            throw new IOException("Unable to read a piece of " + pfile.getName());
+        return piece;
+    }
+
+    // Compresses up to COMPRESSION_WINDOW pieces on the compression executor while the pieces before them are
+    // written to the socket, the pieces are still written in order. A piece that doesn't fit in the queue of the
+    // executor is sent uncompressed.
+    private void sendFilePiecesCompressed(SocketWrapper socketWrapper, PFile pfile, int start, int end, int stride,
+                                          CompressionType compression)
+    throws IOException {
+        Deque<Future<FilePiecePacket>> pending = new ArrayDeque<>();
+        Iterator<FilePiecePacket> pieces = pfile.packetIterator(start, end, stride).iterator();
+        try {
+            while (pieces.hasNext() || !pending.isEmpty()) {
+                while (pieces.hasNext() && pending.size() < COMPRESSION_WINDOW) {
+                    FilePiecePacket piece = nextPiece(pieces, pfile);
+                    try {
+                        pending.add(this.compressionExecutor.submit(() -> piece.compress(compression)));
+                    } catch (RejectedExecutionException e) {
+                        pending.add(CompletableFuture.completedFuture(piece));
+                    }
+                }
+                socketWrapper.sendPacket(pending.poll().get());
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress piece of " + pfile.getName() + ": " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing the pieces of " + pfile.getName());
+        } finally {
+            for (Future<FilePiecePacket> future : pending)
+                future.cancel(false);
+        }
+    }
+
+    private void sendFilePiecesZeroCopy(SocketWrapper socketWrapper, PFile pfile, int start, int count, int stride)
+    throws IOException {
+        // The piece digests are taken from the shared manifest so the piece content is never read into the heap.
+        PieceManifest manifest = pfile.getPieceManifest();
+        long fileLength = pfile.getFileLength();
+        try (FileChannel channel = pfile.openChannel()) {
+            for (int i = start; count-- > 0; i += stride) {
+                socketWrapper.sendFilePiece(channel, i, pfile.getPiecePosition(i), pfile.getPieceLength(i, fileLength),
+                        manifest.getHashType(), manifest.getDigest(i));
+            }
+        }
+    }
+
+    private void sendText(SocketWrapper socketWrapper, TextProtocol textProtocol, CompressionType compression)
+    throws IOException {
         for (TextPacket textPacket : textProtocol.iter())
-            socketWrapper.sendPacket(textPacket);
+            socketWrapper.sendPacket(textPacket.compress(compression));
         socketWrapper.sendDone();
     }
 }
@@ -0,0 +1,77 @@
+package com.github.jmatss.send;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A publisher that has announced a topic. Used to find the other publishers of a topic when downloading from
+ * several publishers at once.
+ */
+class Source {
+    private final InetAddress address;
+    private final int port;
+    private final String topic;
+    private final byte[] id;
+    private volatile long lastSeen;
+
+    Source(InetAddress address, int port, String topic, byte[] id) {
+        this.address = address;
+        this.port = port;
+        this.topic = topic;
+        this.id = id;
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    InetAddress getAddress() {
+        return this.address;
+    }
+
+    int getPort() {
+        return this.port;
+    }
+
+    String getTopic() {
+        return this.topic;
+    }
+
+    byte[] getId() {
+        return this.id;
+    }
+
+    long getLastSeen() {
+        return this.lastSeen;
+    }
+
+    void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * @param other another source.
+     * @return true if both sources are the same listening socket, i.e. the same publisher.
+     */
+    boolean isSamePublisher(Source other) {
+        return this.port == other.port && this.address.equals(other.address);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Source))
+            return false;
+        Source source = (Source) o;
+        return isSamePublisher(source) && this.topic.equals(source.topic) && Arrays.equals(this.id, source.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hash(this.address, this.port, this.topic) + Arrays.hashCode(this.id);
+    }
+
+    @Override
+    public String toString() {
+        return this.address.getHostAddress() + ":" + this.port;
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.RequestPacket;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.util.BandwidthLimiter;
+import com.github.jmatss.send.util.SocketWrapper;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A connection to one of the other publishers of a topic that is being downloaded. The publisher sends its files in
+ * the same order as the publisher that the download was started from, so the session is moved forward by answering
+ * NO to every FILE_INFO until it reaches the file that is currently downloaded. Not thread safe, a session is only
+ * used by one download at a time.
+ */
+class SourceSession {
+    private static final Logger LOGGER = Logger.getLogger(SourceSession.class.getName());
+
+    private final Source source;
+    // Limits the download rate of the session together with the other connections to the same publisher.
+    private final BandwidthLimiter limiter;
+    // The largest piece size to ask for, the same as in the REQUEST of the download that the session belongs to.
+    private final int maxPieceSize;
+    private SocketWrapper socketWrapper;
+    private boolean done;
+
+    SourceSession(Source source, BandwidthLimiter limiter, int maxPieceSize) {
+        this.source = source;
+        this.limiter = limiter;
+        this.maxPieceSize = maxPieceSize;
+        this.socketWrapper = null;
+        this.done = false;
+    }
+
+    Source getSource() {
+        return this.source;
+    }
+
+    SocketWrapper getSocketWrapper() {
+        return this.socketWrapper;
+    }
+
+    /**
+     * @return true if the publisher has no more files to send or if the connection has failed.
+     */
+    boolean isDone() {
+        return this.done;
+    }
+
+    private void connect() throws IOException {
+        this.socketWrapper = new SocketWrapper(new Socket(this.source.getAddress(), this.source.getPort()));
+        this.socketWrapper.setReceiveBucket(this.limiter.open(this.source.getTopic(), this.source.getAddress()));
+        this.socketWrapper.getSocket().setSoTimeout(Receiver.SOCKET_TIMEOUT);
+        this.socketWrapper.setMaxPieceSize(this.maxPieceSize);
+        this.socketWrapper.sendPacket(new RequestPacket(this.source.getTopic(), this.source.getId(),
+                CompressionType.supportedMask(), this.maxPieceSize));
+    }
+
+    /**
+     * Moves the session forward to the FILE_INFO of the given file. Every other file is answered with a NO. After
+     * this returns true, the file can be requested with RANGE packets and must be ended with a NO.
+     *
+     * @param fileInfo the FILE_INFO of the file to find.
+     * @return true if the publisher sent the same file, false if the publisher doesn't have the file.
+     */
+    boolean skipTo(FileInfoPacket fileInfo) {
+        if (this.done)
+            return false;
+
+        try {
+            if (this.socketWrapper == null)
+                connect();
+
+            while (!this.socketWrapper.isDone()) {
+                FileInfoPacket other = this.socketWrapper.receiveFileInfo();
+                if (other.hasSameContent(fileInfo))
+                    return true;
+                this.socketWrapper.sendNo();
+            }
+        } catch (IOException | IncorrectHashTypeException | IncorrectMessageTypeException e) {
+            LOGGER.log(Level.WARNING, "Unable to find " + fileInfo.getName() + " at " + this.source + ": " +
+                    e.getMessage());
+        }
+
+        this.done = true;
+        return false;
+    }
+
+    /**
+     * Marks the session as failed, no more files will be requested from it.
+     */
+    void fail() {
+        this.done = true;
+    }
+
+    /**
+     * Answers NO to all remaining files so that the publisher finishes the request normally and closes the
+     * connection.
+     */
+    void close() {
+        try {
+            if (this.socketWrapper == null)
+                return;
+            while (!this.done && !this.socketWrapper.isDone()) {
+                this.socketWrapper.receiveFileInfo();
+                this.socketWrapper.sendNo();
+            }
+        } catch (IOException | IncorrectHashTypeException | IncorrectMessageTypeException e) {
+            LOGGER.log(Level.FINE, "Unable to end the session with " + this.source + ": " + e.getMessage());
+        } finally {
+            this.done = true;
+            if (this.socketWrapper != null)
+                this.limiter.close(this.source.getTopic(), this.source.getAddress());
+            try {
+                if (this.socketWrapper != null)
+                    this.socketWrapper.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage());
+            }
+        }
+    }
+}
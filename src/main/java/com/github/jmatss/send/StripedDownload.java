@@ -0,0 +1,169 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.exception.IncorrectMessageTypeException;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.RangePacket;
+import com.github.jmatss.send.packet.StripePacket;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.util.SocketWrapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the pieces of one file over several connections ("stripes") to the same publisher. With K stripes,
+ * stripe s receives the pieces s, s + K, s + 2K, ... of every run of missing pieces, so every connection streams
+ * its pieces without waiting for the others and the pieces are written at their offsets as they arrive. The
+ * connection that the FILE_INFO was received on is stripe 0. Pieces of a stripe whose connection fails are
+ * requested over stripe 0 when the other stripes are done.
+ */
+class StripedDownload {
+    private static final Logger LOGGER = Logger.getLogger(StripedDownload.class.getName());
+
+    private final PartialFile partialFile;
+    private final FileInfoPacket fileInfo;
+    private final ReceivePipeline pipeline;
+    // The runs of missing pieces when the download is started, as {start, end}.
+    private final List<int[]> runs;
+
+    StripedDownload(PartialFile partialFile, FileInfoPacket fileInfo, ReceivePipeline pipeline) {
+        this.partialFile = partialFile;
+        this.fileInfo = fileInfo;
+        this.pipeline = pipeline;
+        this.runs = new ArrayList<>();
+
+        int start = partialFile.nextMissing(0);
+        while (start != -1) {
+            int end = partialFile.nextReceived(start);
+            if (end == -1)
+                end = partialFile.getPieceCount();
+            this.runs.add(new int[]{start, end});
+            start = partialFile.nextMissing(end);
+        }
+    }
+
+    private static class Stripe {
+        private final int index;
+        private final String name;
+        private long bytes;
+        private long nanos;
+        private boolean failed;
+
+        Stripe(int index, String name) {
+            this.index = index;
+            this.name = name;
+            this.bytes = 0;
+            this.nanos = 0;
+            this.failed = false;
+        }
+    }
+
+    /**
+     * Downloads all missing pieces of the file. Stripe 0 is received over the primary connection from the current
+     * thread and every session receives one other stripe from its own task on the executor. All connections ends
+     * the file with a NO, so they can continue with the next file when this returns.
+     *
+     * @param primary  the connection that the FILE_INFO was received on.
+     * @param sessions the other connections to the same publisher.
+     * @param executor the executor that runs the sessions.
+     * @throws IOException                   if the primary connection fails.
+     * @throws IncorrectHashTypeException    if the primary connection receives an incorrect hash type.
+     * @throws IncorrectMessageTypeException if the primary connection receives an unexpected packet.
+     */
+    void run(SocketWrapper primary, List<SourceSession> sessions, ExecutorService executor)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        int stripeCount = sessions.size() + 1;
+        List<Stripe> stripes = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i < stripeCount; i++) {
+            SourceSession session = sessions.get(i - 1);
+            Stripe stripe = new Stripe(i, session.getSource().toString());
+            stripes.add(stripe);
+            Future<?> future;
+            try {
+                future = executor.submit(() -> {
+                    if (!session.skipTo(this.fileInfo))
+                        throw new IOException("Unable to find " + this.fileInfo.getName() + " on stripe " +
+                                stripe.index);
+                    receiveStripe(session.getSocketWrapper(), stripe, stripeCount);
+                    session.getSocketWrapper().sendNo();
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                // The pieces of the stripe are requested over the primary connection, the same as a failed stripe.
+                future = CompletableFuture.failedFuture(e);
+            }
+            futures.add(future);
+        }
+
+        Stripe first = new Stripe(0, "primary");
+        stripes.add(0, first);
+        try {
+            receiveStripe(primary, first, stripeCount);
+        } finally {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    sessions.get(i).fail();
+                    stripes.get(i + 1).failed = true;
+                    LOGGER.log(Level.WARNING, "Stripe " + (i + 1) + " failed while downloading " +
+                            this.fileInfo.getName() + ": " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the stripes of " + this.fileInfo.getName());
+                }
+            }
+        }
+
+        // Requests the pieces of the failed stripes over the primary connection.
+        int start = this.partialFile.nextMissing(0);
+        while (start != -1) {
+            int end = this.partialFile.nextReceived(start);
+            if (end == -1)
+                end = this.partialFile.getPieceCount();
+
+            primary.sendPacket(new RangePacket(start, end - start));
+            this.pipeline.receiveRange(primary, this.partialFile, start, end);
+            start = this.partialFile.nextMissing(end);
+        }
+        primary.sendNo();
+
+        logSummary(stripes);
+    }
+
+    private void receiveStripe(SocketWrapper socketWrapper, Stripe stripe, int stripeCount)
+    throws IOException, IncorrectHashTypeException, IncorrectMessageTypeException {
+        for (int[] run : this.runs) {
+            StripePacket stripePacket = StripePacket.of(run[0], run[1], stripe.index, stripeCount);
+            if (stripePacket == null)
+                continue;
+
+            long start = System.nanoTime();
+            socketWrapper.sendPacket(stripePacket);
+            stripe.bytes += this.pipeline.receive(socketWrapper, this.partialFile, stripePacket.getCount(),
+                    stripePacket::getIndex, "stripe " + stripe.index);
+            stripe.nanos += System.nanoTime() - start;
+        }
+    }
+
+    private void logSummary(List<Stripe> stripes) {
+        StringBuilder sb = new StringBuilder("Downloaded " + this.fileInfo.getName() + " over " + stripes.size() +
+                " stripe(s):");
+        for (Stripe stripe : stripes) {
+            double rate = stripe.bytes * 1e9 / Math.max(stripe.nanos, 1) / (1 << 20);
+            sb.append(String.format("%n  stripe %d (%s): %d bytes, %.1f MiB/s%s", stripe.index, stripe.name,
+                    stripe.bytes, rate, stripe.failed ? ", failed" : ""));
+        }
+        LOGGER.log(Level.INFO, sb.toString());
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.protocol.ChunkList;
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+public class ChunkListPacket implements Packet {
+    private final MessageType messageType;
+    private final ChunkList chunkList;
+    private byte[] packet;
+
+    public ChunkListPacket(ChunkList chunkList) {
+        this.messageType = MessageType.CHUNK_LIST;
+        this.chunkList = chunkList;
+        this.packet = null;
+    }
+
+    public ChunkList getChunkList() {
+        return this.chunkList;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        int count = this.chunkList.getCount();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + count * (4 + ChunkList.HASH_TYPE.getSize()))
+                .put((byte) this.messageType.getValue())
+                .putInt(count);
+        for (int i = 0; i < count; i++)
+            buf.putInt(this.chunkList.getLength(i)).put(this.chunkList.getDigest(i));
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+public class ChunkPacket implements Packet {
+    private final MessageType messageType;
+    private final int index;
+    private final byte[] data;
+    private byte[] packet;
+
+    public ChunkPacket(int index, byte[] data) {
+        this.messageType = MessageType.CHUNK;
+        this.index = index;
+        this.data = data;
+        this.packet = null;
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4 + this.data.length)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.index)
+                .putInt(this.data.length)
+                .put(this.data);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
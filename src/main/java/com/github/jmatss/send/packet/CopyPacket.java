@@ -0,0 +1,46 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+public class CopyPacket implements Packet {
+    private final MessageType messageType;
+    private final int block;
+    private final int count;
+    private byte[] packet;
+
+    public CopyPacket(int block, int count) {
+        this.messageType = MessageType.COPY;
+        this.block = block;
+        this.count = count;
+        this.packet = null;
+    }
+
+    public int getBlock() {
+        return this.block;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.block)
+                .putInt(this.count);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
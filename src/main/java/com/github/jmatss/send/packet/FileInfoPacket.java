@@ -6,19 +6,22 @@ import com.github.jmatss.send.type.MessageType;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class FileInfoPacket implements Packet {
     private final MessageType messageType;
     private final String name;
     private final long fileLength;
+    private final int pieceSize;
     private final HashType hashType;
     private final byte[] digest;
     private byte[] packet;
 
-    public FileInfoPacket(String name, long fileLength, HashType hashType, byte[] digest) {
+    public FileInfoPacket(String name, long fileLength, int pieceSize, HashType hashType, byte[] digest) {
         this.messageType = MessageType.FILE_INFO;
         this.name = name;
         this.fileLength = fileLength;
+        this.pieceSize = pieceSize;
         this.hashType = hashType;
         this.digest = digest;
         this.packet = null;
@@ -32,17 +35,60 @@ public class FileInfoPacket implements Packet {
         return this.fileLength;
     }
 
+    public int getPieceSize() {
+        return this.pieceSize;
+    }
+
+    /**
+     * @return the amount of pieces that the file is split into.
+     */
+    public int getPieceCount() {
+        return (int) ((this.fileLength + this.pieceSize - 1) / this.pieceSize);
+    }
+
+    public HashType getHashType() {
+        return this.hashType;
+    }
+
+    public byte[] getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * Two FILE_INFO packets describe the same content if the name, length, piece size and digest are equal. The same
+     * content can then be downloaded piece by piece from the publishers of either packet.
+     *
+     * @param other the FILE_INFO to compare with.
+     * @return true if both packets describe the same content.
+     */
+    public boolean hasSameContent(FileInfoPacket other) {
+        return this.name.equals(other.name) && this.fileLength == other.fileLength &&
+                this.pieceSize == other.pieceSize && this.hashType == other.hashType &&
+                Arrays.equals(this.digest, other.digest);
+    }
+
+    /**
+     * @param name     the name of the file.
+     * @param hashType the HashType of the digest of the file.
+     * @return the length of the FILE_INFO of the file, which doesn't depend on the digest itself.
+     * @throws UnsupportedEncodingException if the name can't be encoded.
+     */
+    public static int getLength(String name, HashType hashType) throws UnsupportedEncodingException {
+        return 1 + 4 + name.getBytes(Controller.ENCODING).length + 8 + 4 + 1 + hashType.getSize();
+    }
+
     @Override
     public byte[] getBytes() throws UnsupportedEncodingException {
         if (this.packet != null)
             return this.packet;
 
         byte[] nameBytes = this.name.getBytes(Controller.ENCODING);
-        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + nameBytes.length + 8 + 1 + this.hashType.getSize())
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + nameBytes.length + 8 + 4 + 1 + this.hashType.getSize())
                 .put((byte) this.messageType.getValue())
                 .putInt(nameBytes.length)
                 .put(nameBytes)
                 .putLong(this.fileLength)
+                .putInt(this.pieceSize)
                 .put((byte) this.hashType.getValue())
                 .put(this.digest);
 
@@ -1,5 +1,6 @@
 package com.github.jmatss.send.packet;
 
+import com.github.jmatss.send.type.CompressionType;
 import com.github.jmatss.send.type.HashType;
 import com.github.jmatss.send.type.MessageType;
 
@@ -10,29 +11,84 @@ public class FilePiecePacket implements Packet {
     private final int index;
     private final byte[] data;
     private final HashType hashType;
+    // Precalculated digest of "data", calculated in getBytes() if null.
+    private final byte[] digest;
+    private final CompressionType compressionType;
+    // The content sent in the packet, "data" compressed with "compressionType".
+    private final byte[] content;
     private byte[] packet;
 
-    public FilePiecePacket(int index, byte[] data, HashType hashType) {
+    private FilePiecePacket(int index, byte[] data, HashType hashType, byte[] digest,
+                            CompressionType compressionType, byte[] content) {
         this.messageType = MessageType.FILE_PIECE;
         this.index = index;
         this.data = data;
         this.hashType = hashType;
+        this.digest = digest;
+        this.compressionType = compressionType;
+        this.content = content;
         this.packet = null;
     }
 
+    public FilePiecePacket(int index, byte[] data, HashType hashType, byte[] digest) {
+        this(index, data, hashType, digest, CompressionType.NONE, data);
+    }
+
+    public FilePiecePacket(int index, byte[] data, HashType hashType) {
+        this(index, data, hashType, null);
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the uncompressed piece data.
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    public CompressionType getCompressionType() {
+        return this.compressionType;
+    }
+
+    /**
+     * Creates a packet with the same piece compressed with "compressionType". The digest is calculated before the
+     * piece is compressed, so it is the digest of the uncompressed data.
+     *
+     * @param compressionType the compression to use.
+     * @return the compressed packet, or this packet if the piece doesn't compress well.
+     */
+    public FilePiecePacket compress(CompressionType compressionType) {
+        byte[] compressed = compressionType.compress(this.data);
+        if (compressed == null)
+            return this;
+
+        byte[] digest = this.digest;
+        if (digest == null && this.hashType != HashType.NONE)
+            digest = this.hashType.digest(this.data);
+        return new FilePiecePacket(this.index, this.data, this.hashType, digest, compressionType, compressed);
+    }
+
     @Override
     public byte[] getBytes() {
         if (this.packet != null)
             return this.packet;
 
-        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4 + this.data.length + 1 + this.hashType.getSize())
+        boolean compressed = this.compressionType != CompressionType.NONE;
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 1 + 4 + (compressed ? 4 : 0) + this.content.length + 1 +
+                this.hashType.getSize())
                 .put((byte) this.messageType.getValue())
                 .putInt(this.index)
-                .putInt(this.data.length)
-                .put(this.data)
+                .put((byte) this.compressionType.getValue())
+                .putInt(this.content.length);
+        if (compressed)
+            buf.putInt(this.data.length);
+        buf.put(this.content)
                 .put((byte) this.hashType.getValue());
         if (this.hashType != HashType.NONE)
-            buf.put(this.hashType.getMessageDigest().digest(this.data));
+            buf.put(this.digest != null ? this.digest : this.hashType.digest(this.data));
 
         this.packet = buf.array();
         return this.packet;
@@ -0,0 +1,119 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.FecType;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A part of a piece that is sent to a multicast group. A piece is split into fragments that fits in one datagram
+ * without IP fragmentation. Every fragment contains the digest of the whole piece, so the piece can be verified
+ * when all its fragments have been received regardless of the order that they arrived in.
+ * <p>
+ * With forward error correction the fragments are the data shards of a block and parity shards are sent after
+ * them. The shard index is the offset divided by MAX_DATA_SIZE, so the parity shard i of a piece with n data
+ * fragments has the offset (n + i) * MAX_DATA_SIZE.
+ */
+public class FragmentPacket implements Packet {
+    // The maximum amount of piece data in one fragment. Header, data and digest fits in an ethernet frame.
+    public static final int MAX_DATA_SIZE = 1400;
+
+    private final MessageType messageType;
+    private final int sessionId;
+    private final int fileIndex;
+    private final int pieceIndex;
+    private final FecType fecType;
+    private final int offset;
+    private final byte[] data;
+    private final HashType hashType;
+    private final byte[] digest;
+    private byte[] packet;
+
+    public FragmentPacket(int sessionId, int fileIndex, int pieceIndex, FecType fecType, int offset, byte[] data,
+                          HashType hashType, byte[] digest) {
+        if (data.length > MAX_DATA_SIZE)
+            throw new IllegalArgumentException("Fragment data larger than " + MAX_DATA_SIZE + " bytes: " +
+                    data.length);
+        this.messageType = MessageType.FRAGMENT;
+        this.sessionId = sessionId;
+        this.fileIndex = fileIndex;
+        this.pieceIndex = pieceIndex;
+        this.fecType = fecType;
+        this.offset = offset;
+        this.data = data;
+        this.hashType = hashType;
+        this.digest = digest;
+        this.packet = null;
+    }
+
+    public int getSessionId() {
+        return this.sessionId;
+    }
+
+    /**
+     * @return the index of the file in the order that the publisher sends FILE_INFO packets.
+     */
+    public int getFileIndex() {
+        return this.fileIndex;
+    }
+
+    public int getPieceIndex() {
+        return this.pieceIndex;
+    }
+
+    /**
+     * @return the forward error correction used for the fragments of the piece.
+     */
+    public FecType getFecType() {
+        return this.fecType;
+    }
+
+    /**
+     * @return the offset of the data in the piece, or of the parity shard in the block if it is a parity shard.
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+
+    public HashType getHashType() {
+        return this.hashType;
+    }
+
+    /**
+     * @return the digest of the whole piece.
+     */
+    public byte[] getDigest() {
+        return this.digest;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4 + 4 + 1 + 4 + 2 + this.data.length + 1 + this.digest.length)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.sessionId)
+                .putInt(this.fileIndex)
+                .putInt(this.pieceIndex)
+                .put((byte) this.fecType.getValue())
+                .putInt(this.offset)
+                .putShort((short) this.data.length)
+                .put(this.data)
+                .put((byte) this.hashType.getValue())
+                .put(this.digest);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.util.Bitmap;
+
+import java.nio.ByteBuffer;
+
+public class JoinPacket implements Packet {
+    private final MessageType messageType;
+    private final Bitmap wanted;
+    private byte[] packet;
+
+    /**
+     * @param wanted the pieces that the subscriber wants to receive over multicast.
+     */
+    public JoinPacket(Bitmap wanted) {
+        this.messageType = MessageType.JOIN;
+        this.wanted = wanted;
+        this.packet = null;
+    }
+
+    public Bitmap getWanted() {
+        return this.wanted;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        byte[] bitmap = this.wanted.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + bitmap.length)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.wanted.size())
+                .put(bitmap);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
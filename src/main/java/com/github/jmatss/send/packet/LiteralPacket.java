@@ -0,0 +1,40 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+public class LiteralPacket implements Packet {
+    private final MessageType messageType;
+    private final byte[] data;
+    private byte[] packet;
+
+    public LiteralPacket(byte[] data) {
+        this.messageType = MessageType.LITERAL;
+        this.data = data;
+        this.packet = null;
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + this.data.length)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.data.length)
+                .put(this.data);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
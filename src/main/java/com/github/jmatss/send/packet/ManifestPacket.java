@@ -0,0 +1,91 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.type.MessageType;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class ManifestPacket implements Packet {
+    // The maximum amount of files in a manifest.
+    public static final int MAX_COUNT = 1 << 20;
+    // The maximum length of the entries of a manifest before compression.
+    public static final int MAX_SIZE = 64 << 20;
+    // The length of the file count before the entries.
+    public static final int COUNT_LENGTH = 4;
+
+    private final MessageType messageType;
+    private final List<FileInfoPacket> files;
+    private final CompressionType compressionType;
+    private byte[] packet;
+
+    /**
+     * @param files           the FILE_INFO of every file of the topic in the order of the protocol.
+     * @param compressionType the compression to use, the entries are only compressed if they compress well.
+     */
+    public ManifestPacket(List<FileInfoPacket> files, CompressionType compressionType) {
+        this.messageType = MessageType.MANIFEST;
+        this.files = files;
+        this.compressionType = compressionType;
+        this.packet = null;
+    }
+
+    public List<FileInfoPacket> getFiles() {
+        return this.files;
+    }
+
+    /**
+     * The entry of a file has the same length whatever its digest is, so a publisher can check that the files of a
+     * topic fit in a manifest before it calculates their digests.
+     *
+     * @param name     the name of the file.
+     * @param hashType the HashType of the digest of the file.
+     * @return the length of the entry of the file before compression.
+     * @throws UnsupportedEncodingException if the name can't be encoded.
+     */
+    public static int getEntryLength(String name, HashType hashType) throws UnsupportedEncodingException {
+        return FileInfoPacket.getLength(name, hashType) - 1;
+    }
+
+    // The length of the file count and the entries before compression.
+    private long getEntriesLength() throws UnsupportedEncodingException {
+        long length = COUNT_LENGTH;
+        for (FileInfoPacket file : this.files)
+            length += file.getBytes().length - 1;
+        return length;
+    }
+
+    @Override
+    public byte[] getBytes() throws UnsupportedEncodingException {
+        if (this.packet != null)
+            return this.packet;
+
+        // Every entry is the body of the FILE_INFO of the file, i.e. the packet without its message type.
+        int length = (int) getEntriesLength();
+        ByteBuffer entries = ByteBuffer.allocate(length).putInt(this.files.size());
+        for (FileInfoPacket file : this.files)
+            entries.put(file.getBytes(), 1, file.getBytes().length - 1);
+
+        byte[] compressed = this.compressionType.compress(entries.array());
+        CompressionType compressionType = compressed != null ? this.compressionType : CompressionType.NONE;
+        byte[] content = compressed != null ? compressed : entries.array();
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 1 + 4 + (compressed != null ? 4 : 0) + content.length)
+                .put((byte) this.messageType.getValue())
+                .put((byte) compressionType.getValue())
+                .putInt(content.length);
+        if (compressed != null)
+            buf.putInt(length);
+        buf.put(content);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
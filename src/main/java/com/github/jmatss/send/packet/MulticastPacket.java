@@ -0,0 +1,60 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+public class MulticastPacket implements Packet {
+    private final MessageType messageType;
+    private final int sessionId;
+    private final InetAddress group;
+    private final int port;
+    private byte[] packet;
+
+    public MulticastPacket(int sessionId, InetAddress group, int port) {
+        this.messageType = MessageType.MULTICAST;
+        this.sessionId = sessionId;
+        this.group = group;
+        this.port = port;
+        this.packet = null;
+    }
+
+    /**
+     * @return the id that the publisher puts in every FRAGMENT, used to filter out datagrams from other publishers
+     * that are sent to the same group and port.
+     */
+    public int getSessionId() {
+        return this.sessionId;
+    }
+
+    public InetAddress getGroup() {
+        return this.group;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        byte[] address = this.group.getAddress();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 1 + address.length + 4)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.sessionId)
+                .put((byte) address.length)
+                .put(address)
+                .putInt(this.port);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+public class RangePacket implements Packet {
+    private final MessageType messageType;
+    private final int start;
+    private final int count;
+    private byte[] packet;
+
+    public RangePacket(int start, int count) {
+        this.messageType = MessageType.RANGE;
+        this.start = start;
+        this.count = count;
+        this.packet = null;
+    }
+
+    public int getStart() {
+        return this.start;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the index after the last piece in the range.
+     */
+    public int getEnd() {
+        return this.start + this.count;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.start)
+                .putInt(this.count);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
@@ -1,39 +1,84 @@
 package com.github.jmatss.send.packet;
 
 import com.github.jmatss.send.Controller;
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.CompressionType;
 import com.github.jmatss.send.type.MessageType;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 
 public class RequestPacket implements Packet {
+    // Set if the subscriber wants a MANIFEST of all files instead of one FILE_INFO round trip per file.
+    public static final int FLAG_MANIFEST = 1;
+
     private final MessageType messageType;
     private final String topic;
     private final byte[] id;
+    // Bitmask of the compression types that the subscriber can decompress, see CompressionType.
+    private final int compressionTypes;
+    // The largest piece size that the subscriber accepts, see PieceSize.
+    private final int maxPieceSize;
+    // Bitmask of the FLAG_* constants.
+    private final int flags;
     private byte[] packet;
 
-    public RequestPacket(String topic, byte[] id) {
+    public RequestPacket(String topic, byte[] id, int compressionTypes, int maxPieceSize, int flags) {
         this.messageType = MessageType.REQUEST;
         this.topic = topic;
         this.id = id;
+        this.compressionTypes = compressionTypes;
+        this.maxPieceSize = maxPieceSize;
+        this.flags = flags;
         this.packet = null;
     }
 
+    public RequestPacket(String topic, byte[] id, int compressionTypes, int maxPieceSize) {
+        this(topic, id, compressionTypes, maxPieceSize, 0);
+    }
+
+    public RequestPacket(String topic, byte[] id, int compressionTypes) {
+        this(topic, id, compressionTypes, Protocol.DEFAULT_PIECE_SIZE);
+    }
+
+    public RequestPacket(String topic, byte[] id) {
+        this(topic, id, CompressionType.supportedMask());
+    }
+
     public String getTopic() {
         return this.topic;
     }
 
+    public int getCompressionTypes() {
+        return this.compressionTypes;
+    }
+
+    public int getMaxPieceSize() {
+        return this.maxPieceSize;
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (this.flags & flag) != 0;
+    }
+
     @Override
     public byte[] getBytes() throws UnsupportedEncodingException {
         if (this.packet != null)
             return this.packet;
 
         byte[] topicBytes = this.topic.getBytes(Controller.ENCODING);
-        ByteBuffer buf = ByteBuffer.allocate(1 + 1 + topicBytes.length + 4)
+        ByteBuffer buf = ByteBuffer.allocate(1 + 1 + topicBytes.length + 4 + 1 + 4 + 1)
                 .put((byte) this.messageType.getValue())
                 .put((byte) topicBytes.length)
                 .put(topicBytes)
-                .put(this.id);
+                .put(this.id)
+                .put((byte) this.compressionTypes)
+                .putInt(this.maxPieceSize)
+                .put((byte) this.flags);
 
         this.packet = buf.array();
         return this.packet;
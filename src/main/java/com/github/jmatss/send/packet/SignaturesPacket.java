@@ -0,0 +1,44 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.protocol.BlockSignatures;
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+public class SignaturesPacket implements Packet {
+    private final MessageType messageType;
+    private final BlockSignatures signatures;
+    private byte[] packet;
+
+    public SignaturesPacket(BlockSignatures signatures) {
+        this.messageType = MessageType.SIGNATURES;
+        this.signatures = signatures;
+        this.packet = null;
+    }
+
+    public BlockSignatures getSignatures() {
+        return this.signatures;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        int count = this.signatures.getCount();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4 + count * (4 + 8))
+                .put((byte) this.messageType.getValue())
+                .putInt(this.signatures.getBlockSize())
+                .putInt(count);
+        for (int i = 0; i < count; i++)
+            buf.putInt(this.signatures.getWeak(i)).putLong(this.signatures.getStrong(i));
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Requests "count" pieces starting at "start" with "stride" pieces between every piece, i.e. the pieces
+ * start, start + stride, start + 2 * stride, ...
+ */
+public class StripePacket implements Packet {
+    private final MessageType messageType;
+    private final int start;
+    private final int count;
+    private final int stride;
+    private byte[] packet;
+
+    public StripePacket(int start, int count, int stride) {
+        this.messageType = MessageType.STRIPE;
+        this.start = start;
+        this.count = count;
+        this.stride = stride;
+        this.packet = null;
+    }
+
+    /**
+     * Creates the request for one stripe of the range [start, end).
+     *
+     * @param start       the index of the first piece in the range.
+     * @param end         the index after the last piece in the range.
+     * @param stripe      the index of the stripe.
+     * @param stripeCount the amount of stripes that the range is split into.
+     * @return the request, or null if the stripe doesn't contain any pieces of the range.
+     */
+    public static StripePacket of(int start, int end, int stripe, int stripeCount) {
+        int first = start + stripe;
+        if (first >= end)
+            return null;
+        return new StripePacket(first, (end - first + stripeCount - 1) / stripeCount, stripeCount);
+    }
+
+    public int getStart() {
+        return this.start;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    public int getStride() {
+        return this.stride;
+    }
+
+    /**
+     * @param i the position of a piece in this stripe.
+     * @return the index of the i:th piece of this stripe.
+     */
+    public int getIndex(int i) {
+        return this.start + i * this.stride;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4 + 4)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.start)
+                .putInt(this.count)
+                .putInt(this.stride);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
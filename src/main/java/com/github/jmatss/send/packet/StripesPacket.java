@@ -0,0 +1,38 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+
+public class StripesPacket implements Packet {
+    // The largest amount of stripes that can be proposed, the count is sent as one unsigned byte.
+    public static final int MAX_COUNT = 255;
+
+    private final MessageType messageType;
+    private final int count;
+    private byte[] packet;
+
+    public StripesPacket(int count) {
+        if (count < 1 || count > MAX_COUNT)
+            throw new IllegalArgumentException("Incorrect stripe count: " + count);
+        this.messageType = MessageType.STRIPES;
+        this.count = count;
+        this.packet = null;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        this.packet = new byte[]{(byte) this.messageType.getValue(), (byte) this.count};
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
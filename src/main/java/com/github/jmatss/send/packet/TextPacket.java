@@ -1,6 +1,7 @@
 package com.github.jmatss.send.packet;
 
 import com.github.jmatss.send.Controller;
+import com.github.jmatss.send.type.CompressionType;
 import com.github.jmatss.send.type.MessageType;
 
 import java.io.UnsupportedEncodingException;
@@ -10,26 +11,48 @@ public class TextPacket implements Packet {
     private final MessageType messageType;
     private final int index;
     private final String text;
+    private final CompressionType compressionType;
     private byte[] packet;
 
-    public TextPacket(int index, String text) {
+    public TextPacket(int index, String text, CompressionType compressionType) {
         this.messageType = MessageType.TEXT;
         this.index = index;
         this.text = text;
+        this.compressionType = compressionType;
         this.packet = null;
     }
 
+    public TextPacket(int index, String text) {
+        this(index, text, CompressionType.NONE);
+    }
+
+    /**
+     * @param compressionType the compression to use.
+     * @return a packet with the same text compressed with "compressionType". The text is only compressed when the
+     * packet is created if it compresses well.
+     */
+    public TextPacket compress(CompressionType compressionType) {
+        return new TextPacket(this.index, this.text, compressionType);
+    }
+
     @Override
     public byte[] getBytes() throws UnsupportedEncodingException {
         if (this.packet != null)
             return this.packet;
 
         byte[] textBytes = text.getBytes(Controller.ENCODING);
-        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4 + textBytes.length)
+        byte[] compressed = this.compressionType.compress(textBytes);
+        CompressionType compressionType = compressed != null ? this.compressionType : CompressionType.NONE;
+        byte[] content = compressed != null ? compressed : textBytes;
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 1 + 4 + (compressed != null ? 4 : 0) + content.length)
                 .put((byte) this.messageType.getValue())
                 .putInt(this.index)
-                .putInt(textBytes.length)
-                .put(textBytes);
+                .put((byte) compressionType.getValue())
+                .putInt(content.length);
+        if (compressed != null)
+            buf.putInt(textBytes.length);
+        buf.put(content);
 
         this.packet = buf.array();
         return this.packet;
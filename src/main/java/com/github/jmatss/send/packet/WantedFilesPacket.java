@@ -0,0 +1,61 @@
+package com.github.jmatss.send.packet;
+
+import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.util.Bitmap;
+
+import java.nio.ByteBuffer;
+
+public class WantedFilesPacket implements Packet {
+    private final MessageType messageType;
+    private final Bitmap stream;
+    private final Bitmap exchange;
+    private byte[] packet;
+
+    /**
+     * A file can be set in at most one of the bitmaps, files set in neither are skipped.
+     *
+     * @param stream   the files of the manifest that the publisher sends back to back, every file as all of its
+     *                 pieces followed by a DONE, without waiting for any reply.
+     * @param exchange the files of the manifest whose FILE_INFO the publisher sends after the streamed files and
+     *                 whose replies are handled like without a manifest.
+     */
+    public WantedFilesPacket(Bitmap stream, Bitmap exchange) {
+        if (stream.size() != exchange.size())
+            throw new IllegalArgumentException("The bitmaps have different sizes: " + stream.size() + " and " +
+                    exchange.size());
+        this.messageType = MessageType.WANTED_FILES;
+        this.stream = stream;
+        this.exchange = exchange;
+        this.packet = null;
+    }
+
+    public Bitmap getStream() {
+        return this.stream;
+    }
+
+    public Bitmap getExchange() {
+        return this.exchange;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.packet != null)
+            return this.packet;
+
+        byte[] stream = this.stream.toByteArray();
+        byte[] exchange = this.exchange.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + stream.length + exchange.length)
+                .put((byte) this.messageType.getValue())
+                .putInt(this.stream.size())
+                .put(stream)
+                .put(exchange);
+
+        this.packet = buf.array();
+        return this.packet;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return this.messageType;
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * The signatures of the blocks of an old version of a file, used for rsync style delta transfers. Every full
+ * block has a weak rolling checksum that the publisher can slide over its version of the file one byte at a time
+ * and a strong XXH64 digest that confirms a match of the weak checksum. A last block shorter than the block size
+ * has no signature and is always sent as literal data.
+ */
+public class BlockSignatures {
+    public static final int MIN_BLOCK_SIZE = 1 << 11;
+    public static final int MAX_BLOCK_SIZE = 1 << 16;
+    // The largest amount of blocks that a subscriber is allowed to send signatures for.
+    public static final int MAX_COUNT = 1 << 24;
+    // The modulus of the two halves of the weak checksum.
+    private static final int MOD_MASK = 0xffff;
+
+    private final int blockSize;
+    private final int[] weak;
+    private final long[] strong;
+
+    public BlockSignatures(int blockSize, int[] weak, long[] strong) {
+        if (weak.length != strong.length)
+            throw new IllegalArgumentException("Different amount of weak and strong signatures");
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Calculates the signatures of all full blocks of a file.
+     *
+     * @param channel   the channel of the old version of the file.
+     * @param blockSize the size of the blocks.
+     * @return the signatures of the file.
+     * @throws IOException if it is unable to read the file.
+     */
+    public static BlockSignatures calculate(FileChannel channel, int blockSize) throws IOException {
+        long count = channel.size() / blockSize;
+        if (count > MAX_COUNT)
+            throw new IOException("File too large for delta transfer with block size " + blockSize);
+
+        int[] weak = new int[(int) count];
+        long[] strong = new long[(int) count];
+        ByteBuffer buf = ByteBuffer.allocate(blockSize);
+        for (int i = 0; i < count; i++) {
+            buf.clear();
+            long position = (long) i * blockSize;
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) == -1)
+                    throw new EOFException("End of file reached while reading block " + i);
+            }
+            weak[i] = weak(buf.array(), 0, blockSize);
+            strong[i] = strong(buf.array(), 0, blockSize);
+        }
+        return new BlockSignatures(blockSize, weak, strong);
+    }
+
+    /**
+     * Chooses a block size close to the square root of the file length, which balances the size of the
+     * signatures against the amount of literal data sent around every changed byte.
+     *
+     * @param fileLength the length of the old version of the file.
+     * @return the block size to use.
+     */
+    public static int blockSize(long fileLength) {
+        long size = Long.highestOneBit(Math.max((long) Math.sqrt(fileLength), 1));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * The weak checksum of rsync: a is the sum of the bytes and b the sum of the prefix sums, both modulo 2^16.
+     *
+     * @param data   the data.
+     * @param offset the start of the block.
+     * @param length the length of the block.
+     * @return the weak checksum of the block, b in the high and a in the low 16 bits.
+     */
+    public static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return ((b & MOD_MASK) << 16) | (a & MOD_MASK);
+    }
+
+    /**
+     * Moves the block of a weak checksum one byte forward.
+     *
+     * @param weak      the weak checksum of the current block.
+     * @param blockSize the size of the block.
+     * @param out       the first byte of the current block.
+     * @param in        the byte after the current block.
+     * @return the weak checksum of the next block.
+     */
+    public static int roll(int weak, int blockSize, byte out, byte in) {
+        int a = ((weak & MOD_MASK) - (out & 0xff) + (in & 0xff)) & MOD_MASK;
+        int b = ((weak >>> 16) - blockSize * (out & 0xff) + a) & MOD_MASK;
+        return (b << 16) | a;
+    }
+
+    public static long strong(byte[] data, int offset, int length) {
+        MessageDigest md = HashType.XXH64.getPooledMessageDigest();
+        md.update(data, offset, length);
+        return ByteBuffer.wrap(md.digest()).getLong();
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    public int getCount() {
+        return this.weak.length;
+    }
+
+    public int getWeak(int index) {
+        return this.weak[index];
+    }
+
+    public long getStrong(int index) {
+        return this.strong[index];
+    }
+}
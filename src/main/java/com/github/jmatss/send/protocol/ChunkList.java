@@ -0,0 +1,144 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The content-defined chunks of a file, see FastCdc. Every chunk is identified by the SHA-256 digest of its content,
+ * so a chunk that already exists in any file on the subscriber doesn't have to be sent again. The list is
+ * calculated once per file and then shared by every transfer until the file is modified, like the PieceManifest.
+ */
+public class ChunkList {
+    public static final HashType HASH_TYPE = HashType.SHA256;
+    // The largest amount of chunks that a file is allowed to be split into.
+    public static final int MAX_COUNT = 1 << 24;
+    private static final int READ_SIZE = 1 << 20;
+
+    private final int[] lengths;
+    // The digests of all chunks stored in one array indexed by chunk number.
+    private final byte[] digests;
+    private final long[] offsets;
+    private final long fileLength;
+    private final long modified;
+
+    private ChunkList(int[] lengths, byte[] digests, long fileLength, long modified) {
+        this.lengths = lengths;
+        this.digests = digests;
+        this.offsets = new long[lengths.length];
+        for (int i = 1; i < lengths.length; i++)
+            this.offsets[i] = this.offsets[i - 1] + lengths[i - 1];
+        this.fileLength = fileLength;
+        this.modified = modified;
+    }
+
+    /**
+     * @param lengths the lengths of the chunks.
+     * @param digests the digests of the chunks stored one after the other.
+     */
+    public ChunkList(int[] lengths, byte[] digests) {
+        this(lengths, digests, -1, -1);
+        if (digests.length != lengths.length * HASH_TYPE.getSize())
+            throw new IllegalArgumentException("Incorrect amount of chunk digests");
+    }
+
+    /**
+     * Splits the file into chunks and calculates the digest of every chunk.
+     *
+     * @param pfile the file to calculate the chunks of.
+     * @return the chunk list.
+     * @throws IOException if it is unable to read the file.
+     */
+    static ChunkList calculate(PFile pfile) throws IOException {
+        long fileLength = pfile.getFileLength();
+        long modified = pfile.getLastModified();
+        int[] lengths = new int[(int) Math.min(fileLength / FastCdc.AVG_SIZE + 1, MAX_COUNT)];
+        byte[] digests = new byte[lengths.length * HASH_TYPE.getSize()];
+        int count = 0;
+
+        byte[] buf = new byte[READ_SIZE + FastCdc.MAX_SIZE];
+        MessageDigest md = HASH_TYPE.getPooledMessageDigest();
+        try (FileChannel channel = pfile.openChannel()) {
+            long position = 0;
+            int start = 0;
+            int limit = 0;
+            boolean eof = false;
+            while (true) {
+                // A whole chunk of the maximum size must be in the buffer unless the end of the file is reached.
+                if (limit - start < FastCdc.MAX_SIZE && !eof) {
+                    System.arraycopy(buf, start, buf, 0, limit - start);
+                    limit -= start;
+                    start = 0;
+                    int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit), position);
+                    if (n == -1)
+                        eof = true;
+                    else
+                        position += n;
+                    limit += Math.max(n, 0);
+                    continue;
+                }
+                if (start == limit)
+                    break;
+
+                int length = FastCdc.nextChunk(buf, start, limit - start);
+                if (count == lengths.length) {
+                    if (count == MAX_COUNT)
+                        throw new IOException("File " + pfile.getName() + " has more than " + MAX_COUNT + " chunks");
+                    lengths = Arrays.copyOf(lengths, (int) Math.min(count * 2L, MAX_COUNT));
+                    digests = Arrays.copyOf(digests, lengths.length * HASH_TYPE.getSize());
+                }
+                md.update(buf, start, length);
+                System.arraycopy(md.digest(), 0, digests, count * HASH_TYPE.getSize(), HASH_TYPE.getSize());
+                lengths[count++] = length;
+                start += length;
+            }
+        }
+
+        return new ChunkList(Arrays.copyOf(lengths, count),
+                Arrays.copyOf(digests, count * HASH_TYPE.getSize()), fileLength, modified);
+    }
+
+    public int getCount() {
+        return this.lengths.length;
+    }
+
+    public int getLength(int index) {
+        return this.lengths[index];
+    }
+
+    /**
+     * @param index the index of the chunk.
+     * @return the position of the chunk in the file.
+     */
+    public long getOffset(int index) {
+        return this.offsets[index];
+    }
+
+    /**
+     * @return the sum of the lengths of all chunks.
+     */
+    public long getTotalLength() {
+        int last = this.lengths.length - 1;
+        return last < 0 ? 0 : this.offsets[last] + this.lengths[last];
+    }
+
+    /**
+     * @param index the index of the chunk.
+     * @return a copy of the digest of the chunk.
+     */
+    public byte[] getDigest(int index) {
+        int size = HASH_TYPE.getSize();
+        return Arrays.copyOfRange(this.digests, index * size, (index + 1) * size);
+    }
+
+    /**
+     * @return true if the list was calculated for a file with the given length and modification time.
+     */
+    boolean isValid(long fileLength, long modified) {
+        return this.fileLength == fileLength && this.modified == modified;
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.jmatss.send.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes a file as a delta against the block signatures of an old version of the file, the way rsync does. A
+ * window of one block is slid over the file one byte at a time and the weak checksum of the window is rolled
+ * along. When the weak and strong checksums of the window match a block of the old version, the block is
+ * referenced instead of sent and the window jumps a whole block. Bytes that doesn't match any block are sent as
+ * literal data.
+ */
+public class DeltaEncoder {
+    // The maximum size of one literal, larger runs of unmatched bytes are split.
+    public static final int MAX_LITERAL_SIZE = Protocol.DEFAULT_PIECE_SIZE;
+    private static final int READ_SIZE = 1 << 20;
+
+    /**
+     * Receives the delta in the order that it should be applied.
+     */
+    public interface Output {
+        /**
+         * @param block the index of the first block of the old version to copy.
+         * @param count the amount of consecutive blocks to copy.
+         * @throws IOException if it is unable to send the reference.
+         */
+        void copy(int block, int count) throws IOException;
+
+        /**
+         * @param data bytes that doesn't exist in the old version.
+         * @throws IOException if it is unable to send the literal.
+         */
+        void literal(byte[] data) throws IOException;
+    }
+
+    private final BlockSignatures signatures;
+    // Maps a weak checksum to the first block of the chain of blocks with that checksum, the chain is linked through
+    // "next" and ends with -1. Blocks that are identical to an earlier block (the same weak and strong checksum)
+    // aren't in the chains, so a file of many identical blocks (ex. zero pages) has short chains.
+    private final Map<Integer, Integer> chains;
+    private final int[] next;
+    private Output output;
+    private int copyStart;
+    private int copyCount;
+    private long copiedBytes;
+    private long literalBytes;
+
+    public DeltaEncoder(BlockSignatures signatures) {
+        this.signatures = signatures;
+        this.chains = new HashMap<>();
+        this.next = new int[signatures.getCount()];
+        for (int i = 0; i < signatures.getCount(); i++) {
+            this.next[i] = -1;
+            Integer head = this.chains.putIfAbsent(signatures.getWeak(i), i);
+            if (head == null)
+                continue;
+
+            long strong = signatures.getStrong(i);
+            int block = head;
+            while (signatures.getStrong(block) != strong && this.next[block] != -1)
+                block = this.next[block];
+            if (signatures.getStrong(block) != strong)
+                this.next[block] = i;
+        }
+    }
+
+    /**
+     * Encodes the file read from "channel" and sends the delta to "output".
+     *
+     * @param channel the channel of the new version of the file.
+     * @param output  the receiver of the delta.
+     * @throws IOException if it is unable to read the file or if the output fails.
+     */
+    public void encode(FileChannel channel, Output output) throws IOException {
+        this.output = output;
+        this.copyStart = -1;
+        this.copyCount = 0;
+
+        int blockSize = this.signatures.getBlockSize();
+        byte[] buf = new byte[READ_SIZE + blockSize];
+        long filePosition = 0;
+        boolean eof = this.signatures.getCount() == 0;
+        int literalStart = 0;
+        int pos = 0;
+        int limit = 0;
+        int weak = 0;
+        boolean rolled = false;
+
+        while (true) {
+            // The window and the byte after it must be in the buffer to roll the checksum.
+            if (pos + blockSize >= limit && !eof) {
+                flushLiteral(buf, literalStart, pos);
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+                literalStart = 0;
+
+                int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit), filePosition);
+                if (n == -1)
+                    eof = true;
+                else
+                    filePosition += n;
+                limit += Math.max(n, 0);
+                continue;
+            }
+            if (pos + blockSize > limit)
+                break;
+
+            if (!rolled)
+                weak = BlockSignatures.weak(buf, pos, blockSize);
+            int block = find(weak, buf, pos);
+            if (block != -1) {
+                flushLiteral(buf, literalStart, pos);
+                addCopy(block);
+                pos += blockSize;
+                literalStart = pos;
+                rolled = false;
+                continue;
+            }
+
+            if (pos + blockSize == limit)
+                break;
+            weak = BlockSignatures.roll(weak, blockSize, buf[pos], buf[pos + blockSize]);
+            rolled = true;
+            pos++;
+            if (pos - literalStart >= MAX_LITERAL_SIZE) {
+                flushLiteral(buf, literalStart, pos);
+                literalStart = pos;
+            }
+        }
+
+        // The rest of the file is shorter than a block or the old version has no blocks.
+        if (eof && this.signatures.getCount() == 0) {
+            int n;
+            while ((n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit), filePosition)) > 0) {
+                filePosition += n;
+                limit += n;
+                if (limit == buf.length) {
+                    flushLiteral(buf, literalStart, limit);
+                    literalStart = limit = 0;
+                }
+            }
+        }
+        flushLiteral(buf, literalStart, limit);
+        flushCopy();
+    }
+
+    // Returns the block that matches the window at "pos", preferring the block that continues the current copy.
+    private int find(int weak, byte[] buf, int pos) {
+        Integer head = this.chains.get(weak);
+        if (head == null)
+            return -1;
+
+        long strong = BlockSignatures.strong(buf, pos, this.signatures.getBlockSize());
+        // The block that continues the copy might be identical to an earlier block and not be in the chain.
+        int following = this.copyStart + this.copyCount;
+        if (this.copyStart != -1 && following < this.signatures.getCount() &&
+                this.signatures.getWeak(following) == weak && this.signatures.getStrong(following) == strong)
+            return following;
+        for (int block = head; block != -1; block = this.next[block]) {
+            if (this.signatures.getStrong(block) == strong)
+                return block;
+        }
+        return -1;
+    }
+
+    private void addCopy(int block) throws IOException {
+        if (this.copyStart != -1 && block == this.copyStart + this.copyCount) {
+            this.copyCount++;
+        } else {
+            flushCopy();
+            this.copyStart = block;
+            this.copyCount = 1;
+        }
+        this.copiedBytes += this.signatures.getBlockSize();
+    }
+
+    private void flushCopy() throws IOException {
+        if (this.copyStart == -1)
+            return;
+        this.output.copy(this.copyStart, this.copyCount);
+        this.copyStart = -1;
+        this.copyCount = 0;
+    }
+
+    private void flushLiteral(byte[] buf, int start, int end) throws IOException {
+        if (start >= end)
+            return;
+        flushCopy();
+        for (int i = start; i < end; i += MAX_LITERAL_SIZE) {
+            int length = Math.min(MAX_LITERAL_SIZE, end - i);
+            this.output.literal(Arrays.copyOfRange(buf, i, i + length));
+            this.literalBytes += length;
+        }
+    }
+
+    /**
+     * @return the amount of bytes sent as references to blocks of the old version.
+     */
+    public long getCopiedBytes() {
+        return this.copiedBytes;
+    }
+
+    /**
+     * @return the amount of bytes sent as literal data.
+     */
+    public long getLiteralBytes() {
+        return this.literalBytes;
+    }
+}
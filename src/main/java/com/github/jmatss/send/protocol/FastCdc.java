@@ -0,0 +1,60 @@
+package com.github.jmatss.send.protocol;
+
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunking with the FastCDC algorithm. A gear hash is rolled over the data and a chunk ends where
+ * the hash has a run of zero bits, so the boundaries only depend on the bytes close to them. An inserted or removed
+ * byte only changes the chunk it is in, every other chunk keeps its content and digest. Boundaries before the
+ * average size must match more bits than boundaries after it, which keeps the chunk sizes close to the average.
+ */
+public class FastCdc {
+    public static final int MIN_SIZE = 1 << 12;
+    public static final int AVG_SIZE = 1 << 14;
+    // The largest chunk can be sent in one packet.
+    public static final int MAX_SIZE = Protocol.DEFAULT_PIECE_SIZE;
+    // The gear hash shifts one bit per byte, so the high bits depend on the last 64 bytes.
+    private static final long MASK_SMALL = -1L << (64 - 16);
+    private static final long MASK_LARGE = -1L << (64 - 12);
+    // Random values for every byte. The seed is fixed so that every host finds the same boundaries.
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x53454e44L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private FastCdc() {
+    }
+
+    /**
+     * Finds the end of the chunk that starts at "offset".
+     *
+     * @param data   the data.
+     * @param offset the start of the chunk.
+     * @param length the amount of bytes available from "offset". Must be at least MAX_SIZE unless the end of the
+     *               data is reached.
+     * @return the length of the chunk, at most "length".
+     */
+    public static int nextChunk(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE)
+            return length;
+
+        int end = Math.min(length, MAX_SIZE);
+        int normal = Math.min(end, AVG_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0)
+                return i + 1;
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0)
+                return i + 1;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,427 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.Controller;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The names, paths and lengths of the files of a published topic, stored compactly so that a tree of millions of
+ * files doesn't need a String and a PFile per file. The names and paths are front coded: every entry only stores
+ * the bytes after the prefix it shares with the previous entry, with a full entry every RESTART_INTERVAL entries.
+ * <p>
+ * The list is append only and can be read while it is filled, ex. by a walk of a directory. Readers wait with
+ * await() for the files that hasn't been found yet.
+ */
+public class FileList {
+    private static final Logger LOGGER = Logger.getLogger(FileList.class.getName());
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final FrontCodedStrings names;
+    private final FrontCodedStrings paths;
+    private long[] lengths;
+    private long totalLength;
+    private int size;
+    private boolean complete;
+
+    public FileList() {
+        this.names = new FrontCodedStrings();
+        this.paths = new FrontCodedStrings();
+        this.lengths = new long[INITIAL_CAPACITY];
+        this.totalLength = 0;
+        this.size = 0;
+        this.complete = false;
+    }
+
+    /**
+     * Creates a complete list of the given files.
+     *
+     * @param names the names of the files that are sent to the subscribers.
+     * @param paths the paths of the files on this host.
+     * @return the list.
+     * @throws FileNotFoundException if a file doesn't exist.
+     */
+    public static FileList of(List<String> names, List<String> paths) throws FileNotFoundException {
+        if (names.size() != paths.size())
+            throw new IllegalArgumentException("Length of paths and names differ");
+
+        FileList fileList = new FileList();
+        for (int i = 0; i < paths.size(); i++) {
+            File file = new File(paths.get(i));
+            if (!file.exists())
+                throw new FileNotFoundException("Unable to find file " + paths.get(i));
+            fileList.add(names.get(i), paths.get(i), file.length());
+        }
+        fileList.complete();
+        return fileList;
+    }
+
+    /**
+     * Walks the file or directory at "path" in parallel on the given pool and returns immediately. The files are
+     * added in the order of a sequential depth-first walk with the entries of every directory sorted by name, so
+     * every walk of the same tree lists its files in the same order. The files of a directory are added as soon as
+     * it and every directory before it has been listed, and the list is completed when the walk is done. The names
+     * of the files are relative to the parent of "path". Directories and files that can't be read are skipped.
+     *
+     * @param path the file or directory to walk.
+     * @param pool the pool to walk the directories on.
+     * @return the list that is filled by the walk.
+     */
+    public static FileList walk(Path path, ForkJoinPool pool) {
+        FileList fileList = new FileList();
+        WalkOrder order = new WalkOrder(fileList, path.toAbsolutePath().getParent());
+        Walk root = new Walk(order, path.toAbsolutePath(), true);
+        order.walks.push(root);
+        pool.execute(root);
+        return fileList;
+    }
+
+    // A file that has been found by a walk but might not have been added to the list yet.
+    private static class WalkedFile {
+        private final String name;
+        private final String path;
+        private final long length;
+
+        WalkedFile(String name, String path, long length) {
+            this.name = name;
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    // Adds the files of the listed directories to the list in the order of a sequential walk. The walks of the
+    // directories that are being added are kept in a stack, the top is the directory that is added next.
+    private static class WalkOrder {
+        private final FileList fileList;
+        private final Path basePath;
+        private final Deque<Walk> walks;
+
+        WalkOrder(FileList fileList, Path basePath) {
+            this.fileList = fileList;
+            this.basePath = basePath;
+            this.walks = new ArrayDeque<>();
+        }
+
+        // Sets the entries of a listed directory and adds every file that can be added in order.
+        synchronized void listed(Walk walk, List<Object> entries) {
+            walk.entries = entries;
+            while (!this.walks.isEmpty()) {
+                Walk current = this.walks.peek();
+                if (current.entries == null)
+                    return;
+                if (current.next == current.entries.size()) {
+                    this.walks.pop();
+                    continue;
+                }
+
+                // The added entries are cleared so that the files aren't kept twice.
+                Object entry = current.entries.set(current.next++, null);
+                if (entry instanceof Walk) {
+                    this.walks.push((Walk) entry);
+                } else {
+                    WalkedFile file = (WalkedFile) entry;
+                    this.fileList.add(file.name, file.path, file.length);
+                }
+            }
+        }
+    }
+
+    // Lists one directory, sorted by name, and walks its subdirectories in parallel.
+    private static class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final WalkOrder order;
+        private final Path path;
+        private final boolean root;
+        // The files (WalkedFile) and subdirectories (Walk) of the directory, null until it has been listed. Guarded
+        // by the lock of the WalkOrder.
+        private List<Object> entries;
+        // The index of the next entry to add to the list.
+        private int next;
+
+        Walk(WalkOrder order, Path path, boolean root) {
+            this.order = order;
+            this.path = path;
+            this.root = root;
+            this.entries = null;
+            this.next = 0;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                walk();
+            } finally {
+                if (this.root) {
+                    this.order.fileList.complete();
+                    LOGGER.log(Level.FINE, "Found " + this.order.fileList.size() + " file(s), " +
+                            this.order.fileList.getTotalLength() + " bytes, in " + this.path);
+                }
+            }
+        }
+
+        private void walk() {
+            List<Object> entries = new ArrayList<>();
+            List<Walk> directories = new ArrayList<>();
+            try {
+                // Symbolic links are followed like File.isFile() and File.isDirectory() does.
+                BasicFileAttributes attributes = Files.readAttributes(this.path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    entries.add(new WalkedFile(this.order.basePath.relativize(this.path).toString(),
+                            this.path.toString(), attributes.size()));
+                    return;
+                } else if (!attributes.isDirectory()) {
+                    return;
+                }
+
+                List<Path> children = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.path)) {
+                    for (Path child : stream)
+                        children.add(child);
+                }
+                children.sort(Comparator.comparing(child -> child.getFileName().toString()));
+
+                for (Path child : children) {
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // Ex. a broken symbolic link.
+                        LOGGER.log(Level.FINE, "Skipping " + child + ": " + e.getMessage());
+                        continue;
+                    }
+                    if (attributes.isRegularFile()) {
+                        entries.add(new WalkedFile(this.order.basePath.relativize(child).toString(),
+                                child.toString(), attributes.size()));
+                    } else if (attributes.isDirectory()) {
+                        Walk directory = new Walk(this.order, child, false);
+                        entries.add(directory);
+                        directories.add(directory);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to walk " + this.path + ": " + e.getMessage());
+            } finally {
+                // Also set when the listing fails, the walks after this directory would wait for it otherwise.
+                this.order.listed(this, entries);
+            }
+
+            invokeAll(directories);
+        }
+    }
+
+    /**
+     * @param name   the name of the file that is sent to the subscribers.
+     * @param path   the path of the file on this host.
+     * @param length the length of the file in bytes.
+     */
+    public synchronized void add(String name, String path, long length) {
+        if (this.complete)
+            throw new IllegalStateException("Not allowed to add files to a complete list");
+
+        this.names.add(encode(name));
+        this.paths.add(encode(path));
+        if (this.size == this.lengths.length)
+            this.lengths = Arrays.copyOf(this.lengths, FrontCodedStrings.grow(this.lengths.length, this.size + 1));
+        this.lengths[this.size++] = length;
+        this.totalLength += length;
+        notifyAll();
+    }
+
+    /**
+     * Marks the list as complete, no more files are added to it.
+     */
+    public synchronized void complete() {
+        this.complete = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * Waits until the file at "index" has been added or the list is complete.
+     *
+     * @param index the index of the file.
+     * @return true if the list contains a file at "index", false if the list is complete and is shorter.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public synchronized boolean await(int index) throws InterruptedIOException {
+        try {
+            while (index >= this.size && !this.complete)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file " + index);
+        }
+        return index < this.size;
+    }
+
+    /**
+     * Waits until the list is complete.
+     *
+     * @return the amount of files in the list.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public synchronized int awaitComplete() throws InterruptedIOException {
+        await(Integer.MAX_VALUE);
+        return this.size;
+    }
+
+    /**
+     * @return the amount of files added so far.
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the sum of the lengths of the files added so far.
+     */
+    public synchronized long getTotalLength() {
+        return this.totalLength;
+    }
+
+    public synchronized String getName(int index) {
+        checkIndex(index);
+        return decode(this.names.get(index));
+    }
+
+    public synchronized String getPath(int index) {
+        checkIndex(index);
+        return decode(this.paths.get(index));
+    }
+
+    /**
+     * @param index the index of the file.
+     * @return the length of the file when it was added.
+     */
+    public synchronized long getLength(int index) {
+        checkIndex(index);
+        return this.lengths[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + this.size);
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes(Controller.ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // Should never happen since the ENCODING is a hardcoded correct encoding.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, Controller.ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // Should never happen since the ENCODING is a hardcoded correct encoding.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Front coded byte strings. Entry i is stored as the length of the prefix it shares with entry i - 1 and the
+     * bytes after the prefix. Every RESTART_INTERVAL:th entry is stored in full, so an entry is decoded from at most
+     * RESTART_INTERVAL entries. Not thread safe.
+     */
+    static class FrontCodedStrings {
+        static final int RESTART_INTERVAL = 16;
+
+        private byte[] bytes;
+        private int byteCount;
+        // The offset of the bytes of entry i in "bytes", the entry ends at the offset of entry i + 1.
+        private int[] offsets;
+        private int[] prefixLengths;
+        private int size;
+        private int maxLength;
+        private byte[] last;
+
+        FrontCodedStrings() {
+            this.bytes = new byte[INITIAL_CAPACITY * 16];
+            this.byteCount = 0;
+            this.offsets = new int[INITIAL_CAPACITY + 1];
+            this.prefixLengths = new int[INITIAL_CAPACITY];
+            this.size = 0;
+            this.maxLength = 0;
+            this.last = new byte[0];
+        }
+
+        static int grow(int capacity, int minCapacity) {
+            if (minCapacity < 0)
+                throw new IllegalStateException("Capacity exceeded");
+            int newCapacity = capacity + (capacity >> 1) + 1;
+            return newCapacity < minCapacity || newCapacity < 0 ? minCapacity : newCapacity;
+        }
+
+        void add(byte[] s) {
+            int prefixLength = 0;
+            if (this.size % RESTART_INTERVAL != 0) {
+                int max = Math.min(s.length, this.last.length);
+                while (prefixLength < max && s[prefixLength] == this.last[prefixLength])
+                    prefixLength++;
+            }
+
+            int suffixLength = s.length - prefixLength;
+            if (this.byteCount + suffixLength > this.bytes.length || this.byteCount + suffixLength < 0)
+                this.bytes = Arrays.copyOf(this.bytes, grow(this.bytes.length, this.byteCount + suffixLength));
+            if (this.size == this.prefixLengths.length) {
+                this.prefixLengths = Arrays.copyOf(this.prefixLengths,
+                        grow(this.prefixLengths.length, this.size + 1));
+                this.offsets = Arrays.copyOf(this.offsets, this.prefixLengths.length + 1);
+            }
+
+            System.arraycopy(s, prefixLength, this.bytes, this.byteCount, suffixLength);
+            this.prefixLengths[this.size] = prefixLength;
+            this.offsets[this.size] = this.byteCount;
+            this.byteCount += suffixLength;
+            this.offsets[this.size + 1] = this.byteCount;
+            this.size++;
+            this.maxLength = Math.max(this.maxLength, s.length);
+            this.last = s;
+        }
+
+        byte[] get(int index) {
+            byte[] buf = new byte[this.maxLength];
+            int length = 0;
+            for (int i = index - index % RESTART_INTERVAL; i <= index; i++) {
+                int suffixLength = this.offsets[i + 1] - this.offsets[i];
+                System.arraycopy(this.bytes, this.offsets[i], buf, this.prefixLengths[i], suffixLength);
+                length = this.prefixLengths[i] + suffixLength;
+            }
+            return Arrays.copyOf(buf, length);
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        /**
+         * @return the amount of bytes stored for the entries, excluding the prefixes that are shared.
+         */
+        int byteCount() {
+            return this.byteCount;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.Controller;
+import com.github.jmatss.send.type.HashType;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Packs small files into segments that are published as ordinary files, so that a tree of many small files is sent
+ * as a few large files instead of one FILE_INFO, digest and DONE per file. The subscriber unpacks a segment when it
+ * has been downloaded and verified. A segment contains an index followed by the content of its files:
+ * <pre>
+ *     Magic (4 bytes) | Count (4 bytes) | (Name Length (4 bytes) | Name | Length (8 bytes)) * Count | Contents
+ * </pre>
+ * The segments are packed and unpacked with parallel streams, which runs on the common fork/join pool on purpose
+ * instead of a pool of the ExecutorRegistry, see its documentation.
+ */
+public class FilePack {
+    // Files smaller than this are packed if packing is enabled.
+    public static final int DEFAULT_THRESHOLD = 64 << 10;
+    // A segment is closed when its files are at least this large, so that a tree is split into several segments
+    // that can be resumed and downloaded in parallel on their own.
+    public static final long SEGMENT_SIZE = 64L << 20;
+    // The names of the segments start with this prefix, they are only unpacked if they are at the top level.
+    public static final String NAME_PREFIX = ".send-pack-";
+    public static final int MAX_COUNT = 1 << 20;
+    private static final int MAX_NAME_LENGTH = 1 << 16;
+    private static final int MAGIC = 0x53504b31; // "SPK1"
+    private static final String TMP_SUFFIX = ".tmp";
+    // The prefix of the temporary files that the files are unpacked to before they are moved in place.
+    private static final String UNPACK_PREFIX = ".send-unpack";
+
+    private FilePack() {
+    }
+
+    /**
+     * @param name the name of a downloaded file.
+     * @return true if the file is a segment that should be unpacked.
+     */
+    public static boolean isPack(String name) {
+        return name.startsWith(NAME_PREFIX) && Paths.get(name).getNameCount() == 1;
+    }
+
+    /**
+     * Replaces the files smaller than "threshold" with segments of at least two files each. The segments are put
+     * before the files that aren't packed. The name of a segment is derived from the names, lengths and
+     * modification times of its files, so a segment that already exists in "dir" is reused.
+     *
+     * @param names     the names of the files to publish, the packed files are replaced with the segments.
+     * @param paths     the paths of the files to publish, the packed files are replaced with the segments.
+     * @param threshold the files smaller than this amount of bytes are packed.
+     * @param dir       the directory to write the segments to.
+     * @return the amount of files that were packed.
+     * @throws IOException if it is unable to read a file or write a segment.
+     */
+    public static int pack(List<String> names, List<String> paths, int threshold, Path dir) throws IOException {
+        if (names.size() != paths.size())
+            throw new IllegalArgumentException("Length of paths and names differ");
+
+        List<List<Integer>> segments = new ArrayList<>();
+        List<Integer> segment = new ArrayList<>();
+        List<Integer> unpacked = new ArrayList<>();
+        long segmentSize = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            long length = Files.size(Paths.get(paths.get(i)));
+            if (length >= threshold) {
+                unpacked.add(i);
+                continue;
+            }
+            segment.add(i);
+            segmentSize += length;
+            if (segmentSize >= SEGMENT_SIZE || segment.size() == MAX_COUNT) {
+                segments.add(segment);
+                segment = new ArrayList<>();
+                segmentSize = 0;
+            }
+        }
+        // A segment of one file would only add overhead.
+        if (segment.size() > 1)
+            segments.add(segment);
+        else
+            unpacked.addAll(segment);
+        if (segments.isEmpty())
+            return 0;
+
+        Files.createDirectories(dir);
+        String[] segmentNames = new String[segments.size()];
+        try {
+            IntStream.range(0, segments.size()).parallel().forEach((s) -> {
+                try {
+                    segmentNames[s] = write(names, paths, segments.get(s), dir);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<String> newNames = new ArrayList<>();
+        List<String> newPaths = new ArrayList<>();
+        for (String segmentName : segmentNames) {
+            newNames.add(segmentName);
+            newPaths.add(dir.resolve(segmentName).toString());
+        }
+        unpacked.sort(null);
+        for (int i : unpacked) {
+            newNames.add(names.get(i));
+            newPaths.add(paths.get(i));
+        }
+        names.clear();
+        names.addAll(newNames);
+        paths.clear();
+        paths.addAll(newPaths);
+        return segments.stream().mapToInt(List::size).sum();
+    }
+
+    // Writes the segment of the files at "indices" unless it already exists and returns its name.
+    private static String write(List<String> names, List<String> paths, List<Integer> indices, Path dir)
+    throws IOException {
+        long[] lengths = new long[indices.size()];
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        ByteArrayOutputStream identity = new ByteArrayOutputStream();
+        try (DataOutputStream indexOut = new DataOutputStream(index);
+             DataOutputStream identityOut = new DataOutputStream(identity)) {
+            indexOut.writeInt(MAGIC);
+            indexOut.writeInt(indices.size());
+            for (int i = 0; i < indices.size(); i++) {
+                Path path = Paths.get(paths.get(indices.get(i)));
+                byte[] name = names.get(indices.get(i)).getBytes(Controller.ENCODING);
+                lengths[i] = Files.size(path);
+                indexOut.writeInt(name.length);
+                indexOut.write(name);
+                indexOut.writeLong(lengths[i]);
+                identityOut.writeLong(Files.getLastModifiedTime(path).toMillis());
+            }
+            identityOut.write(index.toByteArray());
+        }
+
+        byte[] digest = HashType.SHA1.digest(identity.toByteArray());
+        StringBuilder sb = new StringBuilder(NAME_PREFIX);
+        for (int i = 0; i < 8; i++)
+            sb.append(String.format("%02x", digest[i]));
+        String segmentName = sb.toString();
+
+        Path segmentPath = dir.resolve(segmentName);
+        long segmentLength = index.size();
+        for (long length : lengths)
+            segmentLength += length;
+        if (Files.exists(segmentPath) && Files.size(segmentPath) == segmentLength)
+            return segmentName;
+
+        Path tmpPath = dir.resolve(segmentName + TMP_SUFFIX);
+        try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(index.toByteArray());
+            while (buf.hasRemaining())
+                out.write(buf);
+            for (int i = 0; i < indices.size(); i++) {
+                Path path = Paths.get(paths.get(indices.get(i)));
+                try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                    for (long position = 0; position < lengths[i]; ) {
+                        long n = in.transferTo(position, lengths[i] - position, out);
+                        if (n <= 0)
+                            throw new EOFException("File " + path + " was truncated while it was packed");
+                        position += n;
+                    }
+                }
+            }
+        }
+        Files.move(tmpPath, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return segmentName;
+    }
+
+    /**
+     * Unpacks the files of a downloaded segment into "dir", the files are written in parallel. Every file is
+     * written to a temporary file that is moved into place when it is complete.
+     *
+     * @param segment   the path of the segment, its digest must already have been verified.
+     * @param dir       the directory to unpack the files into.
+     * @param overwrite true if files that already exists should be replaced, otherwise they are kept.
+     * @return the amount of files that were unpacked.
+     * @throws IOException if the segment is malformed or if it is unable to write a file.
+     */
+    public static int unpack(Path segment, Path dir, boolean overwrite) throws IOException {
+        String[] names;
+        long[] offsets;
+        long[] lengths;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Incorrect magic number of segment " + segment);
+            int count = in.readInt();
+            if (count < 0 || count > MAX_COUNT)
+                throw new IOException("Incorrect file count of segment " + segment + ": " + count);
+
+            names = new String[count];
+            offsets = new long[count];
+            lengths = new long[count];
+            long indexLength = 4 + 4;
+            for (int i = 0; i < count; i++) {
+                int nameLength = in.readInt();
+                if (nameLength <= 0 || nameLength > MAX_NAME_LENGTH)
+                    throw new IOException("Incorrect name length in segment " + segment + ": " + nameLength);
+                byte[] name = new byte[nameLength];
+                in.readFully(name);
+                names[i] = new String(name, Controller.ENCODING);
+                lengths[i] = in.readLong();
+                if (lengths[i] < 0)
+                    throw new IOException("Incorrect file length in segment " + segment + ": " + lengths[i]);
+                indexLength += 4 + nameLength + 8;
+            }
+
+            long offset = indexLength;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = offset;
+                offset += lengths[i];
+            }
+            if (offset != Files.size(segment))
+                throw new IOException("Length of segment " + segment + " is " + Files.size(segment) +
+                        ", its index expects " + offset);
+        }
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            return (int) IntStream.range(0, names.length).parallel().filter((i) -> {
+                try {
+                    return unpack(channel, offsets[i], lengths[i], Paths.get(dir.toString(), names[i]), overwrite);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).count();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Returns false if the file already exists and isn't overwritten.
+    private static boolean unpack(FileChannel channel, long offset, long length, Path path, boolean overwrite)
+    throws IOException {
+        if (!overwrite && Files.exists(path))
+            return false;
+        Files.createDirectories(path.getParent());
+
+        // The files are unpacked in parallel, so every file gets a temporary file of its own. A fixed name could be
+        // the name of another file of the segment, ex. "x" and the backup "x.tmp".
+        Path tmpPath = Files.createTempFile(path.getParent(), UNPACK_PREFIX, null);
+        try {
+            try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+                for (long position = 0; position < length; ) {
+                    long n = channel.transferTo(offset + position, length - position, out);
+                    if (n <= 0)
+                        throw new EOFException("End of segment reached while unpacking " + path);
+                    position += n;
+                }
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+        return true;
+    }
+}
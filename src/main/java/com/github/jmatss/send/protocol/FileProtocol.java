@@ -2,34 +2,81 @@ package com.github.jmatss.send.protocol;
 
 import com.github.jmatss.send.type.HashType;
 import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.util.DigestCache;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 public class FileProtocol extends Protocol {
+    // The PFiles are created the first time they are requested and are kept in chunks of this many files.
+    private static final int CHUNK_SIZE = 1 << 12;
+
     // TODO: dont use File_piece for this, change to something else.
     private final MessageType messageType = MessageType.FILE_PIECE;
-    private List<PFile> files;
+    private final FileList fileList;
+    private final HashType fileHashType;
+    private final HashType pieceHashType;
+    private final int pieceSize;
+    private final DigestCache digestCache;
+    // Can be null, otherwise the digests of the files are restored from it when they are first requested.
+    private final PublishIndex publishIndex;
+    // The PFile of every file that has been requested, kept so that their piece manifests and views are shared
+    // between transfers.
+    private PFile[][] files;
+
+    /**
+     * @param fileList     the files of the topic, can still be filled while it is published, see FileList.walk().
+     * @param publishIndex the saved digests of the files, or null.
+     */
+    public FileProtocol(FileList fileList, HashType fileHashType, HashType pieceHashType, int pieceSize,
+                        DigestCache digestCache, PublishIndex publishIndex) {
+        if (fileHashType == HashType.NONE)
+            throw new IllegalArgumentException("Not allowed to used no hash on the \"whole file\" hash");
+
+        this.fileList = fileList;
+        this.fileHashType = fileHashType;
+        this.pieceHashType = pieceHashType;
+        this.pieceSize = pieceSize;
+        this.digestCache = digestCache;
+        this.publishIndex = publishIndex;
+        this.files = new PFile[0][];
+    }
+
+    public FileProtocol(FileList fileList, DigestCache digestCache, PublishIndex publishIndex) {
+        this(fileList, Protocol.DEFAULT_FILE_HASH_TYPE, Protocol.DEFAULT_PIECE_HASH_TYPE, PieceSize.AUTO,
+                digestCache, publishIndex);
+    }
+
+    public FileProtocol(List<String> names, List<String> paths, HashType fileHashType, HashType pieceHashType,
+                        int pieceSize, DigestCache digestCache) throws IOException {
+        this(of(names, paths), fileHashType, pieceHashType, pieceSize, digestCache, null);
+    }
 
     public FileProtocol(List<String> names, List<String> paths, HashType fileHashType, HashType pieceHashType,
                         int pieceSize) throws IOException {
-        if (paths.isEmpty())
-            throw new IllegalArgumentException("Not allowed to create a FileProtocol with zero paths");
-        else if (names.isEmpty())
-            throw new IllegalArgumentException("Not allowed to create a FileProtocol with zero names");
-        else if (paths.size() != names.size())
-            throw new IllegalArgumentException("Length of paths and names differ");
+        this(names, paths, fileHashType, pieceHashType, pieceSize, null);
+    }
 
-        List<PFile> files = new ArrayList<>(paths.size());
-        for (int i = 0; i < paths.size(); i++)
-            files.add(new PFile(names.get(i), paths.get(i), fileHashType, pieceHashType, pieceSize));
-        this.files = files;
+    public FileProtocol(List<String> names, List<String> paths, DigestCache digestCache) throws IOException {
+        this(names, paths, Protocol.DEFAULT_FILE_HASH_TYPE, Protocol.DEFAULT_PIECE_HASH_TYPE,
+                PieceSize.AUTO, digestCache);
     }
 
     public FileProtocol(List<String> names, List<String> paths) throws IOException {
-        this(names, paths, Protocol.DEFAULT_HASH_TYPE, Protocol.DEFAULT_HASH_TYPE, Protocol.DEFAULT_PIECE_SIZE);
+        this(names, paths, null);
+    }
+
+    private static FileList of(List<String> names, List<String> paths) throws IOException {
+        if (paths.isEmpty())
+            throw new IllegalArgumentException("Not allowed to create a FileProtocol with zero paths");
+        else if (names.isEmpty())
+            throw new IllegalArgumentException("Not allowed to create a FileProtocol with zero names");
+        return FileList.of(names, paths);
     }
 
     @Override
@@ -37,8 +84,71 @@ public class FileProtocol extends Protocol {
         return this.messageType;
     }
 
+    public FileList getFileList() {
+        return this.fileList;
+    }
+
+    /**
+     * @return the index that the digests of the files are restored from, or null.
+     */
+    public PublishIndex getPublishIndex() {
+        return this.publishIndex;
+    }
+
+    /**
+     * @return true if all files of the topic are known, i.e. the walk of the published directory is done.
+     */
+    public boolean isComplete() {
+        return this.fileList.isComplete();
+    }
+
+    /**
+     * Waits until the file at "index" has been found or all files are known.
+     *
+     * @param index the index of the file.
+     * @return true if there is a file at "index", false if the topic has fewer files.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public boolean awaitFile(int index) throws InterruptedIOException {
+        return this.fileList.await(index);
+    }
+
+    /**
+     * @param index the index of a file that has been found, see awaitFile().
+     * @return the file.
+     * @throws IOException if the file doesn't exist anymore.
+     */
+    public PFile getFile(int index) throws IOException {
+        PFile pfile = getCached(index);
+        if (pfile != null)
+            return pfile;
+
+        pfile = new PFile(this.fileList.getName(index), this.fileList.getPath(index), this.fileHashType,
+                this.pieceHashType, this.pieceSize, this.digestCache);
+        if (this.publishIndex != null)
+            this.publishIndex.restore(pfile);
+        synchronized (this) {
+            int chunk = index / CHUNK_SIZE;
+            if (chunk >= this.files.length)
+                this.files = Arrays.copyOf(this.files, chunk + 1);
+            if (this.files[chunk] == null)
+                this.files[chunk] = new PFile[CHUNK_SIZE];
+            // Another thread might have created the same file in the meantime.
+            if (this.files[chunk][index % CHUNK_SIZE] == null)
+                this.files[chunk][index % CHUNK_SIZE] = pfile;
+            return this.files[chunk][index % CHUNK_SIZE];
+        }
+    }
+
+    private synchronized PFile getCached(int index) {
+        int chunk = index / CHUNK_SIZE;
+        if (chunk >= this.files.length || this.files[chunk] == null)
+            return null;
+        return this.files[chunk][index % CHUNK_SIZE];
+    }
+
     /**
-     * @return an iterator over all packets to send the text.
+     * @return an iterator over all files, waits for the files that hasn't been found yet.
      */
     @Override
     public Iterable<PFile> iter() {
@@ -47,12 +157,22 @@ public class FileProtocol extends Protocol {
 
             @Override
             public boolean hasNext() {
-                return this.index < FileProtocol.this.files.size();
+                try {
+                    return awaitFile(this.index);
+                } catch (InterruptedIOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
 
             @Override
             public PFile next() {
-                return FileProtocol.this.files.get(index++);
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    return getFile(this.index++);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
         };
     }
@@ -0,0 +1,249 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Merkle tree over the pieces of a file (HashType.MERKLE). The tree has the same shape as the trees in
+ * RFC 6962: a tree with n > 1 leaves is split into a left subtree containing the largest power of two less than n
+ * leaves and a right subtree with the rest. Leaves and nodes are hashed with different prefixes so that a leaf can
+ * never be mistaken for a node:
+ *
+ * <pre>
+ *     leaf = H(0x00 || piece)
+ *     node = H(0x01 || left || right)
+ * </pre>
+ * <p>
+ * Since every subtree is independent, the leaves of a file can be hashed on all cores and a receiver can verify
+ * any range of pieces against the root given only the hashes of the subtrees outside of that range.
+ */
+public class MerkleTree {
+    public static final HashType LEAF_HASH_TYPE = HashType.MERKLE;
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    // The amount of consecutive leaves hashed by every fork/join task.
+    private static final int LEAVES_PER_TASK = 16;
+
+    private final int leafCount;
+    private final byte[] leaves;
+
+    /**
+     * @param leafCount the amount of leaves.
+     * @param leaves    the leaf hashes stored one after another.
+     */
+    public MerkleTree(int leafCount, byte[] leaves) {
+        if (leaves.length != (long) leafCount * hashSize())
+            throw new IllegalArgumentException("Incorrect length of leaves. Expected: " +
+                    (long) leafCount * hashSize() + ", got: " + leaves.length);
+        this.leafCount = leafCount;
+        this.leaves = leaves;
+    }
+
+    /**
+     * Calculates the Merkle tree of the given file with one leaf per piece. The leaves are hashed in parallel with
+     * fork/join, every task reads its pieces with positional reads from a shared FileChannel.
+     *
+     * @param pfile the file to calculate the tree for.
+     * @return the tree.
+     * @throws IOException if it is unable to read the file.
+     */
+    static MerkleTree calculate(PFile pfile) throws IOException {
+        long fileLength = pfile.getFileLength();
+        int leafCount = pfile.getPieceCount(fileLength);
+        long leavesLength = (long) leafCount * hashSize();
+        if (leavesLength > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The hashes of " + leafCount + " leaves doesn't fit in an array");
+        byte[] leaves = new byte[(int) leavesLength];
+
+        // The common pool on purpose instead of a pool of the ExecutorRegistry, see its documentation.
+        try (FileChannel channel = pfile.openChannel()) {
+            ForkJoinPool.commonPool().invoke(new LeafTask(pfile, fileLength, channel, leaves, 0, leafCount));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return new MerkleTree(leafCount, leaves);
+    }
+
+    private static class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PFile pfile;
+        private final long fileLength;
+        private final FileChannel channel;
+        private final byte[] leaves;
+        private final int start;
+        private final int end;
+
+        LeafTask(PFile pfile, long fileLength, FileChannel channel, byte[] leaves, int start, int end) {
+            this.pfile = pfile;
+            this.fileLength = fileLength;
+            this.channel = channel;
+            this.leaves = leaves;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > LEAVES_PER_TASK) {
+                int mid = (this.start + this.end) >>> 1;
+                invokeAll(new LeafTask(this.pfile, this.fileLength, this.channel, this.leaves, this.start, mid),
+                        new LeafTask(this.pfile, this.fileLength, this.channel, this.leaves, mid, this.end));
+                return;
+            }
+
+            // A heap buffer, a direct buffer per task would only be freed by the GC and a large file has thousands
+            // of tasks. The channel reads through the temporary direct buffer that the JDK caches per thread.
+            ByteBuffer buf = ByteBuffer.allocate(this.pfile.getPieceSize());
+            MessageDigest md = LEAF_HASH_TYPE.getPooledMessageDigest();
+            for (int i = this.start; i < this.end; i++) {
+                long position = this.pfile.getPiecePosition(i);
+                buf.clear().limit(this.pfile.getPieceLength(i, this.fileLength));
+                try {
+                    while (buf.hasRemaining()) {
+                        if (this.channel.read(buf, position + buf.position()) == -1)
+                            throw new IOException("End of file reached while reading piece " + i);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                buf.flip();
+
+                md.update(LEAF_PREFIX);
+                md.update(buf);
+                System.arraycopy(md.digest(), 0, this.leaves, (int) ((long) i * hashSize()), hashSize());
+            }
+        }
+    }
+
+    public static int hashSize() {
+        return LEAF_HASH_TYPE.getSize();
+    }
+
+    /**
+     * @param data the content of a piece.
+     * @return the leaf hash of the piece.
+     */
+    public static byte[] leafHash(byte[] data) {
+        return leafHash(data, 0, data.length);
+    }
+
+    /**
+     * @param data   a buffer containing the content of a piece.
+     * @param offset the offset of the piece in "data".
+     * @param length the length of the piece.
+     * @return the leaf hash of the piece.
+     */
+    public static byte[] leafHash(byte[] data, int offset, int length) {
+        MessageDigest md = LEAF_HASH_TYPE.getPooledMessageDigest();
+        md.update(LEAF_PREFIX);
+        md.update(data, offset, length);
+        return md.digest();
+    }
+
+    private static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest md = LEAF_HASH_TYPE.getPooledMessageDigest();
+        md.update(NODE_PREFIX);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    // The size of the left subtree of a tree with n > 1 leaves, i.e. the largest power of two less than n.
+    private static int split(int n) {
+        return Integer.highestOneBit(n - 1);
+    }
+
+    public int getLeafCount() {
+        return this.leafCount;
+    }
+
+    /**
+     * @return the root hash of the tree. The root of a tree without leaves is the hash of an empty input.
+     */
+    public byte[] getRoot() {
+        if (this.leafCount == 0)
+            return LEAF_HASH_TYPE.getPooledMessageDigest().digest();
+        return subtreeHash(0, this.leafCount);
+    }
+
+    private byte[] subtreeHash(int start, int end) {
+        if (end - start == 1)
+            return Arrays.copyOfRange(this.leaves, (int) ((long) start * hashSize()),
+                    (int) ((long) end * hashSize()));
+        int mid = start + split(end - start);
+        return nodeHash(subtreeHash(start, mid), subtreeHash(mid, end));
+    }
+
+    /**
+     * Creates the proof needed to verify the leaves in the range [first, end) against the root. The proof consists
+     * of the hashes of all maximal subtrees that doesn't contain any leaf in the range, ordered from left to right.
+     *
+     * @param first the index of the first leaf in the range.
+     * @param end   the index after the last leaf in the range.
+     * @return the proof.
+     */
+    public List<byte[]> getRangeProof(int first, int end) {
+        if (first < 0 || end > this.leafCount || first >= end)
+            throw new IllegalArgumentException("Incorrect range [" + first + ", " + end + ") for a tree with " +
+                    this.leafCount + " leaves");
+
+        List<byte[]> proof = new ArrayList<>();
+        rangeProof(0, this.leafCount, first, end, proof);
+        return proof;
+    }
+
+    private void rangeProof(int start, int end, int first, int last, List<byte[]> proof) {
+        if (end <= first || start >= last) {
+            proof.add(subtreeHash(start, end));
+        } else if (start < first || end > last) {
+            int mid = start + split(end - start);
+            rangeProof(start, mid, first, last, proof);
+            rangeProof(mid, end, first, last, proof);
+        }
+    }
+
+    /**
+     * Verifies that a range of leaves belongs to the tree with the given root.
+     *
+     * @param root       the root of the tree.
+     * @param leafCount  the total amount of leaves in the tree.
+     * @param first      the index of the first leaf in the range.
+     * @param leafHashes the leaf hashes of the range, i.e. the result of leafHash() for every piece in the range.
+     * @param proof      the proof created by getRangeProof() for the range.
+     * @return true if the leaves belong to the tree.
+     */
+    public static boolean verifyRange(byte[] root, int leafCount, int first, List<byte[]> leafHashes,
+                                      List<byte[]> proof) {
+        int end = first + leafHashes.size();
+        if (first < 0 || end > leafCount || leafHashes.isEmpty())
+            return false;
+
+        int[] cursors = new int[2]; // {next leaf hash, next proof hash}
+        byte[] calculatedRoot = verifyRange(0, leafCount, first, end, leafHashes, proof, cursors);
+        return calculatedRoot != null && cursors[1] == proof.size() && Arrays.equals(root, calculatedRoot);
+    }
+
+    private static byte[] verifyRange(int start, int end, int first, int last, List<byte[]> leafHashes,
+                                      List<byte[]> proof, int[] cursors) {
+        if (end <= first || start >= last)
+            return cursors[1] < proof.size() ? proof.get(cursors[1]++) : null;
+        if (end - start == 1)
+            return leafHashes.get(cursors[0]++);
+
+        int mid = start + split(end - start);
+        byte[] left = verifyRange(start, mid, first, last, leafHashes, proof, cursors);
+        byte[] right = verifyRange(mid, end, first, last, leafHashes, proof, cursors);
+        return left == null || right == null ? null : nodeHash(left, right);
+    }
+}
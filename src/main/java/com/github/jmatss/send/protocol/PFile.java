@@ -3,11 +3,17 @@ package com.github.jmatss.send.protocol;
 import com.github.jmatss.send.packet.FileInfoPacket;
 import com.github.jmatss.send.packet.FilePiecePacket;
 import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.util.DigestCache;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,9 +31,31 @@ public class PFile {
     private final String name;
     private final String path;
     private int pieceSize;
+    // The file that this file is a view of with another piece size, or this file itself.
+    private final PFile root;
+    // The views of the root with other piece sizes that has been negotiated, keyed by piece size.
+    private final Map<Integer, PFile> views;
 
-    PFile(String name, String path, HashType fileHashType, HashType pieceHashType, int pieceSize)
-    throws IOException {
+    // Can be null, in which case the file digest is calculated every time it is requested.
+    private final DigestCache digestCache;
+    // Lazily calculated and recalculated if the file is modified.
+    private PieceManifest pieceManifest;
+    // The whole file digest restored from a PublishIndex together with the piece manifest, null if the manifest
+    // wasn't restored or has been recalculated since.
+    private byte[] restoredDigest;
+    // Lazily calculated and recalculated if the file is modified.
+    private ChunkList chunkList;
+
+    /**
+     * @param pieceSize the size of the pieces, or PieceSize.AUTO to choose it from the size of the file.
+     */
+    PFile(String name, String path, HashType fileHashType, HashType pieceHashType, int pieceSize,
+          DigestCache digestCache) throws IOException {
+        this(name, path, fileHashType, pieceHashType, pieceSize, digestCache, null);
+    }
+
+    private PFile(String name, String path, HashType fileHashType, HashType pieceHashType, int pieceSize,
+                  DigestCache digestCache, PFile root) throws IOException {
         if (!new File(path).exists())
             throw new FileNotFoundException("Unable to find file " + path);
         else if (fileHashType == HashType.NONE)
@@ -37,40 +65,291 @@ public class PFile {
         this.path = path;
         this.fileHashType = fileHashType;
         this.pieceHashType = pieceHashType;
-        this.pieceSize = pieceSize;
+        this.pieceSize = pieceSize != PieceSize.AUTO
+                ? pieceSize
+                : PieceSize.forFile(new File(path).length(), Protocol.MAX_PIECE_SIZE);
+        this.digestCache = digestCache;
+        this.root = root != null ? root : this;
+        this.views = new HashMap<>();
+    }
+
+    /**
+     * Calculates the whole file digest of any file, ex. to verify a downloaded file.
+     *
+     * @param path      the path of the file.
+     * @param hashType  the HashType of the digest, can NOT be HashType.NONE.
+     * @param pieceSize the size of the pieces, only used if the HashType is a tree hash.
+     * @return the digest.
+     * @throws IOException if it is unable to read the file.
+     */
+    public static byte[] calculateFileDigest(String path, HashType hashType, int pieceSize) throws IOException {
+        return new PFile(path, path, hashType, HashType.NONE, pieceSize, null).getFileDigest();
     }
 
     public byte[] getFileDigest() throws IOException {
+        byte[] restoredDigest = getRestoredDigest();
+        if (restoredDigest != null)
+            return restoredDigest;
+        if (this.digestCache != null)
+            return this.digestCache.getDigest(Paths.get(this.path), this.fileHashType, this.pieceSize,
+                    this::calculateFileHash);
         return calculateFileHash();
     }
 
     private byte[] calculateFileHash() throws IOException {
+        if (this.fileHashType.isTree())
+            return MerkleTree.calculate(this).getRoot();
+
         MessageDigest md = this.fileHashType.getMessageDigest();
         try (InputStream input = new FileInputStream(this.path)) {
             byte[] buf = new byte[BUFFER_SIZE];
             int n;
             while ((n = input.read(buf)) != -1) {
-                md.update(Arrays.copyOfRange(buf, 0, n));
+                md.update(buf, 0, n);
             }
         }
         return md.digest();
     }
 
     public FileInfoPacket getFileInfoPacket() throws IOException {
-        return new FileInfoPacket(this.name, new File(this.path).length(), this.fileHashType, getFileDigest());
+        return new FileInfoPacket(this.name, getFileLength(), this.pieceSize, this.fileHashType, getFileDigest());
+    }
+
+    /**
+     * Gets this file split into pieces that fits the largest piece size of a subscriber. All subscribers with the
+     * same largest piece size gets the same piece size, so the same file can be downloaded from several publishers.
+     * The views are kept so that their digests and piece manifests are shared between transfers.
+     *
+     * @param maxPieceSize the largest piece size that the subscriber accepts.
+     * @return this file if its piece size fits, otherwise a view of it with the piece size from PieceSize.forFile().
+     * @throws IOException if the file doesn't exist.
+     */
+    public PFile negotiate(int maxPieceSize) throws IOException {
+        if (this.pieceSize <= maxPieceSize)
+            return this;
+        if (this.root != this)
+            return this.root.negotiate(maxPieceSize);
+
+        int pieceSize = PieceSize.forFile(getFileLength(), maxPieceSize);
+        synchronized (this.views) {
+            PFile view = this.views.get(pieceSize);
+            if (view == null) {
+                view = new PFile(this.name, this.path, this.fileHashType, this.pieceHashType, pieceSize,
+                        this.digestCache, this);
+                this.views.put(pieceSize, view);
+            }
+            return view;
+        }
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the path of this file on this host.
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    public HashType getFileHashType() {
+        return this.fileHashType;
+    }
+
+    public long getFileLength() {
+        return new File(this.path).length();
+    }
+
+    public long getLastModified() {
+        return new File(this.path).lastModified();
+    }
+
+    /**
+     * Gets the digests of all pieces of this file. The manifest is calculated the first time it is requested and
+     * is then shared between all transfers of this file until the file is modified.
+     *
+     * @return the piece manifest.
+     * @throws IOException if it is unable to read the file.
+     */
+    public synchronized PieceManifest getPieceManifest() throws IOException {
+        if (this.pieceManifest == null || !this.pieceManifest.isValid(getFileLength(), getLastModified())) {
+            this.pieceManifest = PieceManifest.calculate(this);
+            this.restoredDigest = null;
+        }
+        return this.pieceManifest;
+    }
+
+    /**
+     * Restores the digests of this file that were saved in a PublishIndex. They are used until the file is
+     * modified, i.e. until its length or modification time differs from the ones of the piece manifest.
+     *
+     * @param pieceManifest the piece manifest of this file.
+     * @param fileDigest    the whole file digest of this file.
+     */
+    synchronized void restore(PieceManifest pieceManifest, byte[] fileDigest) {
+        this.pieceManifest = pieceManifest;
+        this.restoredDigest = fileDigest;
+    }
+
+    private synchronized byte[] getRestoredDigest() {
+        if (this.restoredDigest == null || !this.pieceManifest.isValid(getFileLength(), getLastModified()))
+            return null;
+        return this.restoredDigest.clone();
+    }
+
+    /**
+     * Gets the content-defined chunks of this file. The list is calculated the first time it is requested and is
+     * then shared between all transfers of this file until the file is modified.
+     *
+     * @return the chunk list.
+     * @throws IOException if it is unable to read the file.
+     */
+    public synchronized ChunkList getChunkList() throws IOException {
+        // The chunks doesn't depend on the piece size, so every view shares the list of the root.
+        if (this.root != this)
+            return this.root.getChunkList();
+        if (this.chunkList == null || !this.chunkList.isValid(getFileLength(), getLastModified()))
+            this.chunkList = ChunkList.calculate(this);
+        return this.chunkList;
+    }
+
+    public HashType getPieceHashType() {
+        return this.pieceHashType;
+    }
+
+    public int getPieceSize() {
+        return this.pieceSize;
+    }
+
+    public int getPieceCount() {
+        return getPieceCount(getFileLength());
+    }
+
+    /**
+     * @param fileLength the length of the file, read once by callers that needs it for many pieces since every
+     *                   getFileLength() is a stat of the file.
+     * @return the amount of pieces of a file with the given length.
+     */
+    public int getPieceCount(long fileLength) {
+        return (int) ((fileLength + this.pieceSize - 1) / this.pieceSize);
+    }
+
+    public long getPiecePosition(int index) {
+        return (long) index * this.pieceSize;
+    }
+
+    public int getPieceLength(int index) {
+        return getPieceLength(index, getFileLength());
+    }
+
+    /**
+     * @param index      the index of the piece.
+     * @param fileLength the length of the file, read once by callers that needs it for many pieces since every
+     *                   getFileLength() is a stat of the file.
+     * @return the length of the piece of a file with the given length.
+     */
+    public int getPieceLength(int index, long fileLength) {
+        return (int) Math.min(fileLength - getPiecePosition(index), this.pieceSize);
+    }
+
+    /**
+     * @return a new read only channel to this file. The caller is responsible for closing it.
+     * @throws IOException if the file can't be opened.
+     */
+    public FileChannel openChannel() throws IOException {
+        return FileChannel.open(Paths.get(this.path), StandardOpenOption.READ);
+    }
+
+    /**
+     * Calculates the digest of a piece by reading it from the given channel. The piece is read into "buf" which
+     * should be reused between calls to not allocate a new buffer for every piece.
+     *
+     * @param channel    the channel to read the piece from.
+     * @param index      the index of the piece.
+     * @param fileLength the length of the file.
+     * @param buf        the buffer used when reading. Must have a capacity of at least the piece size.
+     * @return the digest of the piece or an empty array if the piece HashType is HashType.NONE.
+     * @throws IOException if it is unable to read the whole piece from the channel.
+     */
+    public byte[] calculatePieceDigest(FileChannel channel, int index, long fileLength, ByteBuffer buf)
+    throws IOException {
+        if (this.pieceHashType == HashType.NONE)
+            return new byte[0];
+
+        long position = getPiecePosition(index);
+        int length = getPieceLength(index, fileLength);
+        buf.clear().limit(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1)
+                throw new EOFException("End of file reached while reading piece " + index + " of " + this.path);
+        }
+        buf.flip();
+
+        MessageDigest md = this.pieceHashType.getPooledMessageDigest();
+        md.update(buf);
+        return md.digest();
+    }
+
+    /**
+     * Reads a piece from the given channel without changing its position, so several pieces can be read from the
+     * same channel at the same time.
+     *
+     * @param channel    the channel to read the piece from.
+     * @param index      the index of the piece.
+     * @param fileLength the length of the file.
+     * @param manifest   the piece manifest of this file, the digest of the piece is taken from it.
+     * @return the piece.
+     * @throws IOException if it is unable to read the whole piece from the channel.
+     */
+    public FilePiecePacket readPiece(FileChannel channel, int index, long fileLength, PieceManifest manifest)
+    throws IOException {
+        long position = getPiecePosition(index);
+        ByteBuffer buf = ByteBuffer.allocate(getPieceLength(index, fileLength));
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1)
+                throw new EOFException("End of file reached while reading piece " + index + " of " + this.path);
+        }
+        return new FilePiecePacket(index, buf.array(), this.pieceHashType, manifest.getDigest(index));
+    }
+
+    public Iterable<FilePiecePacket> packetIterator() throws IOException {
+        return packetIterator(0, getPieceCount());
     }
 
-    public Iterable<FilePiecePacket> packetIterator() throws FileNotFoundException {
+    /**
+     * @param start the index of the first piece.
+     * @param end   the index after the last piece.
+     * @return an iterator over the pieces in the range [start, end).
+     * @throws IOException if it is unable to open the file or calculate the piece manifest.
+     */
+    public Iterable<FilePiecePacket> packetIterator(int start, int end) throws IOException {
+        return packetIterator(start, end, 1);
+    }
+
+    /**
+     * @param start  the index of the first piece.
+     * @param end    the index after the last piece.
+     * @param stride the difference between the indices of two consecutive pieces.
+     * @return an iterator over the pieces start, start + stride, start + 2 * stride, ... that are less than end.
+     * @throws IOException if it is unable to open the file or calculate the piece manifest.
+     */
+    public Iterable<FilePiecePacket> packetIterator(int start, int end, int stride) throws IOException {
+        if (stride < 1)
+            throw new IllegalArgumentException("Incorrect stride: " + stride);
+        PieceManifest manifest = getPieceManifest();
+
         class PacketIterator implements Iterable<FilePiecePacket> {
             private int index;
-            private final InputStream input;
+            private final FileInputStream input;
             private final long fileLength;
 
-            PacketIterator() throws FileNotFoundException {
-                this.index = 0;
+            PacketIterator() throws IOException {
+                this.index = start;
 
                 File file = new File(PFile.this.path);
                 this.input = new FileInputStream(file);
+                this.input.getChannel().position(getPiecePosition(start));
                 this.fileLength = file.length();
             }
 
@@ -80,8 +359,8 @@ public class PFile {
 
                     @Override
                     public boolean hasNext() {
-                        boolean result =
-                                PacketIterator.this.fileLength > PacketIterator.this.index * PFile.this.pieceSize;
+                        boolean result = PacketIterator.this.index < end && PacketIterator.this.fileLength >
+                                (long) PacketIterator.this.index * PFile.this.pieceSize;
                         if (!result) {
                             try {
                                 PacketIterator.this.input.close();
@@ -94,8 +373,8 @@ public class PFile {
 
                     @Override
                     public FilePiecePacket next() {
-                        long remainingSize =
-                                PacketIterator.this.fileLength - PacketIterator.this.index * PFile.this.pieceSize;
+                        long remainingSize = PacketIterator.this.fileLength -
+                                (long) PacketIterator.this.index * PFile.this.pieceSize;
                         int minPieceSize = (int) Math.min(remainingSize, PFile.this.pieceSize);
 
                         byte[] content = new byte[minPieceSize];
@@ -107,10 +386,21 @@ public class PFile {
                             return null;
                         }
 
+                        int index = PacketIterator.this.index;
+                        PacketIterator.this.index += stride;
+                        try {
+                            if (stride > 1)
+                                PacketIterator.this.input.getChannel().position(
+                                        getPiecePosition(PacketIterator.this.index));
+                        } catch (IOException e) {
+                            LOGGER.log(Level.SEVERE, e.getMessage());
+                            return null;
+                        }
                         return new FilePiecePacket(
-                                PacketIterator.this.index++,
+                                index,
                                 content,
-                                PFile.this.pieceHashType
+                                PFile.this.pieceHashType,
+                                manifest.getDigest(index)
                         );
                     }
                 };
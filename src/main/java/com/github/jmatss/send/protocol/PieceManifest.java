@@ -0,0 +1,128 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+
+/**
+ * Contains the digests of all pieces of a file stored in one compact buffer indexed by piece number.
+ * The manifest is calculated once per file and then shared by every transfer of that file, which removes
+ * the piece hashing from the per connection send path. A manifest restored from a PublishIndex is a view of the
+ * mapped index.
+ */
+public class PieceManifest {
+    // The amount of consecutive pieces hashed by every parallel task.
+    private static final int PIECES_PER_TASK = 64;
+
+    private final HashType hashType;
+    private final int pieceCount;
+    private final long fileLength;
+    private final long modified;
+    // Only read with absolute gets, so it can be shared between threads.
+    private final ByteBuffer digests;
+
+    PieceManifest(HashType hashType, int pieceCount, long fileLength, long modified, ByteBuffer digests) {
+        if (digests.remaining() != (long) pieceCount * hashType.getSize())
+            throw new IllegalArgumentException("Incorrect length of the digests of " + pieceCount + " pieces: " +
+                    digests.remaining());
+        this.hashType = hashType;
+        this.pieceCount = pieceCount;
+        this.fileLength = fileLength;
+        this.modified = modified;
+        this.digests = digests;
+    }
+
+    /**
+     * Calculates the manifest of the given file. The pieces are split into ranges that are hashed in parallel,
+     * every range reads its pieces with positional reads from a shared FileChannel.
+     *
+     * @param pfile the file to calculate the manifest for.
+     * @return the manifest.
+     * @throws IOException if it is unable to read the file.
+     */
+    static PieceManifest calculate(PFile pfile) throws IOException {
+        HashType hashType = pfile.getPieceHashType();
+        long fileLength = pfile.getFileLength();
+        long modified = pfile.getLastModified();
+        int pieceCount = pfile.getPieceCount(fileLength);
+        long digestsLength = (long) pieceCount * hashType.getSize();
+        if (digestsLength > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The digests of " + pieceCount + " pieces doesn't fit in an array");
+        byte[] digests = new byte[(int) digestsLength];
+        if (hashType == HashType.NONE)
+            return new PieceManifest(hashType, pieceCount, fileLength, modified, ByteBuffer.wrap(digests));
+
+        int taskCount = (pieceCount + PIECES_PER_TASK - 1) / PIECES_PER_TASK;
+        // A parallel stream runs on the common pool on purpose instead of a pool of the ExecutorRegistry, see its
+        // documentation.
+        try (FileChannel channel = pfile.openChannel()) {
+            IntStream.range(0, taskCount).parallel().forEach((task) -> {
+                // A heap buffer since a direct buffer per task is only freed by the GC.
+                ByteBuffer buf = ByteBuffer.allocate(pfile.getPieceSize());
+                int end = Math.min((task + 1) * PIECES_PER_TASK, pieceCount);
+                for (int i = task * PIECES_PER_TASK; i < end; i++) {
+                    try {
+                        byte[] digest = pfile.calculatePieceDigest(channel, i, fileLength, buf);
+                        System.arraycopy(digest, 0, digests, (int) ((long) i * hashType.getSize()), digest.length);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return new PieceManifest(hashType, pieceCount, fileLength, modified, ByteBuffer.wrap(digests));
+    }
+
+    public HashType getHashType() {
+        return this.hashType;
+    }
+
+    public int getPieceCount() {
+        return this.pieceCount;
+    }
+
+    /**
+     * @param index the index of the piece.
+     * @return a copy of the digest of the piece. Empty if the HashType is HashType.NONE.
+     */
+    public byte[] getDigest(int index) {
+        if (index < 0 || index >= this.pieceCount)
+            throw new IndexOutOfBoundsException("Piece index " + index + " out of bounds for " +
+                    this.pieceCount + " pieces");
+
+        byte[] digest = new byte[this.hashType.getSize()];
+        int position = (int) (this.digests.position() + (long) index * digest.length);
+        for (int i = 0; i < digest.length; i++)
+            digest[i] = this.digests.get(position + i);
+        return digest;
+    }
+
+    /**
+     * @return a read only view of the digests of all pieces in order.
+     */
+    ByteBuffer getDigests() {
+        return this.digests.asReadOnlyBuffer();
+    }
+
+    long getFileLength() {
+        return this.fileLength;
+    }
+
+    long getModified() {
+        return this.modified;
+    }
+
+    /**
+     * @return true if the manifest was calculated for a file with the given length and modification time.
+     */
+    boolean isValid(long fileLength, long modified) {
+        return this.fileLength == fileLength && this.modified == modified;
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.jmatss.send.protocol;
+
+/**
+ * Chooses the piece size of a transfer. The subscriber asks for the largest piece size that suits its link to the
+ * publisher in its REQUEST, see forLink(), and the publisher splits every file into pieces of at most that size, see
+ * forFile(). Large pieces lowers the overhead per piece (header, digest and the handling of every piece) on fast
+ * links, while small pieces keeps the granularity of striped, multi-source and resumed downloads fine.
+ */
+public class PieceSize {
+    // Used as the piece size of a published file to let the size of the file decide, see forFile().
+    public static final int AUTO = 0;
+    // Files are split into at least this many pieces if it doesn't make the pieces smaller than MIN_PIECE_SIZE,
+    // so that they can be spread over stripes and sources.
+    public static final int MIN_PIECES = 64;
+    // A piece should take at most this time, or one round trip if it is longer, to transfer over the link.
+    public static final long PIECE_TIME = 10_000_000L; // ns
+
+    private PieceSize() {
+    }
+
+    /**
+     * Chooses the piece size of a file, the largest power of two that splits the file into at least MIN_PIECES
+     * pieces within [Protocol.MIN_PIECE_SIZE, maxPieceSize].
+     *
+     * @param fileLength   the length of the file.
+     * @param maxPieceSize the largest piece size that the subscriber accepts.
+     * @return the piece size.
+     */
+    public static int forFile(long fileLength, int maxPieceSize) {
+        long pieceSize = Long.highestOneBit(Math.max(1, fileLength / MIN_PIECES));
+        return (int) Math.min(Math.max(pieceSize, Protocol.MIN_PIECE_SIZE), maxPieceSize);
+    }
+
+    /**
+     * Chooses the largest piece size that a subscriber asks for, the largest power of two that can be transferred
+     * within PIECE_TIME or one round trip at the measured throughput. It is never smaller than
+     * Protocol.DEFAULT_PIECE_SIZE, which every publisher is able to use (ex. for multicast topics whose pieces are
+     * shared by all subscribers).
+     *
+     * @param rtt        the measured round trip time to the publisher in nanoseconds, or 0 if unknown.
+     * @param throughput the measured throughput from the publisher in bytes per second, or 0 if unknown.
+     * @return the largest piece size, Protocol.MAX_PIECE_SIZE if the throughput is unknown.
+     */
+    public static int forLink(long rtt, long throughput) {
+        if (throughput <= 0)
+            return Protocol.MAX_PIECE_SIZE;
+        long bytes = (long) (throughput * (Math.max(PIECE_TIME, rtt) / 1e9));
+        long pieceSize = Long.highestOneBit(Math.max(1, bytes));
+        return (int) Math.min(Math.max(pieceSize, Protocol.DEFAULT_PIECE_SIZE), Protocol.MAX_PIECE_SIZE);
+    }
+}
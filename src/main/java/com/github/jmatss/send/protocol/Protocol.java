@@ -11,9 +11,16 @@ import java.util.Random;
 abstract public class Protocol<T> {
     public static final int MAX_PUBLISH_PACKET_SIZE = 1 + 1 + 256 + 1 + 4 + 4;
     public static final int MIN_PUBLISH_PACKET_SIZE = 1 + 1 + 1 + 4 + 4;
-    public static final int MAX_PIECE_SIZE = 1 << 16;
+    // The piece size is negotiated per subscriber within these bounds, see PieceSize.
+    public static final int MIN_PIECE_SIZE = 1 << 14;
+    public static final int MAX_PIECE_SIZE = 1 << 23;
+    // The piece size of texts and the largest piece size of subscribers that doesn't ask for another.
     public static final int DEFAULT_PIECE_SIZE = 1 << 16;
     public static final HashType DEFAULT_HASH_TYPE = HashType.SHA1;
+    public static final HashType DEFAULT_FILE_HASH_TYPE = HashType.MERKLE;
+    // Transmission errors in a piece are caught by the checksum and everything else by the whole file digest,
+    // so the fastest checksum is used for pieces. See HashTypeBenchmark.
+    public static final HashType DEFAULT_PIECE_HASH_TYPE = HashType.CRC32C;
     private byte[] id;
 
     // Flags: R=0, P=0, T=1, Scope: Link-local (2)
@@ -0,0 +1,331 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.Controller;
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.type.HashType;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The digests of the files of a published topic saved to disk, so that a publisher that is restarted doesn't have
+ * to hash the files again. The index is memory mapped when it is loaded and the digests of a file are read from
+ * the mapping when the file is first requested, a file that has been modified since it was indexed is hashed again.
+ * <pre>
+ *     Magic (4 bytes) | Count (4 bytes) | (Path hash (8 bytes) | Record offset (8 bytes)) * Count | Records
+ *     Record: Path length (4 bytes) | Path | File length (8 bytes) | Modified (8 bytes) | Piece size (4 bytes) |
+ *             File HashType (1 byte) | Digest length (1 byte) | Digest | Piece HashType (1 byte) |
+ *             Piece count (4 bytes) | Piece digests
+ * </pre>
+ * The table is sorted by the XXH64 hash of the paths, so a file is found with a binary search without reading
+ * the whole index.
+ */
+public class PublishIndex {
+    private static final Logger LOGGER = Logger.getLogger(PublishIndex.class.getName());
+    private static final int MAGIC = 0x53504931; // "SPI1"
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int TABLE_ENTRY_SIZE = 8 + 8;
+
+    private final Path indexPath;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final AtomicInteger restored;
+
+    private PublishIndex(Path indexPath, MappedByteBuffer buffer, int count) {
+        this.indexPath = indexPath;
+        this.buffer = buffer;
+        this.count = count;
+        this.restored = new AtomicInteger();
+    }
+
+    /**
+     * @param dir   the directory of the indices.
+     * @param topic the published topic.
+     * @param path  the published file or directory.
+     * @return the path of the index of the topic.
+     */
+    public static Path pathOf(Path dir, String topic, Path path) {
+        byte[] digest = HashType.SHA1.digest(encode(topic + '\0' + path.toAbsolutePath()));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+            sb.append(String.format("%02x", digest[i]));
+        return dir.resolve(sb.append(".index").toString());
+    }
+
+    /**
+     * Maps the index at "indexPath". Only the header is read, the records are read when they are used.
+     *
+     * @param indexPath the path of the index.
+     * @return the index, or null if there is no index at "indexPath".
+     * @throws IOException if the index can't be mapped or is corrupt.
+     */
+    public static PublishIndex load(Path indexPath) throws IOException {
+        if (!Files.exists(indexPath))
+            return null;
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Publish index " + indexPath + " is too large to be mapped: " +
+                        channel.size());
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Incorrect magic number in publish index " + indexPath);
+        int count = buffer.getInt(4);
+        if (count < 0 || HEADER_SIZE + (long) count * TABLE_ENTRY_SIZE > buffer.limit())
+            throw new IOException("Incorrect file count in publish index " + indexPath + ": " + count);
+        return new PublishIndex(indexPath, buffer, count);
+    }
+
+    /**
+     * Writes the index of all files of the protocol to "indexPath", waits for the walk of the published directory
+     * if it isn't done. The digests of files that aren't hashed yet are calculated. Files that can't be read or
+     * that are modified while they are indexed are left out. The index is first written to a temporary file which
+     * is then moved into place.
+     *
+     * @param indexPath    the path of the index.
+     * @param fileProtocol the published files.
+     * @return the amount of files in the index.
+     * @throws IOException if it is unable to write the index.
+     */
+    public static int write(Path indexPath, FileProtocol fileProtocol) throws IOException {
+        int fileCount = fileProtocol.getFileList().awaitComplete();
+        long[] hashes = new long[fileCount];
+        long[] offsets = new long[fileCount];
+        int count = 0;
+
+        if (indexPath.getParent() != null)
+            Files.createDirectories(indexPath.getParent());
+        Path tmpPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The records are written after room for a table of all files.
+            long position = HEADER_SIZE + (long) fileCount * TABLE_ENTRY_SIZE;
+            channel.position(position);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            for (int i = 0; i < fileCount; i++) {
+                PFile pfile;
+                try {
+                    pfile = fileProtocol.getFile(i);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Leaving file " + i + " out of publish index: " + e.getMessage());
+                    continue;
+                }
+                byte[] record = record(pfile);
+                if (record == null)
+                    continue;
+                out.write(record);
+                hashes[count] = hash(encode(pfile.getPath()));
+                offsets[count] = position;
+                position += record.length;
+                count++;
+            }
+            out.flush();
+
+            ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE + count * TABLE_ENTRY_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(count);
+            long[] entries = sortedEntries(hashes, offsets, count);
+            for (long entry : entries)
+                table.putLong(entry);
+            table.flip();
+            while (table.hasRemaining())
+                channel.write(table, table.position());
+        }
+        Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.log(Level.FINE, "Saved publish index of " + count + " file(s) to " + indexPath);
+        return count;
+    }
+
+    // Returns the hash and offset of every record, in this order, sorted by hash.
+    private static long[] sortedEntries(long[] hashes, long[] offsets, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+
+        long[] entries = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            entries[2 * i] = hashes[order[i]];
+            entries[2 * i + 1] = offsets[order[i]];
+        }
+        return entries;
+    }
+
+    // Returns null if the file can't be read or was modified while it was hashed.
+    private static byte[] record(PFile pfile) {
+        PieceManifest manifest;
+        byte[] digest;
+        try {
+            manifest = pfile.getPieceManifest();
+            digest = pfile.getFileDigest();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Leaving " + pfile.getPath() + " out of publish index: " + e.getMessage());
+            return null;
+        }
+        // The digest might be of another version of the file than the manifest.
+        if (!manifest.isValid(pfile.getFileLength(), pfile.getLastModified()))
+            return null;
+
+        byte[] path = encode(pfile.getPath());
+        ByteBuffer digests = manifest.getDigests();
+        return ByteBuffer.allocate(4 + path.length + 8 + 8 + 4 + 1 + 1 + digest.length + 1 + 4 +
+                digests.remaining())
+                .putInt(path.length)
+                .put(path)
+                .putLong(manifest.getFileLength())
+                .putLong(manifest.getModified())
+                .putInt(pfile.getPieceSize())
+                .put((byte) pfile.getFileHashType().getValue())
+                .put((byte) digest.length)
+                .put(digest)
+                .put((byte) manifest.getHashType().getValue())
+                .putInt(manifest.getPieceCount())
+                .put(digests)
+                .array();
+    }
+
+    /**
+     * Restores the digests of the file from this index if the file is indexed with the same length, modification
+     * time, piece size and HashTypes. A corrupt record, or a file that can't be read, is logged and ignored.
+     *
+     * @param pfile the file.
+     * @return true if the digests were restored.
+     */
+    public boolean restore(PFile pfile) {
+        byte[] path = encode(pfile.getPath());
+        long hash = hash(path);
+        try {
+            for (int i = lowerBound(hash); i < this.count && getHash(i) == hash; i++) {
+                int offset = getOffset(i);
+                if (matches(offset, path))
+                    return restore(pfile, offset + 4 + path.length);
+            }
+        } catch (IOException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Unable to restore " + pfile.getPath() + " from publish index " +
+                    this.indexPath + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private boolean restore(PFile pfile, int offset) throws IOException {
+        long fileLength = this.buffer.getLong(offset);
+        long modified = this.buffer.getLong(offset + 8);
+        int pieceSize = this.buffer.getInt(offset + 8 + 8);
+        HashType fileHashType = hashType(this.buffer.get(offset + 8 + 8 + 4));
+        int digestLength = this.buffer.get(offset + 8 + 8 + 4 + 1) & 0xff;
+        if (pieceSize != pfile.getPieceSize() || fileHashType != pfile.getFileHashType())
+            return false;
+        BasicFileAttributes attributes = Files.readAttributes(Paths.get(pfile.getPath()), BasicFileAttributes.class);
+        if (fileLength != attributes.size() || modified != attributes.lastModifiedTime().toMillis())
+            return false;
+
+        offset += 8 + 8 + 4 + 1 + 1;
+        byte[] digest = new byte[digestLength];
+        for (int i = 0; i < digestLength; i++)
+            digest[i] = this.buffer.get(offset + i);
+        offset += digestLength;
+        HashType pieceHashType = hashType(this.buffer.get(offset));
+        int pieceCount = this.buffer.getInt(offset + 1);
+        if (pieceHashType != pfile.getPieceHashType() || pieceCount != (fileLength + pieceSize - 1) / pieceSize)
+            return false;
+
+        offset += 1 + 4;
+        long digestsLength = (long) pieceCount * pieceHashType.getSize();
+        if (offset + digestsLength > this.buffer.limit())
+            throw new IOException("Piece digests past the end of the index");
+        ByteBuffer digests = this.buffer.duplicate();
+        digests.position(offset).limit(offset + (int) digestsLength);
+        pfile.restore(new PieceManifest(pieceHashType, pieceCount, fileLength, modified, digests.slice()), digest);
+        this.restored.incrementAndGet();
+        return true;
+    }
+
+    private static HashType hashType(byte value) throws IOException {
+        try {
+            return HashType.valueOf(value);
+        } catch (IncorrectHashTypeException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    // Returns the index of the first table entry with a hash that isn't less than "hash".
+    private int lowerBound(long hash) {
+        int low = 0;
+        int high = this.count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getHash(mid) < hash)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private long getHash(int i) {
+        return this.buffer.getLong(HEADER_SIZE + i * TABLE_ENTRY_SIZE);
+    }
+
+    private int getOffset(int i) throws IOException {
+        long offset = this.buffer.getLong(HEADER_SIZE + i * TABLE_ENTRY_SIZE + 8);
+        if (offset < 0 || offset > this.buffer.limit())
+            throw new IOException("Record offset " + offset + " past the end of the index");
+        return (int) offset;
+    }
+
+    private boolean matches(int offset, byte[] path) {
+        if (this.buffer.getInt(offset) != path.length)
+            return false;
+        for (int i = 0; i < path.length; i++) {
+            if (this.buffer.get(offset + 4 + i) != path[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the amount of files in the index.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * @return the amount of files whose digests have been restored from the index.
+     */
+    public int getRestoredCount() {
+        return this.restored.get();
+    }
+
+    private static long hash(byte[] path) {
+        return ByteBuffer.wrap(HashType.XXH64.digest(path)).getLong();
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes(Controller.ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // Should never happen since the ENCODING is a hardcoded correct encoding.
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -13,9 +13,10 @@ public class TextProtocol extends Protocol {
     private final int pieceSize;
 
     public TextProtocol(String text, int pieceSize) throws UnsupportedEncodingException {
-        if (pieceSize > Protocol.MAX_PIECE_SIZE)
-            throw new IllegalArgumentException(String.format("pieceSize > Protocol.MAX_PIECE_SIZE: (%d > %d)",
-                    pieceSize, Protocol.MAX_PIECE_SIZE));
+        // The text isn't split with the negotiated piece size, so it must fit the piece size of every subscriber.
+        if (pieceSize > Protocol.DEFAULT_PIECE_SIZE)
+            throw new IllegalArgumentException(String.format("pieceSize > Protocol.DEFAULT_PIECE_SIZE: (%d > %d)",
+                    pieceSize, Protocol.DEFAULT_PIECE_SIZE));
 
         this.text = text.getBytes(Controller.ENCODING);
         this.pieceSize = pieceSize;
@@ -0,0 +1,235 @@
+package com.github.jmatss.send.storage;
+
+import com.github.jmatss.send.protocol.ChunkList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed store of the chunks of downloaded files, keyed by the digest of every chunk. The chunks aren't
+ * copied, the store references the chunks where they are in the downloaded files. A file that has been modified or
+ * removed since its chunks were added is ignored, and every chunk read from the store is verified against its
+ * digest. The store can be persisted to disk so that the chunks can be reused after a restart.
+ */
+public class ChunkStore {
+    private static final Logger LOGGER = Logger.getLogger(ChunkStore.class.getName());
+    private static final int MAGIC = 0x53435331; // "SCS1"
+    // The time that a checked file is assumed to be unmodified.
+    private static final long VERIFY_INTERVAL = 1000; // ms
+
+    private final Path indexPath;
+    private final Map<ByteBuffer, Location> chunks;
+    private volatile boolean dirty;
+
+    // A downloaded file and its size and modification time when its chunks were added.
+    private static class Source {
+        private final String path;
+        private final long size;
+        private final long modified;
+        private volatile boolean stale;
+        private volatile long verifiedAt;
+
+        Source(String path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.stale = false;
+            this.verifiedAt = 0;
+        }
+
+        // Returns true if the file hasn't been modified since its chunks were added.
+        boolean isValid() {
+            if (this.stale)
+                return false;
+            long now = System.currentTimeMillis();
+            if (now - this.verifiedAt < VERIFY_INTERVAL)
+                return true;
+
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(Paths.get(this.path), BasicFileAttributes.class);
+                this.stale = attributes.size() != this.size ||
+                        attributes.lastModifiedTime().toMillis() != this.modified;
+            } catch (IOException e) {
+                this.stale = true;
+            }
+            this.verifiedAt = now;
+            return !this.stale;
+        }
+    }
+
+    private static class Location {
+        private final Source source;
+        private final long offset;
+        private final int length;
+
+        Location(Source source, long offset, int length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param indexPath the path of the file that the store is loaded from and saved to. Can be null in which case
+     *                  the store only lives in memory.
+     */
+    public ChunkStore(Path indexPath) {
+        this.indexPath = indexPath;
+        this.chunks = new ConcurrentHashMap<>();
+        this.dirty = false;
+    }
+
+    public int size() {
+        return this.chunks.size();
+    }
+
+    /**
+     * @param digest the digest of a chunk.
+     * @return true if the chunk exists in a file that hasn't been modified.
+     */
+    public boolean contains(byte[] digest) {
+        Location location = this.chunks.get(ByteBuffer.wrap(digest));
+        return location != null && location.source.isValid();
+    }
+
+    /**
+     * Reads a chunk from the file that it was added from.
+     *
+     * @param digest the digest of the chunk.
+     * @return the content of the chunk, or null if it doesn't exist or if the content doesn't match the digest.
+     */
+    public byte[] read(byte[] digest) {
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        Location location = this.chunks.get(key);
+        if (location == null || !location.source.isValid())
+            return null;
+
+        ByteBuffer buf = ByteBuffer.allocate(location.length);
+        try (FileChannel channel = FileChannel.open(Paths.get(location.source.path), StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, location.offset + buf.position()) == -1)
+                    throw new EOFException("End of file reached");
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read chunk from " + location.source.path + ": " + e.getMessage());
+            location.source.stale = true;
+            return null;
+        }
+
+        MessageDigest md = ChunkList.HASH_TYPE.getPooledMessageDigest();
+        md.update(buf.array());
+        if (!Arrays.equals(md.digest(), digest)) {
+            // The file was modified without changing its size and modification time.
+            location.source.stale = true;
+            return null;
+        }
+        return buf.array();
+    }
+
+    /**
+     * Adds the chunks of a downloaded file to the store. Chunks that already exists in another valid file are kept.
+     *
+     * @param path      the path of the file.
+     * @param chunkList the chunks of the file.
+     * @throws IOException if it is unable to stat the file.
+     */
+    public void add(Path path, ChunkList chunkList) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.size() != chunkList.getTotalLength())
+            throw new IOException("File " + path + " doesn't have the length of its chunks");
+
+        Source source = new Source(path.toAbsolutePath().toString(), attributes.size(),
+                attributes.lastModifiedTime().toMillis());
+        for (int i = 0; i < chunkList.getCount(); i++) {
+            Location location = new Location(source, chunkList.getOffset(i), chunkList.getLength(i));
+            this.chunks.merge(ByteBuffer.wrap(chunkList.getDigest(i)), location,
+                    (old, added) -> old.source.isValid() ? old : added);
+        }
+        this.dirty = true;
+    }
+
+    /**
+     * Loads the store from disk. Chunks already in the store are kept if they aren't in the loaded file.
+     * Does nothing if the store has no path or if the file doesn't exist.
+     *
+     * @throws IOException if the file exists but can't be read or is corrupt.
+     */
+    public void load() throws IOException {
+        if (this.indexPath == null || !Files.exists(this.indexPath))
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.indexPath)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Incorrect magic number in chunk store " + this.indexPath);
+
+            Source[] sources = new Source[in.readInt()];
+            for (int i = 0; i < sources.length; i++)
+                sources[i] = new Source(in.readUTF(), in.readLong(), in.readLong());
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] digest = new byte[ChunkList.HASH_TYPE.getSize()];
+                in.readFully(digest);
+                int sourceIndex = in.readInt();
+                if (sourceIndex < 0 || sourceIndex >= sources.length)
+                    throw new IOException("Corrupt chunk store " + this.indexPath);
+                this.chunks.putIfAbsent(ByteBuffer.wrap(digest),
+                        new Location(sources[sourceIndex], in.readLong(), in.readInt()));
+            }
+        }
+    }
+
+    /**
+     * Saves the store to disk if it has been modified since it was last loaded or saved. Chunks of files that has
+     * been modified are removed. The store is first written to a temporary file which is then moved into place.
+     *
+     * @throws IOException if it is unable to write the store.
+     */
+    public synchronized void save() throws IOException {
+        if (this.indexPath == null || !this.dirty)
+            return;
+        this.dirty = false;
+
+        this.chunks.values().removeIf((location) -> !location.source.isValid());
+        Map<ByteBuffer, Location> snapshot = Map.copyOf(this.chunks);
+        Map<Source, Integer> sources = new IdentityHashMap<>();
+        for (Location location : snapshot.values())
+            sources.putIfAbsent(location.source, sources.size());
+
+        if (this.indexPath.getParent() != null)
+            Files.createDirectories(this.indexPath.getParent());
+        Path tmpPath = this.indexPath.resolveSibling(this.indexPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            out.writeInt(MAGIC);
+            Source[] ordered = new Source[sources.size()];
+            sources.forEach((source, index) -> ordered[index] = source);
+            out.writeInt(ordered.length);
+            for (Source source : ordered) {
+                out.writeUTF(source.path);
+                out.writeLong(source.size);
+                out.writeLong(source.modified);
+            }
+
+            out.writeInt(snapshot.size());
+            for (Map.Entry<ByteBuffer, Location> e : snapshot.entrySet()) {
+                out.write(e.getKey().array());
+                out.writeInt(sources.get(e.getValue().source));
+                out.writeLong(e.getValue().offset);
+                out.writeInt(e.getValue().length);
+            }
+        } catch (IOException e) {
+            this.dirty = true;
+            throw e;
+        }
+        Files.move(tmpPath, this.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.log(Level.FINE, "Saved chunk store with " + snapshot.size() + " chunks to " + this.indexPath);
+    }
+}
@@ -0,0 +1,366 @@
+package com.github.jmatss.send.storage;
+
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.protocol.MerkleTree;
+import com.github.jmatss.send.protocol.PFile;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.util.Bitmap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file that is being downloaded. The pieces are written to a temporary file next to the final file and a sidecar
+ * state file keeps track of which pieces that have been written together with the FILE_INFO of the file. If the
+ * download is interrupted, the state is used to only request the missing pieces the next time the file is
+ * downloaded. The temporary file is moved into place when all pieces are written and the digest is verified.
+ * <p>
+ * The temporary file is extended to the length of the file when it is created and every piece is written at its own
+ * position, so pieces can arrive in any order and the length of the file doesn't change with every write. When the
+ * file is forced to disk is decided by its SyncPolicy.
+ * <p>
+ * Thread safe, pieces can be written by several connections at once.
+ */
+public class PartialFile implements Closeable {
+    public static final String DATA_SUFFIX = ".send.part";
+    public static final String STATE_SUFFIX = ".send.state";
+    // The amount of pieces written between every time the state is saved to disk.
+    public static final int CHECKPOINT_INTERVAL = 256;
+    public static final SyncPolicy DEFAULT_SYNC_POLICY = SyncPolicy.BATCH;
+    private static final Logger LOGGER = Logger.getLogger(PartialFile.class.getName());
+    private static final int MAGIC = 0x53505331; // "SPS1"
+
+    private final Path path;
+    private final Path dataPath;
+    private final Path statePath;
+    private final FileInfoPacket fileInfo;
+    private final FileChannel channel;
+    private final SyncPolicy syncPolicy;
+    private final Bitmap received;
+    // Merkle leaves of the pieces written during this session, used to verify tree hashes without reading the file.
+    private final byte[] leaves;
+    private final Bitmap leavesCalculated;
+    private int writesSinceCheckpoint;
+    private boolean completed;
+
+    private PartialFile(Path path, FileInfoPacket fileInfo, Bitmap received, SyncPolicy syncPolicy)
+    throws IOException {
+        this.path = path;
+        this.dataPath = path.resolveSibling(path.getFileName() + DATA_SUFFIX);
+        this.statePath = path.resolveSibling(path.getFileName() + STATE_SUFFIX);
+        this.fileInfo = fileInfo;
+        int pieceCount = fileInfo.getPieceCount();
+        long leavesLength = fileInfo.getHashType().isTree() ? (long) pieceCount * MerkleTree.hashSize() : 0;
+        if (leavesLength > Integer.MAX_VALUE)
+            throw new IOException("The leaf hashes of " + pieceCount + " pieces doesn't fit in an array");
+        this.channel = FileChannel.open(this.dataPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+        this.syncPolicy = syncPolicy;
+        this.received = received;
+        this.leaves = fileInfo.getHashType().isTree() ? new byte[(int) leavesLength] : null;
+        this.leavesCalculated = new Bitmap(fileInfo.getHashType().isTree() ? pieceCount : 0);
+        this.writesSinceCheckpoint = 0;
+        this.completed = false;
+
+        try {
+            preallocate();
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    // Extends the temporary file to the length of the file by writing its last byte. The JDK has no portable way to
+    // reserve the blocks of a file (fallocate), but setting the final length once keeps the file metadata from
+    // being updated by every write and lets filesystems with delayed allocation place the file in one go.
+    private void preallocate() throws IOException {
+        long fileLength = this.fileInfo.getFileLength();
+        if (fileLength == 0 || this.channel.size() >= fileLength)
+            return;
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        while (buf.hasRemaining())
+            this.channel.write(buf, fileLength - 1);
+    }
+
+    /**
+     * Opens the partial file of the file at "path". If there is a saved state for the same file (same length,
+     * piece size and digest), the download is resumed. Otherwise any old partial file is discarded and a new
+     * download is started.
+     *
+     * @param path     the final path of the downloaded file.
+     * @param fileInfo the FILE_INFO of the file received from the publisher.
+     * @return the partial file.
+     * @throws IOException if it is unable to open or create the temporary file.
+     */
+    public static PartialFile open(Path path, FileInfoPacket fileInfo) throws IOException {
+        return open(path, fileInfo, DEFAULT_SYNC_POLICY);
+    }
+
+    /**
+     * Opens the partial file of the file at "path". If there is a saved state for the same file (same length,
+     * piece size and digest), the download is resumed. Otherwise any old partial file is discarded and a new
+     * download is started.
+     *
+     * @param path       the final path of the downloaded file.
+     * @param fileInfo   the FILE_INFO of the file received from the publisher.
+     * @param syncPolicy when the written pieces are forced to disk.
+     * @return the partial file.
+     * @throws IOException if it is unable to open or create the temporary file.
+     */
+    public static PartialFile open(Path path, FileInfoPacket fileInfo, SyncPolicy syncPolicy) throws IOException {
+        Path dataPath = path.resolveSibling(path.getFileName() + DATA_SUFFIX);
+        Path statePath = path.resolveSibling(path.getFileName() + STATE_SUFFIX);
+
+        Bitmap received = null;
+        if (Files.exists(dataPath) && Files.exists(statePath)) {
+            try {
+                received = loadState(statePath, fileInfo);
+            } catch (IOException | IncorrectHashTypeException e) {
+                LOGGER.log(Level.WARNING, "Unable to load state of partial file " + dataPath + ": " + e.getMessage());
+            }
+        }
+
+        if (received == null) {
+            Files.deleteIfExists(dataPath);
+            Files.deleteIfExists(statePath);
+            received = new Bitmap(fileInfo.getPieceCount());
+        }
+
+        return new PartialFile(path, fileInfo, received, syncPolicy);
+    }
+
+    /**
+     * @param path the final path of a downloaded file.
+     * @return true if there is a partial download of the file that open() might resume.
+     */
+    public static boolean exists(Path path) {
+        return Files.exists(path.resolveSibling(path.getFileName() + DATA_SUFFIX)) ||
+                Files.exists(path.resolveSibling(path.getFileName() + STATE_SUFFIX));
+    }
+
+    // Returns null if the state belongs to another version of the file.
+    private static Bitmap loadState(Path statePath, FileInfoPacket fileInfo)
+    throws IOException, IncorrectHashTypeException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(statePath)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Incorrect magic number");
+
+            long fileLength = in.readLong();
+            int pieceSize = in.readInt();
+            HashType hashType = HashType.valueOf(in.readByte());
+            byte[] digest = new byte[in.readUnsignedShort()];
+            in.readFully(digest);
+            int pieceCount = in.readInt();
+            byte[] bitmap = new byte[Bitmap.byteSize(pieceCount)];
+            in.readFully(bitmap);
+
+            if (fileLength != fileInfo.getFileLength() || pieceSize != fileInfo.getPieceSize() ||
+                    hashType != fileInfo.getHashType() || !Arrays.equals(digest, fileInfo.getDigest()) ||
+                    pieceCount != fileInfo.getPieceCount())
+                return null;
+            return Bitmap.fromByteArray(pieceCount, bitmap);
+        }
+    }
+
+    private void saveState() throws IOException {
+        Path tmpPath = this.statePath.resolveSibling(this.statePath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(this.fileInfo.getFileLength());
+            out.writeInt(this.fileInfo.getPieceSize());
+            out.writeByte(this.fileInfo.getHashType().getValue());
+            out.writeShort(this.fileInfo.getDigest().length);
+            out.write(this.fileInfo.getDigest());
+            out.writeInt(this.received.size());
+            out.write(this.received.toByteArray());
+        }
+        Files.move(tmpPath, this.statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Saves the state to disk. With SyncPolicy.BATCH the written pieces are forced to disk before the state so that
+     * the state never claims that a piece is written when it isn't.
+     *
+     * @throws IOException if it is unable to write to disk.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (this.syncPolicy == SyncPolicy.BATCH)
+            this.channel.force(false);
+        saveState();
+        this.writesSinceCheckpoint = 0;
+    }
+
+    public int getPieceSize() {
+        return this.fileInfo.getPieceSize();
+    }
+
+    public synchronized int getPieceCount() {
+        return this.received.size();
+    }
+
+    public synchronized int getReceivedCount() {
+        return this.received.cardinality();
+    }
+
+    public synchronized boolean isReceived(int index) {
+        return this.received.get(index);
+    }
+
+    /**
+     * @return a bitmap with the pieces that haven't been received set.
+     */
+    public synchronized Bitmap getMissing() {
+        Bitmap missing = new Bitmap(getPieceCount());
+        for (int i = this.received.nextClear(0); i != -1; i = this.received.nextClear(i + 1))
+            missing.set(i);
+        return missing;
+    }
+
+    /**
+     * @return true if all pieces have been received.
+     */
+    public synchronized boolean isFull() {
+        return this.received.isFull();
+    }
+
+    /**
+     * @param from the index to start searching from (inclusive).
+     * @return the index of the first missing piece at or after "from", or -1 if there is none.
+     */
+    public synchronized int nextMissing(int from) {
+        return this.received.nextClear(from);
+    }
+
+    /**
+     * @param from the index to start searching from (inclusive).
+     * @return the index of the first received piece at or after "from", or -1 if there is none.
+     */
+    public synchronized int nextReceived(int from) {
+        return this.received.nextSet(from);
+    }
+
+    /**
+     * Writes a piece at its position in the file. A piece that already has been received is ignored, so the same
+     * piece can be requested from several publishers.
+     *
+     * @param index the index of the piece.
+     * @param data  the content of the piece.
+     * @throws IOException if the piece has an incorrect length or if it is unable to write to the file.
+     */
+    public void write(int index, byte[] data) throws IOException {
+        write(index, data, data.length);
+    }
+
+    /**
+     * Writes a piece at its position in the file. A piece that already has been received is ignored, so the same
+     * piece can be requested from several publishers. The disk write and the leaf hash are done without holding
+     * the lock of the file, so pieces can be written by several threads in parallel.
+     *
+     * @param index  the index of the piece.
+     * @param data   a buffer starting with the content of the piece.
+     * @param length the length of the piece.
+     * @throws IOException if the piece has an incorrect length or if it is unable to write to the file.
+     */
+    public void write(int index, byte[] data, int length) throws IOException {
+        long position = (long) index * this.fileInfo.getPieceSize();
+        synchronized (this) {
+            if (index < 0 || index >= getPieceCount())
+                throw new IOException("Received piece index " + index + " out of bounds for file with " +
+                        getPieceCount() + " pieces");
+            if (this.received.get(index))
+                return;
+
+            long expectedLength = Math.min(this.fileInfo.getFileLength() - position, this.fileInfo.getPieceSize());
+            if (length != expectedLength)
+                throw new IOException("Received piece " + index + " with incorrect length. Expected: " +
+                        expectedLength + ", got: " + length);
+        }
+
+        // A piece written concurrently by two connections has the same verified content, so it doesn't matter
+        // which of the writes that ends up on disk.
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        while (buf.hasRemaining())
+            this.channel.write(buf, position + buf.position());
+        byte[] leaf = this.leaves != null ? MerkleTree.leafHash(data, 0, length) : null;
+
+        synchronized (this) {
+            if (this.received.get(index))
+                return;
+            if (leaf != null) {
+                System.arraycopy(leaf, 0, this.leaves, (int) ((long) index * MerkleTree.hashSize()),
+                        MerkleTree.hashSize());
+                this.leavesCalculated.set(index);
+            }
+
+            this.received.set(index);
+            if (++this.writesSinceCheckpoint >= CHECKPOINT_INTERVAL)
+                checkpoint();
+        }
+    }
+
+    /**
+     * Verifies the digest of the downloaded file and moves it into place. If the digest is incorrect, the
+     * temporary file and the state are removed so that the next download starts from scratch.
+     *
+     * @throws IOException if not all pieces have been received, if the digest is incorrect or if it is unable to
+     *                     move the file into place.
+     */
+    public synchronized void complete() throws IOException {
+        if (!this.received.isFull())
+            throw new IOException("Unable to complete " + this.path + ", missing " +
+                    (getPieceCount() - getReceivedCount()) + " of " + getPieceCount() + " pieces");
+
+        this.channel.truncate(this.fileInfo.getFileLength());
+        if (this.syncPolicy != SyncPolicy.NONE)
+            this.channel.force(true);
+
+        byte[] digest;
+        if (this.leaves != null && this.leavesCalculated.isFull())
+            digest = new MerkleTree(getPieceCount(), this.leaves).getRoot();
+        else
+            digest = PFile.calculateFileDigest(this.dataPath.toString(), this.fileInfo.getHashType(),
+                    this.fileInfo.getPieceSize());
+
+        if (!Arrays.equals(digest, this.fileInfo.getDigest())) {
+            discard();
+            throw new IOException("Digest of downloaded file " + this.path + " is incorrect. " +
+                    "Calculated: " + Arrays.toString(digest) +
+                    ", received from remote: " + Arrays.toString(this.fileInfo.getDigest()));
+        }
+
+        this.channel.close();
+        Files.move(this.dataPath, this.path, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(this.statePath);
+        this.completed = true;
+    }
+
+    private void discard() throws IOException {
+        this.channel.close();
+        Files.deleteIfExists(this.dataPath);
+        Files.deleteIfExists(this.statePath);
+        this.completed = true;
+    }
+
+    /**
+     * Saves the state if the file isn't completed so that the download can be resumed later.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.completed)
+            return;
+        try {
+            checkpoint();
+        } finally {
+            this.channel.close();
+        }
+    }
+}
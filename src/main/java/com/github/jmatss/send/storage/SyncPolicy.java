@@ -0,0 +1,17 @@
+package com.github.jmatss.send.storage;
+
+/**
+ * When the pieces written to a partial file are forced (fsync) to disk.
+ */
+public enum SyncPolicy {
+    // Never forces the file, the operating system writes it back whenever it wants. A crash can lose pieces that
+    // the saved state claims are written, which is detected by the digest when the file is completed and causes the
+    // whole file to be downloaded again.
+    NONE,
+    // Forces the file once when it is completed. Checkpoints of the state don't force the file, so a crash has the
+    // same consequence as with NONE, but a completed file is always on disk before it is moved into place.
+    FILE,
+    // Forces the written pieces at every checkpoint (every PartialFile.CHECKPOINT_INTERVAL pieces) and when the file
+    // is completed, so the saved state never claims that a piece is written when it isn't.
+    BATCH
+}
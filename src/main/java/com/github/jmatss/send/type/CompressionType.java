@@ -0,0 +1,188 @@
+package com.github.jmatss.send.type;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of the content of a FILE_PIECE or TEXT packet. A subscriber sends the types that it can
+ * decompress in its REQUEST and the publisher compresses the content with one of them, piece by piece. Pieces that
+ * doesn't compress well are sent with NONE.
+ */
+public enum CompressionType {
+    NONE(0),
+    // Deflate at the fastest level, the content is compressed to save bandwidth and not to save space.
+    DEFLATE(1);
+
+    // Content with a higher byte entropy than this (in bits per byte) is assumed to already be compressed.
+    public static final double MAX_ENTROPY = 7.2;
+    // The amount of bytes sampled when the entropy is estimated.
+    public static final int ENTROPY_SAMPLE_SIZE = 1024;
+    // The compressed content must be at least 1/16 smaller than the content to be sent compressed.
+    public static final int MIN_SAVING_DIVISOR = 16;
+
+    private static final Map<Integer, CompressionType> lookup = new HashMap<>();
+    private final int i;
+    // One deflater and inflater per thread, they are reset before every use.
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters;
+
+    CompressionType(int i) {
+        this.i = i;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+        this.inflaters = ThreadLocal.withInitial(Inflater::new);
+    }
+
+    static {
+        for (CompressionType compressionType : CompressionType.values()) {
+            CompressionType.lookup.put(compressionType.i, compressionType);
+        }
+    }
+
+    public int getValue() {
+        return this.i;
+    }
+
+    /**
+     * @return the bitmask of all compression types that can be decompressed, bit i is the type with value i.
+     */
+    public static int supportedMask() {
+        int mask = 0;
+        for (CompressionType compressionType : CompressionType.values())
+            mask |= 1 << compressionType.i;
+        return mask;
+    }
+
+    /**
+     * @param mask a bitmask of compression types received in a REQUEST.
+     * @return true if this type is in the mask. NONE is always supported.
+     */
+    public boolean isIn(int mask) {
+        return this == NONE || (mask & (1 << this.i)) != 0;
+    }
+
+    /**
+     * Compresses the content if it looks compressible and the compressed content is small enough to be worth it.
+     *
+     * @param data the content to compress.
+     * @return the compressed content, or null if the content should be sent uncompressed.
+     */
+    public byte[] compress(byte[] data) {
+        if (this == NONE || !isCompressible(data))
+            return null;
+
+        Deflater deflater = this.deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        // Gives up as soon as the compressed content would be too large to save anything.
+        byte[] buf = new byte[data.length - data.length / MIN_SAVING_DIVISOR];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buf.length)
+                return null;
+            length += deflater.deflate(buf, length, buf.length - length);
+        }
+
+        byte[] compressed = new byte[length];
+        System.arraycopy(buf, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    /**
+     * @param data           the compressed content.
+     * @param originalLength the length of the content before it was compressed.
+     * @return the decompressed content.
+     * @throws IOException if the content can't be decompressed to exactly "originalLength" bytes.
+     */
+    public byte[] decompress(byte[] data, int originalLength) throws IOException {
+        if (this == NONE)
+            return data;
+
+        // One extra byte so that content that decompresses to too many bytes is detected.
+        byte[] buf = new byte[originalLength + 1];
+        decompress(data, data.length, buf, originalLength);
+        return Arrays.copyOf(buf, originalLength);
+    }
+
+    /**
+     * Decompresses content into a buffer, ex. a pooled buffer.
+     *
+     * @param data           the compressed content.
+     * @param length         the length of the compressed content in "data".
+     * @param out            the buffer to decompress into. Must be larger than "originalLength" so that content
+     *                       that decompresses to too many bytes is detected.
+     * @param originalLength the length of the content before it was compressed.
+     * @throws IOException if the content can't be decompressed to exactly "originalLength" bytes.
+     */
+    public void decompress(byte[] data, int length, byte[] out, int originalLength) throws IOException {
+        if (out.length <= originalLength)
+            throw new IllegalArgumentException("Buffer too small to decompress " + originalLength + " bytes");
+        if (this == NONE) {
+            if (length != originalLength)
+                throw new IOException("Uncompressed content has incorrect length: " + length);
+            System.arraycopy(data, 0, out, 0, length);
+            return;
+        }
+
+        Inflater inflater = this.inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+        int n = 0;
+        try {
+            while (!inflater.finished() && n < originalLength + 1) {
+                int read = inflater.inflate(out, n, originalLength + 1 - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Unable to decompress content: " + e.getMessage());
+        }
+
+        if (n != originalLength || !inflater.finished())
+            throw new IOException("Decompressed content has incorrect length. Expected: " + originalLength +
+                    " bytes, got: " + n + (inflater.finished() ? " bytes" : " bytes or more"));
+    }
+
+    /**
+     * Estimates if the content is compressible from the byte entropy of a sample of the content. Content that is
+     * already compressed or encrypted has close to 8 bits of entropy per byte.
+     *
+     * @param data the content.
+     * @return true if the content is worth compressing.
+     */
+    public static boolean isCompressible(byte[] data) {
+        if (data.length < 64)
+            return false;
+
+        int step = Math.max(1, data.length / ENTROPY_SAMPLE_SIZE);
+        int[] counts = new int[256];
+        int samples = 0;
+        for (int i = 0; i < data.length; i += step) {
+            counts[data[i] & 0xff]++;
+            samples++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0)
+                continue;
+            double p = (double) count / samples;
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy <= MAX_ENTROPY;
+    }
+
+    public static CompressionType valueOf(int key) throws IOException {
+        CompressionType compressionType;
+        if ((compressionType = CompressionType.lookup.get(key)) == null)
+            throw new IOException("Received incorrect compression type integer: " + key);
+        return compressionType;
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.jmatss.send.type;
+
+import com.github.jmatss.send.util.FecCodec;
+import com.github.jmatss.send.util.ReedSolomonCodec;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The forward error correction used for the fragments of a multicast piece.
+ */
+public enum FecType {
+    NONE(0, null),
+    // Systematic Reed-Solomon over the fragments of a piece, see ReedSolomonCodec.
+    REED_SOLOMON(1, new ReedSolomonCodec());
+
+    private static final Map<Integer, FecType> lookup = new HashMap<>();
+    private final int i;
+    private final FecCodec codec;
+
+    FecType(int i, FecCodec codec) {
+        this.i = i;
+        this.codec = codec;
+    }
+
+    static {
+        for (FecType fecType : FecType.values()) {
+            FecType.lookup.put(fecType.i, fecType);
+        }
+    }
+
+    public int getValue() {
+        return this.i;
+    }
+
+    /**
+     * @return the codec of this type, null for NONE.
+     */
+    public FecCodec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * @param dataCount  the amount of data shards in a block.
+     * @param redundancy the amount of parity shards per data shard.
+     * @return the amount of parity shards to create for the block, limited by the maximum block size of the codec.
+     */
+    public int parityCount(int dataCount, double redundancy) {
+        if (this.codec == null)
+            return 0;
+        return (int) Math.min(Math.ceil(dataCount * redundancy), this.codec.getMaxShards() - dataCount);
+    }
+
+    public static FecType valueOf(int key) throws IOException {
+        FecType fecType;
+        if ((fecType = FecType.lookup.get(key)) == null)
+            throw new IOException("Received incorrect fec type integer: " + key);
+        return fecType;
+    }
+}
@@ -1,32 +1,62 @@
 package com.github.jmatss.send.type;
 
 import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.util.Crc32cDigest;
+import com.github.jmatss.send.util.XxHash64Digest;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public enum HashType {
     NONE(0, null, 0),
     SHA1(1, "SHA-1", 20),
-    MD5(2, "MD5", 16);
+    MD5(2, "MD5", 16),
+    // Root of a Merkle tree with SHA-256 leaves over the pieces of a file, see MerkleTree.
+    // Used as a piece hash it is a plain SHA-256 digest of the piece.
+    MERKLE(3, "SHA-256", 32, true, null),
+    SHA256(4, "SHA-256", 32),
+    // Non-cryptographic checksums meant for piece level checks.
+    CRC32C(5, Crc32cDigest.ALGORITHM, Crc32cDigest.SIZE, false, Crc32cDigest::new),
+    XXH64(6, XxHash64Digest.ALGORITHM, XxHash64Digest.SIZE, false, XxHash64Digest::new);
+
+    // The size of the largest digest of all hash types.
+    public static final int MAX_SIZE;
 
     private static Map<Integer, HashType> lookup;
     private final int i;
     private final String hash;
     private final int size;
+    private final boolean tree;
+    // Creates digests that aren't available through MessageDigest.getInstance. Null for the JDK algorithms.
+    private final Supplier<MessageDigest> factory;
+    // One digest per thread, see getPooledMessageDigest().
+    private final ThreadLocal<MessageDigest> pool;
 
-    private HashType(int i, String hash, int size) {
+    private HashType(int i, String hash, int size, boolean tree, Supplier<MessageDigest> factory) {
         this.i = i;
         this.hash = hash;
         this.size = size;
+        this.tree = tree;
+        this.factory = factory;
+        this.pool = ThreadLocal.withInitial(this::getMessageDigest);
+    }
+
+    private HashType(int i, String hash, int size) {
+        this(i, hash, size, false, null);
     }
 
     static {
         HashType.lookup = new HashMap<>();
-        for (HashType hashType : HashType.values())
+        int maxSize = 0;
+        for (HashType hashType : HashType.values()) {
             HashType.lookup.put(hashType.i, hashType);
+            maxSize = Math.max(maxSize, hashType.size);
+        }
+        MAX_SIZE = maxSize;
     }
 
     public int getValue() {
@@ -37,6 +67,14 @@ public enum HashType {
         return this.size;
     }
 
+    /**
+     * @return true if the whole file digest of this type is the root of a hash tree over the file pieces instead
+     * of a digest of the file as one stream.
+     */
+    public boolean isTree() {
+        return this.tree;
+    }
+
     public String toString() {
         return this.hash;
     }
@@ -48,7 +86,13 @@ public enum HashType {
         return hashType;
     }
 
+    /**
+     * @return a new MessageDigest. Should be used when the digest is kept between calls, otherwise the pooled
+     * digest should be preferred.
+     */
     public MessageDigest getMessageDigest() {
+        if (this.factory != null)
+            return this.factory.get();
         try {
             return MessageDigest.getInstance(this.hash);
         } catch (NoSuchAlgorithmException e) {
@@ -56,4 +100,35 @@ public enum HashType {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Gets the MessageDigest of this type that is owned by the current thread. The digest is reset before it is
+     * returned. It must not be kept after the calculation of the digest is done or be used while calling other
+     * code that might use the pooled digest of the same type.
+     *
+     * @return the reset MessageDigest of the current thread.
+     */
+    public MessageDigest getPooledMessageDigest() {
+        MessageDigest md = this.pool.get();
+        md.reset();
+        return md;
+    }
+
+    /**
+     * @param data the data to hash.
+     * @return the digest of "data" calculated with the pooled digest of the current thread.
+     */
+    public byte[] digest(byte[] data) {
+        return getPooledMessageDigest().digest(data);
+    }
+
+    /**
+     * @param data the data to hash. The buffer is consumed.
+     * @return the digest of "data" calculated with the pooled digest of the current thread.
+     */
+    public byte[] digest(ByteBuffer data) {
+        MessageDigest md = getPooledMessageDigest();
+        md.update(data);
+        return md.digest();
+    }
 }
@@ -21,7 +21,48 @@ public enum MessageType {
     // Used to indicate that the subscriber doesn't want the file advertised in the "FILE_INFO" packet.
     NO(6),
     // Sent to subscriber when publisher have no more data to send.
-    DONE(7);
+    DONE(7),
+    // Used by the subscriber instead of "YES" to request a range of pieces of the file advertised in the
+    // "FILE_INFO" packet, ex. when resuming a download. Can be sent multiple times and is ended with a "NO".
+    RANGE(8),
+    // Used by the subscriber to propose the amount of connections ("stripes") that a file is downloaded over and by
+    // the publisher to answer with the accepted amount. Sent after the "FILE_INFO" packet.
+    STRIPES(9),
+    // Used by the subscriber instead of "RANGE" to request every n:th piece of a range, i.e. the pieces of one
+    // stripe. Can be sent multiple times and is ended with a "NO".
+    STRIPE(10),
+    // Sent to the subscriber before the first "FILE_INFO" packet when the publisher also sends the files to a
+    // multicast group. Contains the group that the subscriber can join to receive the pieces.
+    MULTICAST(11),
+    // Used by the subscriber instead of "RANGE" to request pieces over multicast, ex. all pieces of the file or the
+    // pieces that were lost during a previous multicast round. Answered with a "DONE" when the round has ended.
+    JOIN(12),
+    // A part of a piece sent in a datagram to the multicast group.
+    FRAGMENT(13),
+    // Used by the subscriber instead of "RANGE" when it already has an older version of the file advertised in the
+    // "FILE_INFO" packet. Contains the signatures of the blocks of the old version.
+    SIGNATURES(14),
+    // Sent to the subscriber as an answer to "SIGNATURES", a run of blocks that the subscriber copies from its old
+    // version of the file.
+    COPY(15),
+    // Sent to the subscriber as an answer to "SIGNATURES", data that doesn't exist in the old version of the file.
+    LITERAL(16),
+    // Used by the subscriber to request the content-defined chunks of the file advertised in the "FILE_INFO" packet.
+    CHUNKS(17),
+    // Sent to the subscriber as an answer to "CHUNKS", the lengths and digests of all chunks of the file. Contains
+    // no chunks if the publisher doesn't chunk its files.
+    CHUNK_LIST(18),
+    // Used by the subscriber to request the chunks that it doesn't already have. Answered with the chunks followed
+    // by a "DONE".
+    WANT(19),
+    // One chunk of a file.
+    CHUNK(20),
+    // Sent to the subscriber instead of the first "FILE_INFO" packet if it asked for it in its "REQUEST". Contains
+    // the name, length, piece size and digest of every file of the topic in one (compressed) batch.
+    MANIFEST(21),
+    // Used by the subscriber to answer a "MANIFEST" with the files that it wants streamed back to back without any
+    // further replies and the files whose "FILE_INFO" it wants to answer like without a manifest (ex. to resume).
+    WANTED_FILES(22);
 
     private static final Map<Integer, MessageType> lookup = new HashMap<>();
     private final int i;
@@ -0,0 +1,155 @@
+package com.github.jmatss.send.util;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The token buckets of all connections in one direction (uploads or downloads) in a hierarchy of three levels: one
+ * bucket for the whole limiter, one per topic and one per peer of a topic. A peer is all connections of a topic to
+ * or from the same address, so the stripes of a striped download share a bucket. A transfer is limited by all three
+ * levels, and the rates of every level can be changed at any time and applies to the next transfer of every
+ * connection.
+ */
+public class BandwidthLimiter {
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> topics;
+    private final Map<String, Peer> peers;
+    private long peerRate;
+
+    private static class Peer {
+        private final TokenBucket bucket;
+        private int connections;
+
+        Peer(TokenBucket bucket) {
+            this.bucket = bucket;
+            this.connections = 0;
+        }
+    }
+
+    public BandwidthLimiter() {
+        this.global = new TokenBucket(null);
+        this.topics = new HashMap<>();
+        this.peers = new HashMap<>();
+        this.peerRate = TokenBucket.UNLIMITED;
+    }
+
+    /**
+     * @param rate the maximum amount of bytes per second of all connections, TokenBucket.UNLIMITED to remove the
+     *             limit.
+     */
+    public void setRate(long rate) {
+        this.global.setRate(rate);
+    }
+
+    public long getRate() {
+        return this.global.getRate();
+    }
+
+    /**
+     * @param topic the topic to limit.
+     * @param rate  the maximum amount of bytes per second of all connections of the topic, TokenBucket.UNLIMITED to
+     *              remove the limit.
+     */
+    public synchronized void setTopicRate(String topic, long rate) {
+        topic(topic).setRate(rate);
+    }
+
+    public synchronized long getTopicRate(String topic) {
+        TokenBucket bucket = this.topics.get(topic);
+        return bucket != null ? bucket.getRate() : TokenBucket.UNLIMITED;
+    }
+
+    /**
+     * @param rate the maximum amount of bytes per second of every peer of every topic, TokenBucket.UNLIMITED to
+     *             remove the limit.
+     */
+    public synchronized void setPeerRate(long rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Incorrect rate: " + rate);
+        this.peerRate = rate;
+        for (Peer peer : this.peers.values())
+            peer.bucket.setRate(rate);
+    }
+
+    public synchronized long getPeerRate() {
+        return this.peerRate;
+    }
+
+    /**
+     * @param topic the topic of a connection.
+     * @return true if the connections of the topic are limited by any level.
+     */
+    public synchronized boolean isLimited(String topic) {
+        return this.global.getRate() != TokenBucket.UNLIMITED || this.peerRate != TokenBucket.UNLIMITED ||
+                getTopicRate(topic) != TokenBucket.UNLIMITED;
+    }
+
+    private TokenBucket topic(String topic) {
+        return this.topics.computeIfAbsent(topic, k -> new TokenBucket(this.global));
+    }
+
+    private static String peerKey(String topic, InetAddress address) {
+        return topic + "@" + address.getHostAddress();
+    }
+
+    /**
+     * Registers a connection of a topic. Every call must be followed by a call to close() with the same arguments
+     * when the connection ends.
+     *
+     * @param topic   the topic of the connection.
+     * @param address the address of the peer.
+     * @return the bucket that the connection should take its bytes from.
+     */
+    public synchronized TokenBucket open(String topic, InetAddress address) {
+        Peer peer = this.peers.computeIfAbsent(peerKey(topic, address), k -> {
+            Peer p = new Peer(new TokenBucket(topic(topic)));
+            p.bucket.setRate(this.peerRate);
+            return p;
+        });
+        peer.connections++;
+        return peer.bucket;
+    }
+
+    /**
+     * Unregisters a connection registered with open(). The bucket of the peer is removed with its last connection.
+     *
+     * @param topic   the topic of the connection.
+     * @param address the address of the peer.
+     */
+    public synchronized void close(String topic, InetAddress address) {
+        String key = peerKey(topic, address);
+        Peer peer = this.peers.get(key);
+        if (peer != null && --peer.connections <= 0)
+            this.peers.remove(key);
+    }
+
+    /**
+     * @return the amount of bytes per second transferred by all connections during the last second.
+     */
+    public long getAchievedRate() {
+        return this.global.getAchievedRate();
+    }
+
+    /**
+     * @return the amount of bytes per second transferred during the last second per topic that has had any
+     * connection.
+     */
+    public synchronized Map<String, Long> getAchievedTopicRates() {
+        Map<String, Long> rates = new TreeMap<>();
+        this.topics.forEach((topic, bucket) -> rates.put(topic, bucket.getAchievedRate()));
+        return Collections.unmodifiableMap(rates);
+    }
+
+    /**
+     * @return the amount of bytes per second transferred during the last second per connected peer, the keys are
+     * formatted as "topic@address".
+     */
+    public synchronized Map<String, Long> getAchievedPeerRates() {
+        Map<String, Long> rates = new TreeMap<>();
+        this.peers.forEach((key, peer) -> rates.put(key, peer.bucket.getAchievedRate()));
+        return Collections.unmodifiableMap(rates);
+    }
+}
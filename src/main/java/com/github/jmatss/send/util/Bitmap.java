@@ -0,0 +1,149 @@
+package com.github.jmatss.send.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size bitmap, ex. used to keep track of which pieces of a file that has been received.
+ * Not thread safe.
+ */
+public class Bitmap {
+    private final int size;
+    private final long[] words;
+
+    public Bitmap(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative bitmap size: " + size);
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * Creates a bitmap from the bytes returned by toByteArray().
+     *
+     * @param size  the amount of bits in the bitmap.
+     * @param bytes the bits with the lowest index in the most significant bit of the first byte.
+     * @return the bitmap.
+     */
+    public static Bitmap fromByteArray(int size, byte[] bytes) {
+        if (bytes.length != byteSize(size))
+            throw new IllegalArgumentException("Incorrect amount of bytes for a bitmap of size " + size +
+                    ". Expected: " + byteSize(size) + ", got: " + bytes.length);
+
+        Bitmap bitmap = new Bitmap(size);
+        for (int i = 0; i < size; i++) {
+            if ((bytes[i >>> 3] & (0x80 >>> (i & 7))) != 0)
+                bitmap.set(i);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param size the amount of bits.
+     * @return the amount of bytes needed to store a bitmap with "size" bits.
+     */
+    public static int byteSize(int size) {
+        return (size + 7) >>> 3;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean get(int index) {
+        checkIndex(index);
+        return (this.words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void set(int index) {
+        checkIndex(index);
+        this.words[index >>> 6] |= 1L << index;
+    }
+
+    public void clear(int index) {
+        checkIndex(index);
+        this.words[index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * Sets all bits that are set in "other".
+     *
+     * @param other a bitmap of the same size.
+     */
+    public void or(Bitmap other) {
+        if (other.size != this.size)
+            throw new IllegalArgumentException("Incorrect size of bitmap. Expected: " + this.size + ", got: " +
+                    other.size);
+        for (int i = 0; i < this.words.length; i++)
+            this.words[i] |= other.words[i];
+    }
+
+    /**
+     * @return the amount of set bits.
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : this.words)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    public boolean isFull() {
+        return cardinality() == this.size;
+    }
+
+    /**
+     * @param from the index to start searching from (inclusive).
+     * @return the index of the first set bit at or after "from", or -1 if there is none.
+     */
+    public int nextSet(int from) {
+        for (int i = from; i < this.size; i++) {
+            if (get(i))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param from the index to start searching from (inclusive).
+     * @return the index of the first cleared bit at or after "from", or -1 if there is none.
+     */
+    public int nextClear(int from) {
+        for (int i = from; i < this.size; i++) {
+            if (!get(i))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bits with the lowest index in the most significant bit of the first byte.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[byteSize(this.size)];
+        for (int i = 0; i < this.size; i++) {
+            if (get(i))
+                bytes[i >>> 3] |= 0x80 >>> (i & 7);
+        }
+        return bytes;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for bitmap of size " + this.size);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Bitmap))
+            return false;
+        Bitmap bitmap = (Bitmap) o;
+        return this.size == bitmap.size && Arrays.equals(this.words, bitmap.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.size + Arrays.hashCode(this.words);
+    }
+}
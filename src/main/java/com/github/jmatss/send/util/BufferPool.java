@@ -0,0 +1,69 @@
+package com.github.jmatss.send.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of equally sized byte buffers. Buffers are allocated lazily up to the capacity of the pool, after
+ * which acquire() blocks until another buffer is released. The blocking is the backpressure of a pipeline: the stage
+ * that acquires buffers can't get further ahead of the stage that releases them than the capacity of the pool.
+ * Thread safe.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<byte[]> free;
+    private int allocated;
+
+    /**
+     * @param bufferSize the size of every buffer.
+     * @param capacity   the maximum amount of buffers.
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize < 0 || capacity < 1)
+            throw new IllegalArgumentException("Incorrect buffer pool of " + capacity + " buffers of size " +
+                    bufferSize);
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.allocated = 0;
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * @return a free buffer. Blocks if all buffers are in use.
+     * @throws IOException if the thread is interrupted while waiting for a buffer.
+     */
+    public byte[] acquire() throws IOException {
+        byte[] buf = this.free.poll();
+        if (buf != null)
+            return buf;
+
+        synchronized (this) {
+            if (this.allocated < this.capacity) {
+                this.allocated++;
+                return new byte[this.bufferSize];
+            }
+        }
+
+        try {
+            return this.free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+        }
+    }
+
+    /**
+     * @param buf a buffer acquired from this pool. Must not be used after it is released.
+     */
+    public void release(byte[] buf) {
+        if (buf.length != this.bufferSize || !this.free.offer(buf))
+            throw new IllegalArgumentException("Released buffer doesn't belong to the pool");
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.jmatss.send.util;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.Arrays;
@@ -11,10 +12,21 @@ import java.util.logging.Logger;
 public class ClosableWrapper {
     private static final Logger LOGGER = Logger.getLogger(ClosableWrapper.class.getName());
     private final ServerSocket serverSocket;
+    private final Closeable resource;
     private final List<Future<?>> futures;
 
     public ClosableWrapper(ServerSocket serverSocket, Future<?>... futures) {
+        this(serverSocket, null, futures);
+    }
+
+    /**
+     * @param serverSocket the server socket of the published topic.
+     * @param resource     another resource used by the published topic that should be closed with it, can be null.
+     * @param futures      the tasks of the published topic.
+     */
+    public ClosableWrapper(ServerSocket serverSocket, Closeable resource, Future<?>... futures) {
         this.serverSocket = serverSocket;
+        this.resource = resource;
         this.futures = Arrays.asList(futures);
     }
 
@@ -25,5 +37,11 @@ public class ClosableWrapper {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Unable to close serverSocket.");
         }
+        try {
+            if (this.resource != null)
+                this.resource.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to close resource: " + e.getMessage());
+        }
     }
 }
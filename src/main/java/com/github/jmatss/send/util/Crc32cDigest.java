@@ -0,0 +1,55 @@
+package com.github.jmatss.send.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+/**
+ * Exposes the JDK CRC32C checksum as a MessageDigest so that it can be used as a HashType. CRC32C is implemented
+ * with intrinsics (SSE 4.2/ARMv8 crc32 instructions) on most platforms which makes it a lot faster than a
+ * cryptographic hash. The digest is the 4 byte checksum in big endian.
+ */
+public class Crc32cDigest extends MessageDigest {
+    public static final String ALGORITHM = "CRC32C";
+    public static final int SIZE = 4;
+
+    private final CRC32C crc;
+
+    public Crc32cDigest() {
+        super(ALGORITHM);
+        this.crc = new CRC32C();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return SIZE;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        this.crc.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        this.crc.update(input, offset, len);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        // Direct buffers are checksummed in place without first being copied into an array.
+        this.crc.update(input);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        byte[] digest = ByteBuffer.allocate(SIZE).putInt((int) this.crc.getValue()).array();
+        this.crc.reset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        this.crc.reset();
+    }
+}
@@ -0,0 +1,237 @@
+package com.github.jmatss.send.util;
+
+import com.github.jmatss.send.exception.IncorrectHashTypeException;
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.HashType;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches whole file digests keyed by path, size, modification time, HashType and the piece size of tree hashes so
+ * that a file only needs to be hashed once no matter how many subscribers requests it. The cache can be persisted
+ * to disk so that the digests survive a restart of the publisher.
+ */
+public class DigestCache {
+    private static final Logger LOGGER = Logger.getLogger(DigestCache.class.getName());
+    private static final int MAGIC = 0x53444332; // "SDC2"
+    // Caches saved before the piece size was part of the key, their tree hashes has the default piece size.
+    private static final int MAGIC_V1 = 0x53444331; // "SDC1"
+
+    private final Path cachePath;
+    private final Map<Key, Entry> entries;
+    private final Map<Key, CompletableFuture<byte[]>> inFlight;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private volatile boolean dirty;
+
+    @FunctionalInterface
+    public interface DigestCalculator {
+        byte[] calculate() throws IOException;
+    }
+
+    /**
+     * @param cachePath the path of the file that the cache is loaded from and saved to. Can be null in which case
+     *                  the cache only lives in memory.
+     */
+    public DigestCache(Path cachePath) {
+        this.cachePath = cachePath;
+        this.entries = new ConcurrentHashMap<>();
+        this.inFlight = new ConcurrentHashMap<>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.dirty = false;
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Gets the digest of a HashType that isn't a tree hash, see getDigest(Path, HashType, int, DigestCalculator).
+     */
+    public byte[] getDigest(Path path, HashType hashType, DigestCalculator calculator) throws IOException {
+        return getDigest(path, hashType, 0, calculator);
+    }
+
+    /**
+     * Gets the digest of the file at "path" from the cache. If the file isn't cached, or if it has been modified
+     * since it was cached, the digest is calculated with "calculator" and stored in the cache. Concurrent calls
+     * for the same file, HashType and piece size only calculates the digest once.
+     *
+     * @param path       the path of the file.
+     * @param hashType   the HashType of the digest.
+     * @param pieceSize  the size of the pieces that a tree hash is calculated over, ignored for other HashTypes.
+     * @param calculator used to calculate the digest on a cache miss.
+     * @return the digest.
+     * @throws IOException if it is unable to stat the file or if the calculator throws an exception.
+     */
+    public byte[] getDigest(Path path, HashType hashType, int pieceSize, DigestCalculator calculator)
+    throws IOException {
+        Key key = new Key(path.toAbsolutePath().toString(), hashType, hashType.isTree() ? pieceSize : 0);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.size == size && entry.modified == modified) {
+            this.hits.incrementAndGet();
+            return entry.digest.clone();
+        }
+        this.misses.incrementAndGet();
+
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = this.inFlight.putIfAbsent(key, future);
+        if (existing != null)
+            return join(existing).clone();
+
+        try {
+            byte[] digest = calculator.calculate();
+            this.entries.put(key, new Entry(size, modified, digest.clone()));
+            this.dirty = true;
+            future.complete(digest);
+            return digest;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlight.remove(key, future);
+        }
+    }
+
+    private byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Loads the cache from disk. Entries already in the cache are kept if they aren't in the loaded file.
+     * Does nothing if the cache has no path or if the file doesn't exist.
+     *
+     * @throws IOException if the file exists but can't be read or is corrupt.
+     */
+    public void load() throws IOException {
+        if (this.cachePath == null || !Files.exists(this.cachePath))
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.cachePath)))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1)
+                throw new IOException("Incorrect magic number in digest cache " + this.cachePath);
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                HashType hashType = HashType.valueOf(in.readByte());
+                int pieceSize = magic == MAGIC
+                        ? in.readInt()
+                        : (hashType.isTree() ? Protocol.DEFAULT_PIECE_SIZE : 0);
+                byte[] digest = new byte[in.readUnsignedShort()];
+                in.readFully(digest);
+                this.entries.putIfAbsent(new Key(path, hashType, pieceSize), new Entry(size, modified, digest));
+            }
+        } catch (IncorrectHashTypeException e) {
+            throw new IOException("Corrupt digest cache " + this.cachePath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the cache to disk if it has been modified since it was last loaded or saved. The cache is first written
+     * to a temporary file which is then moved into place so that a crash never leaves a half written cache.
+     *
+     * @throws IOException if it is unable to write the cache.
+     */
+    public synchronized void save() throws IOException {
+        if (this.cachePath == null || !this.dirty)
+            return;
+        this.dirty = false;
+
+        if (this.cachePath.getParent() != null)
+            Files.createDirectories(this.cachePath.getParent());
+        Path tmpPath = this.cachePath.resolveSibling(this.cachePath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            // Take a snapshot so that the count written matches the amount of entries written.
+            Map<Key, Entry> snapshot = Map.copyOf(this.entries);
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<Key, Entry> e : snapshot.entrySet()) {
+                out.writeUTF(e.getKey().path);
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().modified);
+                out.writeByte(e.getKey().hashType.getValue());
+                out.writeInt(e.getKey().pieceSize);
+                out.writeShort(e.getValue().digest.length);
+                out.write(e.getValue().digest);
+            }
+        } catch (IOException e) {
+            this.dirty = true;
+            throw e;
+        }
+        Files.move(tmpPath, this.cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.log(Level.FINE, "Saved digest cache with " + this.entries.size() + " entries to " + this.cachePath);
+    }
+
+    private static class Key {
+        private final String path;
+        private final HashType hashType;
+        // The piece size of a tree hash, 0 for other HashTypes.
+        private final int pieceSize;
+
+        Key(String path, HashType hashType, int pieceSize) {
+            this.path = path;
+            this.hashType = hashType;
+            this.pieceSize = pieceSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return this.path.equals(key.path) && this.hashType == key.hashType && this.pieceSize == key.pieceSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.path, this.hashType, this.pieceSize);
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final byte[] digest;
+
+        Entry(long size, long modified, byte[] digest) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+}
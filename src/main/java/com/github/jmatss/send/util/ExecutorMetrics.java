@@ -0,0 +1,94 @@
+package com.github.jmatss.send.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the state of one of the pools of an ExecutorRegistry. The queue latency is the time from that a
+ * task was submitted until it started running, or for scheduled tasks the time from that it should have started
+ * until it did, i.e. the jitter of periodic tasks.
+ */
+public class ExecutorMetrics {
+    private final ExecutorRegistry.Role role;
+    private final int poolSize;
+    private final int activeCount;
+    private final int queueDepth;
+    private final long completedTasks;
+    private final long rejectedTasks;
+    private final long meanQueueNanos;
+    private final long maxQueueNanos;
+    private final long meanRunNanos;
+
+    ExecutorMetrics(ExecutorRegistry.Role role, int poolSize, int activeCount, int queueDepth, long completedTasks,
+                    long rejectedTasks, long meanQueueNanos, long maxQueueNanos, long meanRunNanos) {
+        this.role = role;
+        this.poolSize = poolSize;
+        this.activeCount = activeCount;
+        this.queueDepth = queueDepth;
+        this.completedTasks = completedTasks;
+        this.rejectedTasks = rejectedTasks;
+        this.meanQueueNanos = meanQueueNanos;
+        this.maxQueueNanos = maxQueueNanos;
+        this.meanRunNanos = meanRunNanos;
+    }
+
+    public ExecutorRegistry.Role getRole() {
+        return this.role;
+    }
+
+    /**
+     * @return the current amount of threads of the pool.
+     */
+    public int getPoolSize() {
+        return this.poolSize;
+    }
+
+    /**
+     * @return the amount of threads that currently are running a task.
+     */
+    public int getActiveCount() {
+        return this.activeCount;
+    }
+
+    /**
+     * @return the amount of tasks waiting in the queue of the pool, including scheduled tasks waiting for their time.
+     */
+    public int getQueueDepth() {
+        return this.queueDepth;
+    }
+
+    /**
+     * @return the amount of tasks that has finished running. Every run of a periodic task is counted.
+     */
+    public long getCompletedTasks() {
+        return this.completedTasks;
+    }
+
+    /**
+     * @return the amount of tasks rejected because the pool and its queue were full or the pool was shut down.
+     */
+    public long getRejectedTasks() {
+        return this.rejectedTasks;
+    }
+
+    public long getMeanQueueLatency(TimeUnit unit) {
+        return unit.convert(this.meanQueueNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxQueueLatency(TimeUnit unit) {
+        return unit.convert(this.maxQueueNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMeanRunTime(TimeUnit unit) {
+        return unit.convert(this.meanRunNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return this.role + ": threads=" + this.poolSize + ", active=" + this.activeCount +
+                ", queued=" + this.queueDepth + ", completed=" + this.completedTasks +
+                ", rejected=" + this.rejectedTasks +
+                ", queueLatency(mean/max)=" + getMeanQueueLatency(TimeUnit.MICROSECONDS) + "/" +
+                getMaxQueueLatency(TimeUnit.MICROSECONDS) + "us" +
+                ", runTime(mean)=" + getMeanRunTime(TimeUnit.MICROSECONDS) + "us";
+    }
+}
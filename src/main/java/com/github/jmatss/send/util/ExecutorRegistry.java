@@ -0,0 +1,374 @@
+package com.github.jmatss.send.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The thread pools that runs the work of the sender and receiver, one pool per kind of work ("role") so that long
+ * transfers can't starve the announcements or the accept loops. Every pool has a bounded queue, rejects the tasks
+ * that doesn't fit with a RejectedExecutionException and measures the queue latency and run time of its tasks, see
+ * ExecutorMetrics. All threads are daemon threads named after their role.
+ * <p>
+ * The fork/join work that splits one file or directory over all cores, i.e. walking a published directory
+ * (FileList.walk), hashing the pieces of a file (PieceManifest and MerkleTree) and packing and unpacking segments
+ * (FilePack), runs on ForkJoinPool.commonPool() on purpose. Its callers join it, so it needs a pool that work steals
+ * while joining, and the common pool already bounds it to one thread less than the amount of cores.
+ */
+public class ExecutorRegistry {
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+    // Idle threads are stopped after this time.
+    private static final long KEEP_ALIVE = 60; // seconds
+    private static ExecutorRegistry shared;
+
+    public enum Role {
+        // Sends the announcements of the published topics and cancels topics after their timeout. The tasks are
+        // short, so two threads keeps the jitter of the announcements low.
+        DISCOVERY("send-discovery", 2, 4096),
+        // Runs the loops that never returns: the accept loop of every published topic and the announcement
+        // listener. Every loop needs a thread of its own, so tasks are never queued and the amount of threads is
+        // the limit of published topics.
+        ACCEPT("send-accept", 1024, 0),
+        // Runs one blocking session per connected subscriber, including the connections that the event loops hands
+        // over. Also runs the work of the event loops that may have to read or hash the files: the manifests, the
+        // FILE_INFOs, the piece manifests and the uncompressed pieces. Subscribers that doesn't fit are disconnected.
+        UPLOAD("send-upload", Math.max(8, 4 * PROCESSORS), 1024),
+        // Runs one download per received announcement. Announcements that doesn't fit are dropped, they are
+        // received again after the publish interval.
+        DOWNLOAD("send-download", Math.max(4, 2 * PROCESSORS), 256),
+        // Runs the connections to the extra publishers of multi-source downloads and the extra stripes of striped
+        // downloads, and ends them in the background. They block while waiting for pieces, so tasks are never
+        // queued. A connection that doesn't fit isn't used, its pieces are received over the other connections.
+        SOURCE("send-source", Math.max(16, 8 * PROCESSORS), 0),
+        // Decompresses and verifies the received pieces. Every transfer has at most
+        // ReceivePipeline.BUFFERS_PER_TRANSFER pieces in flight, a piece that doesn't fit is verified by the thread
+        // that received it.
+        VERIFY("send-verify", PROCESSORS, 1024),
+        // Writes the verified pieces to the partial files, the threads block on the disk. A piece that doesn't fit
+        // is written by the thread that verified it.
+        WRITE("send-write", Math.max(4, 2 * PROCESSORS), 1024),
+        // Compresses the pieces of every session and event loop connection while the previous pieces are written to
+        // the socket, the compressed pieces of the event loops are also read here. Every connection compresses at
+        // most Sender.COMPRESSION_WINDOW pieces ahead, pieces that doesn't fit are sent uncompressed.
+        COMPRESS("send-compress", PROCESSORS, 1024),
+        // Calculates the digests of published files ahead of the first subscriber.
+        BACKGROUND("send-background", 1, 64);
+
+        private final String threadName;
+        private final int threads;
+        private final int queueCapacity;
+
+        Role(String threadName, int threads, int queueCapacity) {
+            this.threadName = threadName;
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+        }
+
+        /**
+         * @return the maximum amount of threads of the pool.
+         */
+        public int getThreads() {
+            return this.threads;
+        }
+
+        /**
+         * @return the maximum amount of tasks waiting in the queue of the pool.
+         */
+        public int getQueueCapacity() {
+            return this.queueCapacity;
+        }
+    }
+
+    private final Map<Role, ThreadPoolExecutor> executors;
+    private final Map<Role, Recorder> recorders;
+
+    public ExecutorRegistry() {
+        this.executors = new EnumMap<>(Role.class);
+        this.recorders = new EnumMap<>(Role.class);
+        for (Role role : Role.values()) {
+            Recorder recorder = new Recorder();
+            this.recorders.put(role, recorder);
+            this.executors.put(role, role == Role.DISCOVERY
+                    ? new MeteredScheduledExecutor(role, recorder)
+                    : new MeteredThreadPoolExecutor(role, recorder));
+        }
+    }
+
+    /**
+     * @return the registry used by senders and receivers that aren't given one of their own.
+     */
+    public static synchronized ExecutorRegistry getShared() {
+        if (ExecutorRegistry.shared == null)
+            ExecutorRegistry.shared = new ExecutorRegistry();
+        return ExecutorRegistry.shared;
+    }
+
+    /**
+     * @param role the kind of work.
+     * @return the pool running the given kind of work.
+     */
+    public ExecutorService get(Role role) {
+        return this.executors.get(role);
+    }
+
+    /**
+     * @return the pool of the DISCOVERY role, the only pool that runs delayed and periodic tasks.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return (ScheduledExecutorService) this.executors.get(Role.DISCOVERY);
+    }
+
+    /**
+     * @param role the kind of work.
+     * @return a snapshot of the state of the pool running the given kind of work.
+     */
+    public ExecutorMetrics getMetrics(Role role) {
+        ThreadPoolExecutor executor = this.executors.get(role);
+        Recorder recorder = this.recorders.get(role);
+        long completed = recorder.completed.sum();
+        return new ExecutorMetrics(
+                role,
+                executor.getPoolSize(),
+                executor.getActiveCount(),
+                executor.getQueue().size(),
+                completed,
+                recorder.rejected.sum(),
+                completed != 0 ? recorder.queueNanos.sum() / completed : 0,
+                recorder.maxQueueNanos.get(),
+                completed != 0 ? recorder.runNanos.sum() / completed : 0
+        );
+    }
+
+    /**
+     * @return a snapshot of the state of every pool.
+     */
+    public Map<Role, ExecutorMetrics> getMetrics() {
+        Map<Role, ExecutorMetrics> metrics = new EnumMap<>(Role.class);
+        for (Role role : Role.values())
+            metrics.put(role, getMetrics(role));
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Interrupts the running tasks of every pool and stops accepting new tasks.
+     *
+     * @return the tasks that never started running.
+     */
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = new ArrayList<>();
+        for (ThreadPoolExecutor executor : this.executors.values())
+            tasks.addAll(executor.shutdownNow());
+        return tasks;
+    }
+
+    private static ThreadFactory threadFactory(Role role) {
+        return r -> {
+            Thread thread = new Thread(r, role.threadName);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static RejectedExecutionHandler rejectionHandler(Role role, Recorder recorder) {
+        return (r, executor) -> {
+            recorder.rejected.increment();
+            throw new RejectedExecutionException(executor.isShutdown()
+                    ? "The " + role + " pool is shut down"
+                    : "The " + role + " pool is full, " + executor.getQueue().size() + " tasks queued");
+        };
+    }
+
+    private static class Recorder {
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder queueNanos = new LongAdder();
+        private final LongAdder runNanos = new LongAdder();
+        private final AtomicLong maxQueueNanos = new AtomicLong();
+
+        void record(long queueNanos, long runNanos) {
+            this.completed.increment();
+            this.queueNanos.add(queueNanos);
+            this.runNanos.add(runNanos);
+            this.maxQueueNanos.accumulateAndGet(queueNanos, Math::max);
+        }
+    }
+
+    // A pool with a fixed maximum amount of threads that are started on demand and stopped when idle.
+    private static class MeteredThreadPoolExecutor extends ThreadPoolExecutor {
+        private final Recorder recorder;
+
+        MeteredThreadPoolExecutor(Role role, Recorder recorder) {
+            super(role.threads, role.threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                    role.queueCapacity > 0 ? new ArrayBlockingQueue<>(role.queueCapacity) : new SynchronousQueue<>(),
+                    threadFactory(role), rejectionHandler(role, recorder));
+            this.recorder = recorder;
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            super.execute(new TimedTask(command, this.recorder));
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            List<Runnable> tasks = new ArrayList<>();
+            for (Runnable task : super.shutdownNow())
+                tasks.add(task instanceof TimedTask ? ((TimedTask) task).task : task);
+            return tasks;
+        }
+    }
+
+    private static class TimedTask implements Runnable {
+        private final Runnable task;
+        private final Recorder recorder;
+        private final long submitted;
+
+        TimedTask(Runnable task, Recorder recorder) {
+            this.task = task;
+            this.recorder = recorder;
+            this.submitted = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                this.task.run();
+            } finally {
+                this.recorder.record(start - this.submitted, System.nanoTime() - start);
+            }
+        }
+    }
+
+    // A scheduled pool that rejects tasks when its queue is full. The queue latency of a task is the time from that
+    // it should have started until it did.
+    private static class MeteredScheduledExecutor extends ScheduledThreadPoolExecutor {
+        private final Recorder recorder;
+        private final int queueCapacity;
+
+        MeteredScheduledExecutor(Role role, Recorder recorder) {
+            super(role.threads, threadFactory(role), rejectionHandler(role, recorder));
+            this.recorder = recorder;
+            this.queueCapacity = role.queueCapacity;
+            // Cancelled announcements leaves the queue at once so that they don't count against its capacity.
+            setRemoveOnCancelPolicy(true);
+        }
+
+        // The delayed queue of a scheduled pool is unbounded, so the capacity is checked before every task is added.
+        // execute() and submit() are implemented with schedule().
+        private void checkCapacity(Runnable task) {
+            if (getQueue().size() >= this.queueCapacity)
+                getRejectedExecutionHandler().rejectedExecution(task, this);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            checkCapacity(command);
+            return super.schedule(command, delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            checkCapacity(null);
+            return super.schedule(callable, delay, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                      TimeUnit unit) {
+            checkCapacity(command);
+            return super.scheduleAtFixedRate(command, initialDelay, period, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit) {
+            checkCapacity(command);
+            return super.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+        }
+
+        @Override
+        protected <V> RunnableScheduledFuture<V> decorateTask(Runnable runnable, RunnableScheduledFuture<V> task) {
+            return new TimedScheduledTask<>(task);
+        }
+
+        @Override
+        protected <V> RunnableScheduledFuture<V> decorateTask(Callable<V> callable, RunnableScheduledFuture<V> task) {
+            return new TimedScheduledTask<>(task);
+        }
+
+        // The pool re-queues this wrapper after every run of a periodic task, so every run is measured.
+        private class TimedScheduledTask<V> implements RunnableScheduledFuture<V> {
+            private final RunnableScheduledFuture<V> task;
+
+            TimedScheduledTask(RunnableScheduledFuture<V> task) {
+                this.task = task;
+            }
+
+            @Override
+            public void run() {
+                long late = Math.max(0, -this.task.getDelay(TimeUnit.NANOSECONDS));
+                long start = System.nanoTime();
+                try {
+                    this.task.run();
+                } finally {
+                    MeteredScheduledExecutor.this.recorder.record(late, System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public boolean isPeriodic() {
+                return this.task.isPeriodic();
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return this.task.getDelay(unit);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                // Unwrapped so that tasks with the same time keeps their submission order.
+                return this.task.compareTo(other instanceof TimedScheduledTask
+                        ? ((TimedScheduledTask<?>) other).task
+                        : other);
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // The pool only removes the task it created, but it is this wrapper that is in the queue.
+                boolean cancelled = this.task.cancel(mayInterruptIfRunning);
+                if (cancelled && getRemoveOnCancelPolicy())
+                    remove(this);
+                return cancelled;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return this.task.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return this.task.isDone();
+            }
+
+            @Override
+            public V get() throws InterruptedException, ExecutionException {
+                return this.task.get();
+            }
+
+            @Override
+            public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+                return this.task.get(timeout, unit);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.jmatss.send.util;
+
+/**
+ * A forward error correction code over a block of equally sized shards. The encoder creates parity shards from
+ * the data shards and the decoder rebuilds lost data shards from the shards that were received, so a lost
+ * datagram can be repaired by the receiver instead of being requested again.
+ */
+public interface FecCodec {
+    /**
+     * @return the maximum amount of data and parity shards together in one block.
+     */
+    int getMaxShards();
+
+    /**
+     * Creates the parity shards of a block.
+     *
+     * @param data        the data shards, all of the same length.
+     * @param parityCount the amount of parity shards to create.
+     * @return "parityCount" parity shards with the same length as the data shards.
+     */
+    byte[][] encode(byte[][] data, int parityCount);
+
+    /**
+     * Rebuilds the lost data shards of a block in place. The first "dataCount" elements of "shards" are the data
+     * shards and the rest are the parity shards in the order that they were created, a lost shard is null.
+     *
+     * @param shards    the received shards of the block, all of the same length.
+     * @param dataCount the amount of data shards in the block.
+     * @return true if all data shards are available when this returns, false if too few shards were received.
+     */
+    boolean decode(byte[][] shards, int dataCount);
+}
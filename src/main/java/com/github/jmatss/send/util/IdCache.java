@@ -0,0 +1,134 @@
+package com.github.jmatss.send.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free set of int ids with a fixed capacity, ex. the ids of the announcements that has already been
+ * downloaded. When the set is full, the ids that hasn't been looked up for the longest time are evicted one at a
+ * time instead of clearing the whole set.
+ * <p>
+ * The set is an open addressing table split into buckets of BUCKET_SIZE slots. An id is only stored in the bucket
+ * of its hash, so a lookup reads at most one bucket. Every slot holds an id, an occupied bit and a referenced bit
+ * in one long that is updated with compare-and-set. A full bucket evicts with the CLOCK algorithm: the hand of the
+ * bucket passes over the slots, clears their referenced bits and evicts the first slot without one. Concurrent adds
+ * of the same id might store it twice, which only wastes a slot.
+ */
+public class IdCache {
+    public static final int BUCKET_SIZE = 8;
+    private static final long OCCUPIED = 1L << 32;
+    private static final long REFERENCED = 1L << 33;
+    private static final long ID_MASK = 0xffffffffL;
+
+    private final AtomicLongArray slots;
+    // The clock hand of every bucket, the index of the slot in the bucket to look at next.
+    private final AtomicIntegerArray hands;
+    private final int bucketMask;
+
+    /**
+     * @param capacity the maximum amount of ids, rounded up to a power of two of at least BUCKET_SIZE.
+     */
+    public IdCache(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Incorrect capacity: " + capacity);
+        int slotCount = Math.max(BUCKET_SIZE, Integer.highestOneBit(capacity - 1) << 1);
+        this.slots = new AtomicLongArray(slotCount);
+        this.hands = new AtomicIntegerArray(slotCount / BUCKET_SIZE);
+        this.bucketMask = slotCount / BUCKET_SIZE - 1;
+    }
+
+    /**
+     * @return the maximum amount of ids.
+     */
+    public int capacity() {
+        return this.slots.length();
+    }
+
+    /**
+     * Looks up the id and marks it as recently used if it is in the set.
+     *
+     * @param id the id.
+     * @return true if the set contains the id.
+     */
+    public boolean contains(int id) {
+        int start = bucketOf(id) * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            long slot = this.slots.get(i);
+            if (matches(slot, id)) {
+                if ((slot & REFERENCED) == 0)
+                    this.slots.compareAndSet(i, slot, slot | REFERENCED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the id to the set. If the bucket of the id is full, an id that hasn't been used recently is evicted.
+     *
+     * @param id the id.
+     * @return false if the set already contained the id.
+     */
+    public boolean add(int id) {
+        int bucket = bucketOf(id);
+        int start = bucket * BUCKET_SIZE;
+        // A new id isn't referenced until it is looked up, so a burst of ids that are only seen once can't evict
+        // the ids that are announced again and again.
+        long entry = OCCUPIED | (id & ID_MASK);
+        while (true) {
+            int free = -1;
+            for (int i = start; i < start + BUCKET_SIZE; i++) {
+                long slot = this.slots.get(i);
+                if (matches(slot, id))
+                    return false;
+                if (free == -1 && (slot & OCCUPIED) == 0)
+                    free = i;
+            }
+            if (free != -1) {
+                if (this.slots.compareAndSet(free, 0, entry))
+                    return true;
+                // Another thread took the slot, look again since it might have added the same id.
+                continue;
+            }
+            if (evict(bucket, start, entry))
+                return true;
+        }
+    }
+
+    // Replaces the first slot after the clock hand that isn't referenced, clears the referenced bits of the slots
+    // that the hand passes. Returns false if another thread changed the slot that was chosen.
+    private boolean evict(int bucket, int start, long entry) {
+        // Two rounds are enough since the first round clears every referenced bit.
+        for (int n = 0; n < 2 * BUCKET_SIZE; n++) {
+            int hand = this.hands.getAndIncrement(bucket) & (BUCKET_SIZE - 1);
+            int i = start + hand;
+            long slot = this.slots.get(i);
+            if ((slot & REFERENCED) == 0)
+                return this.slots.compareAndSet(i, slot, entry);
+            this.slots.compareAndSet(i, slot, slot & ~REFERENCED);
+        }
+        return false;
+    }
+
+    /**
+     * @return the amount of ids in the set, counted without a lock so it is approximate while ids are added.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < this.slots.length(); i++) {
+            if ((this.slots.get(i) & OCCUPIED) != 0)
+                size++;
+        }
+        return size;
+    }
+
+    private static boolean matches(long slot, int id) {
+        return (slot & OCCUPIED) != 0 && (int) slot == id;
+    }
+
+    // The ids are random, but a hash of them is used anyway so that sequential ids spread over the buckets.
+    private int bucketOf(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & this.bucketMask;
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.jmatss.send.util;
+
+import java.io.IOException;
+import java.net.MulticastSocket;
+
+/**
+ * Creates the multicast sockets used to send and receive file pieces over multicast. Can be replaced to run the
+ * multicast data plane over a test double.
+ */
+@FunctionalInterface
+public interface MulticastSocketFactory {
+    /**
+     * @param port the port to bind the socket to, 0 for any port.
+     * @return a new multicast socket.
+     * @throws IOException if it is unable to create the socket.
+     */
+    MulticastSocket create(int port) throws IOException;
+}
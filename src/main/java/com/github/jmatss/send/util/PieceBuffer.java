@@ -0,0 +1,96 @@
+package com.github.jmatss.send.util;
+
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.HashType;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A file piece that has been read from the network into a pooled buffer but not yet decompressed or verified, see
+ * SocketWrapper.receiveFilePiece(int, BufferPool). The piece is verified with verify(), which can be done on another
+ * thread than the one that read it, and the buffer must be released when the piece has been written.
+ */
+public class PieceBuffer {
+    // The pool that "buf" belongs to.
+    private BufferPool pool;
+    private final int index;
+    private final CompressionType compressionType;
+    private final int originalLength;
+    private final HashType hashType;
+    private final byte[] digest;
+    private byte[] buf;
+    private int length;
+
+    PieceBuffer(BufferPool pool, int index, CompressionType compressionType, byte[] buf, int length,
+                int originalLength, HashType hashType, byte[] digest) {
+        this.pool = pool;
+        this.index = index;
+        this.compressionType = compressionType;
+        this.buf = buf;
+        this.length = length;
+        this.originalLength = originalLength;
+        this.hashType = hashType;
+        this.digest = digest;
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the pooled buffer containing the piece. Only the first getLength() bytes belong to the piece.
+     */
+    public byte[] getBuffer() {
+        return this.buf;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Decompresses the piece if it is compressed and verifies its digest.
+     *
+     * @param decompressPool the pool of the buffer that a compressed piece is decompressed into. Must not be the
+     *                       pool that the piece was read into, or the reader could hold every buffer while the
+     *                       verifiers wait for one.
+     * @throws IOException if the piece can't be decompressed or if its digest is incorrect.
+     */
+    public void verify(BufferPool decompressPool) throws IOException {
+        if (this.compressionType != CompressionType.NONE) {
+            byte[] out = decompressPool.acquire();
+            try {
+                this.compressionType.decompress(this.buf, this.length, out, this.originalLength);
+            } catch (IOException | RuntimeException e) {
+                decompressPool.release(out);
+                throw e;
+            }
+            this.pool.release(this.buf);
+            this.pool = decompressPool;
+            this.buf = out;
+            this.length = this.originalLength;
+        }
+
+        if (this.hashType == HashType.NONE)
+            return;
+        MessageDigest md = this.hashType.getPooledMessageDigest();
+        md.update(this.buf, 0, this.length);
+        byte[] actualDigest = md.digest();
+        if (!Arrays.equals(actualDigest, this.digest))
+            throw new IOException("Received packet digest of piece " + this.index + " is incorrect. " +
+                    "Calculated digest of received piece data: " + Arrays.toString(actualDigest) +
+                    ", digest received from remote: " + Arrays.toString(this.digest));
+    }
+
+    /**
+     * Returns the buffer to the pool. The piece must not be used afterwards.
+     */
+    public void release() {
+        if (this.buf == null)
+            return;
+        this.pool.release(this.buf);
+        this.buf = null;
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.jmatss.send.util;
+
+/**
+ * A systematic Reed-Solomon code over GF(2^8). The data shards are sent unmodified and parity shard i is the
+ * product of row i of a Cauchy matrix and the data shards. Every square sub matrix of the identity matrix on
+ * top of a Cauchy matrix is invertible, so any "dataCount" of the shards of a block are enough to rebuild the
+ * data shards.
+ */
+public class ReedSolomonCodec implements FecCodec {
+    // The elements of GF(2^8) are used as the coordinates of the Cauchy matrix, so a block has at most 256 shards.
+    public static final int MAX_SHARDS = 256;
+    private static final int POLYNOMIAL = 0x11d;
+
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    // MUL[a][b] = a * b in GF(2^8).
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256)
+                x ^= POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++)
+            EXP[i] = EXP[i - 255];
+
+        for (int a = 1; a < 256; a++)
+            for (int b = 1; b < 256; b++)
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+    }
+
+    @Override
+    public int getMaxShards() {
+        return MAX_SHARDS;
+    }
+
+    @Override
+    public byte[][] encode(byte[][] data, int parityCount) {
+        checkBlock(data.length, parityCount);
+        int length = data[0].length;
+        byte[][] parity = new byte[parityCount][length];
+        for (int i = 0; i < parityCount; i++)
+            for (int j = 0; j < data.length; j++)
+                mulAdd(parity[i], data[j], cauchy(data.length, i, j));
+        return parity;
+    }
+
+    @Override
+    public boolean decode(byte[][] shards, int dataCount) {
+        checkBlock(dataCount, shards.length - dataCount);
+
+        // Uses the first "dataCount" received shards, the received data shards are preferred since their rows
+        // of the matrix are unit rows.
+        int[] rows = new int[dataCount];
+        int count = 0;
+        boolean lostData = false;
+        for (int i = 0; i < shards.length && count < dataCount; i++) {
+            if (shards[i] != null)
+                rows[count++] = i;
+            else if (i < dataCount)
+                lostData = true;
+        }
+        if (!lostData)
+            return true;
+        else if (count < dataCount)
+            return false;
+
+        byte[][] matrix = new byte[dataCount][dataCount];
+        for (int r = 0; r < dataCount; r++) {
+            if (rows[r] < dataCount) {
+                matrix[r][rows[r]] = 1;
+            } else {
+                for (int j = 0; j < dataCount; j++)
+                    matrix[r][j] = cauchy(dataCount, rows[r] - dataCount, j);
+            }
+        }
+        byte[][] inverse = invert(matrix);
+
+        // data = inverse * received, only the lost data shards needs to be calculated.
+        int length = shards[rows[0]].length;
+        for (int j = 0; j < dataCount; j++) {
+            if (shards[j] != null)
+                continue;
+            byte[] shard = new byte[length];
+            for (int r = 0; r < dataCount; r++)
+                mulAdd(shard, shards[rows[r]], inverse[j][r]);
+            shards[j] = shard;
+        }
+        return true;
+    }
+
+    private void checkBlock(int dataCount, int parityCount) {
+        if (dataCount <= 0 || parityCount < 0 || dataCount + parityCount > MAX_SHARDS)
+            throw new IllegalArgumentException("Incorrect Reed-Solomon block with " + dataCount + " data shards and " +
+                    parityCount + " parity shards");
+    }
+
+    // The element at row "parityIndex" and column "dataIndex" of the Cauchy matrix, 1 / (x_i + y_j) with the
+    // distinct coordinates x_i = dataCount + i and y_j = j.
+    private static byte cauchy(int dataCount, int parityIndex, int dataIndex) {
+        return inverse((dataCount + parityIndex) ^ dataIndex);
+    }
+
+    private static byte inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    // dst += c * src
+    private static void mulAdd(byte[] dst, byte[] src, byte c) {
+        if (c == 0)
+            return;
+        byte[] table = MUL[c & 0xff];
+        for (int i = 0; i < dst.length; i++)
+            dst[i] ^= table[src[i] & 0xff];
+    }
+
+    // Gauss-Jordan elimination, the matrix is always invertible since it is a sub matrix of an MDS code.
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] inverse = new byte[n][n];
+        for (int i = 0; i < n; i++)
+            inverse[i][i] = 1;
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (matrix[pivot][col] == 0)
+                pivot++;
+            swap(matrix, col, pivot);
+            swap(inverse, col, pivot);
+
+            byte scale = inverse(matrix[col][col] & 0xff);
+            scale(matrix[col], scale);
+            scale(inverse[col], scale);
+
+            for (int row = 0; row < n; row++) {
+                byte factor = matrix[row][col];
+                if (row == col || factor == 0)
+                    continue;
+                mulAdd(matrix[row], matrix[col], factor);
+                mulAdd(inverse[row], inverse[col], factor);
+            }
+        }
+        return inverse;
+    }
+
+    private static void swap(byte[][] matrix, int a, int b) {
+        byte[] tmp = matrix[a];
+        matrix[a] = matrix[b];
+        matrix[b] = tmp;
+    }
+
+    private static void scale(byte[] row, byte c) {
+        byte[] table = MUL[c & 0xff];
+        for (int i = 0; i < row.length; i++)
+            row[i] = table[row[i] & 0xff];
+    }
+}
@@ -2,32 +2,73 @@ package com.github.jmatss.send.util;
 
 import com.github.jmatss.send.Controller;
 import com.github.jmatss.send.packet.*;
+import com.github.jmatss.send.protocol.BlockSignatures;
+import com.github.jmatss.send.protocol.ChunkList;
+import com.github.jmatss.send.protocol.DeltaEncoder;
+import com.github.jmatss.send.protocol.FastCdc;
 import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.FecType;
 import com.github.jmatss.send.type.HashType;
 import com.github.jmatss.send.type.MessageType;
 import com.github.jmatss.send.exception.IncorrectHashTypeException;
 import com.github.jmatss.send.exception.IncorrectMessageTypeException;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class SocketWrapper {
     private final Socket socket;
     private final PushbackInputStream in;
     private final OutputStream out;
+    // The streams under "in" and "out" that limits the rate of the connection, null if the stream is null.
+    private final ThrottledInputStream throttledIn;
+    private final ThrottledOutputStream throttledOut;
+
+    // Lazily created channel and reusable header/trailer buffers used when sending file pieces with zero-copy.
+    private WritableByteChannel outChannel;
+    // True if the out channel is the channel of the socket, its writes then bypass the throttled output stream.
+    private boolean socketChannel;
+    private ByteBuffer pieceHeader;
+    private ByteBuffer pieceTrailer;
+    // The largest piece (and text) that is accepted from the remote, the piece size negotiated in the REQUEST.
+    private int maxPieceSize;
 
     private SocketWrapper(Socket socket, InputStream in, OutputStream out) {
         this.socket = socket;
-        this.in = new PushbackInputStream(in);
-        this.out = out;
+        this.throttledIn = in != null ? new ThrottledInputStream(in) : null;
+        this.throttledOut = out != null ? new ThrottledOutputStream(out) : null;
+        this.in = new PushbackInputStream(this.throttledIn);
+        this.out = this.throttledOut;
+        this.maxPieceSize = Protocol.DEFAULT_PIECE_SIZE;
     }
 
     public SocketWrapper(Socket socket) throws IOException {
         this(socket, socket.getInputStream(), socket.getOutputStream());
     }
 
+    /**
+     * Wraps a connection whose first bytes have already been read, ex. by a non-blocking reader. The bytes are
+     * read again before the bytes of the socket.
+     *
+     * @param socket   a connected socket in blocking mode.
+     * @param buffered the bytes that have been read from the socket but not handled.
+     * @throws IOException if it is unable to get the streams of the socket.
+     */
+    public SocketWrapper(Socket socket, byte[] buffered) throws IOException {
+        this(socket, new SequenceInputStream(new ByteArrayInputStream(buffered), socket.getInputStream()),
+                socket.getOutputStream());
+    }
+
     public SocketWrapper(InputStream in) {
         this(null, in, null);
     }
@@ -42,6 +83,43 @@ public class SocketWrapper {
         if (this.socket != null) this.socket.close();
     }
 
+    /**
+     * Limits the rate of the bytes sent over the connection, including file pieces sent with zero-copy.
+     *
+     * @param bucket the bucket to take the sent bytes from, or null to send without a limit.
+     */
+    public void setSendBucket(TokenBucket bucket) {
+        if (this.throttledOut != null)
+            this.throttledOut.setBucket(bucket);
+    }
+
+    /**
+     * Limits the rate of the bytes received over the connection.
+     *
+     * @param bucket the bucket to take the received bytes from, or null to receive without a limit.
+     */
+    public void setReceiveBucket(TokenBucket bucket) {
+        if (this.throttledIn != null)
+            this.throttledIn.setBucket(bucket);
+    }
+
+    /**
+     * Sets the largest piece size that is accepted in FILE_INFO, FILE_PIECE and TEXT packets, i.e. the largest piece
+     * size that was sent in the REQUEST of the connection. Larger pieces are rejected with an IOException instead
+     * of being allocated.
+     *
+     * @param maxPieceSize the largest piece size, Protocol.DEFAULT_PIECE_SIZE until this is called.
+     */
+    public void setMaxPieceSize(int maxPieceSize) {
+        if (maxPieceSize < Protocol.MIN_PIECE_SIZE || maxPieceSize > Protocol.MAX_PIECE_SIZE)
+            throw new IllegalArgumentException("Incorrect max piece size: " + maxPieceSize);
+        this.maxPieceSize = maxPieceSize;
+    }
+
+    public int getMaxPieceSize() {
+        return this.maxPieceSize;
+    }
+
     public boolean isClosed() throws IOException {
         nullGuard(this.socket);
         return this.socket.isClosed();
@@ -75,6 +153,19 @@ public class SocketWrapper {
         }
     }
 
+    /**
+     * Reads the MessageType of the next packet without removing it from the input stream.
+     *
+     * @return the MessageType of the next packet.
+     * @throws IOException                   if it is unable to read from the input stream.
+     * @throws IncorrectMessageTypeException if the next byte isn't a valid MessageType.
+     */
+    public MessageType peekMessageType() throws IOException, IncorrectMessageTypeException {
+        byte b = readByte();
+        this.in.unread(b);
+        return MessageType.valueOf(b);
+    }
+
     public boolean isDone() throws IOException {
         return isByteUnreadIfIncorrect((byte) MessageType.DONE.getValue());
     }
@@ -88,6 +179,10 @@ public class SocketWrapper {
         return isByte((byte) MessageType.NO.getValue());
     }
 
+    public boolean isChunks() throws IOException {
+        return isByte((byte) MessageType.CHUNKS.getValue());
+    }
+
     public void sendByte(byte b) throws IOException {
         nullGuard(this.out);
         this.out.write(b);
@@ -98,6 +193,74 @@ public class SocketWrapper {
         this.out.write(packet.getBytes());
     }
 
+    /**
+     * Sends a file piece without copying the piece content into the heap. The header and trailer of the
+     * FILE_PIECE packet are written from small reusable buffers while the content is transferred straight from
+     * the file channel to the socket with FileChannel.transferTo. The bytes written are identical to the bytes of
+     * the corresponding FilePiecePacket.
+     *
+     * @param fileChannel the channel of the file to read the piece content from.
+     * @param index       the index of the piece.
+     * @param position    the position in the file where the piece starts.
+     * @param length      the length of the piece.
+     * @param hashType    the HashType of the piece digest.
+     * @param digest      the digest of the piece content. Ignored if hashType is HashType.NONE.
+     * @throws IOException if it is unable to read from the file or write to the socket.
+     */
+    public void sendFilePiece(FileChannel fileChannel, int index, long position, int length, HashType hashType,
+                              byte[] digest) throws IOException {
+        nullGuard(this.out);
+        if (this.outChannel == null) {
+            // Sockets created from a SocketChannel can be given directly to transferTo which lets the kernel
+            // move the data without any copies into user space.
+            this.socketChannel = this.socket != null && this.socket.getChannel() != null;
+            if (this.socketChannel)
+                this.outChannel = this.socket.getChannel();
+            else
+                this.outChannel = Channels.newChannel(this.out);
+            this.pieceHeader = ByteBuffer.allocate(1 + 4 + 1 + 4);
+            this.pieceTrailer = ByteBuffer.allocate(1 + HashType.MAX_SIZE);
+        }
+
+        this.pieceHeader.clear()
+                .put((byte) MessageType.FILE_PIECE.getValue())
+                .putInt(index)
+                .put((byte) CompressionType.NONE.getValue())
+                .putInt(length)
+                .flip();
+        writeFully(this.pieceHeader);
+
+        // The content is transferred in parts when the rate is limited, so that the piece is spread out over time.
+        long transferred = 0;
+        while (transferred < length) {
+            long end = this.throttledOut.isThrottled()
+                    ? Math.min(length, transferred + TokenBucket.MAX_TAKE)
+                    : length;
+            if (this.socketChannel)
+                this.throttledOut.acquire(end - transferred);
+            while (transferred < end) {
+                long n = fileChannel.transferTo(position + transferred, end - transferred, this.outChannel);
+                if (n <= 0)
+                    throw new EOFException("End of file reached while transferring piece " + index + ". " +
+                            "Expected: " + length + " bytes, got: " + transferred + " bytes.");
+                transferred += n;
+            }
+        }
+
+        this.pieceTrailer.clear().put((byte) hashType.getValue());
+        if (hashType != HashType.NONE)
+            this.pieceTrailer.put(digest);
+        this.pieceTrailer.flip();
+        writeFully(this.pieceTrailer);
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        if (this.socketChannel)
+            this.throttledOut.acquire(buf.remaining());
+        while (buf.hasRemaining())
+            this.outChannel.write(buf);
+    }
+
     public void sendDone() throws IOException {
         sendByte((byte) MessageType.DONE.getValue());
     }
@@ -110,6 +273,10 @@ public class SocketWrapper {
         sendByte((byte) MessageType.NO.getValue());
     }
 
+    public void sendChunks() throws IOException {
+        sendByte((byte) MessageType.CHUNKS.getValue());
+    }
+
     public String receiveText(int localIndex)
     throws IOException, IncorrectMessageTypeException {
         MessageType messageType = MessageType.TEXT;
@@ -121,12 +288,16 @@ public class SocketWrapper {
             throw new IOException("Index received from remote packet is different from the local index." +
                     " Local index: " + localIndex + ", remote index: " + remoteIndex);
 
+        CompressionType compressionType = CompressionType.valueOf(readByte());
         int textLength = readInt();
-        if (textLength > Protocol.MAX_PIECE_SIZE)
-            throw new IOException("textLength > Protocol.MAX_PIECE_SIZE (" +
-                    textLength + " > " + Protocol.MAX_PIECE_SIZE);
-
-        return new String(readN(textLength), Controller.ENCODING);
+        int originalLength = compressionType != CompressionType.NONE ? readInt() : textLength;
+        if (textLength < 0 || originalLength < 0 || textLength > this.maxPieceSize ||
+                originalLength > this.maxPieceSize)
+            throw new IOException("Received text with incorrect length (" + Math.max(textLength, originalLength) +
+                    "), the max piece size is " + this.maxPieceSize);
+
+        byte[] text = compressionType.decompress(readN(textLength), originalLength);
+        return new String(text, Controller.ENCODING);
     }
 
     public RequestPacket receiveRequest() throws IOException, IncorrectMessageTypeException {
@@ -137,8 +308,13 @@ public class SocketWrapper {
         int topicLength = readByte();
         String topic = new String(readN(topicLength), Controller.ENCODING);
         byte[] id = readN(4);
+        int compressionTypes = readByte() & 0xff;
+        int maxPieceSize = readInt();
+        if (maxPieceSize < Protocol.MIN_PIECE_SIZE)
+            throw new IOException("Received incorrect max piece size: " + maxPieceSize);
+        int flags = readByte() & 0xff;
 
-        return new RequestPacket(topic, id);
+        return new RequestPacket(topic, id, compressionTypes, maxPieceSize, flags);
     }
 
     /**
@@ -160,10 +336,303 @@ public class SocketWrapper {
         int nameLength = readInt();
         String name = new String(readN(nameLength), Controller.ENCODING);
         long fileLength = readLong();
+        int pieceSize = readInt();
+        if (pieceSize <= 0 || pieceSize > this.maxPieceSize)
+            throw new IOException("Received incorrect piece size: " + pieceSize + ", the max piece size is " +
+                    this.maxPieceSize);
         HashType hashType = HashType.valueOf(readByte());
         byte[] digest = readN(hashType.getSize());
 
-        return new FileInfoPacket(name, fileLength, hashType, digest);
+        return new FileInfoPacket(name, fileLength, pieceSize, hashType, digest);
+    }
+
+    /**
+     * Receives a manifest and validates every entry like a FILE_INFO.
+     *
+     * @return a ManifestPacket containing the FILE_INFO of every file of the topic.
+     * @throws IOException                   if it is unable to read from the input stream or if the manifest is
+     *                                       larger than ManifestPacket.MAX_SIZE, contains more than
+     *                                       ManifestPacket.MAX_COUNT files or has incorrect entries.
+     * @throws IncorrectMessageTypeException if the packet isn't a MANIFEST.
+     * @throws IncorrectHashTypeException    if an entry contains an invalid HashType.
+     */
+    public ManifestPacket receiveManifest()
+    throws IOException, IncorrectMessageTypeException, IncorrectHashTypeException {
+        MessageType messageType = MessageType.MANIFEST;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        CompressionType compressionType = CompressionType.valueOf(readByte());
+        int length = readInt();
+        int originalLength = compressionType != CompressionType.NONE ? readInt() : length;
+        if (length < 4 || originalLength < 4 || length > ManifestPacket.MAX_SIZE ||
+                originalLength > ManifestPacket.MAX_SIZE)
+            throw new IOException("Received manifest with incorrect length: " + Math.max(length, originalLength));
+
+        ByteBuffer buf = ByteBuffer.wrap(compressionType.decompress(readN(length), originalLength));
+        int count = buf.getInt();
+        if (count < 0 || count > ManifestPacket.MAX_COUNT)
+            throw new IOException("Received incorrect file count in manifest: " + count);
+
+        List<FileInfoPacket> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                int nameLength = buf.getInt();
+                if (nameLength < 0 || nameLength > buf.remaining())
+                    throw new IOException("Received incorrect name length in manifest: " + nameLength);
+                byte[] name = new byte[nameLength];
+                buf.get(name);
+                long fileLength = buf.getLong();
+                int pieceSize = buf.getInt();
+                if (fileLength < 0 || pieceSize <= 0 || pieceSize > this.maxPieceSize)
+                    throw new IOException("Received incorrect file length (" + fileLength + ") or piece size (" +
+                            pieceSize + ") in manifest, the max piece size is " + this.maxPieceSize);
+                HashType hashType = HashType.valueOf(buf.get());
+                byte[] digest = new byte[hashType.getSize()];
+                buf.get(digest);
+                files.add(new FileInfoPacket(new String(name, Controller.ENCODING), fileLength, pieceSize, hashType,
+                        digest));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Received manifest that ends in the middle of an entry");
+        }
+        if (buf.hasRemaining())
+            throw new IOException("Received manifest with " + buf.remaining() + " bytes after the last entry");
+
+        return new ManifestPacket(files, compressionType);
+    }
+
+    /**
+     * @param fileCount the amount of files in the manifest that is answered.
+     * @return the received WantedFilesPacket.
+     * @throws IOException                   if it is unable to read from the input stream, if the bitmaps aren't of
+     *                                       "fileCount" files or if a file is set in both bitmaps.
+     * @throws IncorrectMessageTypeException if the packet isn't a WANTED_FILES.
+     */
+    public WantedFilesPacket receiveWantedFiles(int fileCount) throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.WANTED_FILES;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int count = readInt();
+        if (count != fileCount)
+            throw new IOException("Received WANTED_FILES of " + count + " files for a manifest of " + fileCount +
+                    " files");
+
+        Bitmap stream = Bitmap.fromByteArray(count, readN(Bitmap.byteSize(count)));
+        Bitmap exchange = Bitmap.fromByteArray(count, readN(Bitmap.byteSize(count)));
+        checkWantedFiles(stream, exchange);
+        return new WantedFilesPacket(stream, exchange);
+    }
+
+    /**
+     * @throws IOException if a file is set in both bitmaps of a WANTED_FILES.
+     */
+    public static void checkWantedFiles(Bitmap stream, Bitmap exchange) throws IOException {
+        for (int i = stream.nextSet(0); i != -1; i = stream.nextSet(i + 1)) {
+            if (exchange.get(i))
+                throw new IOException("Received WANTED_FILES with file " + i + " both streamed and exchanged");
+        }
+    }
+
+    public RangePacket receiveRange() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.RANGE;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int start = readInt();
+        int count = readInt();
+
+        return new RangePacket(start, count);
+    }
+
+    public StripesPacket receiveStripes() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.STRIPES;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int count = readByte() & 0xff;
+        if (count == 0)
+            throw new IOException("Received incorrect stripe count: " + count);
+
+        return new StripesPacket(count);
+    }
+
+    public StripePacket receiveStripe() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.STRIPE;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int start = readInt();
+        int count = readInt();
+        int stride = readInt();
+        if (stride <= 0)
+            throw new IOException("Received incorrect stripe stride: " + stride);
+
+        return new StripePacket(start, count, stride);
+    }
+
+    public MulticastPacket receiveMulticast() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.MULTICAST;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int sessionId = readInt();
+        int addressLength = readByte() & 0xff;
+        if (addressLength != 4 && addressLength != 16)
+            throw new IOException("Received incorrect multicast address length: " + addressLength);
+        InetAddress group = InetAddress.getByAddress(readN(addressLength));
+        if (!group.isMulticastAddress())
+            throw new IOException("Received address isn't a multicast address: " + group);
+        int port = readInt();
+        if (port <= 0 || port > (1 << 16) - 1)
+            throw new IOException("Received incorrect multicast port: " + port);
+
+        return new MulticastPacket(sessionId, group, port);
+    }
+
+    public JoinPacket receiveJoin() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.JOIN;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int pieceCount = readInt();
+        if (pieceCount < 0)
+            throw new IOException("Received incorrect piece count: " + pieceCount);
+
+        return new JoinPacket(Bitmap.fromByteArray(pieceCount, readN(Bitmap.byteSize(pieceCount))));
+    }
+
+    public FragmentPacket receiveFragment()
+    throws IOException, IncorrectMessageTypeException, IncorrectHashTypeException {
+        MessageType messageType = MessageType.FRAGMENT;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int sessionId = readInt();
+        int fileIndex = readInt();
+        int pieceIndex = readInt();
+        FecType fecType = FecType.valueOf(readByte());
+        int offset = readInt();
+        int length = ((readByte() & 0xff) << 8) | (readByte() & 0xff);
+        if (offset < 0 || length > FragmentPacket.MAX_DATA_SIZE)
+            throw new IOException("Received incorrect fragment with offset " + offset + " and length " + length);
+        byte[] data = readN(length);
+        HashType hashType = HashType.valueOf(readByte());
+        byte[] digest = readN(hashType.getSize());
+
+        return new FragmentPacket(sessionId, fileIndex, pieceIndex, fecType, offset, data, hashType, digest);
+    }
+
+    public SignaturesPacket receiveSignatures() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.SIGNATURES;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int blockSize = readInt();
+        int count = readInt();
+        if (blockSize <= 0 || blockSize > BlockSignatures.MAX_BLOCK_SIZE)
+            throw new IOException("Received incorrect block size: " + blockSize);
+        if (count < 0 || count > BlockSignatures.MAX_COUNT)
+            throw new IOException("Received incorrect block count: " + count);
+
+        // Reads the signatures in chunks so that a large count doesn't allocate more than what is received.
+        int[] weak = new int[0];
+        long[] strong = new long[0];
+        for (int i = 0; i < count; ) {
+            int n = Math.min(count - i, 1 << 12);
+            ByteBuffer buf = ByteBuffer.wrap(readN(n * (4 + 8)));
+            weak = Arrays.copyOf(weak, i + n);
+            strong = Arrays.copyOf(strong, i + n);
+            for (int j = 0; j < n; j++, i++) {
+                weak[i] = buf.getInt();
+                strong[i] = buf.getLong();
+            }
+        }
+
+        return new SignaturesPacket(new BlockSignatures(blockSize, weak, strong));
+    }
+
+    public CopyPacket receiveCopy() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.COPY;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int block = readInt();
+        int count = readInt();
+        if (block < 0 || count <= 0)
+            throw new IOException("Received incorrect copy of " + count + " blocks from block " + block);
+
+        return new CopyPacket(block, count);
+    }
+
+    public LiteralPacket receiveLiteral() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.LITERAL;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int length = readInt();
+        if (length < 0 || length > DeltaEncoder.MAX_LITERAL_SIZE)
+            throw new IOException("Received literal with incorrect length: " + length);
+
+        return new LiteralPacket(readN(length));
+    }
+
+    public ChunkListPacket receiveChunkList() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.CHUNK_LIST;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int count = readInt();
+        if (count < 0 || count > ChunkList.MAX_COUNT)
+            throw new IOException("Received incorrect chunk count: " + count);
+
+        // Reads the list in parts so that a large count doesn't allocate more than what is received.
+        int digestSize = ChunkList.HASH_TYPE.getSize();
+        int[] lengths = new int[0];
+        byte[] digests = new byte[0];
+        for (int i = 0; i < count; ) {
+            int n = Math.min(count - i, 1 << 12);
+            ByteBuffer buf = ByteBuffer.wrap(readN(n * (4 + digestSize)));
+            lengths = Arrays.copyOf(lengths, i + n);
+            digests = Arrays.copyOf(digests, (i + n) * digestSize);
+            for (int j = 0; j < n; j++, i++) {
+                lengths[i] = buf.getInt();
+                if (lengths[i] <= 0 || lengths[i] > FastCdc.MAX_SIZE)
+                    throw new IOException("Received chunk with incorrect length: " + lengths[i]);
+                buf.get(digests, i * digestSize, digestSize);
+            }
+        }
+
+        return new ChunkListPacket(new ChunkList(lengths, digests));
+    }
+
+    public WantPacket receiveWant() throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.WANT;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int chunkCount = readInt();
+        if (chunkCount < 0 || chunkCount > ChunkList.MAX_COUNT)
+            throw new IOException("Received incorrect chunk count: " + chunkCount);
+
+        return new WantPacket(Bitmap.fromByteArray(chunkCount, readN(Bitmap.byteSize(chunkCount))));
+    }
+
+    public ChunkPacket receiveChunk(int localIndex) throws IOException, IncorrectMessageTypeException {
+        MessageType messageType = MessageType.CHUNK;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int remoteIndex = readInt();
+        if (localIndex != remoteIndex)
+            throw new IOException("Index received from remote packet is different from the local index." +
+                    " local index: " + localIndex + ", remote index: " + remoteIndex);
+        int length = readInt();
+        if (length <= 0 || length > FastCdc.MAX_SIZE)
+            throw new IOException("Received chunk with incorrect length: " + length);
+
+        return new ChunkPacket(remoteIndex, readN(length));
     }
 
     public PublishPacket receivePublish()
@@ -182,10 +651,10 @@ public class SocketWrapper {
     }
 
     /**
-     * Receives a file piece.
+     * Receives a file piece. A compressed piece is decompressed before its digest is verified.
      *
      * @param localIndex the current piece index.
-     * @return the piece data.
+     * @return the piece with its uncompressed data.
      * @throws IOException                   if it is unable to read from the input stream.
      *                                       It also encapsulatesEOFExceptions thrown if the input stream reaches
      *                                       EOF.
@@ -203,12 +672,18 @@ public class SocketWrapper {
             throw new IOException("Index received from remote packet is different from the local index." +
                     " local index: " + localIndex + ", remote done index: " + remoteIndex);
 
+        CompressionType compressionType = CompressionType.valueOf(readByte());
         int pieceLength = readInt();
-        byte[] pieceData = readN(pieceLength);
+        int originalLength = compressionType != CompressionType.NONE ? readInt() : pieceLength;
+        if (pieceLength < 0 || originalLength < 0 || pieceLength > this.maxPieceSize ||
+                originalLength > this.maxPieceSize)
+            throw new IOException("Received piece with incorrect length: " + Math.max(pieceLength, originalLength) +
+                    ", the max piece size is " + this.maxPieceSize);
+        byte[] pieceData = compressionType.decompress(readN(pieceLength), originalLength);
         HashType hashType = HashType.valueOf(readByte());
 
         byte[] packetDigest = readN(hashType.getSize());
-        byte[] actualDigest = hashType.getMessageDigest().digest(pieceData);
+        byte[] actualDigest = hashType.digest(pieceData);
         if (!Arrays.equals(actualDigest, packetDigest))
             throw new IOException("Received packet digest is incorrect. " +
                     "Calculated digest of received piece data: " + Arrays.toString(actualDigest) +
@@ -217,11 +692,58 @@ public class SocketWrapper {
         return new FilePiecePacket(remoteIndex, pieceData, hashType);
     }
 
+    /**
+     * Receives a file piece into a buffer of "pool" without decompressing or verifying it, so that it can be
+     * verified on another thread with PieceBuffer.verify(). Blocks while all buffers of the pool are in use.
+     *
+     * @param localIndex the current piece index.
+     * @param pool       the pool of the buffer that the piece is read into. The buffers must be larger than the
+     *                   largest piece.
+     * @return the unverified piece.
+     * @throws IOException                   if it is unable to read from the input stream.
+     * @throws IncorrectMessageTypeException if the packet isn't a FILE_PIECE.
+     * @throws IncorrectHashTypeException    if the packet contains an invalid HashType.
+     */
+    public PieceBuffer receiveFilePiece(int localIndex, BufferPool pool)
+    throws IOException, IncorrectMessageTypeException, IncorrectHashTypeException {
+        MessageType messageType = MessageType.FILE_PIECE;
+        if (!isByte((byte) messageType.getValue()))
+            throw new IncorrectMessageTypeException("Received incorrect message type");
+
+        int remoteIndex = readInt();
+        if (localIndex != remoteIndex)
+            throw new IOException("Index received from remote packet is different from the local index." +
+                    " local index: " + localIndex + ", remote done index: " + remoteIndex);
+
+        CompressionType compressionType = CompressionType.valueOf(readByte());
+        int pieceLength = readInt();
+        int originalLength = compressionType != CompressionType.NONE ? readInt() : pieceLength;
+        if (pieceLength < 0 || originalLength < 0 || pieceLength >= pool.getBufferSize() ||
+                originalLength >= pool.getBufferSize())
+            throw new IOException("Received piece with incorrect length: " + pieceLength);
+
+        byte[] buf = pool.acquire();
+        try {
+            nullGuard(this.in);
+            if (this.in.readNBytes(buf, 0, pieceLength) != pieceLength)
+                throw new EOFException("End of file reached while reading piece " + remoteIndex);
+            HashType hashType = HashType.valueOf(readByte());
+            byte[] digest = readN(hashType.getSize());
+            return new PieceBuffer(pool, remoteIndex, compressionType, buf, pieceLength, originalLength, hashType,
+                    digest);
+        } catch (IOException | IncorrectHashTypeException | RuntimeException e) {
+            pool.release(buf);
+            throw e;
+        }
+    }
+
     private byte[] readN(int n) throws IOException {
         nullGuard(this.in);
         byte[] buf = new byte[n];
-        int readBytes = this.in.read(buf);
-        if (readBytes == -1)
+        // A single read can return less than "n" bytes if the data arrives in several TCP segments,
+        // so keep on reading until "n" bytes have been read or EOF is reached.
+        int readBytes = this.in.readNBytes(buf, 0, n);
+        if (readBytes == 0 && n != 0)
             throw new EOFException("End of file reached while reading bytes from the input stream.");
         else if (n != readBytes)
             throw new IOException("Unable to read all bytes from input stream. " +
@@ -0,0 +1,43 @@
+package com.github.jmatss.send.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that takes every read byte from a TokenBucket, which slows down the reads when the bucket is out
+ * of tokens. Reads are passed through untouched until a bucket is set.
+ */
+class ThrottledInputStream extends FilterInputStream {
+    private volatile TokenBucket bucket;
+
+    ThrottledInputStream(InputStream in) {
+        super(in);
+        this.bucket = null;
+    }
+
+    void setBucket(TokenBucket bucket) {
+        this.bucket = bucket;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        TokenBucket bucket = this.bucket;
+        if (b != -1 && bucket != null)
+            bucket.acquire(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        TokenBucket bucket = this.bucket;
+        if (bucket == null)
+            return super.read(b, off, len);
+
+        int n = super.read(b, off, Math.min(len, TokenBucket.MAX_TAKE));
+        if (n > 0)
+            bucket.acquire(n);
+        return n;
+    }
+}
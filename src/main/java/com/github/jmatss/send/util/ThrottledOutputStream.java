@@ -0,0 +1,60 @@
+package com.github.jmatss.send.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that takes every written byte from a TokenBucket before it is written, which slows down the
+ * writes when the bucket is out of tokens. Writes are passed through untouched until a bucket is set.
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+    private volatile TokenBucket bucket;
+
+    ThrottledOutputStream(OutputStream out) {
+        super(out);
+        this.bucket = null;
+    }
+
+    void setBucket(TokenBucket bucket) {
+        this.bucket = bucket;
+    }
+
+    boolean isThrottled() {
+        return this.bucket != null;
+    }
+
+    /**
+     * Takes bytes that are written around the stream, ex. with zero-copy, from the bucket.
+     *
+     * @param bytes the amount of bytes about to be written.
+     * @throws IOException if the thread is interrupted while waiting.
+     */
+    void acquire(long bytes) throws IOException {
+        TokenBucket bucket = this.bucket;
+        if (bucket != null)
+            bucket.acquire(bytes);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        acquire(1);
+        this.out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.bucket == null) {
+            this.out.write(b, off, len);
+            return;
+        }
+
+        // Written in parts so that a large packet is spread out over time instead of sent as one burst.
+        for (int written = 0; written < len; ) {
+            int n = Math.min(len - written, TokenBucket.MAX_TAKE);
+            acquire(n);
+            this.out.write(b, off + written, n);
+            written += n;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.jmatss.send.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the bytes sent or received by one or more connections. Every transfer takes its bytes from the
+ * bucket and all of its ancestors and then waits until the bucket with the largest debt has been refilled, so a
+ * transfer is limited by both the rate of its own bucket and the rates of the buckets above it (ex. connection,
+ * topic and the whole process). A bucket saves up tokens for at most BURST_TIME, which lets a connection that has
+ * been idle send a short burst at full speed.
+ * <p>
+ * The bytes taken are counted also by buckets without a limit, so that the achieved rate can be reported.
+ */
+public class TokenBucket {
+    public static final long UNLIMITED = 0;
+    public static final long BURST_TIME = 100; // ms
+    // Larger transfers should be split into takes of at most this size, so that they are spread out over time.
+    public static final int MAX_TAKE = 16 << 10;
+    // The achieved rate is measured over windows of this length.
+    private static final long RATE_WINDOW = 1_000_000_000L; // ns
+
+    private final TokenBucket parent;
+    private long rate; // bytes per second
+    // Negative when transfers have taken more than the bucket had, the next transfer then waits for the debt.
+    private double tokens;
+    private long lastRefill;
+    private long transferredBytes;
+    private long windowStart;
+    private long windowBytes;
+    private long achievedRate;
+
+    /**
+     * @param parent the bucket above this bucket, or null if this is the top bucket.
+     */
+    public TokenBucket(TokenBucket parent) {
+        this.parent = parent;
+        this.rate = UNLIMITED;
+        this.tokens = 0;
+        this.lastRefill = System.nanoTime();
+        this.windowStart = this.lastRefill;
+    }
+
+    public TokenBucket getParent() {
+        return this.parent;
+    }
+
+    public synchronized long getRate() {
+        return this.rate;
+    }
+
+    /**
+     * @return true if this bucket or any of its ancestors has a limit.
+     */
+    public boolean isLimited() {
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            if (bucket.getRate() != UNLIMITED)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Changes the rate of the bucket, the new rate applies to the next transfer of every connection using it.
+     *
+     * @param rate the maximum amount of bytes per second, UNLIMITED to remove the limit.
+     */
+    public synchronized void setRate(long rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Incorrect rate: " + rate);
+        refill(System.nanoTime());
+        this.rate = rate;
+        this.tokens = Math.min(this.tokens, burst());
+    }
+
+    /**
+     * Takes the given amount of bytes from this bucket and its ancestors, blocks until the transfer is allowed.
+     *
+     * @param bytes the amount of bytes to transfer.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos = consume(bytes);
+        if (waitNanos <= 0)
+            return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to transfer " + bytes + " bytes");
+        }
+    }
+
+    /**
+     * Takes the given amount of bytes from this bucket and its ancestors without blocking, for callers that can't
+     * wait (ex. the event loops of the SelectorSender). They pace the connection by waiting the returned time before
+     * its next transfer instead.
+     *
+     * @param bytes the amount of bytes transferred.
+     * @return the amount of nanoseconds until the debt of the buckets has been paid, 0 if there is no debt.
+     */
+    public long consume(long bytes) {
+        long waitNanos = 0;
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent)
+            waitNanos = Math.max(waitNanos, bucket.take(bytes));
+        return waitNanos;
+    }
+
+    // Takes the bytes and returns the time until the debt of the bucket has been paid.
+    private synchronized long take(long bytes) {
+        long now = System.nanoTime();
+        roll(now);
+        this.transferredBytes += bytes;
+        this.windowBytes += bytes;
+        if (this.rate == UNLIMITED)
+            return 0;
+
+        refill(now);
+        this.tokens -= bytes;
+        return this.tokens >= 0 ? 0 : (long) (-this.tokens * 1e9 / this.rate);
+    }
+
+    private void refill(long now) {
+        if (this.rate != UNLIMITED)
+            this.tokens = Math.min(burst(), this.tokens + (now - this.lastRefill) * (double) this.rate / 1e9);
+        this.lastRefill = now;
+    }
+
+    private double burst() {
+        return this.rate * BURST_TIME / 1000.0;
+    }
+
+    private void roll(long now) {
+        long elapsed = now - this.windowStart;
+        if (elapsed >= RATE_WINDOW) {
+            this.achievedRate = (long) (this.windowBytes * 1e9 / elapsed);
+            this.windowStart = now;
+            this.windowBytes = 0;
+        }
+    }
+
+    /**
+     * @return the total amount of bytes transferred through the bucket.
+     */
+    public synchronized long getTransferredBytes() {
+        return this.transferredBytes;
+    }
+
+    /**
+     * @return the amount of bytes per second transferred through the bucket during the last window of about one
+     * second.
+     */
+    public synchronized long getAchievedRate() {
+        roll(System.nanoTime());
+        return this.achievedRate;
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.jmatss.send.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors that run every task on a thread of its own, so that blocking socket conversations aren't
+ * limited by the size of a thread pool. Virtual threads are used when the runtime has them (Java 21 and later),
+ * they are looked up with reflection since the project is compiled for Java 11. On older runtimes every task gets a
+ * new platform thread, which still lifts the limit but costs a full thread stack per connection.
+ */
+public class VirtualThreads {
+    // Executors.newVirtualThreadPerTaskExecutor(), null if the runtime doesn't have virtual threads.
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the runtime has virtual threads.
+     */
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @param name the name of the platform threads created if virtual threads aren't available.
+     * @return an executor that runs every task on a new virtual thread, or on a new daemon platform thread if the
+     * runtime doesn't have virtual threads.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+        if (isAvailable()) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to create virtual thread executor", e);
+            }
+        }
+
+        // A cached pool without idle threads left is a new thread per task that reuses threads that just finished.
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.jmatss.send.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * Streaming implementation of the 64 bit xxHash (XXH64) with seed 0 exposed as a MessageDigest so that it can be
+ * used as a HashType. XXH64 is a non-cryptographic hash that is a lot faster than SHA-1 and MD5 while still
+ * catching transmission errors. The digest is the 8 byte hash in big endian (the canonical xxHash representation).
+ */
+public class XxHash64Digest extends MessageDigest {
+    public static final String ALGORITHM = "XXH64";
+    public static final int SIZE = 8;
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_SIZE = 32;
+
+    // Bytes that doesn't fill a whole stripe yet.
+    private final ByteBuffer stripe;
+    private long v1, v2, v3, v4;
+    private long totalLength;
+
+    public XxHash64Digest() {
+        super(ALGORITHM);
+        this.stripe = ByteBuffer.allocate(STRIPE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return SIZE;
+    }
+
+    @Override
+    protected void engineReset() {
+        this.stripe.clear();
+        this.v1 = PRIME1 + PRIME2;
+        this.v2 = PRIME2;
+        this.v3 = 0;
+        this.v4 = -PRIME1;
+        this.totalLength = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        engineUpdate(ByteBuffer.wrap(input, offset, len));
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        ByteBuffer in = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+        input.position(input.limit());
+        this.totalLength += in.remaining();
+
+        // Fill up the partial stripe from the previous update first.
+        if (this.stripe.position() > 0) {
+            while (this.stripe.hasRemaining() && in.hasRemaining())
+                this.stripe.put(in.get());
+            if (this.stripe.hasRemaining())
+                return;
+            this.stripe.flip();
+            consumeStripe(this.stripe);
+            this.stripe.clear();
+        }
+
+        while (in.remaining() >= STRIPE_SIZE)
+            consumeStripe(in);
+        while (in.hasRemaining())
+            this.stripe.put(in.get());
+    }
+
+    private void consumeStripe(ByteBuffer in) {
+        this.v1 = round(this.v1, in.getLong());
+        this.v2 = round(this.v2, in.getLong());
+        this.v3 = round(this.v3, in.getLong());
+        this.v4 = round(this.v4, in.getLong());
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long h;
+        if (this.totalLength >= STRIPE_SIZE) {
+            h = Long.rotateLeft(this.v1, 1) + Long.rotateLeft(this.v2, 7) +
+                    Long.rotateLeft(this.v3, 12) + Long.rotateLeft(this.v4, 18);
+            h = mergeRound(h, this.v1);
+            h = mergeRound(h, this.v2);
+            h = mergeRound(h, this.v3);
+            h = mergeRound(h, this.v4);
+        } else {
+            h = PRIME5;
+        }
+        h += this.totalLength;
+
+        ByteBuffer tail = this.stripe.flip();
+        while (tail.remaining() >= 8) {
+            h ^= round(0, tail.getLong());
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (tail.remaining() >= 4) {
+            h ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+        }
+        while (tail.hasRemaining()) {
+            h ^= (tail.get() & 0xFFL) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+
+        engineReset();
+        return ByteBuffer.allocate(SIZE).putLong(h).array();
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+}
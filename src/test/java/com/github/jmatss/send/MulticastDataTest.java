@@ -0,0 +1,185 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.mock.DummyMulticastSocket;
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.protocol.FileProtocol;
+import com.github.jmatss.send.protocol.PFile;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.type.FecType;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.util.Bitmap;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MulticastDataTest {
+    private static final String HOST = "127.0.0.1";
+    private static final int PIECE_SIZE = 4096;
+    private static final int PORT = 7302;
+
+    @Test
+    public void testLostPiecesAreRepairedInNextRound() throws Exception {
+        byte[] content = randomContent(PIECE_SIZE * 40 + 100);
+        PFile pfile = pfile(content);
+        FileInfoPacket fileInfo = pfile.getFileInfoPacket();
+
+        // Drops every 10th datagram while "lossy" is set.
+        BlockingQueue<DatagramPacket> link = new LinkedBlockingQueue<>();
+        AtomicBoolean lossy = new AtomicBoolean(true);
+        AtomicInteger sent = new AtomicInteger();
+        DummyMulticastSocket senderSocket = new DummyMulticastSocket(HOST) {
+            @Override
+            public void send(DatagramPacket p) {
+                if (!lossy.get() || sent.incrementAndGet() % 10 != 0)
+                    link.add(p);
+            }
+        };
+
+        MulticastDataSender sender = new MulticastDataSender(MulticastDataSender.groupOf("topic", false), PORT,
+                senderSocket);
+        MulticastDataReceiver receiver = new MulticastDataReceiver(sender.getMulticastPacket(),
+                new DummyMulticastSocket(HOST, link));
+        Path path = Files.createTempDirectory("multicast_data_test").resolve("file.bin");
+        try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+            receiver.expect(0, partialFile, fileInfo);
+
+            sender.transmit(pfile, 0, partialFile.getMissing());
+            waitUntilEmpty(link);
+            int received = partialFile.getReceivedCount();
+            assertTrue(received > 0 && received < partialFile.getPieceCount(),
+                    "Expected some lost pieces, received " + received + " of " + partialFile.getPieceCount());
+
+            // Only the lost pieces are sent in the second round.
+            lossy.set(false);
+            int sentBefore = sent.get();
+            sender.transmit(pfile, 0, partialFile.getMissing());
+            waitUntilEmpty(link);
+            assertTrue(partialFile.isFull());
+            assertEquals(sentBefore, sent.get());
+
+            assertEquals(partialFile.getPieceCount(), receiver.release());
+            partialFile.complete();
+        } finally {
+            receiver.close();
+            sender.close();
+        }
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    @Test
+    public void testLostFragmentsAreRebuiltWithFec() throws Exception {
+        byte[] content = randomContent(PIECE_SIZE * 40 + 100);
+        PFile pfile = pfile(content);
+        FileInfoPacket fileInfo = pfile.getFileInfoPacket();
+
+        // Every piece is sent as at most 3 data fragments and 1 parity fragment, so dropping every 10th datagram
+        // loses at most one fragment of every piece.
+        BlockingQueue<DatagramPacket> link = new LinkedBlockingQueue<>();
+        AtomicInteger sent = new AtomicInteger();
+        DummyMulticastSocket senderSocket = new DummyMulticastSocket(HOST) {
+            @Override
+            public void send(DatagramPacket p) {
+                if (sent.incrementAndGet() % 10 != 0)
+                    link.add(p);
+            }
+        };
+
+        MulticastDataSender sender = new MulticastDataSender(MulticastDataSender.groupOf("topic", false), PORT,
+                senderSocket);
+        sender.setFec(FecType.REED_SOLOMON, 0.25);
+        MulticastDataReceiver receiver = new MulticastDataReceiver(sender.getMulticastPacket(),
+                new DummyMulticastSocket(HOST, link));
+        Path path = Files.createTempDirectory("multicast_data_test").resolve("file.bin");
+        try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+            receiver.expect(0, partialFile, fileInfo);
+
+            sender.transmit(pfile, 0, partialFile.getMissing());
+            waitUntilEmpty(link);
+            assertTrue(partialFile.isFull());
+            assertEquals(40 * 4 + 2, sent.get());
+            assertTrue(receiver.getRebuiltPieces() > 0);
+
+            receiver.release();
+            partialFile.complete();
+        } finally {
+            receiver.close();
+            sender.close();
+        }
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    @Test
+    public void testJoinsAreMergedIntoOneRound() throws Exception {
+        PFile pfile = pfile(randomContent(PIECE_SIZE * 10));
+        AtomicInteger sent = new AtomicInteger();
+        DummyMulticastSocket senderSocket = new DummyMulticastSocket(HOST) {
+            @Override
+            public void send(DatagramPacket p) {
+                sent.incrementAndGet();
+            }
+        };
+
+        InetAddress group = MulticastDataSender.groupOf("topic", false);
+        assertTrue(group.isMulticastAddress());
+        assertEquals((byte) 239, group.getAddress()[0]);
+        assertEquals(0xc0, group.getAddress()[1] & 0xfc);
+
+        MulticastDataSender sender = new MulticastDataSender(group, PORT, senderSocket);
+        try {
+            // Two subscribers wanting the pieces [0, 5) and [3, 10) gets the union in the same round.
+            Thread other = new Thread(() -> {
+                try {
+                    sender.transmit(pfile, 0, wanted(10, 3, 10));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            other.start();
+            sender.transmit(pfile, 0, wanted(10, 0, 5));
+            other.join();
+        } finally {
+            sender.close();
+        }
+
+        int fragmentsPerPiece = (PIECE_SIZE + 1399) / 1400;
+        assertEquals(10 * fragmentsPerPiece, sent.get());
+    }
+
+    private PFile pfile(byte[] content) throws Exception {
+        Path source = Files.write(Files.createTempFile("multicast_data_test", ".bin"), content);
+        FileProtocol protocol = new FileProtocol(Collections.singletonList("file.bin"),
+                Collections.singletonList(source.toString()), HashType.MERKLE, HashType.CRC32C, PIECE_SIZE);
+        return protocol.iter().iterator().next();
+    }
+
+    private Bitmap wanted(int size, int start, int end) {
+        Bitmap bitmap = new Bitmap(size);
+        for (int i = start; i < end; i++)
+            bitmap.set(i);
+        return bitmap;
+    }
+
+    // Waits until the receiver has taken all datagrams and has had time to handle the last one.
+    private void waitUntilEmpty(BlockingQueue<DatagramPacket> link) throws InterruptedException {
+        while (!link.isEmpty())
+            Thread.sleep(10);
+        Thread.sleep(100);
+    }
+
+    private byte[] randomContent(int length) {
+        byte[] content = new byte[length];
+        new Random().nextBytes(content);
+        return content;
+    }
+}
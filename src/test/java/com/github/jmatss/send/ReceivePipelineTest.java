@@ -0,0 +1,139 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.FilePiecePacket;
+import com.github.jmatss.send.protocol.PFile;
+import com.github.jmatss.send.storage.PartialFile;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.type.MessageType;
+import com.github.jmatss.send.util.ExecutorRegistry;
+import com.github.jmatss.send.util.SocketWrapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReceivePipelineTest {
+    private static final int PIECE_SIZE = 1000;
+    // More pieces than buffers so that the reader has to wait for buffers to be released.
+    private static final int PIECE_COUNT = ReceivePipeline.BUFFERS_PER_TRANSFER * 4 + 1;
+
+    @Test
+    public void testPiecesAreVerifiedAndWritten() throws Exception {
+        byte[] content = content(PIECE_SIZE * (PIECE_COUNT - 1) + 123);
+        Path path = Files.createTempDirectory("receive_pipeline_test").resolve("file.bin");
+
+        for (HashType hashType : new HashType[]{HashType.MERKLE, HashType.SHA1}) {
+            FileInfoPacket fileInfo = fileInfo(content, hashType);
+            SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(pieces(content, hashType, -1)));
+
+            try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+                long bytes = new ReceivePipeline(ExecutorRegistry.getShared())
+                        .receive(socketWrapper, partialFile, PIECE_COUNT, i -> i, "test");
+                assertEquals(content.length, bytes);
+                partialFile.complete();
+            }
+
+            assertArrayEquals(content, Files.readAllBytes(path));
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testCorruptPieceIsNotWritten() throws Exception {
+        byte[] content = content(PIECE_SIZE * (PIECE_COUNT - 1) + 123);
+        Path path = Files.createTempDirectory("receive_pipeline_test").resolve("file.bin");
+        FileInfoPacket fileInfo = fileInfo(content, HashType.SHA1);
+        int corrupt = 5;
+        SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(pieces(content, HashType.SHA1,
+                corrupt)));
+
+        try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+            assertThrows(IOException.class,
+                    () -> new ReceivePipeline(ExecutorRegistry.getShared())
+                            .receive(socketWrapper, partialFile, PIECE_COUNT, i -> i, "test"));
+            assertFalse(partialFile.isReceived(corrupt));
+        }
+    }
+
+    @Test
+    public void testFullPoolsRunTheStagesOnTheReader() throws Exception {
+        byte[] content = content(PIECE_SIZE * (PIECE_COUNT - 1) + 123);
+        Path path = Files.createTempDirectory("receive_pipeline_test").resolve("file.bin");
+        FileInfoPacket fileInfo = fileInfo(content, HashType.SHA1);
+        SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(pieces(content, HashType.SHA1, -1)));
+
+        ExecutorRegistry executors = new ExecutorRegistry();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            fill(executors, ExecutorRegistry.Role.VERIFY, release);
+            fill(executors, ExecutorRegistry.Role.WRITE, release);
+            try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+                long bytes = new ReceivePipeline(executors)
+                        .receive(socketWrapper, partialFile, PIECE_COUNT, i -> i, "test");
+                assertEquals(content.length, bytes);
+                partialFile.complete();
+            }
+            assertEquals(PIECE_COUNT, executors.getMetrics(ExecutorRegistry.Role.VERIFY).getRejectedTasks());
+        } finally {
+            release.countDown();
+            executors.shutdownNow();
+        }
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    // Occupies every thread of the pool of the given role and fills its queue with tasks that waits for "release".
+    private void fill(ExecutorRegistry executors, ExecutorRegistry.Role role, CountDownLatch release)
+    throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(role.getThreads());
+        for (int i = 0; i < role.getThreads() + role.getQueueCapacity(); i++) {
+            executors.get(role).submit(() -> {
+                started.countDown();
+                release.await();
+                return null;
+            });
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    // Every other piece is compressed. The digest of piece "corrupt" is incorrect.
+    private byte[] pieces(byte[] content, HashType hashType, int corrupt) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < PIECE_COUNT; i++) {
+            byte[] data = Arrays.copyOfRange(content, i * PIECE_SIZE, Math.min((i + 1) * PIECE_SIZE,
+                    content.length));
+            byte[] digest = hashType.getMessageDigest().digest(data);
+            if (i == corrupt)
+                digest[0] ^= 1;
+            FilePiecePacket packet = new FilePiecePacket(i, data, hashType, digest);
+            out.write((i % 2 == 0 ? packet.compress(CompressionType.DEFLATE) : packet).getBytes());
+        }
+        out.write(MessageType.DONE.getValue());
+        return out.toByteArray();
+    }
+
+    private FileInfoPacket fileInfo(byte[] content, HashType hashType) throws IOException {
+        Path source = Files.write(Files.createTempFile("receive_pipeline_test", ".bin"), content);
+        byte[] digest = PFile.calculateFileDigest(source.toString(), hashType, PIECE_SIZE);
+        return new FileInfoPacket("file.bin", content.length, PIECE_SIZE, hashType, digest);
+    }
+
+    // Compressible content.
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        Random random = new Random(1);
+        for (int i = 0; i < length; i++)
+            content[i] = (byte) ('a' + random.nextInt(4));
+        return content;
+    }
+}
@@ -0,0 +1,392 @@
+package com.github.jmatss.send;
+
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.ManifestPacket;
+import com.github.jmatss.send.packet.RangePacket;
+import com.github.jmatss.send.packet.RequestPacket;
+import com.github.jmatss.send.packet.SignaturesPacket;
+import com.github.jmatss.send.packet.WantPacket;
+import com.github.jmatss.send.packet.WantedFilesPacket;
+import com.github.jmatss.send.protocol.BlockSignatures;
+import com.github.jmatss.send.protocol.ChunkList;
+import com.github.jmatss.send.protocol.FileProtocol;
+import com.github.jmatss.send.protocol.PFile;
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.util.Bitmap;
+import com.github.jmatss.send.util.ClosableWrapper;
+import com.github.jmatss.send.util.LockableHashMap;
+import com.github.jmatss.send.util.SocketWrapper;
+import com.github.jmatss.send.util.TokenBucket;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SelectorSenderTest {
+    private static final String TOPIC = "selector_topic";
+    private static final int PIECE_SIZE = 4096;
+    // More subscribers than threads of the executor of the Sender.
+    private static final int SUBSCRIBERS = 64;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testManySubscribersFromFewEventLoops() throws Exception {
+        for (CompressionType compression : new CompressionType[]{CompressionType.NONE, CompressionType.DEFLATE}) {
+            byte[] content = new byte[PIECE_SIZE * 20 + 17];
+            Random random = new Random(1);
+            for (int i = 0; i < content.length; i++)
+                content[i] = (byte) ('a' + random.nextInt(8));
+
+            Sender sender = newSender();
+            sender.setCompression(compression);
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                 SelectorSender selectorSender = new SelectorSender(sender, 2)) {
+                serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+                selectorSender.listen(serverChannel, fileProtocol(content), null);
+                int port = serverChannel.socket().getLocalPort();
+
+                ExecutorService executor = Executors.newFixedThreadPool(SUBSCRIBERS);
+                try {
+                    List<Future<byte[]>> downloads = new ArrayList<>();
+                    for (int i = 0; i < SUBSCRIBERS; i++)
+                        downloads.add(executor.submit(() -> download(port)));
+                    for (Future<byte[]> download : downloads)
+                        assertArrayEquals(content, download.get(), "Incorrect download with " + compression);
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRateSetDuringTransferLimitsEventLoopConnection() throws Exception {
+        long rate = 1 << 20;
+        byte[] content = new byte[(int) (rate * 3 / 2)];
+        new Random(3).nextBytes(content);
+
+        Sender sender = newSender();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             SelectorSender selectorSender = new SelectorSender(sender, 1)) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            selectorSender.listen(serverChannel, fileProtocol(content), null);
+
+            SocketWrapper socketWrapper = new SocketWrapper(new Socket("127.0.0.1",
+                    serverChannel.socket().getLocalPort()));
+            try {
+                socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4]));
+                socketWrapper.receiveFileInfo();
+                // Set after the REQUEST, when the connection is already served by the event loop.
+                sender.getLimiter().setTopicRate(TOPIC, rate);
+                long start = System.nanoTime();
+                socketWrapper.sendYes();
+                assertArrayEquals(content, receivePieces(socketWrapper, 0));
+                long millis = (System.nanoTime() - start) / 1_000_000;
+
+                // One and a half second at the rate minus the burst that an idle bucket can save up.
+                assertTrue(millis >= 1500 - TokenBucket.BURST_TIME - 50, "Transferred too fast: " + millis + " ms");
+                assertTrue(sender.getLimiter().getAchievedTopicRates().get(TOPIC) > 0);
+                assertTrue(sender.getLimiter().getAchievedRate() > 0);
+                socketWrapper.sendNo();
+                assertTrue(socketWrapper.isDone());
+            } finally {
+                socketWrapper.close();
+            }
+        }
+    }
+
+    @Test
+    public void testUnhandledReplyIsHandedOverToBlockingSession() throws Exception {
+        byte[] content = new byte[PIECE_SIZE * 3];
+        new Random(2).nextBytes(content);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             SelectorSender selectorSender = new SelectorSender(newSender(), 1)) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            selectorSender.listen(serverChannel, fileProtocol(content), null);
+
+            SocketWrapper socketWrapper = new SocketWrapper(new Socket("127.0.0.1",
+                    serverChannel.socket().getLocalPort()));
+            try {
+                socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4]));
+                socketWrapper.receiveFileInfo();
+                // Chunking is disabled, so the blocking session answers with an empty chunk list.
+                socketWrapper.sendChunks();
+                assertEquals(0, socketWrapper.receiveChunkList().getChunkList().getCount());
+                socketWrapper.sendPacket(new RangePacket(1, 2));
+                assertArrayEquals(Arrays.copyOfRange(content, PIECE_SIZE, PIECE_SIZE * 3),
+                        receivePieces(socketWrapper, 1));
+                socketWrapper.sendNo();
+                assertTrue(socketWrapper.isDone());
+            } finally {
+                socketWrapper.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLargeRepliesAreHandedOverToBlockingSession() throws Exception {
+        // 100 block signatures, more than twice the size of the input buffer of a connection.
+        byte[] content = new byte[BlockSignatures.MIN_BLOCK_SIZE * 100];
+        new Random(3).nextBytes(content);
+        FileProtocol fileProtocol = fileProtocol(content);
+        BlockSignatures signatures;
+        try (FileChannel channel = fileProtocol.getFile(0).openChannel()) {
+            signatures = BlockSignatures.calculate(channel, BlockSignatures.MIN_BLOCK_SIZE);
+        }
+
+        // Enough content-defined chunks for the WANT to be larger than the input buffer of a connection.
+        byte[] chunked = new byte[80 << 20];
+        new Random(4).nextBytes(chunked);
+        FileProtocol chunkedProtocol = fileProtocol(chunked);
+        ChunkList chunkList = chunkedProtocol.getFile(0).getChunkList();
+        assertTrue(Bitmap.byteSize(chunkList.getCount()) > 512, "Chunk count: " + chunkList.getCount());
+
+        Sender sender = newSender();
+        sender.setChunking(true);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             ServerSocketChannel chunkedChannel = ServerSocketChannel.open();
+             SelectorSender selectorSender = new SelectorSender(sender, 1)) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            selectorSender.listen(serverChannel, fileProtocol, null);
+            chunkedChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            selectorSender.listen(chunkedChannel, chunkedProtocol, null);
+
+            SocketWrapper socketWrapper = new SocketWrapper(new Socket("127.0.0.1",
+                    serverChannel.socket().getLocalPort()));
+            try {
+                socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4]));
+                socketWrapper.receiveFileInfo();
+                // The old version is the same as the new one, so every block is copied.
+                socketWrapper.sendPacket(new SignaturesPacket(signatures));
+                int copied = 0;
+                while (!socketWrapper.isDone())
+                    copied += socketWrapper.receiveCopy().getCount();
+                assertEquals(signatures.getCount(), copied);
+                socketWrapper.sendNo();
+                assertTrue(socketWrapper.isDone());
+            } finally {
+                socketWrapper.close();
+            }
+
+            socketWrapper = new SocketWrapper(new Socket("127.0.0.1", chunkedChannel.socket().getLocalPort()));
+            try {
+                socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4]));
+                socketWrapper.receiveFileInfo();
+                int last = chunkList.getCount() - 1;
+                Bitmap wanted = new Bitmap(chunkList.getCount());
+                wanted.set(0);
+                wanted.set(last);
+                socketWrapper.sendPacket(new WantPacket(wanted));
+                for (int i : new int[]{0, last}) {
+                    int offset = (int) chunkList.getOffset(i);
+                    assertArrayEquals(Arrays.copyOfRange(chunked, offset, offset + chunkList.getLength(i)),
+                            socketWrapper.receiveChunk(i).getData(), "Incorrect chunk " + i);
+                }
+                assertTrue(socketWrapper.isDone());
+                socketWrapper.sendNo();
+                assertTrue(socketWrapper.isDone());
+            } finally {
+                socketWrapper.close();
+            }
+        }
+    }
+
+    @Test
+    public void testManifestStreamsWantedFilesBackToBack() throws Exception {
+        // Enough files for the WANTED_FILES to be larger than the input buffer of a connection.
+        int fileCount = 3000;
+        List<byte[]> contents = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            byte[] content = new byte[(i % 5) * 3000 + 1];
+            Arrays.fill(content, (byte) i);
+            contents.add(content);
+            names.add("dir/file" + i);
+            paths.add(Files.write(this.tempDir.resolve("file" + i), content).toString());
+        }
+        FileProtocol fileProtocol = new FileProtocol(names, paths, Protocol.DEFAULT_FILE_HASH_TYPE, HashType.SHA1,
+                PIECE_SIZE);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             SelectorSender selectorSender = new SelectorSender(newSender(), 1)) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            selectorSender.listen(serverChannel, fileProtocol, null);
+            downloadWithManifest(serverChannel.socket().getLocalPort(), contents);
+        }
+
+        // The blocking sessions of the Sender answers the same way.
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            Sender sender = newSender();
+            Thread listener = new Thread(() -> {
+                try {
+                    sender.listen(serverSocket, fileProtocol);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            listener.setDaemon(true);
+            listener.start();
+            downloadWithManifest(serverSocket.getLocalPort(), contents);
+        }
+    }
+
+    @Test
+    public void testFilesThatDoNotFitInAManifestAreSentAsFileInfo() throws Exception {
+        int fileCount = 10;
+        Path path = Files.write(this.tempDir.resolve("file.bin"), new byte[]{1, 2, 3});
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++)
+            names.add("file" + i);
+        FileProtocol fileProtocol = new FileProtocol(names, Collections.nCopies(fileCount, path.toString()),
+                Protocol.DEFAULT_FILE_HASH_TYPE, HashType.SHA1, PIECE_SIZE);
+        List<PFile> files = Sender.negotiateFiles(fileProtocol, PIECE_SIZE);
+        int entryLength = files.get(0).getFileInfoPacket().getBytes().length - 1;
+        assertEquals(entryLength, ManifestPacket.getEntryLength("file0", Protocol.DEFAULT_FILE_HASH_TYPE));
+
+        // Limits that fit every file but the last one.
+        Sender limited = newSender();
+        limited.setManifestLimits(fileCount - 1, ManifestPacket.COUNT_LENGTH + (long) (fileCount - 1) * entryLength);
+        assertNotNull(limited.createManifest(files.subList(0, fileCount - 1), CompressionType.NONE));
+        assertNull(limited.createManifest(files, CompressionType.NONE));
+        limited.setManifestLimits(fileCount, ManifestPacket.COUNT_LENGTH + (long) (fileCount - 1) * entryLength);
+        assertNull(limited.createManifest(files, CompressionType.NONE));
+        limited.setManifestLimits(fileCount - 1, ManifestPacket.MAX_SIZE);
+        assertNull(limited.createManifest(files, CompressionType.NONE));
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             SelectorSender selectorSender = new SelectorSender(limited, 1)) {
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            selectorSender.listen(serverChannel, fileProtocol, null);
+            downloadWithoutManifest(serverChannel.socket().getLocalPort(), names);
+        }
+
+        // The blocking sessions of the Sender answers the same way.
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            Thread listener = new Thread(() -> {
+                try {
+                    limited.listen(serverSocket, fileProtocol);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            listener.setDaemon(true);
+            listener.start();
+            downloadWithoutManifest(serverSocket.getLocalPort(), names);
+        }
+    }
+
+    // Asks for a manifest and expects the FILE_INFO of every file instead, all of them are answered with a NO.
+    private void downloadWithoutManifest(int port, List<String> names) throws Exception {
+        SocketWrapper socketWrapper = new SocketWrapper(new Socket("127.0.0.1", port));
+        try {
+            socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4], CompressionType.supportedMask(),
+                    Protocol.DEFAULT_PIECE_SIZE, RequestPacket.FLAG_MANIFEST));
+            for (String name : names) {
+                assertEquals(name, socketWrapper.receiveFileInfo().getName());
+                socketWrapper.sendNo();
+            }
+            assertTrue(socketWrapper.isDone());
+        } finally {
+            socketWrapper.close();
+        }
+    }
+
+    // Streams every third file, exchanges a few files with a YES (a round trip each) and skips the rest.
+    private void downloadWithManifest(int port, List<byte[]> contents) throws Exception {
+        SocketWrapper socketWrapper = new SocketWrapper(new Socket("127.0.0.1", port));
+        try {
+            socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4], CompressionType.supportedMask(),
+                    Protocol.DEFAULT_PIECE_SIZE, RequestPacket.FLAG_MANIFEST));
+            List<FileInfoPacket> files = socketWrapper.receiveManifest().getFiles();
+            assertEquals(contents.size(), files.size());
+
+            Bitmap stream = new Bitmap(files.size());
+            Bitmap exchange = new Bitmap(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                assertEquals("dir/file" + i, files.get(i).getName());
+                if (i % 3 == 0)
+                    stream.set(i);
+                else if (i % 100 == 1)
+                    exchange.set(i);
+            }
+            socketWrapper.sendPacket(new WantedFilesPacket(stream, exchange));
+
+            for (int i = stream.nextSet(0); i != -1; i = stream.nextSet(i + 1))
+                assertArrayEquals(contents.get(i), receivePieces(socketWrapper, 0), "Incorrect streamed file " + i);
+            for (int i = exchange.nextSet(0); i != -1; i = exchange.nextSet(i + 1)) {
+                assertTrue(files.get(i).hasSameContent(socketWrapper.receiveFileInfo()));
+                socketWrapper.sendYes();
+                assertArrayEquals(contents.get(i), receivePieces(socketWrapper, 0), "Incorrect exchanged file " + i);
+            }
+            assertTrue(socketWrapper.isDone());
+        } finally {
+            socketWrapper.close();
+        }
+    }
+
+    // Requests the second half of the file as a RANGE and then the whole file with a YES.
+    private byte[] download(int port) throws Exception {
+        SocketWrapper socketWrapper = new SocketWrapper(new Socket("127.0.0.1", port));
+        try {
+            socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4], CompressionType.supportedMask()));
+            FileInfoPacket fileInfo = socketWrapper.receiveFileInfo();
+            int pieceCount = (int) ((fileInfo.getFileLength() + PIECE_SIZE - 1) / PIECE_SIZE);
+
+            socketWrapper.sendPacket(new RangePacket(pieceCount / 2, pieceCount - pieceCount / 2));
+            byte[] half = receivePieces(socketWrapper, pieceCount / 2);
+            socketWrapper.sendYes();
+            byte[] whole = receivePieces(socketWrapper, 0);
+            assertTrue(socketWrapper.isDone());
+
+            assertArrayEquals(Arrays.copyOfRange(whole, whole.length - half.length, whole.length), half);
+            return whole;
+        } finally {
+            socketWrapper.close();
+        }
+    }
+
+    private byte[] receivePieces(SocketWrapper socketWrapper, int index) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (!socketWrapper.isDone())
+            out.write(socketWrapper.receiveFilePiece(index++).getData());
+        return out.toByteArray();
+    }
+
+    private Sender newSender() throws IOException {
+        LockableHashMap<String, ClosableWrapper> publishedTopics = new LockableHashMap<>();
+        publishedTopics.put(TOPIC, new ClosableWrapper(ServerSocketChannel.open().socket()));
+        return new Sender(publishedTopics);
+    }
+
+    private FileProtocol fileProtocol(byte[] content) throws IOException {
+        Path path = Files.write(Files.createTempFile("selector_sender_test", ".bin"), content);
+        path.toFile().deleteOnExit();
+        return new FileProtocol(Collections.singletonList("file.bin"), Collections.singletonList(path.toString()),
+                Protocol.DEFAULT_FILE_HASH_TYPE, HashType.SHA1, PIECE_SIZE);
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.jmatss.send.benchmark;
+
+import com.github.jmatss.send.Sender;
+import com.github.jmatss.send.packet.RequestPacket;
+import com.github.jmatss.send.protocol.FileProtocol;
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.util.ClosableWrapper;
+import com.github.jmatss.send.util.LockableHashMap;
+import com.github.jmatss.send.util.SocketWrapper;
+import com.github.jmatss.send.util.VirtualThreads;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time for "subscribers" concurrent subscribers to download a file from one Sender when the sessions
+ * run on a fixed pool with one thread per core and when every session runs on
+ * a thread of its own (VirtualThreads, virtual threads on Java 21 and later, platform threads before that). Every
+ * subscriber waits "replyMillis" before it answers the FILE_INFO, as a subscriber on a slow link or disk would, so a
+ * session occupies its thread without doing any work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConnectionBenchmark {
+    private static final String TOPIC = "benchmark";
+    private static final int FILE_SIZE = 64 << 10;
+    private static final int PIECE_SIZE = 16 << 10;
+
+    @Param({"POOLED", "THREAD_PER_TASK"})
+    public String mode;
+
+    @Param({"1000"})
+    public int subscribers;
+
+    @Param({"10"})
+    public long replyMillis;
+
+    private ExecutorService sessionExecutor;
+    private ExecutorService subscriberExecutor;
+    private ServerSocketChannel serverChannel;
+    private Thread listener;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        Path path = Files.write(Files.createTempFile("connection_benchmark", ".bin"), content);
+        path.toFile().deleteOnExit();
+        FileProtocol protocol = new FileProtocol(Collections.singletonList("file.bin"),
+                Collections.singletonList(path.toString()), Protocol.DEFAULT_FILE_HASH_TYPE, HashType.SHA1,
+                PIECE_SIZE);
+
+        this.sessionExecutor = this.mode.equals("POOLED")
+                ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+                : VirtualThreads.newThreadPerTaskExecutor("benchmark-session");
+        this.subscriberExecutor = VirtualThreads.newThreadPerTaskExecutor("benchmark-subscriber");
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), this.subscribers);
+        LockableHashMap<String, ClosableWrapper> publishedTopics = new LockableHashMap<>();
+        publishedTopics.put(TOPIC, new ClosableWrapper(this.serverChannel.socket()));
+        Sender sender = new Sender(publishedTopics);
+        sender.setExecutor(this.sessionExecutor);
+
+        this.listener = new Thread(() -> {
+            try {
+                sender.listen(this.serverChannel.socket(), protocol);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        this.listener.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.serverChannel.close();
+        this.listener.join();
+        this.sessionExecutor.shutdownNow();
+        this.subscriberExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        int port = this.serverChannel.socket().getLocalPort();
+        List<Future<Long>> downloads = new ArrayList<>(this.subscribers);
+        for (int i = 0; i < this.subscribers; i++)
+            downloads.add(this.subscriberExecutor.submit(() -> subscribe(port)));
+
+        long bytes = 0;
+        for (Future<Long> download : downloads)
+            bytes += download.get();
+        if (bytes != (long) FILE_SIZE * this.subscribers)
+            throw new IllegalStateException("Incorrect amount of bytes downloaded: " + bytes);
+        return bytes;
+    }
+
+    private long subscribe(int port) throws Exception {
+        SocketWrapper socketWrapper = new SocketWrapper(new Socket("127.0.0.1", port));
+        try {
+            socketWrapper.sendPacket(new RequestPacket(TOPIC, new byte[4]));
+            socketWrapper.receiveFileInfo();
+            Thread.sleep(this.replyMillis);
+            socketWrapper.sendYes();
+
+            long bytes = 0;
+            int index = 0;
+            while (!socketWrapper.isDone())
+                bytes += socketWrapper.receiveFilePiece(index++).getData().length;
+            if (!socketWrapper.isDone())
+                throw new IOException("Expected a DONE after the last file");
+            return bytes;
+        } finally {
+            socketWrapper.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ConnectionBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
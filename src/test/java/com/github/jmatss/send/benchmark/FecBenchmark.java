@@ -0,0 +1,142 @@
+package com.github.jmatss.send.benchmark;
+
+import com.github.jmatss.send.packet.FragmentPacket;
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.FecType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the goodput of multicasting a file over a lossy link with and without forward error correction. Every
+ * datagram is dropped with the probability "lossRate". The pieces that can't be rebuilt are sent again in the next
+ * round, which first waits "roundTripMillis" for the JOIN of the subscriber. The time on the wire is simulated
+ * with the default multicast rate, the encoding and decoding is done for real.
+ * <p>
+ * The "goodputBytes" secondary result is the file bytes delivered per second and "rounds" the total amount of
+ * rounds needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FecBenchmark {
+    private static final int FILE_SIZE = 1 << 20;
+    // The default rate of MulticastDataSender.
+    private static final long LINK_RATE = 32L << 20; // bytes per second
+
+    @Param({"0", "0.01", "0.05", "0.1"})
+    public double lossRate;
+
+    @Param({"0", "0.1", "0.25"})
+    public double redundancy;
+
+    @Param({"20"})
+    public long roundTripMillis;
+
+    private FecType fecType;
+    private int dataCount;
+    private byte[][][] pieces;
+    private SplittableRandom random;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long goodputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.goodputBytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Rounds {
+        public long rounds;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.rounds = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        this.fecType = this.redundancy > 0 ? FecType.REED_SOLOMON : FecType.NONE;
+        int pieceSize = Protocol.DEFAULT_PIECE_SIZE;
+        this.dataCount = (pieceSize + FragmentPacket.MAX_DATA_SIZE - 1) / FragmentPacket.MAX_DATA_SIZE;
+
+        Random contentRandom = new Random(1);
+        this.pieces = new byte[FILE_SIZE / pieceSize][this.dataCount][FragmentPacket.MAX_DATA_SIZE];
+        for (byte[][] piece : this.pieces)
+            for (byte[] shard : piece)
+                contentRandom.nextBytes(shard);
+        this.random = new SplittableRandom(2);
+    }
+
+    @Benchmark
+    public int transfer(Counters counters, Rounds rounds) {
+        boolean[] received = new boolean[this.pieces.length];
+        int remaining = this.pieces.length;
+        int parityCount = this.fecType.parityCount(this.dataCount, this.redundancy);
+        int round = 0;
+
+        while (remaining > 0) {
+            if (round++ > 0)
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(this.roundTripMillis));
+
+            long start = System.nanoTime();
+            long sentBytes = 0;
+            for (int i = 0; i < this.pieces.length; i++) {
+                if (received[i])
+                    continue;
+
+                byte[][] data = this.pieces[i];
+                byte[][] parity = parityCount > 0 ? this.fecType.getCodec().encode(data, parityCount) : new byte[0][];
+                byte[][] shards = new byte[this.dataCount + parityCount][];
+                boolean lost = false;
+                for (int j = 0; j < shards.length; j++) {
+                    sentBytes += FragmentPacket.MAX_DATA_SIZE;
+                    if (this.random.nextDouble() < this.lossRate) {
+                        lost |= j < this.dataCount;
+                        continue;
+                    }
+                    byte[] shard = j < this.dataCount ? data[j] : parity[j - this.dataCount];
+                    shards[j] = Arrays.copyOf(shard, shard.length);
+                }
+
+                if (!lost || (parityCount > 0 && this.fecType.getCodec().decode(shards, this.dataCount))) {
+                    received[i] = true;
+                    remaining--;
+                }
+            }
+
+            // Waits for the datagrams of the round to be sent at the link rate.
+            long wire = sentBytes * 1_000_000_000L / LINK_RATE - (System.nanoTime() - start);
+            if (wire > 0)
+                LockSupport.parkNanos(wire);
+        }
+
+        counters.goodputBytes += FILE_SIZE;
+        rounds.rounds += round;
+        return round;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(FecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
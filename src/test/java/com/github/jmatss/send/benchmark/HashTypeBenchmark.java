@@ -0,0 +1,62 @@
+package com.github.jmatss.send.benchmark;
+
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.HashType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of hashing one piece with every HashType, both with a new MessageDigest per piece (how
+ * pieces used to be hashed) and with the pooled per thread MessageDigest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashTypeBenchmark {
+    @Param({"SHA1", "MD5", "SHA256", "CRC32C", "XXH64"})
+    public String hashTypeName;
+
+    private HashType hashType;
+    private byte[] piece;
+    private ByteBuffer directPiece;
+
+    @Setup
+    public void setUp() {
+        this.hashType = HashType.valueOf(HashType.class, this.hashTypeName);
+        this.piece = new byte[Protocol.DEFAULT_PIECE_SIZE];
+        new Random(1).nextBytes(this.piece);
+        this.directPiece = ByteBuffer.allocateDirect(this.piece.length).put(this.piece).flip();
+    }
+
+    @Benchmark
+    public byte[] newDigestPerPiece() {
+        return this.hashType.getMessageDigest().digest(this.piece);
+    }
+
+    @Benchmark
+    public byte[] pooledDigest() {
+        return this.hashType.digest(this.piece);
+    }
+
+    @Benchmark
+    public byte[] pooledDigestDirectBuffer() {
+        return this.hashType.digest(this.directPiece.duplicate());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(HashTypeBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
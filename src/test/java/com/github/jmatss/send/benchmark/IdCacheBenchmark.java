@@ -0,0 +1,85 @@
+package com.github.jmatss.send.benchmark;
+
+import com.github.jmatss.send.Receiver;
+import com.github.jmatss.send.util.IdCache;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the announcement dedup of the Receiver with the IdCache against the synchronized set of ByteBuffer ids
+ * that was cleared when it grew larger than Receiver.MAX_ID_CACHE_SIZE (how ids used to be cached). Every
+ * operation looks up an id, 90% of them already cached, and adds the ids that weren't cached. Run with several
+ * threads to see the contention on the set, ex. "-t 4".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdCacheBenchmark {
+    private static final int KNOWN_IDS = 1 << 16;
+
+    private int[] known;
+    private IdCache idCache;
+    private Set<ByteBuffer> synchronizedSet;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        this.known = new int[KNOWN_IDS];
+        this.idCache = new IdCache(Receiver.MAX_ID_CACHE_SIZE);
+        this.synchronizedSet = Collections.synchronizedSet(new HashSet<>());
+        for (int i = 0; i < KNOWN_IDS; i++) {
+            this.known[i] = random.nextInt();
+            this.idCache.add(this.known[i]);
+            this.synchronizedSet.add(ByteBuffer.wrap(toBytes(this.known[i])));
+        }
+    }
+
+    @Benchmark
+    public boolean idCache() {
+        int id = nextId();
+        if (this.idCache.contains(id))
+            return true;
+        return this.idCache.add(id);
+    }
+
+    @Benchmark
+    public boolean synchronizedSet() {
+        byte[] id = toBytes(nextId());
+        if (this.synchronizedSet.contains(ByteBuffer.wrap(id)))
+            return true;
+        if (this.synchronizedSet.size() > Receiver.MAX_ID_CACHE_SIZE)
+            this.synchronizedSet.clear();
+        return this.synchronizedSet.add(ByteBuffer.wrap(id));
+    }
+
+    private int nextId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return random.nextInt(10) != 0 ? this.known[random.nextInt(KNOWN_IDS)] : random.nextInt();
+    }
+
+    private static byte[] toBytes(int id) {
+        return ByteBuffer.allocate(4).putInt(id).array();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(IdCacheBenchmark.class.getSimpleName())
+                .threads(4)
+                .build();
+        new Runner(options).run();
+    }
+}
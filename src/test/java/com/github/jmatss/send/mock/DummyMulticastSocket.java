@@ -6,12 +6,15 @@ import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class DummyMulticastSocket extends MulticastSocket {
     private final byte[][] packets;
     private final String host;
     private int index;
     private boolean isClosed;
+    // If set, "receive" returns the packets put in this queue instead of the "packets" array.
+    private final BlockingQueue<DatagramPacket> incoming;
 
     // Stores the packets sent via the "send" function and can be received via the "receiveTest" function.
     private BlockingQueue<DatagramPacket> sentPackets;
@@ -22,6 +25,19 @@ public class DummyMulticastSocket extends MulticastSocket {
         this.index = 0;
         this.isClosed = false;
         this.sentPackets = new LinkedBlockingQueue<>();
+        this.incoming = null;
+    }
+
+    /**
+     * Creates a socket that receives the packets put in "incoming", ex. by the "send" function of another socket.
+     */
+    public DummyMulticastSocket(String host, BlockingQueue<DatagramPacket> incoming) throws IOException {
+        this.packets = new byte[][]{};
+        this.host = host;
+        this.index = 0;
+        this.isClosed = false;
+        this.sentPackets = new LinkedBlockingQueue<>();
+        this.incoming = incoming;
     }
 
     public DummyMulticastSocket(String host) throws IOException {
@@ -30,6 +46,24 @@ public class DummyMulticastSocket extends MulticastSocket {
 
     @Override
     public void receive(DatagramPacket p) throws IOException {
+        if (this.incoming != null) {
+            try {
+                DatagramPacket packet = null;
+                while (packet == null && !isClosed())
+                    packet = this.incoming.poll(100, TimeUnit.MILLISECONDS);
+                if (packet == null)
+                    return;
+
+                System.arraycopy(packet.getData(), packet.getOffset(), p.getData(), p.getOffset(),
+                        packet.getLength());
+                p.setLength(packet.getLength());
+                p.setAddress(InetAddress.getByName(this.host));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         // Block indefinitely if all packets have been read.
         if (this.index == this.packets.length) {
             while (true) {
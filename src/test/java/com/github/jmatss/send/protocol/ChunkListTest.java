@@ -0,0 +1,72 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkListTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testChunkSizesAreWithinBounds() throws IOException {
+        byte[] content = random(1 << 21, 1);
+        ChunkList chunkList = chunkList("file.bin", content);
+
+        assertEquals(content.length, chunkList.getTotalLength());
+        for (int i = 0; i < chunkList.getCount(); i++) {
+            assertTrue(chunkList.getLength(i) <= FastCdc.MAX_SIZE);
+            if (i < chunkList.getCount() - 1)
+                assertTrue(chunkList.getLength(i) > FastCdc.MIN_SIZE);
+        }
+        // The normalized chunking keeps the sizes close to the average.
+        long average = content.length / chunkList.getCount();
+        assertTrue(average > FastCdc.AVG_SIZE / 2 && average < FastCdc.AVG_SIZE * 2, "Average size " + average);
+    }
+
+    @Test
+    public void testInsertedBytesOnlyChangesNearbyChunks() throws IOException {
+        byte[] content = random(1 << 20, 2);
+        byte[] modified = new byte[content.length + 10];
+        System.arraycopy(content, 0, modified, 0, 500_000);
+        System.arraycopy(random(10, 3), 0, modified, 500_000, 10);
+        System.arraycopy(content, 500_000, modified, 500_010, content.length - 500_000);
+
+        ChunkList original = chunkList("original.bin", content);
+        ChunkList changed = chunkList("changed.bin", modified);
+
+        Set<ByteBuffer> digests = new HashSet<>();
+        for (int i = 0; i < original.getCount(); i++)
+            digests.add(ByteBuffer.wrap(original.getDigest(i)));
+        int shared = 0;
+        for (int i = 0; i < changed.getCount(); i++) {
+            if (digests.contains(ByteBuffer.wrap(changed.getDigest(i))))
+                shared++;
+        }
+        assertTrue(shared >= changed.getCount() - 2,
+                "Only " + shared + " of " + changed.getCount() + " chunks are shared");
+    }
+
+    private ChunkList chunkList(String name, byte[] content) throws IOException {
+        Path path = this.tempDir.resolve(name);
+        Files.write(path, content);
+        return new PFile(name, path.toString(), HashType.SHA256, HashType.NONE, Protocol.DEFAULT_PIECE_SIZE, null)
+                .getChunkList();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.jmatss.send.protocol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeltaEncoderTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRollingChecksumEqualsChecksumOfBlock() {
+        byte[] data = random(10000, 1);
+        int blockSize = 2048;
+        int weak = BlockSignatures.weak(data, 0, blockSize);
+        for (int i = 1; i + blockSize <= data.length; i++) {
+            weak = BlockSignatures.roll(weak, blockSize, data[i - 1], data[i + blockSize - 1]);
+            assertEquals(BlockSignatures.weak(data, i, blockSize), weak, "Checksum differs at offset " + i);
+        }
+    }
+
+    @Test
+    public void testOnlyChangedPartsAreSentAsLiterals() throws IOException {
+        byte[] oldData = random(200_000, 2);
+        ByteArrayOutputStream newData = new ByteArrayOutputStream();
+        newData.write(oldData, 0, 50_000);
+        newData.write(random(100, 3), 0, 100);          // Inserted bytes.
+        newData.write(oldData, 50_000, 70_000);
+        newData.write(random(10, 4), 0, 10);            // Modified bytes.
+        newData.write(oldData, 120_010, 79_990 - 1000); // The end of the file is truncated.
+
+        Delta delta = encode(oldData, newData.toByteArray());
+        assertArrayEquals(newData.toByteArray(), delta.apply(oldData));
+        // Only the blocks around the changes are sent, every change costs at most two blocks.
+        assertTrue(delta.literalBytes < 4 * delta.blockSize + 110,
+                "Too many literal bytes: " + delta.literalBytes);
+    }
+
+    @Test
+    public void testUnrelatedFileIsSentAsLiterals() throws IOException {
+        byte[] oldData = random(100_000, 5);
+        byte[] newData = random(150_000, 6);
+
+        Delta delta = encode(oldData, newData);
+        assertArrayEquals(newData, delta.apply(oldData));
+        assertEquals(newData.length, delta.literalBytes);
+    }
+
+    @Test
+    public void testOldFileShorterThanOneBlock() throws IOException {
+        byte[] oldData = random(100, 7);
+        byte[] newData = random(5000, 8);
+
+        Delta delta = encode(oldData, newData);
+        assertEquals(0, delta.blockCount);
+        assertArrayEquals(newData, delta.apply(oldData));
+    }
+
+    @Test
+    public void testManyIdenticalBlocksAreCopiedAsOneRun() throws IOException {
+        // The signatures of an old file of zero pages, the new file is the start of it.
+        int blockSize = BlockSignatures.MIN_BLOCK_SIZE;
+        int blockCount = 1 << 17;
+        byte[] zeros = new byte[blockSize];
+        int[] weak = new int[blockCount];
+        long[] strong = new long[blockCount];
+        Arrays.fill(weak, BlockSignatures.weak(zeros, 0, blockSize));
+        Arrays.fill(strong, BlockSignatures.strong(zeros, 0, blockSize));
+        BlockSignatures signatures = new BlockSignatures(blockSize, weak, strong);
+
+        Path newPath = Files.write(this.tempDir.resolve("new"), new byte[blockSize * 1000]);
+        Delta delta = new Delta(blockSize, blockCount);
+        try (FileChannel channel = FileChannel.open(newPath, StandardOpenOption.READ)) {
+            new DeltaEncoder(signatures).encode(channel, delta);
+        }
+        assertEquals(0, delta.literalBytes);
+        assertEquals(1, delta.parts.size());
+        assertArrayEquals(new int[]{0, 1000}, (int[]) delta.parts.get(0));
+    }
+
+    private Delta encode(byte[] oldData, byte[] newData) throws IOException {
+        Path oldPath = this.tempDir.resolve("old");
+        Path newPath = this.tempDir.resolve("new");
+        Files.write(oldPath, oldData);
+        Files.write(newPath, newData);
+
+        BlockSignatures signatures;
+        try (FileChannel channel = FileChannel.open(oldPath, StandardOpenOption.READ)) {
+            signatures = BlockSignatures.calculate(channel, BlockSignatures.blockSize(channel.size()));
+        }
+
+        Delta delta = new Delta(signatures.getBlockSize(), signatures.getCount());
+        try (FileChannel channel = FileChannel.open(newPath, StandardOpenOption.READ)) {
+            new DeltaEncoder(signatures).encode(channel, delta);
+        }
+        return delta;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Records the delta and rebuilds the new file from the old file.
+    private static class Delta implements DeltaEncoder.Output {
+        private final int blockSize;
+        private final int blockCount;
+        // Every part is either a literal (byte[]) or a copy ({block, count}).
+        private final List<Object> parts = new ArrayList<>();
+        private long literalBytes;
+
+        Delta(int blockSize, int blockCount) {
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+        }
+
+        @Override
+        public void copy(int block, int count) {
+            assertTrue(block >= 0 && block + count <= this.blockCount);
+            this.parts.add(new int[]{block, count});
+        }
+
+        @Override
+        public void literal(byte[] data) {
+            assertTrue(data.length > 0 && data.length <= DeltaEncoder.MAX_LITERAL_SIZE);
+            this.parts.add(data);
+            this.literalBytes += data.length;
+        }
+
+        byte[] apply(byte[] oldData) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Object part : this.parts) {
+                if (part instanceof byte[]) {
+                    out.write((byte[]) part, 0, ((byte[]) part).length);
+                } else {
+                    int[] copy = (int[]) part;
+                    out.write(oldData, copy[0] * this.blockSize, copy[1] * this.blockSize);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.jmatss.send.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileListTest {
+    @Test
+    public void testFrontCodedStringsRoundTrip() {
+        FileList.FrontCodedStrings strings = new FileList.FrontCodedStrings();
+        List<String> expected = new ArrayList<>();
+        int length = 0;
+        for (int i = 0; i < 1000; i++) {
+            // Shares a long prefix with the previous entry, except at the directory changes.
+            String s = "root/dir" + (i / 37) + "/sub/file-\u00e5\u00e4\u00f6-" + i;
+            expected.add(s);
+            strings.add(s.getBytes(StandardCharsets.UTF_8));
+            length += s.getBytes(StandardCharsets.UTF_8).length;
+        }
+        strings.add(new byte[0]);
+        expected.add("");
+
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i), new String(strings.get(i), StandardCharsets.UTF_8), "Incorrect entry " + i);
+        assertTrue(strings.byteCount() < length / 2, "Prefixes not shared: " + strings.byteCount());
+    }
+
+    @Test
+    public void testWalkFindsAllFiles() throws Exception {
+        Path root = Files.createTempDirectory("file_list_test");
+        Map<String, Long> expected = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            Path dir = root.resolve("d" + (i % 5)).resolve("e" + (i % 3));
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("f" + i), new byte[i]);
+            expected.put(root.getFileName() + "/d" + (i % 5) + "/e" + (i % 3) + "/f" + i, (long) i);
+        }
+        Files.createDirectories(root.resolve("empty"));
+
+        FileList fileList = FileList.walk(root, ForkJoinPool.commonPool());
+        assertEquals(expected.size(), fileList.awaitComplete());
+        assertTrue(fileList.isComplete());
+        assertFalse(fileList.await(expected.size()));
+
+        Map<String, Long> actual = new HashMap<>();
+        for (int i = 0; i < fileList.size(); i++) {
+            actual.put(fileList.getName(i), fileList.getLength(i));
+            assertEquals(root.getParent().resolve(fileList.getName(i)).toString(), fileList.getPath(i));
+        }
+        assertEquals(expected, actual);
+        assertEquals(expected.values().stream().mapToLong(Long::longValue).sum(), fileList.getTotalLength());
+    }
+
+    @Test
+    public void testWalkOrderIsTheSameEveryTime() throws Exception {
+        Path root = Files.createTempDirectory("file_list_order_test");
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            created.add("d" + (i % 7) + "/e" + (i % 11) + "/f" + i);
+        for (int i = 0; i < 20; i++)
+            created.add("f" + i);
+        // Created in a random order, so the order of the directory listings isn't sorted.
+        Collections.shuffle(created, new Random(1));
+        for (String name : created) {
+            Path path = root.resolve(name);
+            Files.createDirectories(path.getParent());
+            Files.write(path, new byte[0]);
+        }
+
+        List<String> expected = new ArrayList<>();
+        walkSequentially(root, root.getParent(), expected);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int i = 0; i < 2; i++) {
+                FileList fileList = FileList.walk(root, pool);
+                fileList.awaitComplete();
+                List<String> actual = new ArrayList<>();
+                for (int j = 0; j < fileList.size(); j++)
+                    actual.add(fileList.getName(j));
+                assertEquals(expected, actual, "Incorrect order of walk " + i);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // A sequential depth-first walk with the entries of every directory sorted by name.
+    private static void walkSequentially(Path path, Path basePath, List<String> names) throws IOException {
+        if (Files.isRegularFile(path)) {
+            names.add(basePath.relativize(path).toString());
+            return;
+        }
+        try (Stream<Path> children = Files.list(path)) {
+            for (Path child : children.sorted(Comparator.comparing(c -> c.getFileName().toString()))
+                    .collect(Collectors.toList()))
+                walkSequentially(child, basePath, names);
+        }
+    }
+
+    @Test
+    public void testFilesCanBeReadWhileTheListIsFilled() throws Exception {
+        FileList fileList = new FileList();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 10000; i++)
+                fileList.add("name" + i, "path" + i, i);
+            fileList.complete();
+        });
+        writer.start();
+
+        int count = 0;
+        for (int i = 0; fileList.await(i); i++) {
+            assertEquals("name" + i, fileList.getName(i));
+            assertEquals("path" + i, fileList.getPath(i));
+            count++;
+        }
+        writer.join();
+        assertEquals(10000, count);
+        assertThrows(IllegalStateException.class, () -> fileList.add("name", "path", 0));
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.jmatss.send.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FilePackTest {
+    @Test
+    public void testSmallFilesArePackedAndUnpacked() throws Exception {
+        Path src = Files.createTempDirectory("file_pack_test_src");
+        List<String> names = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            // Every 100th file is too large to be packed.
+            byte[] content = new byte[i % 100 == 0 ? FilePack.DEFAULT_THRESHOLD : random.nextInt(2000)];
+            random.nextBytes(content);
+            contents.add(content);
+            names.add("dir/" + (i % 7) + "/file" + i);
+            paths.add(Files.write(src.resolve("file" + i), content).toString());
+        }
+        List<String> originalNames = new ArrayList<>(names);
+
+        Path packPath = Files.createTempDirectory("file_pack_test_packs");
+        assertEquals(495, FilePack.pack(names, paths, FilePack.DEFAULT_THRESHOLD, packPath));
+        assertEquals(1 + 5, names.size());
+        assertTrue(FilePack.isPack(names.get(0)));
+        assertEquals(Arrays.asList("dir/0/file0", "dir/2/file100", "dir/4/file200", "dir/6/file300",
+                "dir/1/file400"), names.subList(1, names.size()));
+
+        Path dst = Files.createTempDirectory("file_pack_test_dst");
+        assertEquals(495, FilePack.unpack(Path.of(paths.get(0)), dst, false));
+        for (int i = 0; i < contents.size(); i++) {
+            Path path = dst.resolve(originalNames.get(i));
+            if (i % 100 == 0)
+                assertFalse(Files.exists(path));
+            else
+                assertArrayEquals(contents.get(i), Files.readAllBytes(path), "Incorrect file " + i);
+        }
+
+        // Existing files are kept unless they are overwritten.
+        Files.write(dst.resolve(originalNames.get(1)), new byte[]{1});
+        assertEquals(0, FilePack.unpack(Path.of(paths.get(0)), dst, false));
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(dst.resolve(originalNames.get(1))));
+        assertEquals(495, FilePack.unpack(Path.of(paths.get(0)), dst, true));
+        assertArrayEquals(contents.get(1), Files.readAllBytes(dst.resolve(originalNames.get(1))));
+    }
+
+    @Test
+    public void testFilesWithTheNamesOfTemporaryFilesAreUnpacked() throws Exception {
+        Path src = Files.createTempDirectory("file_pack_test_src");
+        List<String> names = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        Random random = new Random(2);
+        // Every file has a backup whose name is the name of the file with ".tmp" appended. The backups are in the
+        // second half of the segment, so they are unpacked at the same time as their files.
+        for (String suffix : new String[]{"", ".tmp"}) {
+            for (int i = 0; i < 200; i++) {
+                byte[] content = new byte[1 + random.nextInt(20000)];
+                random.nextBytes(content);
+                contents.add(content);
+                names.add("dir/file" + i + suffix);
+                paths.add(Files.write(src.resolve("file" + i + suffix), content).toString());
+            }
+        }
+        List<String> originalNames = new ArrayList<>(names);
+
+        Path packPath = Files.createTempDirectory("file_pack_test_packs");
+        assertEquals(400, FilePack.pack(names, paths, FilePack.DEFAULT_THRESHOLD, packPath));
+        Path dst = Files.createTempDirectory("file_pack_test_dst");
+        assertEquals(400, FilePack.unpack(Path.of(paths.get(0)), dst, false));
+        for (int i = 0; i < contents.size(); i++) {
+            assertArrayEquals(contents.get(i), Files.readAllBytes(dst.resolve(originalNames.get(i))),
+                    "Incorrect file " + originalNames.get(i));
+        }
+        try (Stream<Path> files = Files.list(dst.resolve("dir"))) {
+            assertEquals(400, files.count());
+        }
+    }
+
+    @Test
+    public void testUnchangedFilesReuseTheirSegment() throws Exception {
+        Path src = Files.createTempDirectory("file_pack_test_src");
+        Path packPath = Files.createTempDirectory("file_pack_test_packs");
+        Files.write(src.resolve("a"), new byte[]{1, 2, 3});
+        Files.write(src.resolve("b"), new byte[]{4, 5});
+
+        List<String> names = new ArrayList<>(Arrays.asList("a", "b"));
+        List<String> paths = new ArrayList<>(Arrays.asList(src.resolve("a").toString(), src.resolve("b").toString()));
+        FilePack.pack(names, paths, FilePack.DEFAULT_THRESHOLD, packPath);
+        Path segment = Path.of(paths.get(0));
+        FileTime written = FileTime.fromMillis(1000);
+        Files.setLastModifiedTime(segment, written);
+
+        List<String> samePaths = new ArrayList<>(Arrays.asList(src.resolve("a").toString(),
+                src.resolve("b").toString()));
+        FilePack.pack(new ArrayList<>(Arrays.asList("a", "b")), samePaths, FilePack.DEFAULT_THRESHOLD, packPath);
+        assertEquals(segment.toString(), samePaths.get(0));
+        assertEquals(written, Files.getLastModifiedTime(segment));
+
+        // A changed file gets a new segment.
+        Files.setLastModifiedTime(src.resolve("b"), FileTime.fromMillis(2000));
+        List<String> changedPaths = new ArrayList<>(Arrays.asList(src.resolve("a").toString(),
+                src.resolve("b").toString()));
+        FilePack.pack(new ArrayList<>(Arrays.asList("a", "b")), changedPaths, FilePack.DEFAULT_THRESHOLD, packPath);
+        assertNotEquals(segment.toString(), changedPaths.get(0));
+    }
+
+    @Test
+    public void testTruncatedSegmentIsRejected() throws Exception {
+        Path src = Files.createTempDirectory("file_pack_test_src");
+        List<String> names = new ArrayList<>(Arrays.asList("a", "b"));
+        List<String> paths = new ArrayList<>(Arrays.asList(
+                Files.write(src.resolve("a"), new byte[100]).toString(),
+                Files.write(src.resolve("b"), new byte[100]).toString()));
+        FilePack.pack(names, paths, FilePack.DEFAULT_THRESHOLD, Files.createTempDirectory("file_pack_test_packs"));
+
+        try (RandomAccessFile file = new RandomAccessFile(paths.get(0), "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        assertThrows(IOException.class, () -> FilePack.unpack(Path.of(paths.get(0)),
+                Files.createTempDirectory("file_pack_test_dst"), false));
+    }
+}
@@ -2,6 +2,7 @@ package com.github.jmatss.send.protocol;
 
 import com.github.jmatss.send.Controller;
 import com.github.jmatss.send.packet.FilePiecePacket;
+import com.github.jmatss.send.type.CompressionType;
 import com.github.jmatss.send.type.HashType;
 import com.github.jmatss.send.type.MessageType;
 import org.junit.jupiter.api.Test;
@@ -23,19 +24,21 @@ public class FileProtocolTest {
         TestFile t = new TestFile(name, path, Protocol.DEFAULT_HASH_TYPE, HashType.NONE);
 
         byte[] file_info_expected = ByteBuffer
-                .allocate(1 + 4 + t.pathBytes.length + 8 + 1 + 20)
+                .allocate(1 + 4 + t.pathBytes.length + 8 + 4 + 1 + 20)
                 .put((byte) MessageType.FILE_INFO.getValue())
                 .putInt(t.pathBytes.length)
                 .put(t.pathBytes)
                 .putLong(t.length)
+                .putInt(Protocol.DEFAULT_PIECE_SIZE)
                 .put((byte) t.fileHashType.getValue())
                 .put(toDigest("1FE1AE26BF167A668B9EBE0BCC70291146AC7957"))
                 .array();
 
         byte[] file_piece_expected = ByteBuffer
-                .allocate(1 + 4 + 4 + t.content.length + 1)
+                .allocate(1 + 4 + 1 + 4 + t.content.length + 1)
                 .put((byte) MessageType.FILE_PIECE.getValue())
                 .putInt(0)
+                .put((byte) CompressionType.NONE.getValue())
                 .putInt(t.content.length)
                 .put(t.content)
                 .put((byte) t.pieceHashType.getValue())
@@ -53,11 +56,12 @@ public class FileProtocolTest {
         int pieceSize = (int) (t.length / 2);
 
         byte[] file_info_expected = ByteBuffer
-                .allocate(1 + 4 + t.pathBytes.length + 8 + 1 + 20)
+                .allocate(1 + 4 + t.pathBytes.length + 8 + 4 + 1 + 20)
                 .put((byte) MessageType.FILE_INFO.getValue())
                 .putInt(t.pathBytes.length)
                 .put(t.pathBytes)
                 .putLong(t.length)
+                .putInt(pieceSize)
                 .put((byte) t.fileHashType.getValue())
                 .put(toDigest("1FE1AE26BF167A668B9EBE0BCC70291146AC7957"))
                 .array();
@@ -65,9 +69,10 @@ public class FileProtocolTest {
         List<byte[]> file_pieces_expected = new ArrayList<>(2);
         for (int i = 0; i < 2; i++) {
             file_pieces_expected.add(ByteBuffer
-                    .allocate(1 + 4 + 4 + pieceSize + 1)
+                    .allocate(1 + 4 + 1 + 4 + pieceSize + 1)
                     .put((byte) MessageType.FILE_PIECE.getValue())
                     .putInt(i)
+                    .put((byte) CompressionType.NONE.getValue())
                     .putInt(pieceSize)
                     .put(Arrays.copyOfRange(t.content, i * pieceSize, (i + 1) * pieceSize))
                     .put((byte) t.pieceHashType.getValue())
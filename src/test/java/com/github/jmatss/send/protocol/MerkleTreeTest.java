@@ -0,0 +1,92 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MerkleTreeTest {
+    @Test
+    public void testRootOfThreeLeaves() {
+        byte[][] pieces = {{1}, {2}, {3}};
+        byte[] a = MerkleTree.leafHash(pieces[0]);
+        byte[] b = MerkleTree.leafHash(pieces[1]);
+        byte[] c = MerkleTree.leafHash(pieces[2]);
+
+        // The left subtree contains the largest power of two less than the amount of leaves.
+        byte[] expected = node(node(a, b), c);
+
+        assertArrayEquals(expected, tree(pieces).getRoot());
+    }
+
+    @Test
+    public void testRootOfOneLeafIsTheLeafHash() {
+        byte[] piece = {1, 2, 3};
+        assertArrayEquals(MerkleTree.leafHash(piece), tree(new byte[][]{piece}).getRoot());
+    }
+
+    @Test
+    public void testEveryRangeVerifies() {
+        byte[][] pieces = new byte[7][];
+        for (int i = 0; i < pieces.length; i++)
+            pieces[i] = new byte[]{(byte) i};
+        MerkleTree tree = tree(pieces);
+        byte[] root = tree.getRoot();
+
+        for (int first = 0; first < pieces.length; first++) {
+            for (int end = first + 1; end <= pieces.length; end++) {
+                List<byte[]> leafHashes = new ArrayList<>();
+                for (int i = first; i < end; i++)
+                    leafHashes.add(MerkleTree.leafHash(pieces[i]));
+                List<byte[]> proof = tree.getRangeProof(first, end);
+
+                assertTrue(MerkleTree.verifyRange(root, pieces.length, first, leafHashes, proof),
+                        "Range [" + first + ", " + end + ") didn't verify");
+
+                // A modified piece must not verify.
+                leafHashes.set(0, MerkleTree.leafHash(new byte[]{42}));
+                assertFalse(MerkleTree.verifyRange(root, pieces.length, first, leafHashes, proof),
+                        "Modified range [" + first + ", " + end + ") verified");
+            }
+        }
+    }
+
+    @Test
+    public void testFileRootEqualsTreeOfPieces() throws Exception {
+        int pieceSize = 100;
+        byte[] content = new byte[pieceSize * 50 + 7];
+        new Random(1).nextBytes(content);
+        Path file = Files.write(Files.createTempFile("merkle_tree_test", ".bin"), content);
+
+        byte[][] pieces = new byte[51][];
+        for (int i = 0; i < pieces.length; i++)
+            pieces[i] = Arrays.copyOfRange(content, i * pieceSize, Math.min((i + 1) * pieceSize, content.length));
+
+        PFile pfile = new PFile("name", file.toString(), HashType.MERKLE, HashType.NONE, pieceSize, null);
+        assertArrayEquals(tree(pieces).getRoot(), pfile.getFileDigest());
+        assertEquals(HashType.MERKLE.getSize(), pfile.getFileDigest().length);
+    }
+
+    private MerkleTree tree(byte[][] pieces) {
+        ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+        for (byte[] piece : pieces)
+            leaves.writeBytes(MerkleTree.leafHash(piece));
+        return new MerkleTree(pieces.length, leaves.toByteArray());
+    }
+
+    private byte[] node(byte[] left, byte[] right) {
+        MessageDigest md = HashType.MERKLE.getMessageDigest();
+        md.update((byte) 0x01);
+        md.update(left);
+        return md.digest(right);
+    }
+}
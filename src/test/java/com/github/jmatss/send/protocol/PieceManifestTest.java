@@ -0,0 +1,46 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PieceManifestTest {
+    @Test
+    public void testManifestContainsDigestOfEveryPiece() throws Exception {
+        int pieceSize = 1024;
+        // Enough pieces to be split over multiple parallel tasks and a last piece that isn't full.
+        byte[] content = new byte[pieceSize * 200 + 123];
+        new Random(1).nextBytes(content);
+        Path file = Files.write(Files.createTempFile("piece_manifest_test", ".bin"), content);
+
+        PFile pfile = new PFile("name", file.toString(), HashType.SHA1, HashType.MD5, pieceSize, null);
+        PieceManifest manifest = pfile.getPieceManifest();
+
+        assertEquals(201, manifest.getPieceCount());
+        for (int i = 0; i < manifest.getPieceCount(); i++) {
+            byte[] piece = Arrays.copyOfRange(content, i * pieceSize, Math.min((i + 1) * pieceSize, content.length));
+            assertArrayEquals(HashType.MD5.getMessageDigest().digest(piece), manifest.getDigest(i),
+                    "Incorrect digest of piece " + i);
+        }
+
+        // The manifest is shared until the file is modified.
+        assertSame(manifest, pfile.getPieceManifest());
+    }
+
+    @Test
+    public void testManifestWithoutPieceHash() throws Exception {
+        Path file = Files.write(Files.createTempFile("piece_manifest_test", ".bin"), new byte[10]);
+
+        PFile pfile = new PFile("name", file.toString(), HashType.SHA1, HashType.NONE, 4, null);
+        PieceManifest manifest = pfile.getPieceManifest();
+
+        assertEquals(3, manifest.getPieceCount());
+        assertArrayEquals(new byte[0], manifest.getDigest(2));
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+import com.github.jmatss.send.util.DigestCache;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PieceSizeTest {
+    @Test
+    public void testFilePieceSizeGrowsWithFileLength() {
+        assertEquals(Protocol.MIN_PIECE_SIZE, PieceSize.forFile(0, Protocol.MAX_PIECE_SIZE));
+        assertEquals(Protocol.MIN_PIECE_SIZE, PieceSize.forFile(1 << 20, Protocol.MAX_PIECE_SIZE));
+        assertEquals(1 << 16, PieceSize.forFile(5_000_000, Protocol.MAX_PIECE_SIZE));
+        assertEquals(1 << 20, PieceSize.forFile(100L << 20, Protocol.MAX_PIECE_SIZE));
+        assertEquals(Protocol.MAX_PIECE_SIZE, PieceSize.forFile(100L << 30, Protocol.MAX_PIECE_SIZE));
+        // Never larger than what the subscriber accepts.
+        assertEquals(Protocol.DEFAULT_PIECE_SIZE, PieceSize.forFile(100L << 20, Protocol.DEFAULT_PIECE_SIZE));
+    }
+
+    @Test
+    public void testLinkPieceSizeFollowsThroughputAndRtt() {
+        assertEquals(Protocol.MAX_PIECE_SIZE, PieceSize.forLink(0, 0));
+        // 1 GB/s for 10 ms.
+        assertEquals(1 << 23, PieceSize.forLink(100_000, 1_000_000_000L));
+        // 100 MB/s for 10 ms.
+        assertEquals(1 << 19, PieceSize.forLink(100_000, 100_000_000L));
+        // 100 MB/s for a round trip of 50 ms.
+        assertEquals(1 << 22, PieceSize.forLink(50_000_000L, 100_000_000L));
+        // Slow links still gets the pieces that every publisher can send.
+        assertEquals(Protocol.DEFAULT_PIECE_SIZE, PieceSize.forLink(100_000, 100_000L));
+    }
+
+    @Test
+    public void testNegotiatedViewsAreSharedAndHashedWithTheirPieceSize() throws Exception {
+        byte[] content = new byte[(1 << 22) + 123];
+        new Random(1).nextBytes(content);
+        Path file = Files.write(Files.createTempFile("piece_size_test", ".bin"), content);
+        DigestCache cache = new DigestCache(null);
+
+        PFile pfile = new PFile("name", file.toString(), HashType.MERKLE, HashType.CRC32C, PieceSize.AUTO, cache);
+        assertEquals(1 << 16, pfile.getPieceSize());
+        assertSame(pfile, pfile.negotiate(Protocol.MAX_PIECE_SIZE));
+
+        PFile view = pfile.negotiate(Protocol.MIN_PIECE_SIZE);
+        assertEquals(Protocol.MIN_PIECE_SIZE, view.getPieceSize());
+        assertEquals(257, view.getPieceCount());
+        assertSame(view, pfile.negotiate(Protocol.MIN_PIECE_SIZE));
+        assertSame(view, view.negotiate(Protocol.MIN_PIECE_SIZE));
+        assertSame(pfile.getChunkList(), view.getChunkList());
+
+        // The root of a Merkle tree depends on the piece size, so the views doesn't share the cached digest.
+        byte[] expected = PFile.calculateFileDigest(file.toString(), HashType.MERKLE, Protocol.MIN_PIECE_SIZE);
+        assertArrayEquals(expected, view.getFileDigest());
+        assertFalse(Arrays.equals(expected, pfile.getFileDigest()));
+        assertEquals(2, cache.size());
+    }
+}
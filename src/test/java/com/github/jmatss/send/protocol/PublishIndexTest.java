@@ -0,0 +1,78 @@
+package com.github.jmatss.send.protocol;
+
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PublishIndexTest {
+    private static final int PIECE_SIZE = 1 << 14;
+
+    @Test
+    public void testUnmodifiedFilesAreRestored() throws Exception {
+        Path dir = Files.createTempDirectory("publish_index_test");
+        List<String> names = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            byte[] content = new byte[random.nextInt(5 * PIECE_SIZE)];
+            random.nextBytes(content);
+            names.add("file" + i);
+            paths.add(Files.write(dir.resolve("file" + i), content).toString());
+        }
+
+        FileProtocol hashed = create(names, paths, null);
+        Path indexPath = PublishIndex.pathOf(dir.resolve("index"), "topic", dir);
+        assertEquals(names.size(), PublishIndex.write(indexPath, hashed));
+
+        // The first file is modified after it was indexed and has to be hashed again.
+        Path modified = Path.of(paths.get(0));
+        Files.setLastModifiedTime(modified,
+                FileTime.fromMillis(Files.getLastModifiedTime(modified).toMillis() + 10000));
+
+        PublishIndex publishIndex = PublishIndex.load(indexPath);
+        assertEquals(names.size(), publishIndex.size());
+        FileProtocol restored = create(names, paths, publishIndex);
+        for (int i = 0; i < names.size(); i++) {
+            PFile expected = hashed.getFile(i);
+            PFile actual = restored.getFile(i);
+            assertArrayEquals(expected.getFileDigest(), actual.getFileDigest(), "Incorrect digest of file " + i);
+            for (int j = 0; j < expected.getPieceCount(); j++)
+                assertArrayEquals(expected.getPieceManifest().getDigest(j), actual.getPieceManifest().getDigest(j));
+        }
+        assertEquals(names.size() - 1, publishIndex.getRestoredCount());
+
+        // A restored file that is modified later is hashed again when it is requested.
+        Path later = Path.of(paths.get(1));
+        Files.write(later, new byte[]{1, 2, 3});
+        Files.setLastModifiedTime(later, FileTime.fromMillis(Files.getLastModifiedTime(later).toMillis() + 10000));
+        assertArrayEquals(PFile.calculateFileDigest(paths.get(1), HashType.MERKLE, PIECE_SIZE),
+                restored.getFile(1).getFileDigest());
+        assertEquals(1, restored.getFile(1).getPieceManifest().getPieceCount());
+    }
+
+    @Test
+    public void testCorruptIndexIsRejected() throws Exception {
+        Path dir = Files.createTempDirectory("publish_index_test");
+        assertNull(PublishIndex.load(dir.resolve("missing.index")));
+
+        Path indexPath = Files.write(dir.resolve("corrupt.index"), new byte[]{0x53, 0x50, 0x49, 0x31, 0x7f, 0, 0, 0});
+        assertThrows(IOException.class, () -> PublishIndex.load(indexPath));
+        Files.write(indexPath, new byte[]{1, 2, 3});
+        assertThrows(IOException.class, () -> PublishIndex.load(indexPath));
+    }
+
+    private static FileProtocol create(List<String> names, List<String> paths, PublishIndex publishIndex)
+    throws IOException {
+        return new FileProtocol(FileList.of(names, paths), HashType.MERKLE, HashType.CRC32C, PIECE_SIZE, null,
+                publishIndex);
+    }
+}
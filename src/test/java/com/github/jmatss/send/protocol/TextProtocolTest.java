@@ -1,6 +1,7 @@
 package com.github.jmatss.send.protocol;
 
 import com.github.jmatss.send.packet.TextPacket;
+import com.github.jmatss.send.type.CompressionType;
 import com.github.jmatss.send.type.MessageType;
 import org.junit.jupiter.api.Test;
 
@@ -14,9 +15,10 @@ public class TextProtocolTest {
         try {
             String text = "testabc123";
             byte[] packet_expected = ByteBuffer
-                    .allocate(1 + 4 + 4 + text.length())
+                    .allocate(1 + 4 + 1 + 4 + text.length())
                     .put((byte) MessageType.TEXT.getValue())
                     .putInt(0)
+                    .put((byte) CompressionType.NONE.getValue())
                     .putInt(text.length())
                     .put(text.getBytes())
                     .array();
@@ -44,9 +46,10 @@ public class TextProtocolTest {
             byte[][] packets_expected = new byte[2][];
             for (int i = 0; i < packets_expected.length; i++) {
                 packets_expected[i] = ByteBuffer
-                        .allocate(1 + 4 + 4 + pieceSize)
+                        .allocate(1 + 4 + 1 + 4 + pieceSize)
                         .put((byte) MessageType.TEXT.getValue())
                         .putInt(i)
+                        .put((byte) CompressionType.NONE.getValue())
                         .putInt(pieceSize)
                         .put(text.substring(i * pieceSize, (i + 1) * pieceSize).getBytes())
                         .array();
@@ -0,0 +1,95 @@
+package com.github.jmatss.send.storage;
+
+import com.github.jmatss.send.protocol.ChunkList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkStoreTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testChunksAreReadFromTheDownloadedFile() throws Exception {
+        byte[] content = random(10_000, 1);
+        Path path = this.tempDir.resolve("file.bin");
+        Files.write(path, content);
+        ChunkList chunkList = chunkList(content, 3000, 3000, 4000);
+
+        ChunkStore store = new ChunkStore(null);
+        store.add(path, chunkList);
+        assertEquals(3, store.size());
+        for (int i = 0; i < chunkList.getCount(); i++) {
+            assertTrue(store.contains(chunkList.getDigest(i)));
+            int offset = (int) chunkList.getOffset(i);
+            assertArrayEquals(Arrays.copyOfRange(content, offset, offset + chunkList.getLength(i)),
+                    store.read(chunkList.getDigest(i)));
+        }
+        assertNull(store.read(new byte[ChunkList.HASH_TYPE.getSize()]));
+    }
+
+    @Test
+    public void testModifiedFileIsNotUsed() throws Exception {
+        byte[] content = random(8000, 2);
+        Path path = this.tempDir.resolve("file.bin");
+        Files.write(path, content);
+        ChunkList chunkList = chunkList(content, 4000, 4000);
+
+        ChunkStore store = new ChunkStore(null);
+        store.add(path, chunkList);
+        content[0]++;
+        Files.write(path, content);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(Files.getLastModifiedTime(path).toMillis() + 1000));
+
+        // The modification is detected from the modification time, or from the digest when the chunk is read.
+        assertNull(store.read(chunkList.getDigest(0)));
+        assertFalse(store.contains(chunkList.getDigest(1)));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        byte[] content = random(6000, 3);
+        Path path = this.tempDir.resolve("file.bin");
+        Files.write(path, content);
+        ChunkList chunkList = chunkList(content, 1000, 5000);
+        Path indexPath = this.tempDir.resolve("chunk.store");
+
+        ChunkStore store = new ChunkStore(indexPath);
+        store.add(path, chunkList);
+        store.save();
+
+        ChunkStore loaded = new ChunkStore(indexPath);
+        loaded.load();
+        assertEquals(2, loaded.size());
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 6000), loaded.read(chunkList.getDigest(1)));
+    }
+
+    private static ChunkList chunkList(byte[] content, int... lengths)
+    throws NoSuchAlgorithmException {
+        int size = ChunkList.HASH_TYPE.getSize();
+        byte[] digests = new byte[lengths.length * size];
+        int offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(content, offset, lengths[i]);
+            System.arraycopy(md.digest(), 0, digests, i * size, size);
+            offset += lengths[i];
+        }
+        return new ChunkList(lengths, digests);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
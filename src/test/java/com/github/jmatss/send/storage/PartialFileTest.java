@@ -0,0 +1,150 @@
+package com.github.jmatss.send.storage;
+
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.protocol.PFile;
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartialFileTest {
+    private static final int PIECE_SIZE = 100;
+
+    @Test
+    public void testResumeAfterInterruptedDownload() throws Exception {
+        byte[] content = randomContent(PIECE_SIZE * 5 + 50);
+        Path dir = Files.createTempDirectory("partial_file_test");
+        Path path = dir.resolve("file.bin");
+
+        for (HashType hashType : new HashType[]{HashType.MERKLE, HashType.SHA1}) {
+            FileInfoPacket fileInfo = fileInfo(content, hashType);
+
+            // First session receives piece 0, 1 and 4 before the connection is "dropped".
+            try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+                assertEquals(6, partialFile.getPieceCount());
+                for (int i : new int[]{0, 1, 4})
+                    partialFile.write(i, piece(content, i));
+            }
+            assertFalse(Files.exists(path));
+
+            // Second session only needs the missing pieces.
+            try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+                assertEquals(3, partialFile.getReceivedCount());
+                assertEquals(2, partialFile.nextMissing(0));
+                assertEquals(4, partialFile.nextReceived(2));
+                assertEquals(5, partialFile.nextMissing(4));
+
+                for (int i : new int[]{2, 3, 5})
+                    partialFile.write(i, piece(content, i));
+                partialFile.complete();
+            }
+
+            assertArrayEquals(content, Files.readAllBytes(path));
+            assertFalse(Files.exists(dir.resolve("file.bin" + PartialFile.DATA_SUFFIX)));
+            assertFalse(Files.exists(dir.resolve("file.bin" + PartialFile.STATE_SUFFIX)));
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testStateOfAnotherVersionIsDiscarded() throws Exception {
+        byte[] content = randomContent(PIECE_SIZE * 3);
+        byte[] newContent = randomContent(PIECE_SIZE * 3);
+        Path path = Files.createTempDirectory("partial_file_test").resolve("file.bin");
+
+        try (PartialFile partialFile = PartialFile.open(path, fileInfo(content, HashType.SHA1))) {
+            partialFile.write(0, piece(content, 0));
+        }
+        try (PartialFile partialFile = PartialFile.open(path, fileInfo(newContent, HashType.SHA1))) {
+            assertEquals(0, partialFile.getReceivedCount());
+        }
+    }
+
+    @Test
+    public void testIncorrectDigestIsNotMovedIntoPlace() throws Exception {
+        byte[] content = randomContent(PIECE_SIZE * 2);
+        Path dir = Files.createTempDirectory("partial_file_test");
+        Path path = dir.resolve("file.bin");
+        FileInfoPacket fileInfo = fileInfo(content, HashType.SHA1);
+
+        try (PartialFile partialFile = PartialFile.open(path, fileInfo)) {
+            partialFile.write(0, piece(content, 0));
+            partialFile.write(1, new byte[PIECE_SIZE]);
+            assertThrows(IOException.class, partialFile::complete);
+        }
+
+        assertFalse(Files.exists(path));
+        assertFalse(Files.exists(dir.resolve("file.bin" + PartialFile.DATA_SUFFIX)));
+        assertFalse(Files.exists(dir.resolve("file.bin" + PartialFile.STATE_SUFFIX)));
+    }
+
+    @Test
+    public void testPreallocatedFileWrittenOutOfOrder() throws Exception {
+        byte[] content = randomContent(PIECE_SIZE * 4 + 30);
+        Path dir = Files.createTempDirectory("partial_file_test");
+        Path path = dir.resolve("file.bin");
+
+        for (SyncPolicy syncPolicy : SyncPolicy.values()) {
+            try (PartialFile partialFile = PartialFile.open(path, fileInfo(content, HashType.SHA1), syncPolicy)) {
+                assertEquals(content.length, Files.size(dir.resolve("file.bin" + PartialFile.DATA_SUFFIX)));
+                for (int i : new int[]{4, 2, 0, 3, 1})
+                    partialFile.write(i, piece(content, i));
+                partialFile.complete();
+            }
+            assertArrayEquals(content, Files.readAllBytes(path));
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testOverlappingWritesFromSeveralThreads() throws Exception {
+        byte[] content = randomContent(PIECE_SIZE * 64 + 10);
+        Path path = Files.createTempDirectory("partial_file_test").resolve("file.bin");
+
+        try (PartialFile partialFile = PartialFile.open(path, fileInfo(content, HashType.MERKLE))) {
+            // Every piece is written by two of the threads, as when a piece is requested from two publishers.
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                int offset = t;
+                threads[t] = new Thread(() -> {
+                    for (int i = offset / 2; i < partialFile.getPieceCount(); i += threads.length / 2) {
+                        try {
+                            partialFile.write(i, piece(content, i));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            assertTrue(partialFile.isFull());
+            partialFile.complete();
+        }
+        assertArrayEquals(content, Files.readAllBytes(path));
+    }
+
+    private FileInfoPacket fileInfo(byte[] content, HashType hashType) throws IOException {
+        Path source = Files.write(Files.createTempFile("partial_file_test", ".bin"), content);
+        byte[] digest = PFile.calculateFileDigest(source.toString(), hashType, PIECE_SIZE);
+        return new FileInfoPacket("file.bin", content.length, PIECE_SIZE, hashType, digest);
+    }
+
+    private byte[] piece(byte[] content, int index) {
+        return Arrays.copyOfRange(content, index * PIECE_SIZE, Math.min((index + 1) * PIECE_SIZE, content.length));
+    }
+
+    private byte[] randomContent(int length) {
+        byte[] content = new byte[length];
+        new Random().nextBytes(content);
+        return content;
+    }
+}
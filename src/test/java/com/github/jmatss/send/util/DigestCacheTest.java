@@ -0,0 +1,72 @@
+package com.github.jmatss.send.util;
+
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DigestCacheTest {
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        Path dir = Files.createTempDirectory("digest_cache_test");
+        Path file = Files.write(dir.resolve("file.txt"), "abc".getBytes());
+        AtomicInteger calculations = new AtomicInteger();
+        DigestCache cache = new DigestCache(null);
+
+        byte[] first = cache.getDigest(file, HashType.SHA1, () -> {
+            calculations.incrementAndGet();
+            return HashType.SHA1.getMessageDigest().digest(Files.readAllBytes(file));
+        });
+        byte[] second = cache.getDigest(file, HashType.SHA1, () -> fail("Digest calculated on a cache hit"));
+
+        assertArrayEquals(first, second);
+        assertEquals(1, calculations.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // Another HashType of the same file is a different entry.
+        cache.getDigest(file, HashType.MD5, () -> HashType.MD5.getMessageDigest().digest(Files.readAllBytes(file)));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testModifiedFileIsRecalculated() throws Exception {
+        Path dir = Files.createTempDirectory("digest_cache_test");
+        Path file = Files.write(dir.resolve("file.txt"), "abc".getBytes());
+        DigestCache cache = new DigestCache(null);
+
+        cache.getDigest(file, HashType.SHA1, () -> new byte[]{1});
+        Files.write(file, "abcd".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        byte[] digest = cache.getDigest(file, HashType.SHA1, () -> new byte[]{2});
+
+        assertArrayEquals(new byte[]{2}, digest);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path dir = Files.createTempDirectory("digest_cache_test");
+        Path file = Files.write(dir.resolve("file.txt"), "abc".getBytes());
+        Path cachePath = dir.resolve("cache").resolve("digest.cache");
+
+        DigestCache cache = new DigestCache(cachePath);
+        byte[] digest = cache.getDigest(file, HashType.SHA1,
+                () -> HashType.SHA1.getMessageDigest().digest(Files.readAllBytes(file)));
+        cache.save();
+        assertTrue(Files.exists(cachePath));
+
+        DigestCache loadedCache = new DigestCache(cachePath);
+        loadedCache.load();
+        assertEquals(1, loadedCache.size());
+        assertArrayEquals(digest,
+                loadedCache.getDigest(file, HashType.SHA1, () -> fail("Digest calculated after load")));
+        assertEquals(1, loadedCache.getHits());
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.jmatss.send.util;
+
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DigestTest {
+    @Test
+    public void testXxHash64KnownValues() {
+        assertEquals(0xEF46DB3751D8E999L, xxHash64(new byte[0]));
+        assertEquals(0xD24EC4F1A98C6E5BL, xxHash64("a".getBytes()));
+        assertEquals(0x44BC2CF5AD770999L, xxHash64("abc".getBytes()));
+    }
+
+    @Test
+    public void testCrc32cKnownValue() {
+        byte[] digest = HashType.CRC32C.digest("123456789".getBytes());
+        assertEquals(0xE3069283, ByteBuffer.wrap(digest).getInt());
+    }
+
+    @Test
+    public void testStreamingUpdatesEqualOneUpdate() {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+
+        for (HashType hashType : new HashType[]{HashType.CRC32C, HashType.XXH64}) {
+            byte[] expected = hashType.getMessageDigest().digest(data);
+
+            // Update with chunks of different sizes that doesn't line up with the internal stripes.
+            MessageDigest md = hashType.getMessageDigest();
+            int[] chunks = {1, 3, 31, 33, 64, 7, 100};
+            int offset = 0;
+            for (int i = 0; offset < data.length; i++) {
+                int len = Math.min(chunks[i % chunks.length], data.length - offset);
+                md.update(data, offset, len);
+                offset += len;
+            }
+            assertArrayEquals(expected, md.digest(), "Streaming updates differ for " + hashType);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+            assertArrayEquals(expected, hashType.digest(direct), "Direct buffer differs for " + hashType);
+            assertArrayEquals(expected, hashType.digest(data), "Pooled digest differs for " + hashType);
+            assertEquals(hashType.getSize(), expected.length);
+        }
+    }
+
+    private long xxHash64(byte[] data) {
+        return ByteBuffer.wrap(HashType.XXH64.digest(data)).getLong();
+    }
+}
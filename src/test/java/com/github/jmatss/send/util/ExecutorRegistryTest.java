@@ -0,0 +1,105 @@
+package com.github.jmatss.send.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExecutorRegistryTest {
+    @Test
+    public void testFullPoolRejectsTasks() throws Exception {
+        ExecutorRegistry executors = new ExecutorRegistry();
+        ExecutorRegistry.Role role = ExecutorRegistry.Role.DOWNLOAD;
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            fill(executors, role, release);
+            assertThrows(RejectedExecutionException.class, () -> executors.get(role).submit(() -> {
+            }));
+
+            ExecutorMetrics metrics = executors.getMetrics(role);
+            assertEquals(role.getThreads(), metrics.getActiveCount());
+            assertEquals(role.getQueueCapacity(), metrics.getQueueDepth());
+            assertEquals(1, metrics.getRejectedTasks());
+        } finally {
+            release.countDown();
+        }
+
+        ExecutorService executor = executors.get(role);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        ExecutorMetrics metrics = executors.getMetrics(role);
+        assertEquals(role.getThreads() + role.getQueueCapacity(), metrics.getCompletedTasks());
+        assertEquals(0, metrics.getQueueDepth());
+        assertTrue(metrics.getMaxQueueLatency(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void testAnnouncementsRunWhileTransferPoolsAreFull() throws Exception {
+        ExecutorRegistry executors = new ExecutorRegistry();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            fill(executors, ExecutorRegistry.Role.UPLOAD, release);
+            fill(executors, ExecutorRegistry.Role.DOWNLOAD, release);
+
+            int runs = 20;
+            CountDownLatch announcements = new CountDownLatch(runs);
+            Future<?> publisher = executors.getScheduler().scheduleAtFixedRate(announcements::countDown, 0, 10,
+                    TimeUnit.MILLISECONDS);
+            assertTrue(announcements.await(10, TimeUnit.SECONDS));
+            publisher.cancel(false);
+
+            ExecutorMetrics metrics = executors.getMetrics(ExecutorRegistry.Role.DISCOVERY);
+            // The last run is recorded after it has counted down the latch.
+            assertTrue(metrics.getCompletedTasks() >= runs - 1);
+            assertTrue(metrics.getMeanQueueLatency(TimeUnit.MILLISECONDS) < 100, metrics.toString());
+        } finally {
+            release.countDown();
+            executors.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelledScheduledTasksLeaveTheBoundedQueue() {
+        ExecutorRegistry executors = new ExecutorRegistry();
+        ScheduledExecutorService scheduler = executors.getScheduler();
+        int capacity = ExecutorRegistry.Role.DISCOVERY.getQueueCapacity();
+        try {
+            List<Future<?>> timeouts = new ArrayList<>();
+            for (int i = 0; i < capacity; i++)
+                timeouts.add(scheduler.schedule(() -> {
+                }, 1, TimeUnit.HOURS));
+            assertThrows(RejectedExecutionException.class, () -> scheduler.schedule(() -> {
+            }, 1, TimeUnit.HOURS));
+            assertEquals(capacity, executors.getMetrics(ExecutorRegistry.Role.DISCOVERY).getQueueDepth());
+
+            assertTrue(timeouts.get(0).cancel(false));
+            assertEquals(capacity - 1, executors.getMetrics(ExecutorRegistry.Role.DISCOVERY).getQueueDepth());
+            scheduler.schedule(() -> {
+            }, 1, TimeUnit.HOURS);
+        } finally {
+            executors.shutdownNow();
+        }
+    }
+
+    // Occupies every thread of the pool of the given role and fills its queue with tasks that waits for "release".
+    private void fill(ExecutorRegistry executors, ExecutorRegistry.Role role, CountDownLatch release)
+    throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(role.getThreads());
+        for (int i = 0; i < role.getThreads() + role.getQueueCapacity(); i++) {
+            executors.get(role).submit(() -> {
+                started.countDown();
+                release.await();
+                return null;
+            });
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+}
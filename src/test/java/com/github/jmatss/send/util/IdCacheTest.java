@@ -0,0 +1,73 @@
+package com.github.jmatss.send.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdCacheTest {
+    @Test
+    public void testAddAndContains() {
+        IdCache idCache = new IdCache(100);
+        assertEquals(128, idCache.capacity());
+        assertFalse(idCache.contains(0));
+        assertTrue(idCache.add(0));
+        assertTrue(idCache.add(-1));
+        assertFalse(idCache.add(0));
+        assertTrue(idCache.contains(0));
+        assertTrue(idCache.contains(-1));
+        assertFalse(idCache.contains(1));
+        assertEquals(2, idCache.size());
+    }
+
+    @Test
+    public void testRecentlyUsedIdsSurviveEviction() {
+        IdCache idCache = new IdCache(1 << 12);
+        Random random = new Random(1);
+        int[] hot = new int[idCache.capacity() / 16];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = random.nextInt();
+            idCache.add(hot[i]);
+        }
+
+        // Stream ten times the capacity of new ids through the cache while the hot ids keep being looked up.
+        for (int i = 0; i < 10 * idCache.capacity(); i++) {
+            idCache.add(random.nextInt());
+            if (i % 2 == 0)
+                assertTrue(idCache.contains(hot[(i / 2) % hot.length]), "Hot id evicted at " + i);
+        }
+        assertTrue(idCache.size() <= idCache.capacity());
+        // The cache is never cleared, it stays full.
+        assertTrue(idCache.size() > idCache.capacity() * 9 / 10, "Size: " + idCache.size());
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        IdCache idCache = new IdCache(1 << 16);
+        AtomicInteger missing = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                // Every thread adds its own ids and a quarter of them are also added by all other threads.
+                for (int i = 0; i < 1 << 11; i++) {
+                    int id = i % 4 == 0 ? i : (thread << 24) | i;
+                    idCache.add(id);
+                    if (!idCache.contains(id))
+                        missing.incrementAndGet();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, missing.get());
+        for (int i = 0; i < 1 << 11; i += 4)
+            assertTrue(idCache.contains(i));
+    }
+}
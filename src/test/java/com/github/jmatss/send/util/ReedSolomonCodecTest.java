@@ -0,0 +1,72 @@
+package com.github.jmatss.send.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReedSolomonCodecTest {
+    private final FecCodec codec = new ReedSolomonCodec();
+
+    @Test
+    public void testAnyDataCountShardsRebuildTheData() {
+        int dataCount = 5;
+        int parityCount = 3;
+        byte[][] data = randomShards(dataCount, 100, 1);
+        byte[][] parity = this.codec.encode(data, parityCount);
+        assertEquals(parityCount, parity.length);
+
+        // Every combination of lost shards that leaves at least "dataCount" shards.
+        int shardCount = dataCount + parityCount;
+        for (int lost = 0; lost < 1 << shardCount; lost++) {
+            if (Integer.bitCount(lost) > parityCount)
+                continue;
+
+            byte[][] shards = new byte[shardCount][];
+            for (int i = 0; i < shardCount; i++) {
+                if ((lost & (1 << i)) == 0)
+                    shards[i] = (i < dataCount ? data[i] : parity[i - dataCount]).clone();
+            }
+            assertTrue(this.codec.decode(shards, dataCount));
+            for (int i = 0; i < dataCount; i++)
+                assertArrayEquals(data[i], shards[i], "Shard " + i + " differs when losing " + lost);
+        }
+    }
+
+    @Test
+    public void testTooFewShardsAreNotRebuilt() {
+        byte[][] data = randomShards(4, 10, 2);
+        byte[][] parity = this.codec.encode(data, 2);
+
+        byte[][] shards = new byte[][]{null, data[1], null, null, parity[0], parity[1]};
+        assertFalse(this.codec.decode(shards, 4));
+        assertNull(shards[0]);
+    }
+
+    @Test
+    public void testLargestBlock() {
+        int dataCount = 47;
+        int parityCount = ReedSolomonCodec.MAX_SHARDS - dataCount;
+        byte[][] data = randomShards(dataCount, 1400, 3);
+        byte[][] parity = this.codec.encode(data, parityCount);
+
+        // Only parity shards are received.
+        byte[][] shards = new byte[ReedSolomonCodec.MAX_SHARDS][];
+        for (int i = 0; i < dataCount; i++)
+            shards[ReedSolomonCodec.MAX_SHARDS - 1 - i] = parity[parityCount - 1 - i];
+        assertTrue(this.codec.decode(shards, dataCount));
+        for (int i = 0; i < dataCount; i++)
+            assertArrayEquals(data[i], shards[i]);
+
+        assertThrows(IllegalArgumentException.class, () -> this.codec.encode(data, parityCount + 1));
+    }
+
+    private byte[][] randomShards(int count, int length, long seed) {
+        Random random = new Random(seed);
+        byte[][] shards = new byte[count][length];
+        for (byte[] shard : shards)
+            random.nextBytes(shard);
+        return shards;
+    }
+}
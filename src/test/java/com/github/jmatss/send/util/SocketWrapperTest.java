@@ -0,0 +1,280 @@
+package com.github.jmatss.send.util;
+
+import com.github.jmatss.send.packet.FileInfoPacket;
+import com.github.jmatss.send.packet.FilePiecePacket;
+import com.github.jmatss.send.packet.ManifestPacket;
+import com.github.jmatss.send.packet.StripePacket;
+import com.github.jmatss.send.packet.TextPacket;
+import com.github.jmatss.send.packet.WantedFilesPacket;
+import com.github.jmatss.send.protocol.Protocol;
+import com.github.jmatss.send.type.CompressionType;
+import com.github.jmatss.send.type.HashType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SocketWrapperTest {
+    @Test
+    public void testZeroCopyFilePieceEqualsFilePiecePacket() throws Exception {
+        Path path = getResource("test_data1.txt");
+        byte[] content = Files.readAllBytes(path);
+
+        for (HashType hashType : new HashType[]{HashType.NONE, HashType.SHA1, HashType.MD5}) {
+            byte[] digest = hashType == HashType.NONE
+                    ? new byte[0]
+                    : hashType.getMessageDigest().digest(content);
+            byte[] expected = new FilePiecePacket(3, content, hashType).getBytes();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                new SocketWrapper(out).sendFilePiece(channel, 3, 0, content.length, hashType, digest);
+            }
+
+            assertArrayEquals(expected, out.toByteArray(), "Incorrect zero-copy piece with hash " + hashType);
+        }
+    }
+
+    @Test
+    public void testStripesCoverRangeOnce() throws Exception {
+        int start = 7;
+        int end = 52;
+        int stripeCount = 4;
+        int[] received = new int[end];
+
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            StripePacket expected = StripePacket.of(start, end, stripe, stripeCount);
+            StripePacket stripePacket = new SocketWrapper(new ByteArrayInputStream(expected.getBytes()))
+                    .receiveStripe();
+            assertEquals(expected.getStart(), stripePacket.getStart());
+            assertEquals(expected.getCount(), stripePacket.getCount());
+            assertEquals(stripeCount, stripePacket.getStride());
+
+            for (int i = 0; i < stripePacket.getCount(); i++)
+                received[stripePacket.getIndex(i)]++;
+        }
+
+        for (int i = 0; i < end; i++)
+            assertEquals(i < start ? 0 : 1, received[i], "Incorrect amount of requests of piece " + i);
+        assertNull(StripePacket.of(start, start + 2, 3, stripeCount));
+    }
+
+    @Test
+    public void testZeroCopyFilePieceOverSocketChannel() throws Exception {
+        Path path = getResource("test_data1.txt");
+        byte[] content = Files.readAllBytes(path);
+        int half = content.length / 2;
+        HashType hashType = HashType.SHA1;
+
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            int port = serverSocketChannel.socket().getLocalPort();
+
+            SocketWrapper receiver = new SocketWrapper(new Socket("127.0.0.1", port));
+            SocketWrapper sender = new SocketWrapper(serverSocketChannel.socket().accept());
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                byte[] first = Arrays.copyOfRange(content, 0, half);
+                byte[] second = Arrays.copyOfRange(content, half, content.length);
+                sender.sendFilePiece(channel, 0, 0, first.length, hashType,
+                        hashType.getMessageDigest().digest(first));
+                sender.sendFilePiece(channel, 1, half, second.length, hashType,
+                        hashType.getMessageDigest().digest(second));
+                sender.sendDone();
+
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                int index = 0;
+                while (!receiver.isDone())
+                    received.write(receiver.receiveFilePiece(index++).getData());
+
+                assertEquals(2, index);
+                assertArrayEquals(content, received.toByteArray());
+            } finally {
+                sender.close();
+                receiver.close();
+            }
+        }
+    }
+
+    @Test
+    public void testZeroCopyFilePieceIsRateLimited() throws Exception {
+        byte[] content = new byte[256 << 10];
+        new Random(1).nextBytes(content);
+        Path path = Files.write(Files.createTempFile("socket_wrapper_test", ".bin"), content);
+        long rate = 1 << 20;
+
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            int port = serverSocketChannel.socket().getLocalPort();
+
+            SocketWrapper receiver = new SocketWrapper(new Socket("127.0.0.1", port));
+            receiver.setMaxPieceSize(content.length);
+            SocketWrapper sender = new SocketWrapper(serverSocketChannel.socket().accept());
+            TokenBucket bucket = new TokenBucket(null);
+            bucket.setRate(rate);
+            sender.setSendBucket(bucket);
+
+            Thread thread = new Thread(() -> {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    sender.sendFilePiece(channel, 0, 0, content.length, HashType.SHA1,
+                            HashType.SHA1.getMessageDigest().digest(content));
+                    sender.sendDone();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            try {
+                long start = System.nanoTime();
+                thread.start();
+                assertArrayEquals(content, receiver.receiveFilePiece(0).getData());
+                assertTrue(receiver.isDone());
+                long millis = (System.nanoTime() - start) / 1_000_000;
+
+                // A quarter of a second at the rate minus the burst that an idle bucket can save up.
+                assertTrue(millis >= 250 - TokenBucket.BURST_TIME - 50, "Sent too fast: " + millis + " ms");
+                assertTrue(bucket.getTransferredBytes() > content.length);
+            } finally {
+                thread.join();
+                sender.close();
+                receiver.close();
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void testReceiveFilePieceFromStream() throws Exception {
+        byte[] content = "abcdefghijklmnopqrstuvwxyz".getBytes();
+        byte[] packet = new FilePiecePacket(0, content, HashType.MD5).getBytes();
+
+        SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(packet));
+        byte[] receivedPacket = socketWrapper.receiveFilePiece(0).getBytes();
+
+        assertArrayEquals(packet, receivedPacket);
+    }
+
+    @Test
+    public void testFilePieceLargerThanNegotiatedPieceSizeIsRejected() throws Exception {
+        byte[] content = new byte[Protocol.DEFAULT_PIECE_SIZE * 2];
+        new Random(1).nextBytes(content);
+        byte[] packet = new FilePiecePacket(0, content, HashType.CRC32C).getBytes();
+        byte[] fileInfo = new FileInfoPacket("name", content.length * 4L, content.length, HashType.SHA1,
+                new byte[HashType.SHA1.getSize()]).getBytes();
+
+        assertThrows(IOException.class, () -> new SocketWrapper(new ByteArrayInputStream(packet))
+                .receiveFilePiece(0));
+        assertThrows(IOException.class, () -> new SocketWrapper(new ByteArrayInputStream(fileInfo))
+                .receiveFileInfo());
+
+        SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(packet));
+        socketWrapper.setMaxPieceSize(content.length);
+        assertArrayEquals(content, socketWrapper.receiveFilePiece(0).getData());
+        socketWrapper = new SocketWrapper(new ByteArrayInputStream(fileInfo));
+        socketWrapper.setMaxPieceSize(content.length);
+        assertEquals(content.length, socketWrapper.receiveFileInfo().getPieceSize());
+    }
+
+    @Test
+    public void testCompressedFilePieceIsDecompressed() throws Exception {
+        byte[] content = new byte[1 << 16];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ("timestamp,level,message\n".charAt(i % 24));
+        FilePiecePacket packet = new FilePiecePacket(3, content, HashType.SHA1).compress(CompressionType.DEFLATE);
+        assertEquals(CompressionType.DEFLATE, packet.getCompressionType());
+        assertTrue(packet.getBytes().length < content.length / 10);
+
+        SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(packet.getBytes()));
+        FilePiecePacket received = socketWrapper.receiveFilePiece(3);
+        assertArrayEquals(content, received.getData());
+    }
+
+    @Test
+    public void testIncompressibleFilePieceIsSentUncompressed() throws Exception {
+        byte[] content = new byte[1 << 16];
+        new Random(1).nextBytes(content);
+        assertFalse(CompressionType.isCompressible(content));
+
+        FilePiecePacket packet = new FilePiecePacket(0, content, HashType.MD5);
+        assertSame(packet, packet.compress(CompressionType.DEFLATE));
+        assertEquals(CompressionType.NONE, packet.getCompressionType());
+    }
+
+    @Test
+    public void testCompressedTextIsDecompressed() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            sb.append("line ").append(i % 10).append('\n');
+        String text = sb.toString();
+        byte[] packet = new TextPacket(0, text).compress(CompressionType.DEFLATE).getBytes();
+        assertTrue(packet.length < text.length() / 2);
+
+        SocketWrapper socketWrapper = new SocketWrapper(new ByteArrayInputStream(packet));
+        assertEquals(text, socketWrapper.receiveText(0));
+    }
+
+    @Test
+    public void testCompressedManifestRoundTrip() throws Exception {
+        List<FileInfoPacket> files = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            byte[] digest = new byte[HashType.SHA1.getSize()];
+            random.nextBytes(digest);
+            files.add(new FileInfoPacket("photos/2020/img_" + i + ".jpg", random.nextInt(1 << 24),
+                    Protocol.DEFAULT_PIECE_SIZE, HashType.SHA1, digest));
+        }
+        byte[] packet = new ManifestPacket(files, CompressionType.DEFLATE).getBytes();
+        assertEquals(CompressionType.DEFLATE.getValue(), packet[1]);
+
+        List<FileInfoPacket> received = new SocketWrapper(new ByteArrayInputStream(packet)).receiveManifest()
+                .getFiles();
+        assertEquals(files.size(), received.size());
+        for (int i = 0; i < files.size(); i++)
+            assertTrue(files.get(i).hasSameContent(received.get(i)));
+
+        // A truncated manifest is rejected.
+        byte[] uncompressed = new ManifestPacket(files, CompressionType.NONE).getBytes();
+        assertThrows(IOException.class, () -> new SocketWrapper(new ByteArrayInputStream(
+                Arrays.copyOf(uncompressed, uncompressed.length - 1))).receiveManifest());
+    }
+
+    @Test
+    public void testWantedFilesAreValidated() throws Exception {
+        Bitmap stream = new Bitmap(10);
+        Bitmap exchange = new Bitmap(10);
+        stream.set(1);
+        exchange.set(2);
+        byte[] packet = new WantedFilesPacket(stream, exchange).getBytes();
+
+        WantedFilesPacket received = new SocketWrapper(new ByteArrayInputStream(packet)).receiveWantedFiles(10);
+        assertEquals(stream, received.getStream());
+        assertEquals(exchange, received.getExchange());
+        assertThrows(IOException.class, () -> new SocketWrapper(new ByteArrayInputStream(packet))
+                .receiveWantedFiles(11));
+
+        exchange.set(1);
+        byte[] overlapping = new WantedFilesPacket(stream, exchange).getBytes();
+        assertThrows(IOException.class, () -> new SocketWrapper(new ByteArrayInputStream(overlapping))
+                .receiveWantedFiles(10));
+    }
+
+    private Path getResource(String name) throws Exception {
+        String path = Objects.requireNonNull(getClass().getClassLoader().getResource(name)).getFile();
+        return Paths.get(new URI("file://" + path).getPath());
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.jmatss.send.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketTest {
+    private static final long RATE = 1 << 20;
+
+    @Test
+    public void testUnlimitedBucketCountsBytes() throws Exception {
+        TokenBucket bucket = new TokenBucket(null);
+        long start = System.nanoTime();
+        for (int i = 0; i < 1024; i++)
+            bucket.acquire(TokenBucket.MAX_TAKE);
+
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        assertEquals(1024L * TokenBucket.MAX_TAKE, bucket.getTransferredBytes());
+    }
+
+    @Test
+    public void testRateIsLimited() throws Exception {
+        TokenBucket bucket = new TokenBucket(null);
+        bucket.setRate(RATE);
+        long millis = transfer(bucket, RATE / 2);
+
+        // Half a second at the rate minus the burst that an idle bucket can save up.
+        assertTrue(millis >= 500 - TokenBucket.BURST_TIME - 50, "Transferred too fast: " + millis + " ms");
+        assertTrue(millis < 5000, "Transferred too slow: " + millis + " ms");
+    }
+
+    @Test
+    public void testChildrenAreLimitedByParent() throws Exception {
+        TokenBucket parent = new TokenBucket(null);
+        parent.setRate(RATE);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            TokenBucket child = new TokenBucket(parent);
+            threads.add(new Thread(() -> {
+                try {
+                    transfer(child, RATE / 4);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+            thread.join();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(millis >= 500 - TokenBucket.BURST_TIME - 50, "Transferred too fast: " + millis + " ms");
+        assertEquals(RATE / 2, parent.getTransferredBytes());
+    }
+
+    @Test
+    public void testConnectionsOfSamePeerShareBucket() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        InetAddress address = InetAddress.getLoopbackAddress();
+
+        TokenBucket first = limiter.open("topic", address);
+        TokenBucket second = limiter.open("topic", address);
+        TokenBucket other = limiter.open("other", address);
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertSame(first.getParent().getParent(), other.getParent().getParent());
+
+        limiter.setPeerRate(RATE);
+        limiter.setTopicRate("topic", 2 * RATE);
+        assertEquals(RATE, first.getRate());
+        assertEquals(2 * RATE, first.getParent().getRate());
+        assertTrue(limiter.isLimited("other"));
+
+        limiter.close("topic", address);
+        assertEquals(2, limiter.getAchievedPeerRates().size());
+        limiter.close("topic", address);
+        limiter.close("other", address);
+        assertTrue(limiter.getAchievedPeerRates().isEmpty());
+        assertEquals(2, limiter.getAchievedTopicRates().size());
+    }
+
+    // Takes the bytes in parts as a throttled stream would and returns the elapsed time.
+    private static long transfer(TokenBucket bucket, long bytes) throws Exception {
+        long start = System.nanoTime();
+        for (long taken = 0; taken < bytes; taken += TokenBucket.MAX_TAKE)
+            bucket.acquire(Math.min(TokenBucket.MAX_TAKE, bytes - taken));
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
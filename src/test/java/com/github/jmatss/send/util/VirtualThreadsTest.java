@@ -0,0 +1,34 @@
+package com.github.jmatss.send.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VirtualThreadsTest {
+    @Test
+    public void testBlockingTasksAreNotLimitedByCoreCount() throws Exception {
+        int tasks = Runtime.getRuntime().availableProcessors() * 16;
+        CountDownLatch started = new CountDownLatch(tasks);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("virtual-threads-test");
+        try {
+            // Every task blocks until all tasks have started, which never happens on a pool with a thread per core.
+            for (int i = 0; i < tasks; i++) {
+                executor.submit(() -> {
+                    started.countDown();
+                    release.await();
+                    return null;
+                });
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}